@@ -0,0 +1,292 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * MediaStore のアルバムアートを読み込むクラス。
+ * 画像は専用のスレッドで inSampleSize を使って目標の大きさ近くまで縮小してデコードし、
+ * 目標の大きさに縮めたものをメモリ（バイト数で上限を決めた LRU）とディスク（縮小済みの JPEG）に保持する。
+ * メモリ上の画像は {@link #peek(long)} でどのスレッドからでもすぐに取り出せる。
+ */
+public class AlbumArtLoader {
+	private static final String TAG = "AlbumArtLoader";
+
+	private static final Uri ALBUM_ART_URI = Uri.parse("content://media/external/audio/albumart");
+	private static final String DISK_CACHE_DIR = "albumart";
+	/** ディスクキャッシュの上限（バイト）。 */
+	static final long DISK_CACHE_SIZE = 8 * 1024 * 1024;
+	private static final int JPEG_QUALITY = 90;
+
+	/** 読み込みが終わったことを受け取るリスナー。 */
+	public interface Listener {
+		/**
+		 * アルバムアートの読み込みが終わったときに、読み込み用のスレッドから呼び出される。
+		 * @param albumId アルバムの _ID
+		 * @param bitmap 縮小済みの画像。アルバムアートが無ければ null
+		 */
+		public void onAlbumArtLoaded(long albumId, Bitmap bitmap);
+	}
+
+	private final ContentResolver mResolver;
+	private final File mDiskDir;
+	private final int mTargetSize;
+	private final Listener mListener;
+	private final LruCache<Long, Bitmap> mMemory;
+	// アルバムアートが無いとわかったアルバム。何度も探しに行かないように覚えておく
+	private final Set<Long> mMissing = new HashSet<Long>();
+	// 読み込みを予約済みのアルバム
+	private final Set<Long> mPending = new HashSet<Long>();
+
+	private final HandlerThread mThread;
+	private final Handler mHandler;
+
+	/**
+	 * @param context コンテキスト
+	 * @param targetSize 縮小後の長辺の大きさ（ピクセル）
+	 * @param memoryBytes メモリキャッシュの上限（バイト）
+	 * @param listener 読み込みが終わったことを受け取るリスナー
+	 */
+	public AlbumArtLoader(Context context, int targetSize, int memoryBytes, Listener listener) {
+		mResolver = context.getContentResolver();
+		mDiskDir = new File(context.getCacheDir(), DISK_CACHE_DIR);
+		mTargetSize = Math.max(targetSize, 1);
+		mListener = listener;
+		mMemory = new LruCache<Long, Bitmap>(Math.max(memoryBytes, 1)) {
+			@Override
+			protected int sizeOf(Long key, Bitmap value) {
+				return value.getRowBytes() * value.getHeight();
+			}
+		};
+		mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+		mThread.start();
+		mHandler = new Handler(mThread.getLooper());
+	}
+
+	/** メモリキャッシュの上限の目安（ヒープの 1/16）を返す。 */
+	public static int defaultMemoryBytes() {
+		return (int) Math.min(Runtime.getRuntime().maxMemory() / 16, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * メモリキャッシュにある画像を返す。デコードはしない。
+	 * @param albumId アルバムの _ID
+	 * @return 縮小済みの画像。メモリキャッシュに無ければ null
+	 */
+	public Bitmap peek(long albumId) {
+		return mMemory.get(albumId);
+	}
+
+	/** アルバムアートが無いとわかっているかどうかを返す。 */
+	public boolean isMissing(long albumId) {
+		synchronized (mMissing) {
+			return mMissing.contains(albumId);
+		}
+	}
+
+	/**
+	 * アルバムアートをメモリキャッシュに読み込んでおく。すでにある、または読み込み中なら何もしない。
+	 * 読み込みが終わるとリスナーが呼び出される。
+	 * @param albumId アルバムの _ID
+	 */
+	public void load(final long albumId) {
+		if (albumId < 0 || mMemory.get(albumId) != null || isMissing(albumId)) {
+			return;
+		}
+		synchronized (mPending) {
+			if (!mPending.add(albumId)) {
+				return;
+			}
+		}
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				Bitmap bitmap = loadBlocking(albumId);
+				synchronized (mPending) {
+					mPending.remove(albumId);
+				}
+				mListener.onAlbumArtLoaded(albumId, bitmap);
+			}
+		});
+	}
+
+	/** メモリキャッシュを空にする。ディスクキャッシュは残す。 */
+	public void clearMemory() {
+		mMemory.evictAll();
+		synchronized (mMissing) {
+			mMissing.clear();
+		}
+	}
+
+	/** 読み込み用のスレッドを止める。予約済みの読み込みは捨てる。 */
+	public void quit() {
+		mHandler.removeCallbacksAndMessages(null);
+		mThread.quit();
+		mMemory.evictAll();
+	}
+
+	private Bitmap loadBlocking(long albumId) {
+		Bitmap bitmap = mMemory.get(albumId);
+		if (bitmap != null) {
+			return bitmap;
+		}
+		File cached = new File(mDiskDir, albumId + ".jpg");
+		if (cached.exists()) {
+			bitmap = BitmapFactory.decodeFile(cached.getPath());
+			if (bitmap != null) {
+				cached.setLastModified(System.currentTimeMillis());
+			}
+		}
+		if (bitmap == null) {
+			bitmap = decodeSource(albumId);
+			if (bitmap == null) {
+				synchronized (mMissing) {
+					mMissing.add(albumId);
+				}
+				return null;
+			}
+			writeDiskCache(cached, bitmap);
+		}
+		mMemory.put(albumId, bitmap);
+		return bitmap;
+	}
+
+	/** MediaStore のアルバムアートを、目標の大きさに縮めてデコードする。 */
+	private Bitmap decodeSource(long albumId) {
+		Uri uri = ContentUris.withAppendedId(ALBUM_ART_URI, albumId);
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		decodeBitmap(uri, options); // 大きさだけを読む
+		if (options.outWidth <= 0 || options.outHeight <= 0) {
+			return null;
+		}
+
+		// 目標の大きさを下回らない範囲で、2 のべき乗で間引いてデコードする
+		int longSide = Math.max(options.outWidth, options.outHeight);
+		int sampleSize = 1;
+		while (longSide / (sampleSize * 2) >= mTargetSize) {
+			sampleSize *= 2;
+		}
+		options = new BitmapFactory.Options();
+		options.inSampleSize = sampleSize;
+		options.inPreferredConfig = Bitmap.Config.RGB_565;
+		Bitmap sampled = decodeBitmap(uri, options);
+		if (sampled == null) {
+			return null;
+		}
+
+		// 残りの端数は拡大縮小で合わせる
+		int width = sampled.getWidth();
+		int height = sampled.getHeight();
+		int sampledLongSide = Math.max(width, height);
+		if (sampledLongSide <= mTargetSize) {
+			return sampled;
+		}
+		Bitmap scaled = Bitmap.createScaledBitmap(sampled,
+				Math.max(width * mTargetSize / sampledLongSide, 1),
+				Math.max(height * mTargetSize / sampledLongSide, 1), true);
+		if (scaled != sampled) {
+			sampled.recycle();
+		}
+		return scaled;
+	}
+
+	private Bitmap decodeBitmap(Uri uri, BitmapFactory.Options options) {
+		InputStream in = null;
+		try {
+			in = mResolver.openInputStream(uri);
+			if (in == null) {
+				return null;
+			}
+			return BitmapFactory.decodeStream(in, null, options);
+		} catch (FileNotFoundException e) {
+			// アルバムアートが無い
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private void writeDiskCache(File file, Bitmap bitmap) {
+		if (!mDiskDir.exists() && !mDiskDir.mkdirs()) {
+			return;
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		OutputStream out = null;
+		try {
+			out = new BufferedOutputStream(new FileOutputStream(tmp));
+			bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to write " + file + ": " + e.getMessage());
+			tmp.delete();
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		trimDiskCache();
+	}
+
+	/** ディスクキャッシュが上限を超えていたら、最後に使われたのが古いものから消す。 */
+	private void trimDiskCache() {
+		File[] files = mDiskDir.listFiles();
+		if (files == null) {
+			return;
+		}
+		long total = 0;
+		for (File f : files) {
+			total += f.length();
+		}
+		if (total <= DISK_CACHE_SIZE) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long x = a.lastModified();
+				long y = b.lastModified();
+				return x < y ? -1 : (x == y ? 0 : 1);
+			}
+		});
+		for (int i = 0; i < files.length && total > DISK_CACHE_SIZE; i++) {
+			long length = files[i].length();
+			if (files[i].delete()) {
+				total -= length;
+			}
+		}
+	}
+}
@@ -0,0 +1,211 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+/**
+ * 終わりかけの曲（from）と次の曲（to）の PCM を、フェードの曲線に沿って混ぜ合わせるクラス。
+ * サンプルはチャンネルごとに交互に並んだもの（インターリーブ）で、16 ビット整数と float のどちらも扱える。
+ * フェードの長さはフレーム単位で {@link #start(int)} に渡し、{@link #mix} を呼ぶたびに、混ぜたフレーム数だけ進む。
+ *
+ * 曲線は表（1 回だけ作る）を線形補間して求め、混ぜる処理ではオブジェクトを作らない。
+ * そのため、オーディオスレッドから呼び出しても GC を起こさない。
+ * Android の API は使わないので、JVM 上で試験やベンチマークができる。
+ * 1 つのスレッドから使うこと。
+ */
+public class CrossfadeMixer {
+	/** 音量（振幅）を直線的に変える。同じ音を混ぜたときに大きさが変わらない。 */
+	public static final int CURVE_LINEAR = 0;
+	/** 2 つの音量の 2 乗の和を一定に保つ。無関係な 2 曲を混ぜたときに、途中で音が小さくならない。 */
+	public static final int CURVE_EQUAL_POWER = 1;
+
+	// 曲線の表の区間数
+	static final int TABLE_SIZE = 1024;
+
+	private final int mChannels;
+	// フェードインの音量。mCurve[i] は全体の i / TABLE_SIZE まで進んだところ。
+	// どちらの曲線も対称なので、フェードアウトの音量は表を逆から読めばよい
+	private final float[] mCurve = new float[TABLE_SIZE + 1];
+	private int mCurveType = -1;
+
+	private int mLength = 0;
+	private int mPosition = 0;
+	// 1 フレームごとに表の上を進む量
+	private float mStep = 0;
+
+	/**
+	 * @param channels チャンネル数
+	 * @param curve フェードの曲線。CURVE_LINEAR か CURVE_EQUAL_POWER
+	 */
+	public CrossfadeMixer(int channels, int curve) {
+		if (channels < 1) {
+			throw new IllegalArgumentException("channels: " + channels);
+		}
+		mChannels = channels;
+		setCurve(curve);
+	}
+
+	public int getChannelCount() {
+		return mChannels;
+	}
+
+	/** フェードの曲線を変える。フェードの途中で変えると、その位置から新しい曲線になる。 */
+	public void setCurve(int curve) {
+		if (curve == mCurveType) {
+			return;
+		}
+		if (curve != CURVE_LINEAR && curve != CURVE_EQUAL_POWER) {
+			throw new IllegalArgumentException("curve: " + curve);
+		}
+		mCurveType = curve;
+		for (int i = 0; i <= TABLE_SIZE; i++) {
+			double t = (double) i / TABLE_SIZE;
+			mCurve[i] = (float) (curve == CURVE_LINEAR ? t : Math.sin(t * Math.PI / 2));
+		}
+		// 端は丸めずにちょうど 0 と 1 にしておく。始めは from、終わりは to がそのまま出る
+		mCurve[0] = 0f;
+		mCurve[TABLE_SIZE] = 1f;
+	}
+
+	public int getCurve() {
+		return mCurveType;
+	}
+
+	/**
+	 * フェードを始める。
+	 * @param frames フェードの長さ（フレーム数）。0 以下ならフェードせず、すぐ to に切り替わる
+	 */
+	public void start(int frames) {
+		mLength = Math.max(frames, 0);
+		mPosition = 0;
+		mStep = mLength == 0 ? 0 : (float) TABLE_SIZE / mLength;
+	}
+
+	/** フェードをやめる。以後の mix は to をそのまま出す。 */
+	public void cancel() {
+		mPosition = mLength;
+	}
+
+	/** フェードの途中かどうか。 */
+	public boolean isFading() {
+		return mPosition < mLength;
+	}
+
+	/** フェードの始めから進んだフレーム数。 */
+	public int getPosition() {
+		return mPosition;
+	}
+
+	/** フェードの長さ（フレーム数）。 */
+	public int getLength() {
+		return mLength;
+	}
+
+	/**
+	 * 今の位置でのフェードインの音量（0 から 1）。フェードアウトの音量は {@link #fadeOutGain()}。
+	 * フェードしていなければ 1。
+	 */
+	public float fadeInGain() {
+		return isFading() ? gain(mPosition * mStep) : 1f;
+	}
+
+	/** 今の位置でのフェードアウトの音量（0 から 1）。フェードしていなければ 0。 */
+	public float fadeOutGain() {
+		return isFading() ? gain(TABLE_SIZE - mPosition * mStep) : 0f;
+	}
+
+	/**
+	 * 16 ビット整数の PCM を混ぜ、フェードを frames だけ進める。
+	 * フェードが途中で終われば、残りは to をそのまま出す。結果は 16 ビットの範囲に収める。
+	 * out は from や to と同じ配列でもよい。
+	 *
+	 * @param out 結果の書き込み先（frames フレーム分）
+	 * @param from フェードアウトする曲。fromFrames より後ろは無音として扱う
+	 * @param fromFrames from にあるフレーム数
+	 * @param to フェードインする曲。toFrames より後ろは無音として扱う
+	 * @param toFrames to にあるフレーム数
+	 * @param frames 混ぜるフレーム数
+	 */
+	public void mix(short[] out, short[] from, int fromFrames, short[] to, int toFrames, int frames) {
+		int channels = mChannels;
+		int fromEnd = Math.min(fromFrames, frames) * channels;
+		int toEnd = Math.min(toFrames, frames) * channels;
+		int fading = Math.min(mLength - mPosition, frames) * channels;
+		int i = 0;
+		// t is worked out from the frame number each time rather than accumulated,
+		// so the result does not depend on how the fade is cut into calls
+		for (int position = mPosition; i < fading; position++) {
+			float t = position * mStep;
+			float in = gain(t);
+			float fade = gain(TABLE_SIZE - t);
+			for (int c = 0; c < channels; c++, i++) {
+				float v = (i < fromEnd ? from[i] * fade : 0f) + (i < toEnd ? to[i] * in : 0f);
+				out[i] = clamp(v);
+			}
+		}
+		mPosition += fading / channels;
+		// the fade is over: only the incoming song is left
+		int end = frames * channels;
+		if (i < toEnd) {
+			if (out != to) {
+				System.arraycopy(to, i, out, i, toEnd - i);
+			}
+			i = toEnd;
+		}
+		while (i < end) {
+			out[i++] = 0;
+		}
+	}
+
+	/**
+	 * float の PCM を混ぜ、フェードを frames だけ進める。
+	 * 16 ビットの場合と同じだが、結果を -1 から 1 の範囲には収めない（AudioTrack が収める）。
+	 */
+	public void mix(float[] out, float[] from, int fromFrames, float[] to, int toFrames, int frames) {
+		int channels = mChannels;
+		int fromEnd = Math.min(fromFrames, frames) * channels;
+		int toEnd = Math.min(toFrames, frames) * channels;
+		int fading = Math.min(mLength - mPosition, frames) * channels;
+		int i = 0;
+		for (int position = mPosition; i < fading; position++) {
+			float t = position * mStep;
+			float in = gain(t);
+			float fade = gain(TABLE_SIZE - t);
+			for (int c = 0; c < channels; c++, i++) {
+				out[i] = (i < fromEnd ? from[i] * fade : 0f) + (i < toEnd ? to[i] * in : 0f);
+			}
+		}
+		mPosition += fading / channels;
+		int end = frames * channels;
+		if (i < toEnd) {
+			if (out != to) {
+				System.arraycopy(to, i, out, i, toEnd - i);
+			}
+			i = toEnd;
+		}
+		while (i < end) {
+			out[i++] = 0f;
+		}
+	}
+
+	/** 表の上の位置 t（0 から TABLE_SIZE）でのフェードインの音量。 */
+	private float gain(float t) {
+		if (t <= 0f) {
+			return 0f;
+		}
+		if (t >= TABLE_SIZE) {
+			return 1f;
+		}
+		int index = (int) t;
+		float a = mCurve[index];
+		return a + (mCurve[index + 1] - a) * (t - index);
+	}
+
+	private static short clamp(float v) {
+		int s = (int) (v >= 0f ? v + 0.5f : v - 0.5f);
+		if (s > Short.MAX_VALUE) {
+			return Short.MAX_VALUE;
+		}
+		if (s < Short.MIN_VALUE) {
+			return Short.MIN_VALUE;
+		}
+		return (short) s;
+	}
+}
@@ -0,0 +1,777 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.io.IOException;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * 曲を PcmDecoder で PCM にデコードして AudioTrack で鳴らし、曲の終わりを次の曲の始めと重ねる（クロスフェードする）プレーヤー（SDK レベル 16 以上）。
+ * 次の曲は {@link #setNext} で前もって開いておき、今の曲の残りがフェードの長さになったところで、CrossfadeMixer で混ぜ始める。
+ * 2 曲の形式（サンプリング周波数とチャンネル数）が違う場合や、長さのわからない曲では、重ねずに続けて鳴らす。
+ *
+ * デコードと書き込みは優先度の高い専用のオーディオスレッドで行う。デコードとシークはロックの外で行い、
+ * ロックの中では書いたフレーム数と曲の ID を受け渡すだけなので、デコーダーが遅くても操作するスレッドは待たされない。
+ * オーディオスレッドが使うバッファは最初に確保したものを使い回すので、鳴らしている間は GC を起こさない。
+ * 操作はどのスレッドからでもよい。曲を開く（{@link #setDataSource} と {@link #setNext}）のは時間がかかるので、
+ * 曲を開く専用のスレッドで行い、呼び出したスレッドは待たせない。setDataSource の曲が開けると {@link Listener#onPrepared} で知らせる。
+ * リスナーはオーディオスレッドか、曲を開くスレッドから呼び出される。
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class CrossfadePlayer {
+	private static final String TAG = "CrossfadePlayer";
+
+	/** オーディオスレッドが一度に書くフレーム数。 */
+	static final int CHUNK_FRAMES = 1024;
+	// 対応するチャンネル数の上限（モノラルとステレオ）
+	private static final int MAX_CHANNELS = 2;
+	// 書いた分が鳴り終わるのを確かめる間隔と、残りの長さを超えて待つ時間（ミリ秒）
+	private static final int DRAIN_POLL = 10;
+	private static final int DRAIN_SLACK = 500;
+
+	/** 再生の進み具合を受け取るリスナー。オーディオスレッドか、曲を開くスレッドから呼び出される。 */
+	public interface Listener {
+		/** setDataSource の曲が開けた。以後 start() で鳴らし始める。 */
+		public void onPrepared(long id);
+
+		/**
+		 * 次の曲が鳴り始めた（クロスフェードする場合はフェードの始め）。以後、位置は次の曲のものになる。
+		 * @param previousId 前の曲の ID
+		 * @param id 鳴り始めた曲の ID
+		 */
+		public void onNextStarted(long previousId, long id);
+
+		/** 次の曲が無いまま、曲が最後まで鳴り終わった。 */
+		public void onCompletion(long id);
+
+		/** 曲を開けなかった、またはデコードや出力に失敗して、止まった。 */
+		public void onError(long id, String message);
+	}
+
+	private final Context mContext;
+	private final Listener mListener;
+	private final Thread mThread;
+	private final HandlerThread mOpenThread;
+	private final Handler mOpenHandler;
+	private final Object mLock = new Object();
+
+	// ここから下は mLock で守る
+	// setDataSource で設定された曲の ID。無ければ -1
+	private long mSourceId = -1;
+	// setDataSource と setNext を呼ばれた回数。開き終わった曲が、まだ求められているかどうかを見分ける
+	private int mSourceRequest = 0;
+	private int mNextRequest = 0;
+	// オーディオスレッドに渡す、開いた曲。オーディオスレッドが受け取るまでの間だけ持つ
+	private PcmDecoder mPendingCurrent;
+	// オーディオスレッドが今の曲とフェード中の曲を捨てる
+	private boolean mDropCurrent = false;
+	private PcmDecoder mNext;
+	private long mNextId = -1;
+	private int mCrossfade = 0;
+	private float mVolume = 1f;
+	private boolean mPlaying = false;
+	private boolean mEnded = false;
+	private boolean mQuit = false;
+	// シークする位置（ミリ秒）。無ければ -1
+	private int mSeekTo = -1;
+	// AudioTrack に書いた分を捨てるよう頼まれている
+	private boolean mFlushPending = false;
+	// 捨てるよう頼まれた回数。ロックの外で作った分が、その間に捨てられたかどうかを見分ける
+	private int mFlushCount = 0;
+
+	// AudioTrack はオーディオスレッドが作り、捨てる（書き換えるのはロックの中だけ）
+	private AudioTrack mTrack;
+	private int mTrackRate;
+	private int mTrackChannels;
+	// flush してから mTrack に書いたフレーム数
+	private long mWrittenFrames = 0;
+	// 今の曲の、mCurrentStartFrame（mWrittenFrames の値）のところで鳴る位置（ミリ秒）
+	private int mCurrentBaseMs = 0;
+	private long mCurrentStartFrame = 0;
+
+	// ここから下はオーディオスレッドだけが使う。デコードはロックの外で行う
+	private PcmDecoder mCurrent;
+	private long mCurrentId = -1;
+	// フェードアウトしている前の曲
+	private PcmDecoder mFading;
+	private CrossfadeMixer mMixer;
+	// 今の曲から読んだフレーム数（曲の先頭から数える）
+	private long mCurrentFrames = 0;
+	// render() の中で次の曲に替わった
+	private long mStartedPreviousId = -1;
+	private long mStartedId = -1;
+	private final short[] mOut = new short[CHUNK_FRAMES * MAX_CHANNELS];
+	private final short[] mFrom = new short[CHUNK_FRAMES * MAX_CHANNELS];
+	private final short[] mTo = new short[CHUNK_FRAMES * MAX_CHANNELS];
+
+	/**
+	 * @param context コンテキスト
+	 * @param listener 再生の進み具合を受け取るリスナー
+	 */
+	public CrossfadePlayer(Context context, Listener listener) {
+		mContext = context;
+		mListener = listener;
+		mThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+				loop();
+			}
+		}, TAG);
+		mThread.start();
+		// the song that is waited for opens here too, so not in the background
+		mOpenThread = new HandlerThread(TAG + "-open", Process.THREAD_PRIORITY_DEFAULT);
+		mOpenThread.start();
+		mOpenHandler = new Handler(mOpenThread.getLooper());
+	}
+
+	/**
+	 * クロスフェードの長さを設定する。次のフェードから使う。
+	 * @param ms 曲を重ねる長さ（ミリ秒）。0 なら重ねずに続けて鳴らす
+	 */
+	public void setCrossfade(int ms) {
+		synchronized (mLock) {
+			mCrossfade = Math.max(ms, 0);
+		}
+	}
+
+	/**
+	 * 今の曲と、フェード中の曲をやめ、曲を開く。開けると一時停止した状態で先頭に置き、{@link Listener#onPrepared} を呼び出す。
+	 * 開けなければ {@link Listener#onError} を呼び出す。
+	 * @param id 曲の ID（リスナーに渡される）
+	 * @param uri 曲の URI
+	 */
+	public void setDataSource(final long id, final Uri uri) {
+		final int request;
+		PcmDecoder stale;
+		synchronized (mLock) {
+			request = ++mSourceRequest;
+			stale = mPendingCurrent;
+			mPendingCurrent = null;
+			mSourceId = id;
+			mDropCurrent = true;
+			mCurrentBaseMs = 0;
+			mPlaying = false;
+			mEnded = false;
+			mSeekTo = -1;
+			requestFlush();
+		}
+		release(stale);
+		// ahead of a following song still waiting to be opened
+		mOpenHandler.postAtFrontOfQueue(new Runnable() {
+			@Override
+			public void run() {
+				openSource(request, id, uri);
+			}
+		});
+	}
+
+	/**
+	 * 今の曲の次に鳴らす曲を開いておく。前に設定した次の曲は捨てる。
+	 * 開き終わる前に今の曲が終われば、次の曲は無かったことにして {@link Listener#onCompletion} を呼び出す。
+	 * @param id 曲の ID。-1 なら次の曲は無い
+	 * @param uri 曲の URI
+	 */
+	public void setNext(final long id, final Uri uri) {
+		final int request;
+		PcmDecoder old;
+		synchronized (mLock) {
+			request = ++mNextRequest;
+			old = mNext;
+			mNext = null;
+			mNextId = id;
+		}
+		release(old);
+		if (id != -1) {
+			mOpenHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					openNext(request, id, uri);
+				}
+			});
+		}
+	}
+
+	/** 次に鳴らす曲として求められている ID（開いている途中のものも含む）。無ければ -1。 */
+	public long getNextId() {
+		synchronized (mLock) {
+			return mNextId;
+		}
+	}
+
+	public void start() {
+		synchronized (mLock) {
+			if (mSourceId == -1 || mPlaying) {
+				return;
+			}
+			mPlaying = true;
+			if (mTrack != null && !mFlushPending) {
+				mTrack.play();
+			}
+			mLock.notifyAll();
+		}
+	}
+
+	public void pause() {
+		synchronized (mLock) {
+			mPlaying = false;
+			if (mTrack != null) {
+				mTrack.pause();
+			}
+		}
+	}
+
+	public boolean isPlaying() {
+		synchronized (mLock) {
+			return mPlaying;
+		}
+	}
+
+	/**
+	 * 今の曲の位置を移す。フェードの途中なら、フェードアウトしている曲はやめる。
+	 * @param ms 曲の先頭からの位置（ミリ秒）
+	 */
+	public void seekTo(int ms) {
+		synchronized (mLock) {
+			if (mSourceId == -1) {
+				return;
+			}
+			mSeekTo = Math.max(ms, 0);
+			mEnded = false;
+			requestFlush();
+		}
+	}
+
+	/** 今の曲の、鳴っている位置（ミリ秒）。 */
+	public int getCurrentPosition() {
+		synchronized (mLock) {
+			if (mSeekTo >= 0) {
+				return mSeekTo;
+			}
+			if (mTrack == null || mFlushPending) {
+				return mCurrentBaseMs;
+			}
+			long played = (mTrack.getPlaybackHeadPosition() & 0xFFFFFFFFL) - mCurrentStartFrame;
+			played = Math.max(0, Math.min(played, mWrittenFrames - mCurrentStartFrame));
+			return (int) (mCurrentBaseMs + played * 1000 / mTrackRate);
+		}
+	}
+
+	/** 音量（0 から 1）を設定する。 */
+	public void setVolume(float volume) {
+		synchronized (mLock) {
+			mVolume = volume;
+			if (mTrack != null) {
+				mTrack.setStereoVolume(volume, volume);
+			}
+		}
+	}
+
+	/** オーディオスレッドを止め、曲と AudioTrack を閉じる。以後は使えない。 */
+	public void release() {
+		synchronized (mLock) {
+			mQuit = true;
+			if (mTrack != null) {
+				// frees a write blocked on a full buffer
+				mTrack.pause();
+				mTrack.flush();
+			}
+			mLock.notifyAll();
+		}
+		try {
+			mThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// a song being opened is released by the opening thread once it sees mQuit
+		mOpenThread.quit();
+		// the audio thread is gone, so its decoders are ours now
+		releaseDecoders();
+		PcmDecoder pending;
+		PcmDecoder next;
+		synchronized (mLock) {
+			pending = mPendingCurrent;
+			mPendingCurrent = null;
+			next = mNext;
+			mNext = null;
+			mNextId = -1;
+			if (mTrack != null) {
+				mTrack.release();
+				mTrack = null;
+			}
+		}
+		release(pending);
+		release(next);
+	}
+
+	private PcmDecoder open(Uri uri) throws IOException {
+		PcmDecoder decoder = PcmDecoder.open(mContext, uri);
+		if (decoder.getChannelCount() < 1 || decoder.getChannelCount() > MAX_CHANNELS) {
+			decoder.release();
+			throw new IOException("unsupported channel count " + decoder.getChannelCount());
+		}
+		return decoder;
+	}
+
+	/** setDataSource の曲を開き、まだ求められていればオーディオスレッドに渡す。曲を開くスレッドで呼び出す。 */
+	private void openSource(int request, long id, Uri uri) {
+		synchronized (mLock) {
+			if (request != mSourceRequest || mQuit) {
+				return;
+			}
+		}
+		PcmDecoder decoder;
+		try {
+			decoder = open(uri);
+		} catch (IOException e) {
+			synchronized (mLock) {
+				if (request != mSourceRequest || mQuit) {
+					return;
+				}
+			}
+			Log.e(TAG, "Cannot open " + id + ": " + e.getMessage());
+			mListener.onError(id, e.getMessage());
+			return;
+		}
+		synchronized (mLock) {
+			if (request == mSourceRequest && !mQuit) {
+				mPendingCurrent = decoder;
+				decoder = null;
+				mLock.notifyAll();
+			}
+		}
+		if (decoder != null) {
+			// another song was asked for in the meantime
+			decoder.release();
+			return;
+		}
+		mListener.onPrepared(id);
+	}
+
+	/** setNext の曲を開き、まだ求められていれば次の曲にする。曲を開くスレッドで呼び出す。 */
+	private void openNext(int request, long id, Uri uri) {
+		synchronized (mLock) {
+			if (request != mNextRequest || mQuit) {
+				return;
+			}
+		}
+		PcmDecoder decoder;
+		try {
+			decoder = open(uri);
+		} catch (IOException e) {
+			// the song starts through setDataSource when this one completes
+			Log.w(TAG, "Cannot open the next song " + id + ": " + e.getMessage());
+			synchronized (mLock) {
+				if (request == mNextRequest) {
+					mNextId = -1;
+				}
+			}
+			return;
+		}
+		synchronized (mLock) {
+			if (request == mNextRequest && !mQuit) {
+				mNext = decoder;
+				decoder = null;
+			}
+		}
+		release(decoder);
+	}
+
+	private static void release(PcmDecoder decoder) {
+		if (decoder != null) {
+			decoder.release();
+		}
+	}
+
+	/**
+	 * 書いた分を捨てる。AudioTrack をここで止めて捨てておくのは、書き込み中のオーディオスレッドを待たせないため。
+	 * その書き込みが入れた古い分は、オーディオスレッドが mFlushPending を見てもう一度捨て、それから再生し直す。
+	 */
+	private void requestFlush() {
+		if (mTrack != null) {
+			mTrack.pause();
+			mTrack.flush();
+		}
+		mFlushPending = true;
+		mFlushCount++;
+		mLock.notifyAll();
+	}
+
+	/** オーディオスレッドが持つ曲を閉じる。オーディオスレッドか、それが終わった後に呼び出す。 */
+	private void releaseDecoders() {
+		release(mFading);
+		mFading = null;
+		release(mCurrent);
+		mCurrent = null;
+		mCurrentId = -1;
+		mCurrentFrames = 0;
+		if (mMixer != null) {
+			mMixer.cancel();
+		}
+	}
+
+	/**
+	 * オーディオスレッドの処理。
+	 * ロックの中では頼まれたこと（曲の受け取り、flush、シーク）を受け取って、書いたフレーム数と曲の ID を渡すだけにし、
+	 * デコード、シーク、曲を閉じるのはロックの外で行う。ロックの外で作った分は、その間に flush を頼まれていれば捨てる。
+	 */
+	private void loop() {
+		while (true) {
+			PcmDecoder dropped = null;
+			PcmDecoder droppedFading = null;
+			int seekTo = -1;
+			boolean render = false;
+			int crossfade;
+			int flushCount;
+			AudioTrack track = null;
+			int samples = 0;
+			AudioTrack drain = null;
+			long drainTo = 0;
+			long endedId = -1;
+			long errorId = -1;
+			String error = null;
+			synchronized (mLock) {
+				while (!mQuit && !mFlushPending && !mDropCurrent && mPendingCurrent == null
+						&& (mSeekTo < 0 || mCurrent == null) && (!mPlaying || mCurrent == null || mEnded)) {
+					try {
+						mLock.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (mQuit) {
+					return;
+				}
+				if (mDropCurrent) {
+					mDropCurrent = false;
+					dropped = mCurrent;
+					droppedFading = mFading;
+					mCurrent = null;
+					mFading = null;
+					mCurrentId = -1;
+					if (mMixer != null) {
+						mMixer.cancel();
+					}
+				}
+				if (mPendingCurrent != null) {
+					mCurrent = mPendingCurrent;
+					mCurrentId = mSourceId;
+					mCurrentFrames = 0;
+					mPendingCurrent = null;
+				}
+				if (mFlushPending) {
+					flush();
+				}
+				if (mSeekTo >= 0 && mCurrent != null) {
+					seekTo = mSeekTo;
+					mSeekTo = -1;
+					mCurrentBaseMs = seekTo;
+					mCurrentStartFrame = mWrittenFrames;
+				} else if (mPlaying && mCurrent != null && !mEnded) {
+					if (mTrack != null && !matchesTrack(mCurrent)) {
+						// let the previous song play out before a track of the new format replaces it
+						drain = mTrack;
+						drainTo = mWrittenFrames;
+					} else if (!ensureTrack()) {
+						error = "cannot create AudioTrack";
+					} else {
+						render = true;
+					}
+				}
+				crossfade = mCrossfade;
+				flushCount = mFlushCount;
+			}
+
+			release(dropped);
+			release(droppedFading);
+			int frames = 0;
+			if (error == null) {
+				try {
+					if (seekTo >= 0) {
+						applySeek(seekTo);
+					} else if (render) {
+						frames = render(crossfade);
+					}
+				} catch (IOException e) {
+					error = e.getMessage();
+				}
+			}
+			long startedPreviousId = mStartedPreviousId;
+			long startedId = mStartedId;
+			mStartedPreviousId = -1;
+			mStartedId = -1;
+
+			if (error != null || render) {
+				synchronized (mLock) {
+					// a flush in the meantime throws away what was made for the old position
+					boolean flushed = flushCount != mFlushCount;
+					if (startedId != -1 && !flushed) {
+						mCurrentBaseMs = 0;
+						mCurrentStartFrame = mWrittenFrames;
+					}
+					if (error != null) {
+						if (mDropCurrent) {
+							// the song that failed is being replaced anyway
+							error = null;
+						} else {
+							errorId = mCurrentId;
+							mPlaying = false;
+							mEnded = true;
+							if (mTrack != null) {
+								mTrack.pause();
+							}
+						}
+					} else if (!flushed) {
+						if (frames > 0) {
+							mWrittenFrames += frames;
+							track = mTrack;
+							samples = frames * mTrackChannels;
+						} else if (frames == 0) {
+							// the last song is over; it completes once its sound is out
+							mEnded = true;
+							drain = mTrack;
+							drainTo = mWrittenFrames;
+							endedId = mCurrentId;
+						}
+					}
+				}
+			}
+
+			if (startedId != -1) {
+				mListener.onNextStarted(startedPreviousId, startedId);
+			}
+			if (error != null) {
+				Log.e(TAG, "Playback of " + errorId + " failed: " + error);
+				mListener.onError(errorId, error);
+			} else if (track != null) {
+				// blocks while the buffer is full; a pause leaves it blocked, a flush frees it
+				track.write(mOut, 0, samples);
+			} else if (drain != null) {
+				boolean played = waitForDrain(drain, drainTo);
+				boolean completed = false;
+				synchronized (mLock) {
+					if (endedId != -1) {
+						// a seek or a new song in the meantime goes on instead
+						completed = played && mEnded && mCurrentId == endedId && !mFlushPending && !mDropCurrent;
+						if (completed) {
+							mPlaying = false;
+							mTrack.pause();
+						}
+					} else if (mTrack == drain && mCurrent != null && !matchesTrack(mCurrent)) {
+						mTrack.release();
+						mTrack = null;
+					}
+				}
+				if (completed) {
+					mListener.onCompletion(endedId);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 次に書く分を mOut に作る。今の曲の残りがフェードの長さになればフェードを始め、
+	 * 重ねずに今の曲が終われば、次の曲に替える。ロックの外で呼び出す。
+	 * @param crossfade クロスフェードの長さ（ミリ秒）
+	 * @return 作ったフレーム数。次の曲が無いまま今の曲が終わっていれば 0、
+	 *         形式の違う次の曲に替わり、AudioTrack を作り直す必要があれば -1
+	 */
+	private int render(int crossfade) throws IOException {
+		if (mFading == null && crossfade > 0 && mCurrent.getDurationUs() > 0) {
+			long duration = mCurrent.getDurationUs() * mTrackRate / 1000000;
+			// a short song is not faded out from its start
+			long fade = Math.min((long) crossfade * mTrackRate / 1000, duration / 2);
+			long remaining = duration - mCurrentFrames;
+			if (fade > 0 && remaining <= fade) {
+				PcmDecoder next = takeNext(true);
+				if (next != null) {
+					// the length in the file may be a little off
+					startNext(next, (int) Math.max(remaining, CHUNK_FRAMES));
+				}
+			}
+		}
+		if (mFading != null) {
+			int from = mFading.read(mFrom, CHUNK_FRAMES);
+			int to = mCurrent.read(mTo, CHUNK_FRAMES);
+			int frames = Math.max(from, to);
+			mMixer.mix(mOut, mFrom, from, mTo, to, frames);
+			mCurrentFrames += to;
+			if (!mMixer.isFading() || frames == 0) {
+				mFading.release();
+				mFading = null;
+				mMixer.cancel();
+			}
+			if (frames > 0) {
+				return frames;
+			}
+		}
+		int frames = mCurrent.read(mOut, CHUNK_FRAMES);
+		mCurrentFrames += frames;
+		if (frames == 0) {
+			PcmDecoder next = takeNext(false);
+			if (next != null) {
+				// nothing to overlap: the next song follows back to back
+				startNext(next, 0);
+				if (!matchesTrack(mCurrent)) {
+					return -1;
+				}
+				frames = mCurrent.read(mOut, CHUNK_FRAMES);
+				mCurrentFrames += frames;
+			}
+		}
+		return frames;
+	}
+
+	/**
+	 * setNext で開いた次の曲を受け取り、その ID を mStartedId に置く。
+	 * @param sameFormat 今の AudioTrack と形式の同じ曲だけを受け取る
+	 * @return 次の曲。無ければ（sameFormat で形式が違えば）null
+	 */
+	private PcmDecoder takeNext(boolean sameFormat) {
+		synchronized (mLock) {
+			if (mNext == null || (sameFormat && !matchesTrack(mNext))) {
+				return null;
+			}
+			PcmDecoder next = mNext;
+			mStartedId = mNextId;
+			mNext = null;
+			mNextId = -1;
+			return next;
+		}
+	}
+
+	/**
+	 * takeNext で受け取った次の曲を今の曲にする。
+	 * @param fadeFrames 前の曲をフェードアウトする長さ（フレーム数）。0 なら前の曲はここで閉じる
+	 */
+	private void startNext(PcmDecoder next, int fadeFrames) {
+		if (fadeFrames > 0) {
+			mFading = mCurrent;
+			mMixer.start(fadeFrames);
+		} else {
+			mCurrent.release();
+		}
+		mStartedPreviousId = mCurrentId;
+		mCurrent = next;
+		mCurrentId = mStartedId;
+		mCurrentFrames = 0;
+	}
+
+	/** 書いた分を捨てる。requestFlush() の後、オーディオスレッドで呼び出す。 */
+	private void flush() {
+		mFlushPending = false;
+		if (mTrack != null) {
+			mTrack.pause();
+			mTrack.flush();
+			if (mPlaying) {
+				mTrack.play();
+			}
+		}
+		mWrittenFrames = 0;
+		mCurrentStartFrame = 0;
+	}
+
+	/** 今の曲をシークする。位置はロックの中で設定しておき、ここはロックの外で呼び出す。 */
+	private void applySeek(int ms) throws IOException {
+		if (mFading != null) {
+			mFading.release();
+			mFading = null;
+			mMixer.cancel();
+		}
+		mCurrent.seekTo(ms * 1000L);
+		mCurrentFrames = (long) ms * mCurrent.getSampleRate() / 1000;
+	}
+
+	private boolean matchesTrack(PcmDecoder decoder) {
+		return decoder.getSampleRate() == mTrackRate && decoder.getChannelCount() == mTrackChannels;
+	}
+
+	/** 今の曲の形式の AudioTrack が無ければ作る。作れなければ false。 */
+	private boolean ensureTrack() {
+		if (mTrack != null) {
+			return true;
+		}
+		int rate = mCurrent.getSampleRate();
+		int channels = mCurrent.getChannelCount();
+		int mask = channels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+		int minBytes = AudioTrack.getMinBufferSize(rate, mask, AudioFormat.ENCODING_PCM_16BIT);
+		if (minBytes <= 0) {
+			return false;
+		}
+		// room for a couple of our writes, so one late write does not underrun
+		int bytes = Math.max(minBytes, CHUNK_FRAMES * channels * 2) * 2;
+		AudioTrack track;
+		try {
+			track = new AudioTrack(AudioManager.STREAM_MUSIC, rate, mask, AudioFormat.ENCODING_PCM_16BIT, bytes,
+					AudioTrack.MODE_STREAM);
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+		if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+			track.release();
+			return false;
+		}
+		track.setStereoVolume(mVolume, mVolume);
+		mTrack = track;
+		mTrackRate = rate;
+		mTrackChannels = channels;
+		if (mMixer == null || mMixer.getChannelCount() != channels) {
+			mMixer = new CrossfadeMixer(channels, CrossfadeMixer.CURVE_EQUAL_POWER);
+		}
+		mWrittenFrames = 0;
+		mCurrentStartFrame = 0;
+		mCurrentBaseMs = (int) (mCurrentFrames * 1000 / rate);
+		if (mPlaying) {
+			track.play();
+		}
+		return true;
+	}
+
+	/**
+	 * AudioTrack に書いた分が鳴り終わるまで待つ。一時停止している間は待ち続ける。
+	 * 残りの長さより少し長く待っても鳴り終わらなければ、終わったことにする。
+	 * @param frames 書いたフレーム数
+	 * @return 鳴り終わったら true。待つ間に閉じるよう、または書いた分を捨てるよう頼まれたら false
+	 */
+	private boolean waitForDrain(AudioTrack track, long frames) {
+		long deadline = -1;
+		while (true) {
+			synchronized (mLock) {
+				if (mQuit || mFlushPending) {
+					return false;
+				}
+				if (!mPlaying) {
+					// the head stands still while paused
+					try {
+						mLock.wait();
+					} catch (InterruptedException e) {
+						return false;
+					}
+					deadline = -1;
+					continue;
+				}
+				long head = track.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+				if (head >= frames) {
+					return true;
+				}
+				long now = SystemClock.elapsedRealtime();
+				if (deadline < 0) {
+					deadline = now + (frames - head) * 1000 / mTrackRate + DRAIN_SLACK;
+				} else if (now >= deadline) {
+					return true;
+				}
+			}
+			SystemClock.sleep(DRAIN_POLL);
+		}
+	}
+}
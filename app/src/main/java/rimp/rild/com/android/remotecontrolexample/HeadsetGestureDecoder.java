@@ -0,0 +1,77 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import android.os.Handler;
+
+/**
+ * ヘッドセットのボタンの連続押しを 1 つのジェスチャーにまとめるクラス。
+ * 押されるたびに待ち時間を延ばし、待ち時間の間に次が押されなければ、それまでの回数を 1 回のジェスチャーとして通知する。
+ * 最大回数に達した場合は待たずに通知する。
+ * すべてのメソッドは Handler のスレッドから呼び出すこと。
+ */
+public class HeadsetGestureDecoder {
+	/** 次の押下を待つ時間（ミリ秒）。 */
+	public static final long DEFAULT_WINDOW = 400;
+	/** 1 つのジェスチャーとして数える最大の回数。 */
+	public static final int MAX_PRESSES = 3;
+
+	/** ジェスチャーを受け取るリスナー。 */
+	public interface Callbacks {
+		/**
+		 * ジェスチャーが確定したときに呼び出される。
+		 * @param presses 押された回数（1 〜 MAX_PRESSES）
+		 */
+		public void onGesture(int presses);
+	}
+
+	private final Handler mHandler;
+	private final Callbacks mCallbacks;
+	private final long mWindow;
+
+	// 確定していないジェスチャーの押された回数
+	private int mPresses = 0;
+
+	private final Runnable mWindowEnd = new Runnable() {
+		@Override
+		public void run() {
+			fire();
+		}
+	};
+
+	public HeadsetGestureDecoder(Handler handler, Callbacks callbacks) {
+		this(handler, callbacks, DEFAULT_WINDOW);
+	}
+
+	public HeadsetGestureDecoder(Handler handler, Callbacks callbacks, long window) {
+		mHandler = handler;
+		mCallbacks = callbacks;
+		mWindow = window;
+	}
+
+	/**
+	 * ボタンが押されたことを知らせる。
+	 * @param eventTime 押された時刻（KeyEvent.getEventTime()、SystemClock.uptimeMillis() 基準）
+	 */
+	public void onPress(long eventTime) {
+		mHandler.removeCallbacks(mWindowEnd);
+		mPresses++;
+		if (mPresses >= MAX_PRESSES) {
+			fire();
+			return;
+		}
+		mHandler.postAtTime(mWindowEnd, eventTime + mWindow);
+	}
+
+	/** 確定していないジェスチャーを捨てる。 */
+	public void cancel() {
+		mHandler.removeCallbacks(mWindowEnd);
+		mPresses = 0;
+	}
+
+	private void fire() {
+		int presses = mPresses;
+		mPresses = 0;
+		if (presses > 0) {
+			mCallbacks.onGesture(presses);
+		}
+	}
+}
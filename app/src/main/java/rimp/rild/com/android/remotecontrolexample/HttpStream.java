@@ -0,0 +1,334 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import android.util.Log;
+
+/**
+ * HTTP で配信される 1 つの音声ファイルを、固定長のセグメント単位で Range リクエストして読むクラス。
+ * 取得したセグメントは SegmentCache に保存するので、同じ曲の再生し直しや取得済みの範囲へのシークではネットワークを使わない。
+ * セグメントを読むたびに、続くいくつかのセグメントを先読みする。
+ * 同じセグメントを読み出しと先読みで二重に取得することはない（後から来た側は先の取得を待つ）。
+ * どのスレッドから呼び出してもよい。
+ */
+public class HttpStream {
+	private static final String TAG = "HttpStream";
+
+	/** セグメントの長さ（バイト）。 */
+	public static final int SEGMENT_SIZE = 256 * 1024;
+	// 読んだセグメントに続けて先読みするセグメントの数
+	private static final int READ_AHEAD = 4;
+	private static final int CONNECT_TIMEOUT = 10000;
+	private static final int READ_TIMEOUT = 15000;
+
+	private final String mUrl;
+	private final String mKey;
+	private final SegmentCache mCache;
+	private final Executor mReadAheadExecutor;
+	private final ConcurrentHashMap<Integer, FutureTask<byte[]>> mFetches =
+			new ConcurrentHashMap<Integer, FutureTask<byte[]>>();
+	// Set once, by the first of the connection and read-ahead threads to learn
+	// them. Both are written under the lock, the content type first, so a
+	// reader that sees the length without locking also sees the matching type.
+	private volatile long mLength = -1;
+	private volatile String mContentType;
+
+	/**
+	 * @param url 配信元の URL（http または https）
+	 * @param cache 取得したセグメントの保存先
+	 * @param readAheadExecutor 先読みを実行する Executor
+	 */
+	public HttpStream(String url, SegmentCache cache, Executor readAheadExecutor) {
+		mUrl = url;
+		mKey = keyFor(url);
+		mCache = cache;
+		mReadAheadExecutor = readAheadExecutor;
+	}
+
+	public String getUrl() {
+		return mUrl;
+	}
+
+	/**
+	 * ファイルの長さ。分からなければ最初のセグメントを取得して調べる。
+	 * @throws IOException 配信元が長さを返さない（Range に対応していない）場合も含む
+	 */
+	public long length() throws IOException {
+		if (mLength < 0) {
+			loadInfo();
+			if (mLength < 0) {
+				// the length comes with any segment from the network, even a cached one
+				fetch(0);
+			}
+		}
+		return mLength;
+	}
+
+	/** 配信元が返した Content-Type。分からなければ null。 */
+	public String getContentType() throws IOException {
+		length();
+		return mContentType;
+	}
+
+	/** セグメントの数。 */
+	public int segmentCount() throws IOException {
+		return (int) ((length() + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+	}
+
+	/**
+	 * セグメントを読む。キャッシュに無ければ取得し、続くセグメントの先読みも始める。
+	 * @param index セグメント番号
+	 * @return セグメントのデータ。最後のセグメントは SEGMENT_SIZE より短い
+	 */
+	public byte[] read(int index) throws IOException {
+		byte[] data = segment(index);
+		readAhead(index + 1);
+		return data;
+	}
+
+	/** 指定したセグメントから READ_AHEAD 個を、キャッシュに無ければ取得しておく。 */
+	private void readAhead(int from) {
+		int count;
+		try {
+			count = segmentCount();
+		} catch (IOException e) {
+			return;
+		}
+		for (int i = from; i < Math.min(from + READ_AHEAD, count); i++) {
+			if (!mCache.contains(mKey, i) && !mFetches.containsKey(i)) {
+				final int index = i;
+				mReadAheadExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							segment(index);
+						} catch (IOException e) {
+							Log.d(TAG, "read-ahead of " + index + " failed: " + e.getMessage());
+						}
+					}
+				});
+			}
+		}
+	}
+
+	private byte[] segment(final int index) throws IOException {
+		byte[] data = cached(index);
+		if (data != null) {
+			return data;
+		}
+		FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws IOException {
+				// another fetch of it may have finished since the lookup above
+				byte[] cached = mCache.contains(mKey, index) ? cached(index) : null;
+				return cached != null ? cached : fetch(index);
+			}
+		});
+		FutureTask<byte[]> running = mFetches.putIfAbsent(index, task);
+		if (running == null) {
+			running = task;
+			try {
+				task.run();
+			} finally {
+				mFetches.remove(index, task);
+			}
+		}
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(String.valueOf(cause));
+		}
+	}
+
+	/**
+	 * キャッシュにあるセグメントを読む。長さがストリームの長さから決まるものと違えば
+	 * （途中で切れたファイルや、長さの違うときに保存したもの）、捨てて null を返す。
+	 */
+	private byte[] cached(int index) throws IOException {
+		byte[] data = mCache.get(mKey, index);
+		if (data == null) {
+			return null;
+		}
+		long expected = Math.min(SEGMENT_SIZE, length() - (long) index * SEGMENT_SIZE);
+		if (data.length != expected) {
+			Log.w(TAG, "Dropping segment " + index + " of " + mUrl + ": " + data.length + " of " + expected + " bytes");
+			mCache.remove(mKey, index);
+			return null;
+		}
+		return data;
+	}
+
+	/** セグメントを配信元から Range リクエストで取得し、キャッシュに保存する。 */
+	private byte[] fetch(int index) throws IOException {
+		long start = (long) index * SEGMENT_SIZE;
+		long end = start + SEGMENT_SIZE - 1;
+		if (mLength >= 0) {
+			if (start >= mLength) {
+				throw new IOException("segment " + index + " is past the end");
+			}
+			end = Math.min(end, mLength - 1);
+		}
+		HttpURLConnection connection = (HttpURLConnection) new URL(mUrl).openConnection();
+		try {
+			connection.setConnectTimeout(CONNECT_TIMEOUT);
+			connection.setReadTimeout(READ_TIMEOUT);
+			connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+			// the lengths must be those of the file, not of a compressed transfer
+			connection.setRequestProperty("Accept-Encoding", "identity");
+			int code = connection.getResponseCode();
+			if (code == HttpURLConnection.HTTP_PARTIAL) {
+				long total = parseTotal(connection.getHeaderField("Content-Range"));
+				if (total < 0) {
+					throw new IOException("no length in Content-Range from " + mUrl);
+				}
+				setInfo(total, connection.getContentType());
+			} else if (code == HttpURLConnection.HTTP_OK) {
+				// the server ignores ranges; take ours out of the whole body
+				long total = connection.getContentLength();
+				if (total < 0) {
+					throw new IOException("no length from " + mUrl);
+				}
+				setInfo(total, connection.getContentType());
+				skipFully(connection.getInputStream(), start);
+			} else if (code == 416) {
+				throw new IOException("segment " + index + " is past the end");
+			} else {
+				throw new IOException("HTTP " + code + " from " + mUrl);
+			}
+			int length = (int) (Math.min(end, mLength - 1) - start + 1);
+			if (length <= 0) {
+				// the stream is shorter than when the segment was asked for
+				throw new IOException("segment " + index + " is past the end");
+			}
+			byte[] data = new byte[length];
+			readFully(connection.getInputStream(), data);
+			mCache.put(mKey, index, data, length);
+			return data;
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private void setInfo(long length, String contentType) {
+		if (!publishInfo(length, contentType)) {
+			return;
+		}
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeLong(length);
+			out.writeUTF(contentType == null ? "" : contentType);
+			out.close();
+			mCache.put(mKey, SegmentCache.INFO, bytes.toByteArray(), bytes.size());
+		} catch (IOException e) {
+			// not possible with a byte array
+		}
+	}
+
+	private void loadInfo() {
+		byte[] info = mCache.get(mKey, SegmentCache.INFO);
+		if (info == null) {
+			return;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(info));
+			long length = in.readLong();
+			String contentType = in.readUTF();
+			publishInfo(length, contentType.length() == 0 ? null : contentType);
+		} catch (IOException e) {
+			Log.w(TAG, "Broken stream info for " + mUrl);
+		}
+	}
+
+	/**
+	 * 長さと Content-Type を組にして設定する。すでに設定されていれば何もしない。
+	 * @return 設定したかどうか
+	 */
+	private synchronized boolean publishInfo(long length, String contentType) {
+		if (mLength >= 0) {
+			return false;
+		}
+		mContentType = contentType;
+		mLength = length;
+		return true;
+	}
+
+	/** Content-Range（bytes 0-1023/4096）のファイル全体の長さ。分からなければ -1。 */
+	static long parseTotal(String contentRange) {
+		if (contentRange == null) {
+			return -1;
+		}
+		int slash = contentRange.lastIndexOf('/');
+		if (slash < 0) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(contentRange.substring(slash + 1).trim());
+		} catch (NumberFormatException e) {
+			// "*": the server does not know
+			return -1;
+		}
+	}
+
+	private static void readFully(InputStream in, byte[] data) throws IOException {
+		int read = 0;
+		while (read < data.length) {
+			int n = in.read(data, read, data.length - read);
+			if (n < 0) {
+				throw new IOException("connection closed after " + read + " of " + data.length + " bytes");
+			}
+			read += n;
+		}
+	}
+
+	private static void skipFully(InputStream in, long count) throws IOException {
+		while (count > 0) {
+			long n = in.skip(count);
+			if (n <= 0) {
+				if (in.read() < 0) {
+					throw new IOException("connection closed while skipping");
+				}
+				n = 1;
+			}
+			count -= n;
+		}
+	}
+
+	/** URL から、キャッシュのファイル名に使うキーを作る。 */
+	static String keyFor(String url) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			return Integer.toHexString(url.hashCode());
+		} catch (UnsupportedEncodingException e) {
+			return Integer.toHexString(url.hashCode());
+		}
+	}
+}
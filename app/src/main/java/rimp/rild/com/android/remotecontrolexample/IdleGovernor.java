@@ -0,0 +1,143 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * 再生していない時間に応じて、段階的にリソースを手放すためのクラス。
+ * 定期的に状態を見に行くのではなく、次の段階の期限にだけ Handler で起こされる。
+ * 時間は端末が眠っている間も進む elapsedRealtime で数える。Handler の時計（uptimeMillis）は眠っている間は止まるので、
+ * 期限には AlarmManager のアラーム（ELAPSED_REALTIME。端末は起こさない）も設定しておき、起きたときに {@link #check()} を呼び出してもらう。
+ * 手放したリソースは次のコマンドで必要になったときに取り直すので、このクラスは取り直しには関与しない。
+ * すべてのメソッドは Handler のスレッドから呼び出すこと。
+ */
+public class IdleGovernor {
+	/** Notification とウェイクロックを手放す段階。 */
+	public static final int TIER_NOTIFICATION = 0;
+	/** MediaPlayer を手放す段階。 */
+	public static final int TIER_PLAYER = 1;
+	/** メモリ上の曲リストとアートワークのキャッシュを手放す段階。 */
+	public static final int TIER_CACHES = 2;
+	/** サービスを止める段階。 */
+	public static final int TIER_STOP = 3;
+
+	/** 各段階に達するまでの、再生が止まってからの時間（ミリ秒）。 */
+	public static final long[] DEFAULT_DELAYS = {
+			1 * 60 * 1000,
+			3 * 60 * 1000,
+			6 * 60 * 1000,
+			10 * 60 * 1000,
+	};
+
+	/** 段階に達したことを受け取るリスナー。 */
+	public interface Callbacks {
+		/**
+		 * 再生していない時間が段階の期限に達したときに呼び出される。段階は小さい順に 1 回ずつ呼び出される。
+		 * @param tier TIER_* のいずれか
+		 */
+		public void onIdleTier(int tier);
+	}
+
+	private final Handler mHandler;
+	private final AlarmManager mAlarmManager;
+	private final PendingIntent mAlarm;
+	private final Callbacks mCallbacks;
+	private final long[] mDelays;
+
+	// 再生が止まった時刻（elapsedRealtime）。再生中は 0
+	private long mIdleSince = 0;
+	// 次に達する段階
+	private int mNextTier = 0;
+
+	private final Runnable mTierDue = new Runnable() {
+		@Override
+		public void run() {
+			check();
+		}
+	};
+
+	/**
+	 * @param handler 段階の期限に起こされる Handler
+	 * @param alarmManager 眠っている間の期限に使う AlarmManager。null なら Handler だけを使う
+	 * @param alarm 期限に送ってもらう PendingIntent。受け取ったら Handler のスレッドで {@link #check()} を呼び出すこと
+	 * @param callbacks 段階に達したことを受け取るリスナー
+	 */
+	public IdleGovernor(Handler handler, AlarmManager alarmManager, PendingIntent alarm, Callbacks callbacks) {
+		this(handler, alarmManager, alarm, callbacks, DEFAULT_DELAYS);
+	}
+
+	public IdleGovernor(Handler handler, AlarmManager alarmManager, PendingIntent alarm, Callbacks callbacks,
+			long[] delays) {
+		mHandler = handler;
+		mAlarmManager = alarmManager;
+		mAlarm = alarm;
+		mCallbacks = callbacks;
+		mDelays = delays.clone();
+	}
+
+	/** 再生が止まったことを知らせる。すでに止まっている間に呼び出しても、止まった時刻は変わらない。 */
+	public void onIdle() {
+		if (mIdleSince != 0) {
+			return;
+		}
+		mIdleSince = SystemClock.elapsedRealtime();
+		mNextTier = 0;
+		scheduleNext();
+	}
+
+	/** 再生が始まったことを知らせる。予約していた段階はすべて取り消す。 */
+	public void onActive() {
+		if (mIdleSince == 0) {
+			return;
+		}
+		mHandler.removeCallbacks(mTierDue);
+		if (mAlarmManager != null) {
+			mAlarmManager.cancel(mAlarm);
+		}
+		mIdleSince = 0;
+		mNextTier = 0;
+	}
+
+	/**
+	 * 止まってからの時間を見て、期限の過ぎた段階をすべて（小さい順に）知らせ、次の期限を予約し直す。
+	 * Handler に起こされたときと、アラームを受け取ったときに呼び出す。早すぎても遅すぎてもよい。
+	 */
+	public void check() {
+		mHandler.removeCallbacks(mTierDue);
+		while (mIdleSince != 0 && mNextTier < mDelays.length
+				&& SystemClock.elapsedRealtime() - mIdleSince >= mDelays[mNextTier]) {
+			int tier = mNextTier++;
+			mCallbacks.onIdleTier(tier);
+		}
+		scheduleNext();
+	}
+
+	/** 止まっている間に達した段階のうち、最も進んだものを返す。達していなければ -1。 */
+	public int getReachedTier() {
+		return mNextTier - 1;
+	}
+
+	/** 止まってからの時間（ミリ秒）を返す。再生中は 0。 */
+	public long getIdleTime() {
+		return mIdleSince == 0 ? 0 : SystemClock.elapsedRealtime() - mIdleSince;
+	}
+
+	private void scheduleNext() {
+		if (mIdleSince == 0 || mNextTier >= mDelays.length) {
+			// an alarm left for a tier already reached would start the service again
+			if (mAlarmManager != null) {
+				mAlarmManager.cancel(mAlarm);
+			}
+			return;
+		}
+		long due = mIdleSince + mDelays[mNextTier];
+		// the handler's clock stops while the device sleeps; the alarm's does not
+		mHandler.removeCallbacks(mTierDue);
+		mHandler.postDelayed(mTierDue, Math.max(due - SystemClock.elapsedRealtime(), 0));
+		if (mAlarmManager != null) {
+			mAlarmManager.set(AlarmManager.ELAPSED_REALTIME, due, mAlarm);
+		}
+	}
+}
@@ -1,36 +1,83 @@
 package rimp.rild.com.android.remotecontrolexample;
 
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
 import android.provider.MediaStore;
-import android.util.Log;
 
 /**
  * 外部ストレージ上の音楽をあらわすクラス。
  */
 public class Item implements Comparable<Object> {
-	private static final String TAG = "Item";
+	// 1 回の問い合わせで読む曲数
+	static final int PAGE_SIZE = 500;
+
+	// MediaStore.Audio.AudioColumns.ALBUM_ARTIST は API 30 からの公開だが、カラム自体はそれ以前からある
+	private static final String ALBUM_ARTIST = "album_artist";
+
+	// ContentResolver.QUERY_ARG_* と query(Uri, String[], Bundle, CancellationSignal) は API 26 から。
+	// compileSdkVersion が 23 なので、キーは値で持ち、メソッドは実行時に探す
+	private static final String QUERY_ARG_SQL_SELECTION = "android:query-arg-sql-selection";
+	private static final String QUERY_ARG_SQL_SORT_ORDER = "android:query-arg-sql-sort-order";
+	private static final String QUERY_ARG_LIMIT = "android:query-arg-limit";
+	private static final Method QUERY_WITH_ARGS = findQueryWithArgs();
+
+	// Item が使うカラムだけを取得する。並び順は下の COLUMN_* と対応する
+	private static final String[] PROJECTION = {
+			MediaStore.Audio.Media._ID,
+			MediaStore.Audio.Media.ARTIST,
+			MediaStore.Audio.Media.TITLE,
+			MediaStore.Audio.Media.ALBUM,
+			MediaStore.Audio.Media.TRACK,
+			MediaStore.Audio.Media.DURATION,
+			MediaStore.Audio.Media.DATE_MODIFIED,
+			MediaStore.Audio.Media.ALBUM_ID,
+			ALBUM_ARTIST,
+	};
+	private static final int COLUMN_ID = 0;
+	private static final int COLUMN_ARTIST = 1;
+	private static final int COLUMN_TITLE = 2;
+	private static final int COLUMN_ALBUM = 3;
+	private static final int COLUMN_TRACK = 4;
+	private static final int COLUMN_DURATION = 5;
+	private static final int COLUMN_DATE_MODIFIED = 6;
+	private static final int COLUMN_ALBUM_ID = 7;
+	private static final int COLUMN_ALBUM_ARTIST = 8;
+
+	// 差分の行を TrackStore に近い並びで受け取る。ソート時には長い run としてまとめて扱える
+	private static final String LIBRARY_ORDER = ALBUM_ARTIST + ", " + MediaStore.Audio.Media.ALBUM + ", "
+			+ MediaStore.Audio.Media.TRACK;
+
 	final long id;
 	final String artist;
 	final String title;
 	final String album;
+	final long albumId;
 	final int truck;
 	final long duration;
+	final long dateModified;
 
 	public Item(long id, String artist, String title, String album, int truck, long duration) {
+		this(id, artist, title, album, -1, truck, duration, 0);
+	}
+
+	public Item(long id, String artist, String title, String album, long albumId, int truck, long duration,
+			long dateModified) {
 		this.id = id;
 		this.artist = artist;
 		this.title = title;
 		this.album = album;
+		this.albumId = albumId;
 		this.truck = truck;
 		this.duration = duration;
+		this.dateModified = dateModified;
 	}
 
 	public Uri getURI() {
@@ -42,50 +89,118 @@ public class Item implements Comparable<Object> {
 	 * @param context コンテキスト
 	 * @return 見つかった音楽のリスト
 	 */
-	public static List<Item> getItems(Context context) {
-		List<Item> items = new LinkedList<Item>();
+	public static TrackStore getItems(Context context) {
+		TrackStore.Builder builder = new TrackStore.Builder();
+		while (queryPage(context, builder.lastId(), PAGE_SIZE, builder) == PAGE_SIZE) {
+			// 最後のページまで読み進める
+		}
+
+		// 見つかる順番はソートされていないため、アルバム単位でソートする
+		return builder.build();
+	}
+
+	/**
+	 * 外部ストレージ上の音楽を _ID 順に 1 ページ分だけ読んで追加する。
+	 * 前のページの最後の _ID から続きを読むので、ページが進んでも 1 回の問い合わせの重さは変わらない。
+	 * @param context コンテキスト
+	 * @param afterId 前のページの最後の _ID。最初のページなら -1
+	 * @param limit 1 ページの最大件数
+	 * @param builder 見つかった音楽の追加先
+	 * @return 読んだ件数。limit 件より少なければ最後のページ
+	 */
+	static int queryPage(Context context, long afterId, int limit, TrackStore.Builder builder) {
+		return query(context, MediaStore.Audio.Media._ID + " > " + afterId,
+				MediaStore.Audio.Media._ID, limit, builder);
+	}
 
+	/**
+	 * 外部ストレージ上の音楽のうち、条件に合うものを追加する。
+	 * @param context コンテキスト
+	 * @param selection IS_MUSIC に追加する絞り込み条件。null なら全件
+	 * @param builder 見つかった音楽の追加先
+	 * @return 読んだ件数
+	 */
+	static int queryItems(Context context, String selection, TrackStore.Builder builder) {
+		return query(context, selection, LIBRARY_ORDER, 0, builder);
+	}
+
+	private static int query(Context context, String selection, String sortOrder, int limit,
+			TrackStore.Builder builder) {
 		// ContentResolver を取得
 		ContentResolver cr = context.getContentResolver();
 
-		// 外部ストレージから音楽を検索
-		Cursor cur = cr.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, null, MediaStore.Audio.Media.IS_MUSIC + " = 1", null, null);
+		// 外部ストレージから音楽を検索。Item に必要なカラムだけを取得する
+		String where = MediaStore.Audio.Media.IS_MUSIC + " = 1";
+		if (selection != null) {
+			where += " AND " + selection;
+		}
+		Cursor cur;
+		if (limit > 0 && QUERY_WITH_ARGS != null) {
+			cur = queryLimited(cr, where, sortOrder, limit);
+		} else {
+			if (limit > 0) {
+				// API 26 より前は件数を指定できないので、並び順の後ろに LIMIT 句を付ける。
+				// MediaStore が並び順をそのまま SQL に埋め込むことに頼っている
+				sortOrder += " LIMIT " + limit;
+			}
+			cur = cr.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, PROJECTION, where, null, sortOrder);
+		}
 
+		int count = 0;
 		if (cur != null) {
-			if (cur.moveToFirst()) {
-				Log.i(TAG, "Listing...");
-
-				// 曲情報のカラムを取得
-				int artistColumn = cur.getColumnIndex(MediaStore.Audio.Media.ARTIST);
-				int titleColumn = cur.getColumnIndex(MediaStore.Audio.Media.TITLE);
-				int albumColumn = cur.getColumnIndex(MediaStore.Audio.Media.ALBUM);
-				int durationColumn = cur.getColumnIndex(MediaStore.Audio.Media.DURATION);
-				int idColumn = cur.getColumnIndex(MediaStore.Audio.Media._ID);
-				int idTruck = cur.getColumnIndex(MediaStore.Audio.Media.TRACK);
-
-				Log.i(TAG, "Title column index: " + String.valueOf(titleColumn));
-				Log.i(TAG, "ID column index: " + String.valueOf(titleColumn));
-
-				// リストに追加
-				do {
-					Log.i(TAG, "ID: " + cur.getString(idColumn) + " Title: " + cur.getString(titleColumn));
-					items.add(new Item(cur.getLong(idColumn),
-							cur.getString(artistColumn),
-							cur.getString(titleColumn),
-							cur.getString(albumColumn),
-							cur.getInt(idTruck),
-							cur.getLong(durationColumn)));
-				} while (cur.moveToNext());
-
-				Log.i(TAG, "Done querying media. MusicRetriever is ready.");
+			// リストに追加
+			while (cur.moveToNext()) {
+				builder.addTrack(cur.getLong(COLUMN_ID),
+						cur.getString(COLUMN_ARTIST),
+						cur.getString(COLUMN_ALBUM_ARTIST),
+						cur.getString(COLUMN_TITLE),
+						cur.getString(COLUMN_ALBUM),
+						cur.getLong(COLUMN_ALBUM_ID),
+						cur.getInt(COLUMN_TRACK),
+						cur.getLong(COLUMN_DURATION),
+						cur.getLong(COLUMN_DATE_MODIFIED));
+				count++;
 			}
 			// カーソルを閉じる
 			cur.close();
 		}
+		return count;
+	}
 
-		// 見つかる順番はソートされていないため、アルバム単位でソートする
-		Collections.sort(items);
-		return items;
+	/** 件数の上限を ContentResolver の引数として渡して問い合わせる。 */
+	private static Cursor queryLimited(ContentResolver cr, String where, String sortOrder, int limit) {
+		Bundle args = new Bundle();
+		args.putString(QUERY_ARG_SQL_SELECTION, where);
+		args.putString(QUERY_ARG_SQL_SORT_ORDER, sortOrder);
+		args.putInt(QUERY_ARG_LIMIT, limit);
+		try {
+			return (Cursor) QUERY_WITH_ARGS.invoke(cr, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, PROJECTION,
+					args, null);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		} catch (InvocationTargetException e) {
+			// query 自体が投げた例外はそのまま呼び出し元へ
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	/** API 26 以降なら ContentResolver の Bundle を受け取る query を返す。それより前なら null。 */
+	private static Method findQueryWithArgs() {
+		if (Build.VERSION.SDK_INT < 26) {
+			return null;
+		}
+		try {
+			return ContentResolver.class.getMethod("query", Uri.class, String[].class, Bundle.class,
+					Class.forName("android.os.CancellationSignal"));
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (ClassNotFoundException e) {
+			return null;
+		}
 	}
 
 	@Override
@@ -94,10 +209,18 @@ public class Item implements Comparable<Object> {
 			return 1;
 		}
 		Item item = (Item) another;
-		int result = album.compareTo(item.album);
+		// タグの無い曲はアルバム名が null になる。TrackStore と同じく先に並べる
+		int result = compare(album, item.album);
 		if (result != 0) {
 			return result;
 		}
-		return truck - item.truck;
+		return truck < item.truck ? -1 : (truck == item.truck ? 0 : 1);
+	}
+
+	private static int compare(String a, String b) {
+		if (a == null || b == null) {
+			return a == null ? (b == null ? 0 : -1) : 1;
+		}
+		return a.compareTo(b);
 	}
 }
@@ -0,0 +1,327 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.MediaStore;
+import android.util.Log;
+
+/**
+ * アプリ領域に保存する音楽ライブラリのバイナリインデックス。
+ * 起動時はこのインデックスを読み込むだけで曲リストを用意し、
+ * MediaStore との差分（_ID と DATE_MODIFIED）はバックグラウンドで突き合わせる。
+ */
+public class LibraryIndex {
+	private static final String TAG = "LibraryIndex";
+	private static final String FILE_NAME = "library.idx";
+	private static final int MAGIC = 0x52434C49; // "RCLI"
+	private static final int VERSION = 4;
+
+	// 差分の行を読み直すときに、一度の IN 句に並べる _ID の数
+	private static final int FETCH_CHUNK = 500;
+
+	private static final String[] DELTA_PROJECTION = {
+			MediaStore.Audio.Media._ID,
+			MediaStore.Audio.Media.DATE_MODIFIED,
+	};
+
+	private LibraryIndex() {
+	}
+
+	private static File getFile(Context context) {
+		return new File(context.getFilesDir(), FILE_NAME);
+	}
+
+	/**
+	 * 保存済みのインデックスを読み込む。
+	 * @param context コンテキスト
+	 * @return ソート済みの曲リスト。インデックスが無い、または壊れている場合は null
+	 */
+	public static TrackStore load(Context context) {
+		File file = getFile(context);
+		if (!file.exists()) {
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				Log.w(TAG, "Unknown index format, ignoring " + file);
+				return null;
+			}
+			String[] artistTable = readTable(in);
+			String[] albumTable = readTable(in);
+			String[] titleTable = readTable(in);
+			int count = in.readInt();
+			long[] ids = readLongs(in, count);
+			long[] durations = readLongs(in, count);
+			long[] dateModified = readLongs(in, count);
+			long[] albumIds = readLongs(in, count);
+			int[] tracks = readInts(in, count);
+			int[] artists = readInts(in, count);
+			int[] albumArtists = readInts(in, count);
+			int[] albums = readInts(in, count);
+			int[] titles = readInts(in, count);
+			return new TrackStore(count, ids, durations, dateModified, albumIds, tracks, artists, albumArtists,
+					albums, titles, artistTable, albumTable, titleTable);
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to read library index: " + e.getMessage());
+			return null;
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	/**
+	 * 曲リストをインデックスとして保存する。一時ファイルに書いてから置き換えるので、
+	 * 書き込み途中で落ちても前回のインデックスは壊れない。
+	 * TrackStore の文字列表と配列をそのまま書き出すので、読み込み時に組み立て直す必要は無い。
+	 * @param context コンテキスト
+	 * @param items ソート済みの曲リスト
+	 * @return 保存できたかどうか
+	 */
+	public static boolean save(Context context, TrackStore items) {
+		File file = getFile(context);
+		File tmp = new File(file.getPath() + ".tmp");
+
+		DataOutputStream out = null;
+		try {
+			FileOutputStream fos = new FileOutputStream(tmp);
+			out = new DataOutputStream(new BufferedOutputStream(fos));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeTable(out, items.artistTable());
+			writeTable(out, items.albumTable());
+			writeTable(out, items.titleTable());
+			int count = items.size();
+			out.writeInt(count);
+			for (int i = 0; i < count; i++) {
+				out.writeLong(items.getId(i));
+			}
+			for (int i = 0; i < count; i++) {
+				out.writeLong(items.getDuration(i));
+			}
+			for (int i = 0; i < count; i++) {
+				out.writeLong(items.getDateModified(i));
+			}
+			for (int i = 0; i < count; i++) {
+				out.writeLong(items.getAlbumId(i));
+			}
+			for (int i = 0; i < count; i++) {
+				out.writeInt(items.getTrack(i));
+			}
+			for (int i = 0; i < count; i++) {
+				out.writeInt(items.artistRef(i));
+			}
+			for (int i = 0; i < count; i++) {
+				out.writeInt(items.albumArtistRef(i));
+			}
+			for (int i = 0; i < count; i++) {
+				out.writeInt(items.albumRef(i));
+			}
+			for (int i = 0; i < count; i++) {
+				out.writeInt(items.titleRef(i));
+			}
+			out.flush();
+			fos.getFD().sync();
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file)) {
+				Log.w(TAG, "Failed to replace " + file);
+				tmp.delete();
+				return false;
+			}
+			return true;
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to write library index: " + e.getMessage());
+			closeQuietly(out);
+			tmp.delete();
+			return false;
+		}
+	}
+
+	/**
+	 * MediaStore と突き合わせて、追加・削除・更新された曲だけを反映する。
+	 * MediaStore からは _ID と DATE_MODIFIED だけを読み、中身を読み直すのは差分の行だけ。
+	 * @param context コンテキスト
+	 * @param indexed インデックスから読み込んだ曲リスト
+	 * @return 反映後のソート済み曲リスト。差分が無い場合は null
+	 */
+	public static TrackStore reconcile(Context context, TrackStore indexed) {
+		ContentResolver cr = context.getContentResolver();
+		Cursor cur = cr.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, DELTA_PROJECTION,
+				MediaStore.Audio.Media.IS_MUSIC + " = 1", null, null);
+		if (cur == null) {
+			return null;
+		}
+
+		TrackStore.Builder builder = new TrackStore.Builder(indexed.size());
+		List<Long> dirty = new ArrayList<Long>();
+		int changed = 0;
+		try {
+			int idColumn = cur.getColumnIndex(MediaStore.Audio.Media._ID);
+			int modifiedColumn = cur.getColumnIndex(MediaStore.Audio.Media.DATE_MODIFIED);
+			while (cur.moveToNext()) {
+				long id = cur.getLong(idColumn);
+				int index = indexed.indexOf(id);
+				if (index >= 0 && indexed.getDateModified(index) == cur.getLong(modifiedColumn)) {
+					builder.add(indexed, index);
+				} else {
+					if (index >= 0) {
+						changed++;
+					}
+					dirty.add(id);
+				}
+			}
+		} finally {
+			cur.close();
+		}
+
+		int removed = indexed.size() - builder.size() - changed;
+		if (dirty.isEmpty() && removed == 0) {
+			return null;
+		}
+		Log.i(TAG, "Library delta: " + dirty.size() + " added/changed, " + removed + " removed");
+
+		for (int start = 0; start < dirty.size(); start += FETCH_CHUNK) {
+			int end = Math.min(start + FETCH_CHUNK, dirty.size());
+			Item.queryItems(context, idSelection(dirty, start, end), builder);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * 指定した _ID の曲だけを MediaStore と突き合わせて反映する。
+	 * ContentObserver の通知で変更のあった曲が分かっている場合に使い、MediaStore からはその曲の行だけを読む。
+	 * 追加・更新された曲は読み直し、見つからなくなった曲（または音楽でなくなった曲）は取り除く。
+	 * @param context コンテキスト
+	 * @param items 今の曲リスト
+	 * @param ids 変更のあった曲の _ID
+	 * @return 反映後のソート済み曲リスト。差分が無い場合は null
+	 */
+	public static TrackStore update(Context context, TrackStore items, List<Long> ids) {
+		ContentResolver cr = context.getContentResolver();
+		Map<Long, Long> found = new HashMap<Long, Long>();
+		for (int start = 0; start < ids.size(); start += FETCH_CHUNK) {
+			int end = Math.min(start + FETCH_CHUNK, ids.size());
+			Cursor cur = cr.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, DELTA_PROJECTION,
+					MediaStore.Audio.Media.IS_MUSIC + " = 1 AND " + idSelection(ids, start, end), null, null);
+			if (cur == null) {
+				return null;
+			}
+			try {
+				int idColumn = cur.getColumnIndex(MediaStore.Audio.Media._ID);
+				int modifiedColumn = cur.getColumnIndex(MediaStore.Audio.Media.DATE_MODIFIED);
+				while (cur.moveToNext()) {
+					found.put(cur.getLong(idColumn), cur.getLong(modifiedColumn));
+				}
+			} finally {
+				cur.close();
+			}
+		}
+
+		// 曲リストから外す曲：消えた曲と、読み直す曲
+		Set<Long> stale = new HashSet<Long>();
+		List<Long> dirty = new ArrayList<Long>();
+		int removed = 0;
+		for (Long id : ids) {
+			int index = items.indexOf(id);
+			Long modified = found.get(id);
+			if (modified == null) {
+				if (index >= 0) {
+					stale.add(id);
+					removed++;
+				}
+			} else if (index < 0 || items.getDateModified(index) != modified.longValue()) {
+				if (index >= 0) {
+					stale.add(id);
+				}
+				dirty.add(id);
+			}
+		}
+		if (stale.isEmpty() && dirty.isEmpty()) {
+			return null;
+		}
+		Log.i(TAG, "Library change: " + dirty.size() + " added/changed, " + removed + " removed");
+
+		// 残る曲はソート済みの順に詰め直すので、並べ直しはほぼ差分の曲の分だけで済む
+		TrackStore.Builder builder = new TrackStore.Builder(items.size() + dirty.size());
+		for (int i = 0; i < items.size(); i++) {
+			if (!stale.contains(items.getId(i))) {
+				builder.add(items, i);
+			}
+		}
+		for (int start = 0; start < dirty.size(); start += FETCH_CHUNK) {
+			int end = Math.min(start + FETCH_CHUNK, dirty.size());
+			Item.queryItems(context, idSelection(dirty, start, end), builder);
+		}
+		return builder.build();
+	}
+
+	private static String idSelection(List<Long> ids, int start, int end) {
+		StringBuilder sb = new StringBuilder(MediaStore.Audio.Media._ID).append(" IN (");
+		for (int i = start; i < end; i++) {
+			if (i > start) {
+				sb.append(',');
+			}
+			sb.append(ids.get(i).longValue());
+		}
+		return sb.append(')').toString();
+	}
+
+	private static void writeTable(DataOutputStream out, String[] table) throws IOException {
+		out.writeInt(table.length);
+		for (String s : table) {
+			out.writeUTF(s);
+		}
+	}
+
+	private static String[] readTable(DataInputStream in) throws IOException {
+		String[] table = new String[in.readInt()];
+		for (int i = 0; i < table.length; i++) {
+			table[i] = in.readUTF();
+		}
+		return table;
+	}
+
+	private static long[] readLongs(DataInputStream in, int count) throws IOException {
+		long[] values = new long[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = in.readLong();
+		}
+		return values;
+	}
+
+	private static int[] readInts(DataInputStream in, int count) throws IOException {
+		int[] values = new int[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = in.readInt();
+		}
+		return values;
+	}
+
+	private static void closeQuietly(Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
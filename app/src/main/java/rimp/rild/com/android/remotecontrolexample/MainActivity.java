@@ -13,6 +13,7 @@ public class MainActivity extends Activity {
 	private Object[] activities = {
 			"MusicPlayer (Normal)", MusicPlayerActivity.class,
 			"MusicPlayer (RemoteControl)", MusicPlayerRemoteControlActivity.class,
+			"Search", SearchActivity.class,
 	};
 
 	@Override
@@ -0,0 +1,322 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+
+/**
+ * プロセス内で共有する曲リスト。
+ * 一度読み込んだ曲リストは Activity とサービスで使い回し、画面に戻るたびに MediaStore を問い合わせ直すことはしない。
+ * 読み込みは PrepareMusicRetrieverTask で行い、途中経過と更新はリスナーに通知する。
+ * 曲リストが変わるたびに、検索用の索引（SearchIndex）もバックグラウンドで差分を反映する。
+ * 曲リストを保持している間は MediaStore の変更を監視し、続けて届く通知をまとめてから、
+ * 変更のあった曲だけを読み直して反映する（全件を読み直すことはしない）。
+ * すべてのメソッドはメインスレッドから呼び出すこと。
+ */
+public class MusicLibrary implements PrepareMusicRetrieverTask.MusicRetrieverPreparedListener {
+	private static final String TAG = "MusicLibrary";
+
+	/** 検索用の索引の更新を受け取るリスナー。 */
+	public interface SearchIndexListener {
+		/** 索引に曲リストの変更が反映されたときに、メインスレッドで呼び出される。 */
+		void onSearchIndexUpdated(SearchIndex index);
+	}
+
+	// 変更の通知が途切れてから反映するまでの時間と、通知が続いても反映を待つ最大の時間
+	private static final long REFRESH_DELAY = 1000;
+	private static final long MAX_REFRESH_DELAY = 5000;
+	// これより多くの曲が変わったら、曲ごとに問い合わせず、_ID と DATE_MODIFIED の全件で突き合わせる
+	private static final int MAX_CHANGED_IDS = 500;
+
+	private static MusicLibrary sInstance;
+
+	private final Context mContext;
+	private final CopyOnWriteArrayList<PrepareMusicRetrieverTask.MusicRetrieverPreparedListener> mListeners =
+			new CopyOnWriteArrayList<PrepareMusicRetrieverTask.MusicRetrieverPreparedListener>();
+	private final CopyOnWriteArrayList<SearchIndexListener> mSearchIndexListeners =
+			new CopyOnWriteArrayList<SearchIndexListener>();
+	private final SearchIndex mSearchIndex = new SearchIndex();
+	private TrackStore mItems;
+	// mItems が全体かどうか（読み込み中は最初のページだけのことがある）
+	private boolean mComplete = false;
+	private boolean mLoading = false;
+
+	private final Handler mHandler = new Handler();
+	private final ContentObserver mObserver = new ContentObserver(mHandler) {
+		@Override
+		public void onChange(boolean selfChange) {
+			onChange(selfChange, null);
+		}
+
+		@Override
+		public void onChange(boolean selfChange, Uri uri) {
+			onMediaChanged(uri);
+		}
+	};
+	private boolean mObserving = false;
+	// 反映待ちの変更：変更のあった曲の _ID、または曲の分からない変更があったかどうか
+	private final Set<Long> mChangedIds = new HashSet<Long>();
+	private boolean mChangedAll = false;
+	private long mFirstChangeTime = 0;
+	private boolean mRefreshing = false;
+	private final Runnable mRefresh = new Runnable() {
+		@Override
+		public void run() {
+			refresh();
+		}
+	};
+
+	private MusicLibrary(Context context) {
+		mContext = context.getApplicationContext();
+	}
+
+	public static MusicLibrary getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new MusicLibrary(context);
+		}
+		return sInstance;
+	}
+
+	/**
+	 * 曲リストが用意できたとき、または更新されたときに通知を受けるリスナーを登録する。
+	 * 登録しただけでは読み込みは始まらない（{@link #load} を呼ぶこと）。
+	 */
+	public void addListener(PrepareMusicRetrieverTask.MusicRetrieverPreparedListener listener) {
+		mListeners.addIfAbsent(listener);
+	}
+
+	public void removeListener(PrepareMusicRetrieverTask.MusicRetrieverPreparedListener listener) {
+		mListeners.remove(listener);
+	}
+
+	/**
+	 * 曲リストを用意する。読み込み済みなら指定したリスナーにすぐ通知し、
+	 * そうでなければ（まだ読み込み中でなければ）読み込みを始める。
+	 * @param listener 読み込み済みの曲リストを受け取るリスナー。登録済みのリスナーには読み込み後に通知される
+	 */
+	public void load(PrepareMusicRetrieverTask.MusicRetrieverPreparedListener listener) {
+		if (mItems != null) {
+			listener.onMusicRetrieverPrepared(mItems, mComplete);
+			return;
+		}
+		if (mLoading) {
+			return;
+		}
+		mLoading = true;
+		new PrepareMusicRetrieverTask(this) {
+			@Override
+			protected void onPostExecute(TrackStore result) {
+				super.onPostExecute(result);
+				mLoading = false;
+				scheduleRefresh();
+			}
+		}.execute(mContext);
+	}
+
+	/** 読み込み済みの曲リストを返す。まだ無ければ null。 */
+	public TrackStore getItems() {
+		return mItems;
+	}
+
+	/**
+	 * 検索用の索引を返す。曲リストが読み込まれるまでは空。
+	 * 索引への反映は曲リストの通知より後になるので、反映を待つ場合は {@link #addSearchIndexListener} を使うこと。
+	 */
+	public SearchIndex getSearchIndex() {
+		return mSearchIndex;
+	}
+
+	public void addSearchIndexListener(SearchIndexListener listener) {
+		mSearchIndexListeners.addIfAbsent(listener);
+	}
+
+	public void removeSearchIndexListener(SearchIndexListener listener) {
+		mSearchIndexListeners.remove(listener);
+	}
+
+	/**
+	 * 保持している曲リストを手放す。次の {@link #load} ではインデックスから読み直す。
+	 * 読み込み中の場合は何もしない。検索の画面が開いていなければ、検索用の索引も空にする。
+	 */
+	public void release() {
+		if (!mLoading) {
+			mItems = null;
+			stopObserving();
+			if (mSearchIndexListeners.isEmpty()) {
+				new UpdateSearchIndexTask().execute((TrackStore) null);
+			}
+		}
+	}
+
+	@Override
+	public void onMusicRetrieverPrepared(TrackStore items, boolean complete) {
+		mItems = items;
+		mComplete = complete;
+		startObserving();
+		for (PrepareMusicRetrieverTask.MusicRetrieverPreparedListener listener : mListeners) {
+			listener.onMusicRetrieverPrepared(items, complete);
+		}
+		new UpdateSearchIndexTask().execute(items);
+	}
+
+	private void startObserving() {
+		if (!mObserving) {
+			mObserving = true;
+			mContext.getContentResolver().registerContentObserver(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true,
+					mObserver);
+		}
+	}
+
+	private void stopObserving() {
+		if (mObserving) {
+			mObserving = false;
+			mContext.getContentResolver().unregisterContentObserver(mObserver);
+		}
+		mHandler.removeCallbacks(mRefresh);
+		mChangedIds.clear();
+		mChangedAll = false;
+		mFirstChangeTime = 0;
+	}
+
+	/**
+	 * MediaStore の変更の通知を受け取る。曲の URI なら _ID を覚えておき、そうでなければ全件で突き合わせる。
+	 * 曲のスキャン中は通知が続けて届くので、通知が途切れるまで（最大でも MAX_REFRESH_DELAY まで）反映を遅らせる。
+	 */
+	private void onMediaChanged(Uri uri) {
+		if (mItems == null && !mLoading) {
+			return;
+		}
+		long id = uri == null ? -1 : parseId(uri);
+		if (id < 0 || mChangedIds.size() >= MAX_CHANGED_IDS) {
+			mChangedAll = true;
+			mChangedIds.clear();
+		} else if (!mChangedAll) {
+			mChangedIds.add(id);
+		}
+		long now = SystemClock.uptimeMillis();
+		if (mFirstChangeTime == 0) {
+			mFirstChangeTime = now;
+		}
+		mHandler.removeCallbacks(mRefresh);
+		mHandler.postAtTime(mRefresh, Math.min(now + REFRESH_DELAY, mFirstChangeTime + MAX_REFRESH_DELAY));
+	}
+
+	/** 曲の URI（.../audio/media/123）の _ID。曲の URI でなければ -1。 */
+	private static long parseId(Uri uri) {
+		String segment = uri.getLastPathSegment();
+		if (segment == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(segment);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/** 読み込みや反映の後に、その間に届いた変更があれば反映する。 */
+	private void scheduleRefresh() {
+		if (mFirstChangeTime != 0) {
+			mHandler.removeCallbacks(mRefresh);
+			mHandler.post(mRefresh);
+		}
+	}
+
+	private void refresh() {
+		if (mItems == null || mLoading || mRefreshing) {
+			// 読み込みや前の反映が終わったときに scheduleRefresh で改めて呼ばれる
+			return;
+		}
+		List<Long> ids = mChangedAll ? null : new ArrayList<Long>(mChangedIds);
+		mChangedIds.clear();
+		mChangedAll = false;
+		mFirstChangeTime = 0;
+		mRefreshing = true;
+		new RefreshTask(mItems, ids).execute();
+	}
+
+	/**
+	 * MediaStore の変更を曲リストに反映し、インデックスも保存し直す。
+	 * 反映後の曲リストは、読み込みのときと同じくリスナーに通知する。
+	 */
+	private class RefreshTask extends AsyncTask<Void, Void, TrackStore> {
+		private final TrackStore mBase;
+		private final List<Long> mIds;
+
+		/**
+		 * @param base 反映の元にする曲リスト
+		 * @param ids 変更のあった曲の _ID。null なら全件で突き合わせる
+		 */
+		RefreshTask(TrackStore base, List<Long> ids) {
+			mBase = base;
+			mIds = ids;
+		}
+
+		@Override
+		protected TrackStore doInBackground(Void... params) {
+			long start = System.nanoTime();
+			TrackStore updated = mIds == null ? LibraryIndex.reconcile(mContext, mBase)
+					: LibraryIndex.update(mContext, mBase, mIds);
+			if (updated != null) {
+				LibraryIndex.save(mContext, updated);
+			}
+			Log.d(TAG, "refresh: " + (mIds == null ? "all" : mIds.size() + " changed") + " tracks in "
+					+ (System.nanoTime() - start) / 1000000 + "ms");
+			return updated;
+		}
+
+		@Override
+		protected void onPostExecute(TrackStore result) {
+			mRefreshing = false;
+			if (mItems == null) {
+				// 反映の間に手放された
+				return;
+			}
+			if (mItems != mBase) {
+				// 反映の間に曲リストが読み直されたので、新しい曲リストに対して全件で突き合わせ直す
+				mChangedAll = true;
+				mFirstChangeTime = SystemClock.uptimeMillis();
+			} else if (result != null) {
+				onMusicRetrieverPrepared(result, true);
+			}
+			scheduleRefresh();
+		}
+	}
+
+	/**
+	 * 曲リストの変更を索引に反映する（null なら索引を空にする）。
+	 * AsyncTask.execute は 1 つのスレッドで順に実行されるので、更新が追い越し合うことはない。
+	 */
+	private class UpdateSearchIndexTask extends AsyncTask<TrackStore, Void, Void> {
+		@Override
+		protected Void doInBackground(TrackStore... params) {
+			if (params[0] == null) {
+				mSearchIndex.clear();
+				return null;
+			}
+			long start = System.nanoTime();
+			int changed = mSearchIndex.update(params[0]);
+			Log.d(TAG, "search index: " + changed + " changed, " + mSearchIndex.size() + " tracks, "
+					+ mSearchIndex.getTokenCount() + " tokens in " + (System.nanoTime() - start) / 1000000 + "ms");
+			return null;
+		}
+
+		@Override
+		protected void onPostExecute(Void result) {
+			for (SearchIndexListener listener : mSearchIndexListeners) {
+				listener.onSearchIndexUpdated(mSearchIndex);
+			}
+		}
+	}
+}
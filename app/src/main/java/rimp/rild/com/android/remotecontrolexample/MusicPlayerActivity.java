@@ -1,7 +1,6 @@
 package rimp.rild.com.android.remotecontrolexample;
 
 import java.io.IOException;
-import java.util.List;
 
 import android.app.Activity;
 import android.media.AudioManager;
@@ -19,9 +18,11 @@ import android.widget.Toast;
 
 /**
  * MediaPlayer を直接使用する音楽プレイヤー。
+ * 曲の準備は prepareAsync で行い、UI スレッドを止めない。
  */
 public class MusicPlayerActivity extends Activity implements View.OnClickListener,
-		MediaPlayer.OnPreparedListener, MediaPlayer.OnInfoListener, MediaPlayer.OnCompletionListener {
+		MediaPlayer.OnPreparedListener, MediaPlayer.OnInfoListener, MediaPlayer.OnCompletionListener,
+		PrepareMusicRetrieverTask.MusicRetrieverPreparedListener {
 	private static final String TAG = "MusicPlayerActivity";
 	private MediaPlayer mMediaPlayer;
 	private ImageButton mButtonPlayPause;
@@ -33,8 +34,12 @@ public class MusicPlayerActivity extends Activity implements View.OnClickListene
 	private TextView mTextViewTitle;
 	private Chronometer mChronometer;
 	private Handler mHandler = new Handler();
-	private List<Item> mItems;
+	private MusicLibrary mLibrary;
+	private TrackStore mItems;
 	private int mIndex;
+	private boolean mPreparing = false;
+	private boolean mPrepared = false;
+	private boolean mPlayWhenPrepared = false;
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -56,30 +61,35 @@ public class MusicPlayerActivity extends Activity implements View.OnClickListene
 		mButtonStop.setOnClickListener(this);
 
 		setEnabledButton(false);
+
+		mLibrary = MusicLibrary.getInstance(this);
 	}
 
 	@Override
 	protected void onResume() {
 		super.onResume();
 		Log.d(TAG, "onResume");
-		mItems = Item.getItems(getApplicationContext());
-		if (mItems.size() != 0) {
-			mMediaPlayer = new MediaPlayer();
-			mMediaPlayer.setOnPreparedListener(this);
-			mMediaPlayer.setOnInfoListener(this);
-			mMediaPlayer.setOnCompletionListener(this);
-			prepare();
-		}
+		mMediaPlayer = new MediaPlayer();
+		mMediaPlayer.setOnPreparedListener(this);
+		mMediaPlayer.setOnInfoListener(this);
+		mMediaPlayer.setOnCompletionListener(this);
+
+		// 曲リストはプロセス内で共有しているので、読み込み済みならすぐに届く
+		mLibrary.addListener(this);
+		mLibrary.load(this);
 	}
 
 	@Override
 	protected void onPause() {
 		super.onPause();
 		Log.d(TAG, "onPause");
+		mLibrary.removeListener(this);
 		if (mMediaPlayer != null) {
 			mMediaPlayer.reset();
 			mMediaPlayer.release();
 			mMediaPlayer = null;
+			mPrepared = false;
+			mPreparing = false;
 			mChronometer.stop();
 		}
 	}
@@ -90,9 +100,26 @@ public class MusicPlayerActivity extends Activity implements View.OnClickListene
 		Log.d(TAG, "onDestroy");
 	}
 
+	@Override
+	public void onMusicRetrieverPrepared(TrackStore items, boolean complete) {
+		if (items == mItems) {
+			return;
+		}
+		// 曲リストが更新された場合は、同じ曲を指したままにする
+		long currentId = mItems == null || mItems.isEmpty() ? -1 : mItems.getId(mIndex);
+		mItems = items;
+		mIndex = Math.max(items.indexOf(currentId), 0);
+		if (mMediaPlayer != null && !mPrepared && !mPreparing && !items.isEmpty()) {
+			prepare(false);
+		}
+	}
+
 	@Override
 	public void onClick(View v) {
-		boolean isPlaying = mMediaPlayer.isPlaying();
+		if (!mPrepared && v != mButtonSkip) {
+			return;
+		}
+		boolean isPlaying = mPrepared && mMediaPlayer.isPlaying();
 		if (v == mButtonPlayPause) {
 			if (isPlaying) {
 				mMediaPlayer.pause();
@@ -100,59 +127,74 @@ public class MusicPlayerActivity extends Activity implements View.OnClickListene
 				mButtonPlayPause.setImageResource(R.drawable.media_play);
 				mButtonPlayPause.setContentDescription(getResources().getText(R.string.play));
 			} else {
-				mMediaPlayer.start();
-				mChronometer.setBase(SystemClock.elapsedRealtime() - mMediaPlayer.getCurrentPosition());
-				mChronometer.start();
-				mButtonPlayPause.setImageResource(R.drawable.media_pause);
-				mButtonPlayPause.setContentDescription(getResources().getText(R.string.pause));
+				start();
 			}
 		} else if (v == mButtonSkip) {
 			mIndex = (mIndex + 1) % mItems.size();
-			onClick(mButtonStop);
-			if (isPlaying) {
-				onClick(mButtonPlayPause);
-			}
+			prepare(isPlaying);
 		} else if (v == mButtonRewind) {
 			mMediaPlayer.seekTo(0);
 			mChronometer.setBase(SystemClock.elapsedRealtime());
 		} else if (v == mButtonStop) {
 			mMediaPlayer.stop();
-			mMediaPlayer.reset();
-			mChronometer.stop();
-			mChronometer.setBase(SystemClock.elapsedRealtime());
-			prepare();
+			prepare(false);
 		}
 	}
 
-	private void prepare() {
+	private void start() {
+		mMediaPlayer.start();
+		mChronometer.setBase(SystemClock.elapsedRealtime() - mMediaPlayer.getCurrentPosition());
+		mChronometer.start();
+		mButtonPlayPause.setImageResource(R.drawable.media_pause);
+		mButtonPlayPause.setContentDescription(getResources().getText(R.string.pause));
+	}
+
+	/**
+	 * 現在の曲の準備を始める。準備はバックグラウンドで行われ、終わると onPrepared が呼び出される。
+	 * @param playWhenPrepared 準備ができたらそのまま再生を始めるかどうか
+	 */
+	private void prepare(boolean playWhenPrepared) {
 		setEnabledButton(false);
+		mPrepared = false;
+		mPreparing = true;
+		mPlayWhenPrepared = playWhenPrepared;
 
+		mMediaPlayer.reset();
 		mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-		Item playingItem = mItems.get(mIndex);
 		try {
-			mMediaPlayer.setDataSource(getApplicationContext(), playingItem.getURI());
-			mMediaPlayer.prepare();
+			mMediaPlayer.setDataSource(getApplicationContext(), mItems.getURI(mIndex));
+			mMediaPlayer.prepareAsync();
 		} catch (IllegalArgumentException e) {
-			Toast.makeText(getApplicationContext(), e.getMessage(), Toast.LENGTH_LONG).show();
-			e.printStackTrace();
+			onPrepareFailed(e);
 		} catch (SecurityException e) {
-			Toast.makeText(getApplicationContext(), e.getMessage(), Toast.LENGTH_LONG).show();
-			e.printStackTrace();
+			onPrepareFailed(e);
 		} catch (IllegalStateException e) {
-			Toast.makeText(getApplicationContext(), e.getMessage(), Toast.LENGTH_LONG).show();
-			e.printStackTrace();
+			onPrepareFailed(e);
 		} catch (IOException e) {
-			Toast.makeText(getApplicationContext(), e.getMessage(), Toast.LENGTH_LONG).show();
-			e.printStackTrace();
+			onPrepareFailed(e);
 		}
-		mTextViewArtist.setText(playingItem.artist);
-		mTextViewAlbum.setText(playingItem.album);
-		mTextViewTitle.setText(playingItem.title);
+		mTextViewArtist.setText(mItems.getArtist(mIndex));
+		mTextViewAlbum.setText(mItems.getAlbum(mIndex));
+		mTextViewTitle.setText(mItems.getTitle(mIndex));
 		mButtonPlayPause.setImageResource(R.drawable.media_play);
 		mButtonPlayPause.setContentDescription(getResources().getText(R.string.play));
+		mChronometer.stop();
 		mChronometer.setBase(SystemClock.elapsedRealtime());
 	}
 
+	/**
+	 * 準備に失敗したときに呼び出す。準備中のままにすると、ボタンが無効のままになり、曲リストの更新でも準備し直さない。
+	 * スキップだけは準備ができていなくても使えるので、次の曲へ進める。
+	 */
+	private void onPrepareFailed(Exception e) {
+		if (e != null) {
+			Toast.makeText(getApplicationContext(), e.getMessage(), Toast.LENGTH_LONG).show();
+			e.printStackTrace();
+		}
+		mPreparing = false;
+		setEnabledButton(true);
+	}
+
 	private void setEnabledButton(final boolean enabled) {
 		Log.d(TAG, "setEnabledButton:" + enabled);
 		mHandler.post(new Runnable() {
@@ -180,7 +222,12 @@ public class MusicPlayerActivity extends Activity implements View.OnClickListene
 	@Override
 	public void onPrepared(MediaPlayer mp) {
 		Log.d(TAG, "onPrepared");
+		mPreparing = false;
+		mPrepared = true;
 		setEnabledButton(true);
+		if (mPlayWhenPrepared) {
+			start();
+		}
 	}
 
 	@Override
@@ -199,18 +246,13 @@ public class MusicPlayerActivity extends Activity implements View.OnClickListene
 	@Override
 	public void onCompletion(MediaPlayer mp) {
 		Log.d(TAG, "onCompletion");
-		mHandler.post(new Runnable() {
-			@Override
-			public void run() {
-				onClick(mButtonSkip);
-				while (!mButtonPlayPause.isEnabled()) {
-					try {
-						Thread.sleep(100);
-					} catch (InterruptedException e) {
-					}
-				}
-				onClick(mButtonPlayPause);
-			}
-		});
+		if (!mPrepared) {
+			// 準備に失敗した場合もここに来るので、次の曲へ進まない
+			onPrepareFailed(null);
+			return;
+		}
+		// 次の曲を準備し、準備ができた時点（onPrepared）で再生を始める
+		mIndex = (mIndex + 1) % mItems.size();
+		prepare(true);
 	}
 }
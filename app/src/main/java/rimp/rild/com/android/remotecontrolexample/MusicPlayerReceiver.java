@@ -3,15 +3,57 @@ package rimp.rild.com.android.remotecontrolexample;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
 import android.view.KeyEvent;
 import android.widget.Toast;
 
 /**
  * リモートコントロールからブロードキャストされるマルチメディアイベントを受け取るレシーバ。
+ * ヘッドセットのボタンは連続押しをまとめ、1 回なら再生・一時停止、2 回なら次の曲、3 回なら前の曲として
+ * ジェスチャーごとに 1 回だけサービスを呼び出す。
+ * 連続押しを待つ間は goAsync でブロードキャストを終わらせずにおき、ジェスチャーが確定したときに終える。
+ * そうしないと、このブロードキャストのためだけに起動したプロセスは、待ち時間が過ぎる前に終了させられることがある。
  */
 public class MusicPlayerReceiver extends BroadcastReceiver {
 	private static final String TAG = "MusicPlayerReceiver";
+
+	// レシーバはブロードキャストごとに作り直されるので、連続押しの状態はプロセスで 1 つだけ持つ
+	private static HeadsetGestureDecoder sHeadsetDecoder;
+	// 確定していないジェスチャーの押下ごとのブロードキャスト。メインスレッドだけで触る
+	private static final List<PendingResult> sPendingPresses = new ArrayList<PendingResult>();
+
+	private static HeadsetGestureDecoder getHeadsetDecoder(Context context) {
+		if (sHeadsetDecoder == null) {
+			final Context appContext = context.getApplicationContext();
+			sHeadsetDecoder = new HeadsetGestureDecoder(new Handler(Looper.getMainLooper()),
+					new HeadsetGestureDecoder.Callbacks() {
+						@Override
+						public void onGesture(int presses) {
+							Log.d(TAG, "onGesture: presses:" + presses);
+							String action;
+							if (presses == 1) {
+								action = MusicPlayerService.ACTION_PLAYPAUSE;
+							} else if (presses == 2) {
+								action = MusicPlayerService.ACTION_SKIP;
+							} else {
+								action = MusicPlayerService.ACTION_PREVIOUS;
+							}
+							appContext.startService(new Intent(action));
+							for (PendingResult result : sPendingPresses) {
+								result.finish();
+							}
+							sPendingPresses.clear();
+						}
+					});
+		}
+		return sHeadsetDecoder;
+	}
+
 	@Override
 	public void onReceive(Context context, Intent intent) {
 		if (intent.getAction().equals(android.media.AudioManager.ACTION_AUDIO_BECOMING_NOISY)) {
@@ -37,6 +79,14 @@ public class MusicPlayerReceiver extends BroadcastReceiver {
 
 			switch (keyEvent.getKeyCode()) {
 			case KeyEvent.KEYCODE_HEADSETHOOK:
+				// 長押しによるキーリピートは数えない
+				if (keyEvent.getRepeatCount() == 0) {
+					HeadsetGestureDecoder decoder = getHeadsetDecoder(context);
+					// added before onPress, which may end the gesture at once
+					sPendingPresses.add(goAsync());
+					decoder.onPress(keyEvent.getEventTime());
+				}
+				break;
 			case KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE:
 				context.startService(new Intent(MusicPlayerService.ACTION_PLAYPAUSE));
 				break;
@@ -53,9 +103,8 @@ public class MusicPlayerReceiver extends BroadcastReceiver {
 				context.startService(new Intent(MusicPlayerService.ACTION_SKIP));
 				break;
 			case KeyEvent.KEYCODE_MEDIA_PREVIOUS:
-				// TODO: ensure that doing this in rapid succession actually
-				// plays the previous song
-				context.startService(new Intent(MusicPlayerService.ACTION_REWIND));
+				// 曲の途中なら頭出し、頭付近なら前の曲へ。連続で押した分はサービス側でまとめられる
+				context.startService(new Intent(MusicPlayerService.ACTION_PREVIOUS));
 				break;
 			}
 		}
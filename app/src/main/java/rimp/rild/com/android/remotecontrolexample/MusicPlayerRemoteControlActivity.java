@@ -1,12 +1,13 @@
 package rimp.rild.com.android.remotecontrolexample;
 
 import android.app.Activity;
-import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.SystemClock;
 import android.util.Log;
 import android.view.KeyEvent;
@@ -32,24 +33,45 @@ public class MusicPlayerRemoteControlActivity extends Activity implements OnClic
 	private Chronometer mChronometer;
 	private Handler mHandler = new Handler();
 	private long mCurrentPosition;
-	private IntentFilter mFilter;
-	private BroadcastReceiver mReceiver = new BroadcastReceiver() {
+	private MusicPlayerService mService;
+	private ServiceConnection mConnection = new ServiceConnection() {
 		@Override
-		public void onReceive(Context context, final Intent intent) {
+		public void onServiceConnected(ComponentName name, IBinder binder) {
+			mService = ((MusicPlayerService.LocalBinder) binder).getService();
+			mService.registerPlayerStateListener(mStateListener);
+		}
+
+		@Override
+		public void onServiceDisconnected(ComponentName name) {
+			mService = null;
+		}
+	};
+	private PlayerState.Listener mStateListener = new PlayerState.Listener() {
+		@Override
+		public void onPlayerStateChanged(final PlayerState state, final int changes) {
 			mHandler.post(new Runnable() {
 				public void run() {
-					mTextViewArtist.setText(intent.getStringExtra("artist"));
-					mTextViewAlbum.setText(intent.getStringExtra("album"));
-					mTextViewTitle.setText(intent.getStringExtra("title"));
-					String state = intent.getStringExtra("state");
-					mCurrentPosition = intent.getIntExtra("currentPosition", 0);
-					mChronometer.setBase(SystemClock.elapsedRealtime() - mCurrentPosition);
-					if (state.equals(MusicPlayerService.State.Playing.toString())) {
-						playing();
-					} else if (state.equals(MusicPlayerService.State.Paused.toString())) {
-						paused();
-					} else if (state.equals(MusicPlayerService.State.Stopped.toString())) {
-						stopped();
+					if ((changes & PlayerState.CHANGED_TRACK) != 0) {
+						mTextViewArtist.setText(state.getArtist());
+						mTextViewAlbum.setText(state.getAlbum());
+						mTextViewTitle.setText(state.getTitle());
+					}
+					if ((changes & (PlayerState.CHANGED_STATE | PlayerState.CHANGED_POSITION)) != 0) {
+						mCurrentPosition = state.getPositionAt(SystemClock.elapsedRealtime());
+						mChronometer.setBase(SystemClock.elapsedRealtime() - mCurrentPosition);
+						switch (state.getState()) {
+						case Playing:
+							playing();
+							break;
+						case Paused:
+							paused();
+							break;
+						case Stopped:
+							stopped();
+							break;
+						default:
+							break;
+						}
 					}
 				}
 			});
@@ -74,24 +96,24 @@ public class MusicPlayerRemoteControlActivity extends Activity implements OnClic
 		mButtonSkip.setOnClickListener(this);
 		mButtonRewind.setOnClickListener(this);
 		mButtonStop.setOnClickListener(this);
-
-		mFilter = new IntentFilter();
-		mFilter.addAction(MusicPlayerService.ACTION_STATE_CHANGED);
 	}
 
 	@Override
 	protected void onResume() {
 		super.onResume();
 		Log.d(TAG, "onResume");
-		registerReceiver(mReceiver, mFilter);
-		startService(new Intent(MusicPlayerService.ACTION_REQUEST_STATE));
+		bindService(new Intent(this, MusicPlayerService.class), mConnection, Context.BIND_AUTO_CREATE);
 	}
 
 	@Override
 	protected void onPause() {
 		super.onPause();
 		Log.d(TAG, "onPause");
-		unregisterReceiver(mReceiver);
+		if (mService != null) {
+			mService.unregisterPlayerStateListener(mStateListener);
+			mService = null;
+		}
+		unbindService(mConnection);
 	}
 
 	@Override
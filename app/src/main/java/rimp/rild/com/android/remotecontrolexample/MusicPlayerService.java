@@ -1,5 +1,7 @@
 package rimp.rild.com.android.remotecontrolexample;
 
+import android.annotation.TargetApi;
+import android.app.AlarmManager;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
@@ -15,15 +17,25 @@ import android.media.MediaPlayer.OnCompletionListener;
 import android.media.MediaPlayer.OnErrorListener;
 import android.media.MediaPlayer.OnPreparedListener;
 import android.media.RemoteControlClient;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.PowerManager;
+import android.os.Process;
 import android.os.SystemClock;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.widget.RemoteViews;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
-import java.util.List;
+import java.io.PrintWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * MediaPlayer を内包した音楽プレイヤーサービス。
@@ -31,17 +43,63 @@ import java.util.List;
  */
 public class MusicPlayerService extends Service implements OnCompletionListener,
 		OnPreparedListener, OnErrorListener, MusicFocusable,
-		PrepareMusicRetrieverTask.MusicRetrieverPreparedListener {
+		PrepareMusicRetrieverTask.MusicRetrieverPreparedListener, PlayerPool.Listener,
+		IdleGovernor.Callbacks {
 	final static String TAG = "MusicService";
 
-	public static final String ACTION_STATE_CHANGED = "com.example.android.remotecontrol.ACTION_STATE_CHANGED";
 	public static final String ACTION_PLAYPAUSE = "com.example.android.remotecontrol.ACTION_PLAYPAUSE";
 	public static final String ACTION_PLAY = "com.example.android.remotecontrol.ACTION_PLAY";
 	public static final String ACTION_PAUSE = "com.example.android.remotecontrol.ACTION_PAUSE";
 	public static final String ACTION_SKIP = "com.example.android.remotecontrol.ACTION_SKIP";
 	public static final String ACTION_REWIND = "com.example.android.remotecontrol.ACTION_REWIND";
+	public static final String ACTION_PREVIOUS = "com.example.android.remotecontrol.ACTION_PREVIOUS";
 	public static final String ACTION_STOP = "com.example.android.remotecontrol.ACTION_STOP";
-	public static final String ACTION_REQUEST_STATE = "com.example.android.remotecontrol.ACTION_REQUEST_STATE";
+	public static final String ACTION_SET_GAPLESS = "com.example.android.remotecontrol.ACTION_SET_GAPLESS";
+	public static final String ACTION_SET_PLAYER_POOL_SIZE = "com.example.android.remotecontrol.ACTION_SET_PLAYER_POOL_SIZE";
+	public static final String ACTION_PLAY_TRACK = "com.example.android.remotecontrol.ACTION_PLAY_TRACK";
+	public static final String ACTION_SET_SHUFFLE = "com.example.android.remotecontrol.ACTION_SET_SHUFFLE";
+	public static final String ACTION_SET_REPEAT = "com.example.android.remotecontrol.ACTION_SET_REPEAT";
+	public static final String ACTION_ENQUEUE = "com.example.android.remotecontrol.ACTION_ENQUEUE";
+	public static final String ACTION_PLAY_NEXT = "com.example.android.remotecontrol.ACTION_PLAY_NEXT";
+	public static final String ACTION_REMOVE_QUEUED = "com.example.android.remotecontrol.ACTION_REMOVE_QUEUED";
+	public static final String ACTION_MOVE_QUEUED = "com.example.android.remotecontrol.ACTION_MOVE_QUEUED";
+	public static final String ACTION_CLEAR_QUEUE = "com.example.android.remotecontrol.ACTION_CLEAR_QUEUE";
+	// plays the http(s) URL in the intent data; the song is not in the library
+	public static final String ACTION_PLAY_STREAM = "com.example.android.remotecontrol.ACTION_PLAY_STREAM";
+	public static final String ACTION_SET_PREFETCH_LEAD = "com.example.android.remotecontrol.ACTION_SET_PREFETCH_LEAD";
+	public static final String ACTION_SET_CROSSFADE = "com.example.android.remotecontrol.ACTION_SET_CROSSFADE";
+	// sent by the idle governor's alarm, which still counts while the device
+	// sleeps; not a command
+	private static final String ACTION_IDLE_CHECK = "com.example.android.remotecontrol.ACTION_IDLE_CHECK";
+
+	// boolean extra of ACTION_SET_GAPLESS and ACTION_SET_SHUFFLE
+	public static final String EXTRA_ENABLED = "enabled";
+	// int extra of ACTION_SET_PLAYER_POOL_SIZE
+	public static final String EXTRA_SIZE = "size";
+	// long extra of ACTION_PLAY_TRACK: the _ID of the song to play; of
+	// ACTION_ENQUEUE and ACTION_PLAY_NEXT: the song to queue; of
+	// ACTION_REMOVE_QUEUED (optional): the song the entry should hold
+	public static final String EXTRA_TRACK_ID = "track_id";
+	// int extra of ACTION_REMOVE_QUEUED and ACTION_MOVE_QUEUED: the entry (a
+	// PlayQueue slot) to remove or move
+	public static final String EXTRA_ENTRY = "entry";
+	// int extra of ACTION_MOVE_QUEUED: the entry to move it after, or
+	// PlayQueue.NONE for the head of the queue
+	public static final String EXTRA_AFTER = "after";
+	// int extra of ACTION_SET_REPEAT: one of PlayOrder.REPEAT_*
+	public static final String EXTRA_MODE = "mode";
+	// string extra of ACTION_PLAY_STREAM (optional): the title to show
+	public static final String EXTRA_TITLE = "title";
+	// int extra of ACTION_SET_PREFETCH_LEAD: how long (ms) before the end of
+	// the current song to prefetch the next one; 0 turns prefetching off
+	public static final String EXTRA_LEAD = "lead";
+	// int extra of ACTION_SET_CROSSFADE: how long (ms) songs overlap; 0 goes
+	// back to MediaPlayer
+	public static final String EXTRA_DURATION = "duration";
+
+	// ACTION_PREVIOUS rewinds to the start of the song when it has played
+	// longer than this, and goes to the previous song otherwise.
+	static final int PREVIOUS_REWIND_THRESHOLD = 3000;
 
 	// The volume we set the media player to when we lose audio focus, but are
 	// allowed to reduce the volume instead of stopping playback.
@@ -50,6 +108,72 @@ public class MusicPlayerService extends Service implements OnCompletionListener,
 	// our media player
 	private MediaPlayer mPlayer = null;
 
+	// the _ID of the song loaded in mPlayer, or -1 (also for a stream)
+	private long mPlayerId = -1;
+
+	// A one-song copy of the song in the player after it was deleted from
+	// MediaStore. It keeps playing from the open file while mIndex already
+	// points at a surviving song, so the published state describes it from
+	// here until the player holds something else.
+	private TrackStore mDetachedSong = null;
+
+	// Standby players for the songs around the current one. Skipping to a song
+	// that has a prepared player here only swaps players instead of going
+	// through setDataSource and prepareAsync again.
+	private PlayerPool mPlayerPool;
+	static final int WARM_AHEAD = 2;	// following songs to keep prepared
+	static final int WARM_BEHIND = 1;	// preceding songs to keep prepared
+	static final int DEFAULT_POOL_SIZE = WARM_AHEAD + WARM_BEHIND;
+	private final int[] mWarmIndices = new int[WARM_AHEAD + WARM_BEHIND];
+
+	// In gapless mode, the pooled player of the following song is chained with
+	// setNextMediaPlayer (SDK level >= 16), so the two songs play back to back.
+	// On completion the players swap roles. mChainedId is the _ID of the
+	// chained song, or -1.
+	private boolean mGapless = true;
+	private long mChainedId = -1;
+
+	// With a crossfade set (ACTION_SET_CROSSFADE, SDK level >= 16), library
+	// songs play through mCrossfadePlayer instead: it decodes them to PCM
+	// itself and blends the end of each song into the start of the next over
+	// mCrossfade ms. It only exists while it holds the current song; mPlayer
+	// is null then, and the pool and the chaining stand idle. Streams always
+	// play through mPlayer.
+	private CrossfadePlayer mCrossfadePlayer = null;
+	private int mCrossfade = 0;
+
+	// Songs from the network (ACTION_PLAY_STREAM) play through a loopback
+	// HTTP proxy. It answers MediaPlayer's range requests from segments cached
+	// on disk and fetches the missing ones from the origin, so replays and
+	// seeks into fetched parts stay off the network. mStreamUrl is the URL of
+	// the song in mPlayer when it is such a song (mPlayerId is then -1).
+	private StreamProxy mStreamProxy;
+	static final long STREAM_CACHE_BYTES = 64L * 1024 * 1024;
+	private String mStreamUrl = null;
+	private String mStreamTitle = null;
+	// a stream requested while the library was being retrieved
+	private String mPendingStreamUrl = null;
+	private String mPendingStreamTitle = null;
+
+	// Reads the head and tail of the next song's file a little before the
+	// current song ends, so prepareAsync and the first seconds of playback
+	// find them in the page cache instead of waiting on slow storage. The
+	// reads run on a background thread at a capped rate, so they never
+	// starve the song that is playing. Songs the pool has prepared already
+	// are skipped. mPrefetchLead is how long before the end to start, in ms.
+	private TrackPrefetcher mPrefetcher;
+	static final int DEFAULT_PREFETCH_LEAD = 15000;
+	private int mPrefetchLead = DEFAULT_PREFETCH_LEAD;
+
+	// Counters, latencies and recent events, dumped by dump() (adb shell
+	// dumpsys activity service MusicPlayerService). The start times below
+	// are SystemClock.elapsedRealtime() values, or 0 when nothing is pending.
+	private final PlaybackMetrics mMetrics = new PlaybackMetrics();
+	private long mSkipRequestTime = 0;	// skip request, until start()
+	private long mPlayRequestTime = 0;	// play request, until start()
+	private long mPrepareStartTime = 0;	// prepareAsync, until onPrepared
+	private long mLibraryRequestTime = 0;	// library load, until it arrives
+
 	// our AudioFocusHelper object, if it's available (it's available on SDK level >= 8)
 	// If not available, this will be null. Always check for null before using!
 	private AudioFocusHelper mAudioFocusHelper = null;
@@ -65,7 +189,9 @@ public class MusicPlayerService extends Service implements OnCompletionListener,
 		Paused		// playback paused (media player ready!)
 	};
 
-	private State mState = State.Retrieving;
+	// All state changes go through the transition table of the state machine;
+	// its state can be read from any thread.
+	private final PlaybackStateMachine mStateMachine = new PlaybackStateMachine(State.Retrieving);
 
 	// if in Retrieving mode, this flag indicates whether we should start
 	// playing immediately when we are ready or not.
@@ -80,8 +206,16 @@ public class MusicPlayerService extends Service implements OnCompletionListener,
 
 	private AudioFocus mAudioFocus = AudioFocus.NoFocusNoDuck;
 
-	private List<Item> mItems;
+	private MusicLibrary mLibrary;
+	private TrackStore mItems;
 	private int mIndex;
+	// which song follows which: shuffle and repeat. Always sized to mItems.
+	private final PlayOrder mPlayOrder = new PlayOrder(0);
+	// songs the user queued up; they play before the order goes on
+	private PlayQueue mQueue;
+	// while a queued song plays, the song of the order to go on from;
+	// -1 when mIndex itself is the place in the order
+	private int mOrderIndex = -1;
 
 	// The ID we use for the notification (the onscreen alert that appears at the notification
 	// area at the top of the screen as an icon -- and as text as well if the user expands the
@@ -92,42 +226,76 @@ public class MusicPlayerService extends Service implements OnCompletionListener,
 	// SDK level >= 14, if they're available.
 	private RemoteControlClient mRemoteControlClient;
 
-	// Dummy album art we will pass to the remote control (if the APIs are available).
+	// Dummy album art we pass to the remote control while the real artwork
+	// is loading, or if the album has none.
 	private Bitmap mDummyAlbumArt;
 
+	// Loads the album artwork for the remote control off this thread, scaled
+	// to at most MAX_ARTWORK_SIZE. The artwork of the following song is
+	// requested ahead, so a metadata update only picks it from memory.
+	private AlbumArtLoader mAlbumArtLoader;
+	static final int MAX_ARTWORK_SIZE = 512;
+
+	// how long dump() waits for the playback thread to read its fields (ms)
+	static final int DUMP_TIMEOUT = 1000;
+
 	// The component name of MusicIntentReceiver, for use with media button and remote control APIs
 	private ComponentName mMediaButtonReceiverComponent;
 
 	private AudioManager mAudioManager;
 	private NotificationManager mNotificationManager;
 
-	private Notification mNotification = null;
-
-	private Boolean mIsOnlyPrepare;
+	// Everything that touches the players, the remote control client and the
+	// notification runs on this thread, so slow calls such as setDataSource
+	// never stall the main thread. Commands reach it through mCommands.
+	private HandlerThread mPlaybackThread;
+	private Handler mPlaybackHandler;
+	private final Handler mMainHandler = new Handler();
+	private final PlaybackCommandQueue mCommands = new PlaybackCommandQueue();
 
-	private long mRelaxTime = System.currentTimeMillis();
+	private Notification mNotification = null;
 
-	private Thread mSelfStopThread = new Thread() {
-		public void run() {
-			while (true) {
-				// 停止後 10 分再生がなかったらサービスを止める
-				boolean needSleep = false;
-				if (mState == MusicPlayerService.State.Preparing || mState == MusicPlayerService.State.Playing || mState == MusicPlayerService.State.Paused) {
-					needSleep = true;
-				} else if (mRelaxTime + 10 * 1000 * 60 > System.currentTimeMillis()) {
-					needSleep = true;
-				}
-				if (!needSleep) {
-					break;
-				}
-				try {
-					Thread.sleep(1 * 1000 * 60); // 停止中でない、または 10 分経過してない場合は 1 分休む
-				} catch (InterruptedException e) {
-				}
-			}
-			MusicPlayerService.this.stopSelf();
-		}
-	};
+	private final IBinder mBinder = new LocalBinder();
+
+	// Every transition only invalidates the state; the publisher collects the
+	// invalidations of one short window and pushes the real changes to the
+	// notification, the remote control client and the bound clients.
+	private StatePublisher mStatePublisher;
+
+	// whether our notification is posted, and whether the remote control
+	// client has been told anything yet. If not, they get the whole state.
+	private boolean mNotificationShown = false;
+	private boolean mRemoteControlStale = true;
+
+	// whether the song being prepared should stay stopped once prepared
+	private boolean mIsOnlyPrepare = false;
+
+	// whether mPlayer has been prepared for mPlayerId
+	private boolean mPlayerPrepared = false;
+
+	// Releases the notification, then the players, then the library and
+	// artwork, and finally stops the service as the idle time grows. Each of
+	// them is acquired again lazily by the next command that needs it.
+	private IdleGovernor mIdleGovernor;
+
+	// Writes the session snapshot on a background thread. Saves asked for in
+	// quick succession (a skip, then the play order changing) write only the
+	// last one, so the playback thread never waits for the fsync.
+	private SessionSaver mSessionSaver;
+
+	// where to pick up again after the idle governor released the player or
+	// the library: the _ID of the song and the position in it. For a stream
+	// mResumeId stays -1 and the URL and title are kept instead, so that
+	// playing again reopens the stream rather than a library song.
+	private long mResumeId = -1;
+	private int mResumePosition = 0;
+	private String mResumeStreamUrl = null;
+	private String mResumeStreamTitle = null;
+	// where the song was in the play order, in case it is gone from the library
+	private int mResumeIndex = -1;
+	// mResumeId was not in the partial library seen so far; mIndex only
+	// stands in for it until a later page, or the complete library, arrives
+	private boolean mResumePending = false;
 
 	/**
 	 * Makes sure the media player exists and has been reset. This will create
@@ -135,39 +303,257 @@ public class MusicPlayerService extends Service implements OnCompletionListener,
 	 * already exists.
 	 */
 	private void createMediaPlayerIfNeeded() {
+		mPlayerPrepared = false;
 		if (mPlayer == null) {
-			mPlayer = new MediaPlayer();
-
-			// Make sure the media player will acquire a wake-lock while
-			// playing. If we don't do
-			// that, the CPU might go to sleep while the song is playing,
-			// causing playback to stop.
-			//
-			// Remember that to use this, we have to declare the
-			// android.permission.WAKE_LOCK
-			// permission in AndroidManifest.xml.
-			mPlayer.setWakeMode(getApplicationContext(), PowerManager.PARTIAL_WAKE_LOCK);
-
-			// we want the media player to notify us when it's ready preparing,
-			// and when it's done
-			// playing:
-			mPlayer.setOnPreparedListener(this);
-			mPlayer.setOnCompletionListener(this);
-			mPlayer.setOnErrorListener(this);
+			mPlayer = newMediaPlayer();
 		} else {
 			mPlayer.reset();
 		}
 	}
 
+	private MediaPlayer newMediaPlayer() {
+		MediaPlayer player = new MediaPlayer();
+
+		// Make sure the media player will acquire a wake-lock while
+		// playing. If we don't do
+		// that, the CPU might go to sleep while the song is playing,
+		// causing playback to stop.
+		//
+		// Remember that to use this, we have to declare the
+		// android.permission.WAKE_LOCK
+		// permission in AndroidManifest.xml.
+		player.setWakeMode(getApplicationContext(), PowerManager.PARTIAL_WAKE_LOCK);
+
+		// we want the media player to notify us when it's ready preparing,
+		// and when it's done
+		// playing:
+		player.setOnPreparedListener(this);
+		player.setOnCompletionListener(this);
+		player.setOnErrorListener(this);
+		player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+		return player;
+	}
+
+	/** Points the callbacks of a player taken from the pool back at us. */
+	private void adoptPlayer(MediaPlayer player) {
+		player.setOnPreparedListener(this);
+		player.setOnCompletionListener(this);
+		player.setOnErrorListener(this);
+	}
+
+	/**
+	 * Asks the pool to keep the songs around the current one prepared, and
+	 * chains the following one in gapless mode if it is already prepared.
+	 */
+	private void warmPlayers() {
+		if (mCrossfadePlayer != null) {
+			// it opens the following song itself, to fade into it
+			setCrossfadeNext();
+			if (mItems.size() > 1) {
+				mAlbumArtLoader.load(mItems.getAlbumId(upcoming(1)));
+			}
+			return;
+		}
+		int size = mItems == null ? 0 : mItems.size();
+		int count = 0;
+		for (int i = 1; i <= WARM_AHEAD && i < size; i++) {
+			mWarmIndices[count++] = upcoming(i);
+		}
+		for (int i = 1; i <= WARM_BEHIND && i < size - WARM_AHEAD; i++) {
+			mWarmIndices[count++] = mOrderIndex >= 0 ? mPlayOrder.peek(mOrderIndex, 1 - i) : mPlayOrder.peek(mIndex, -i);
+		}
+		mPlayerPool.warm(mItems, mWarmIndices, count);
+		chainNextPlayer();
+		if (size > 1) {
+			mAlbumArtLoader.load(mItems.getAlbumId(upcoming(1)));
+		}
+	}
+
+	/** Where the play order goes on from: the current song, unless it was queued. */
+	private int orderCursor() {
+		return mOrderIndex >= 0 ? mOrderIndex : mIndex;
+	}
+
+	/**
+	 * The first queued song that is in the library, or -1. Songs missing from
+	 * the library are passed over but stay queued, since the library may only
+	 * be the saved song of the last session yet.
+	 *
+	 * @param take whether to remove it from the queue
+	 */
+	private int queuedHead(boolean take) {
+		for (int slot = mQueue.first(); slot != PlayQueue.NONE; slot = mQueue.next(slot)) {
+			int index = mItems.indexOf(mQueue.getTrackId(slot));
+			if (index >= 0) {
+				if (take) {
+					mQueue.remove(slot);
+				}
+				return index;
+			}
+		}
+		return -1;
+	}
+
+	/** The song the given number of songs ahead: the queued ones first, then the order. */
+	private int upcoming(int ahead) {
+		for (int slot = mQueue.first(); slot != PlayQueue.NONE; slot = mQueue.next(slot)) {
+			int index = mItems.indexOf(mQueue.getTrackId(slot));
+			if (index >= 0 && --ahead == 0) {
+				return index;
+			}
+		}
+		return mPlayOrder.peek(orderCursor(), ahead);
+	}
+
+	/**
+	 * The song to play when the current one completes, without moving on:
+	 * -1 after the last song of the order without repeat.
+	 */
+	private int peekNext() {
+		int index = queuedHead(false);
+		return index >= 0 ? index : mPlayOrder.peekNext(orderCursor());
+	}
+
+	/** Moves on to the song to play when the current one completes; see peekNext(). */
+	private int takeNext() {
+		int index = queuedHead(true);
+		if (index >= 0) {
+			if (mOrderIndex < 0) {
+				mOrderIndex = mIndex;
+			}
+			return index;
+		}
+		index = mPlayOrder.next(orderCursor());
+		if (index >= 0) {
+			mOrderIndex = -1;
+		}
+		return index;
+	}
+
+	/** Moves on by count songs, through the queued songs first, and returns the one to play. */
+	private int advance(int count) {
+		int index = -1;
+		while (count > 0 && (index = queuedHead(true)) >= 0) {
+			count--;
+		}
+		if (count == 0) {
+			if (mOrderIndex < 0) {
+				mOrderIndex = mIndex;
+			}
+			return index;
+		}
+		index = mPlayOrder.skip(orderCursor(), count);
+		mOrderIndex = -1;
+		return index;
+	}
+
+	private void chainNextPlayer() {
+		if (!mGapless || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN || mPlayer == null || mItems.size() < 2
+				|| (mStateMachine.get() != State.Playing && mStateMachine.get() != State.Paused)) {
+			return;
+		}
+		// nothing follows the last song without repeat, and a repeated song
+		// starts over from onCompletion instead
+		if (mPlayOrder.getRepeat() == PlayOrder.REPEAT_ONE) {
+			return;
+		}
+		int nextIndex = peekNext();
+		if (nextIndex == -1 || nextIndex == mIndex) {
+			return;
+		}
+		long nextId = mItems.getId(nextIndex);
+		if (mChainedId == nextId) {
+			return;
+		}
+		MediaPlayer next = mPlayerPool.peek(nextId);
+		if (next != null) {
+			setNextPlayer(mPlayer, next);
+			mChainedId = nextId;
+		}
+	}
+
+	private void unchainNextPlayer() {
+		if (mChainedId != -1 && mPlayer != null) {
+			setNextPlayer(mPlayer, null);
+		}
+		mChainedId = -1;
+	}
+
+	/**
+	 * Chains next to play right after player, or unchains it with null. Only
+	 * called once chainNextPlayer() has checked the SDK level, since
+	 * mChainedId stays -1 below it.
+	 */
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	private static void setNextPlayer(MediaPlayer player, MediaPlayer next) {
+		player.setNextMediaPlayer(next);
+	}
+
+	/** Opens the song to fade into in mCrossfadePlayer, unless it has it already. */
+	private void setCrossfadeNext() {
+		if (mStateMachine.get() != State.Playing && mStateMachine.get() != State.Paused) {
+			return;
+		}
+		// a repeated song starts over from its completion instead
+		int next = mItems.size() < 2 || mPlayOrder.getRepeat() == PlayOrder.REPEAT_ONE ? -1 : peekNext();
+		long nextId = next == -1 ? -1 : mItems.getId(next);
+		if (nextId != mCrossfadePlayer.getNextId()) {
+			mCrossfadePlayer.setNext(nextId, next == -1 ? null : mItems.getURI(next));
+		}
+	}
+
+	@Override
+	public void onPlayerWarmed(long id) {
+		if (mItems != null && mItems.size() > 1 && id == mItems.getId(upcoming(1))) {
+			chainNextPlayer();
+		}
+	}
+
 	@Override
 	public void onCreate() {
 		Log.d(TAG, "onCreate");
 
 		mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
 		mAudioManager = (AudioManager) getSystemService(AUDIO_SERVICE);
+		mPlayerPool = new PlayerPool(getApplicationContext(), DEFAULT_POOL_SIZE, this);
+		mQueue = PlayQueue.open(getApplicationContext());
+
+		// MediaPlayers created on the playback thread deliver their callbacks
+		// to its Looper as well.
+		mPlaybackThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_AUDIO);
+		mPlaybackThread.start();
+		mPlaybackHandler = new Handler(mPlaybackThread.getLooper());
+		Intent idleCheck = new Intent(this, MusicPlayerService.class);
+		idleCheck.setAction(ACTION_IDLE_CHECK);
+		mIdleGovernor = new IdleGovernor(mPlaybackHandler, (AlarmManager) getSystemService(ALARM_SERVICE),
+				PendingIntent.getService(this, 0, idleCheck, PendingIntent.FLAG_UPDATE_CURRENT), this);
+		mStatePublisher = new StatePublisher(mPlaybackHandler, new StatePublisher.Source() {
+			@Override
+			public PlayerState snapshot() {
+				return buildPlayerState();
+			}
+		});
+
+		mSessionSaver = new SessionSaver(getApplicationContext());
+
+		// Pick up the last session right away: until the library arrives, the
+		// saved song is the whole library, so a play request can start it at
+		// the saved position without waiting for the scan. It is read on the
+		// playback thread, ahead of every command and of the library, which
+		// are posted there after it.
+		mPlaybackHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				restoreSession();
+			}
+		});
 
-		// Create the retriever and start an asynchronous task that will prepare it.
-		new PrepareMusicRetrieverTask(this).execute(getApplicationContext());
+		// Get the library shared with the activities; it is only scanned if
+		// nobody in this process has loaded it yet.
+		mLibrary = MusicLibrary.getInstance(this);
+		mLibrary.addListener(this);
+		mLibraryRequestTime = SystemClock.elapsedRealtime();
+		mLibrary.load(this);
 
 		// create the Audio Focus Helper, if the Audio Focus feature is
 		// available (SDK 8 or above)
@@ -177,7 +563,12 @@ public class MusicPlayerService extends Service implements OnCompletionListener,
 			mAudioFocus = AudioFocus.Focused; // no focus feature, so we always "have" audio focus
 		}
 
-		mDummyAlbumArt = BitmapFactory.decodeResource(getResources(), R.drawable.dummy_album_art);
+		// the lock screen never shows the artwork wider than the screen
+		DisplayMetrics metrics = getResources().getDisplayMetrics();
+		int artworkSize = Math.min(Math.min(metrics.widthPixels, metrics.heightPixels), MAX_ARTWORK_SIZE);
+		mAlbumArtLoader = new AlbumArtLoader(getApplicationContext(), artworkSize,
+				AlbumArtLoader.defaultMemoryBytes(), mAlbumArtListener);
+		mPrefetcher = new TrackPrefetcher(getApplicationContext());
 
 		mMediaButtonReceiverComponent = new ComponentName(this, MusicPlayerReceiver.class);
 
@@ -208,43 +599,286 @@ public class MusicPlayerService extends Service implements OnCompletionListener,
 		PendingIntent piStop = PendingIntent.getService(this, R.id.stop, intent, PendingIntent.FLAG_UPDATE_CURRENT);
 		views.setOnClickPendingIntent(R.id.stop, piStop);
 
-		mSelfStopThread.start();
+		mPlaybackHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				mStatePublisher.addListener(mNotificationUpdater);
+				mStatePublisher.addListener(mRemoteControlUpdater);
+				mStatePublisher.addListener(mSessionWriter);
+				mStatePublisher.addListener(mPrefetchScheduler);
+				updateIdleState();
+			}
+		});
+	}
+
+	private void restoreSession() {
+		SessionSnapshot session = SessionSnapshot.load(getApplicationContext());
+		if (session == null || session.trackId == -1 || mItems != null) {
+			return;
+		}
+		mItems = session.toTrackStore();
+		mIndex = 0;
+		// the saved order applies again once the whole library is back
+		session.restoreOrder(mPlayOrder);
+		mPlayOrder.setSize(mItems.size());
+		mStateMachine.moveTo(State.Stopped, "session restored");
+		mResumeId = session.trackId;
+		mResumePosition = (int) session.position;
+		mResumeIndex = session.queueIndex;
 	}
 
 	/**
 	 * Called when we receive an Intent. When we receive an intent sent to us
-	 * via startService(), this is the method that gets called. So here we react
-	 * appropriately depending on the Intent's action, which specifies what is
-	 * being requested of us.
+	 * via startService(), this is the method that gets called. We only turn
+	 * the Intent's action into a command and queue it for the playback thread,
+	 * which reacts appropriately; nothing here blocks the main thread.
 	 */
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {
 		String action = intent.getAction();
-		if (action.equals(ACTION_PLAYPAUSE)) {
-			processTogglePlaybackRequest();
+		long now = SystemClock.elapsedRealtime();
+		PlaybackCommandQueue.Command command = null;
+		if (action.equals(ACTION_IDLE_CHECK)) {
+			mPlaybackHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					// started by the alarm alone, we are idle from now on
+					updateIdleState();
+					mIdleGovernor.check();
+				}
+			});
+		} else if (action.equals(ACTION_PLAYPAUSE)) {
+			command = new PlaybackCommandQueue.Command(PlaybackCommandQueue.PLAYPAUSE, now);
 		} else if (action.equals(ACTION_PLAY)) {
-			processPlayRequest();
+			command = new PlaybackCommandQueue.Command(PlaybackCommandQueue.PLAY, now);
 		} else if (action.equals(ACTION_PAUSE)) {
-			processPauseRequest();
+			command = new PlaybackCommandQueue.Command(PlaybackCommandQueue.PAUSE, now);
 		} else if (action.equals(ACTION_SKIP)) {
-			processSkipRequest();
+			command = new PlaybackCommandQueue.Command(PlaybackCommandQueue.SKIP, now);
 		} else if (action.equals(ACTION_STOP)) {
+			command = new PlaybackCommandQueue.Command(PlaybackCommandQueue.STOP, now);
+			command.flag = intent.getBooleanExtra("cancel", false);
+		} else if (action.equals(ACTION_REWIND)) {
+			command = new PlaybackCommandQueue.Command(PlaybackCommandQueue.REWIND, now);
+		} else if (action.equals(ACTION_PREVIOUS)) {
+			command = new PlaybackCommandQueue.Command(PlaybackCommandQueue.PREVIOUS, now);
+		} else if (action.equals(ACTION_SET_GAPLESS)) {
+			command = new PlaybackCommandQueue.Command(PlaybackCommandQueue.SET_GAPLESS, now);
+			command.flag = intent.getBooleanExtra(EXTRA_ENABLED, true);
+		} else if (action.equals(ACTION_SET_PLAYER_POOL_SIZE)) {
+			command = new PlaybackCommandQueue.Command(PlaybackCommandQueue.SET_PLAYER_POOL_SIZE, now);
+			command.arg = intent.getIntExtra(EXTRA_SIZE, DEFAULT_POOL_SIZE);
+		} else if (action.equals(ACTION_PLAY_TRACK)) {
+			command = new PlaybackCommandQueue.Command(PlaybackCommandQueue.PLAY_TRACK, now);
+			command.trackId = intent.getLongExtra(EXTRA_TRACK_ID, -1);
+		} else if (action.equals(ACTION_SET_SHUFFLE)) {
+			command = new PlaybackCommandQueue.Command(PlaybackCommandQueue.SET_SHUFFLE, now);
+			command.flag = intent.getBooleanExtra(EXTRA_ENABLED, true);
+		} else if (action.equals(ACTION_SET_REPEAT)) {
+			command = new PlaybackCommandQueue.Command(PlaybackCommandQueue.SET_REPEAT, now);
+			command.arg = intent.getIntExtra(EXTRA_MODE, PlayOrder.REPEAT_ALL);
+		} else if (action.equals(ACTION_ENQUEUE)) {
+			command = new PlaybackCommandQueue.Command(PlaybackCommandQueue.ENQUEUE, now);
+			command.trackId = intent.getLongExtra(EXTRA_TRACK_ID, -1);
+		} else if (action.equals(ACTION_PLAY_NEXT)) {
+			command = new PlaybackCommandQueue.Command(PlaybackCommandQueue.PLAY_NEXT, now);
+			command.trackId = intent.getLongExtra(EXTRA_TRACK_ID, -1);
+		} else if (action.equals(ACTION_REMOVE_QUEUED)) {
+			command = new PlaybackCommandQueue.Command(PlaybackCommandQueue.REMOVE_QUEUED, now);
+			command.arg = intent.getIntExtra(EXTRA_ENTRY, PlayQueue.NONE);
+			command.trackId = intent.getLongExtra(EXTRA_TRACK_ID, -1);
+		} else if (action.equals(ACTION_MOVE_QUEUED)) {
+			command = new PlaybackCommandQueue.Command(PlaybackCommandQueue.MOVE_QUEUED, now);
+			command.arg = intent.getIntExtra(EXTRA_ENTRY, PlayQueue.NONE);
+			command.target = intent.getIntExtra(EXTRA_AFTER, PlayQueue.NONE);
+		} else if (action.equals(ACTION_CLEAR_QUEUE)) {
+			command = new PlaybackCommandQueue.Command(PlaybackCommandQueue.CLEAR_QUEUE, now);
+		} else if (action.equals(ACTION_PLAY_STREAM)) {
+			command = new PlaybackCommandQueue.Command(PlaybackCommandQueue.PLAY_STREAM, now);
+			command.url = intent.getDataString();
+			command.title = intent.getStringExtra(EXTRA_TITLE);
+		} else if (action.equals(ACTION_SET_PREFETCH_LEAD)) {
+			command = new PlaybackCommandQueue.Command(PlaybackCommandQueue.SET_PREFETCH_LEAD, now);
+			command.arg = intent.getIntExtra(EXTRA_LEAD, DEFAULT_PREFETCH_LEAD);
+		} else if (action.equals(ACTION_SET_CROSSFADE)) {
+			command = new PlaybackCommandQueue.Command(PlaybackCommandQueue.SET_CROSSFADE, now);
+			command.arg = intent.getIntExtra(EXTRA_DURATION, 0);
+		}
+
+		if (command != null && mCommands.offer(command)) {
+			mPlaybackHandler.post(mDrainCommands);
+		}
+
+		return START_NOT_STICKY;	// Means we started the service, but don't want it to
+									// restart in case it's killed.
+	}
+
+	/** Runs on the playback thread and executes every queued command. */
+	private final Runnable mDrainCommands = new Runnable() {
+		@Override
+		public void run() {
+			PlaybackCommandQueue.Command command;
+			while ((command = mCommands.poll()) != null) {
+				mMetrics.recordSince(PlaybackMetrics.LATENCY_COMMAND, command.when);
+				runCommand(command);
+			}
+			updateIdleState();
+		}
+	};
+
+	private void runCommand(PlaybackCommandQueue.Command command) {
+		if (mItems == null && mStateMachine.get() != State.Retrieving) {
+			// the idle governor dropped the library; load it again (from the
+			// on-disk index, so this is quick) and let the command wait for it
+			startRetrieving();
+		}
+
+		switch (command.type) {
+		case PlaybackCommandQueue.PLAYPAUSE:
+			processTogglePlaybackRequest();
+			break;
+		case PlaybackCommandQueue.PLAY:
+			processPlayRequest();
+			break;
+		case PlaybackCommandQueue.PAUSE:
+			processPauseRequest();
+			break;
+		case PlaybackCommandQueue.SKIP:
+			processSkipRequest(command.count, command.when);
+			break;
+		case PlaybackCommandQueue.STOP:
 			processStopRequest();
-			if (intent.getBooleanExtra("cancel", false)) {
+			if (command.flag) {
+				// publish now, or the pending update would post it again
+				mStatePublisher.flush();
 				mNotificationManager.cancel(NOTIFICATION_ID);
+				mNotificationShown = false;
 			}
-		} else if (action.equals(ACTION_REWIND)) {
+			break;
+		case PlaybackCommandQueue.REWIND:
 			processRewindRequest();
-		} else if (action.equals(ACTION_REQUEST_STATE)) {
-			sendPlayerState();
+			break;
+		case PlaybackCommandQueue.PREVIOUS:
+			processPreviousRequest(command.count, command.when);
+			break;
+		case PlaybackCommandQueue.SEEK:
+			processSeekRequest(command.arg);
+			break;
+		case PlaybackCommandQueue.PLAY_TRACK:
+			processPlayTrackRequest(command.trackId, command.when);
+			break;
+		case PlaybackCommandQueue.SET_GAPLESS:
+			mGapless = command.flag;
+			if (mGapless) {
+				chainNextPlayer();
+			} else {
+				unchainNextPlayer();
+			}
+			break;
+		case PlaybackCommandQueue.SET_PLAYER_POOL_SIZE:
+			unchainNextPlayer();
+			mPlayerPool.setCapacity(command.arg);
+			if (mStateMachine.get() == State.Playing || mStateMachine.get() == State.Paused) {
+				warmPlayers();
+			}
+			break;
+		case PlaybackCommandQueue.SET_SHUFFLE:
+			// a fresh order every time shuffle is turned on, starting from the current song
+			mPlayOrder.setShuffle(command.flag, mIndex, System.nanoTime());
+			onPlayOrderChanged();
+			break;
+		case PlaybackCommandQueue.SET_REPEAT:
+			if (command.arg < PlayOrder.REPEAT_OFF || command.arg > PlayOrder.REPEAT_ONE) {
+				Log.w(TAG, "unknown repeat mode: " + command.arg);
+				break;
+			}
+			mPlayOrder.setRepeat(command.arg);
+			onPlayOrderChanged();
+			break;
+		case PlaybackCommandQueue.ENQUEUE:
+			if (command.trackId != -1) {
+				mQueue.enqueue(command.trackId);
+				onUpcomingChanged();
+			}
+			break;
+		case PlaybackCommandQueue.PLAY_NEXT:
+			if (command.trackId != -1) {
+				mQueue.playNext(command.trackId);
+				onUpcomingChanged();
+			}
+			break;
+		case PlaybackCommandQueue.REMOVE_QUEUED:
+			// the entry may have been played, and its slot reused, since the client looked
+			if (mQueue.contains(command.arg)
+					&& (command.trackId == -1 || mQueue.getTrackId(command.arg) == command.trackId)) {
+				mQueue.remove(command.arg);
+				onUpcomingChanged();
+			}
+			break;
+		case PlaybackCommandQueue.MOVE_QUEUED:
+			if (mQueue.move(command.arg, command.target)) {
+				onUpcomingChanged();
+			}
+			break;
+		case PlaybackCommandQueue.CLEAR_QUEUE:
+			mQueue.clear();
+			onUpcomingChanged();
+			break;
+		case PlaybackCommandQueue.PLAY_STREAM:
+			processPlayStreamRequest(command.url, command.title, command.when);
+			break;
+		case PlaybackCommandQueue.SET_PREFETCH_LEAD:
+			mPrefetchLead = Math.max(command.arg, 0);
+			schedulePrefetch(buildPlayerState());
+			break;
+		case PlaybackCommandQueue.SET_CROSSFADE:
+			// the backend changes with the next song; until then a fade only gets shorter or longer
+			mCrossfade = Math.max(command.arg, 0);
+			if (mCrossfadePlayer != null) {
+				mCrossfadePlayer.setCrossfade(mCrossfade);
+			}
+			break;
 		}
+	}
 
-		return START_NOT_STICKY;	// Means we started the service, but don't want it to
-									// restart in case it's killed.
+	/**
+	 * The song after the current one may be a different one now: drop the
+	 * chained player if it is not the next song any more, and warm again.
+	 */
+	private void onUpcomingChanged() {
+		if (mStateMachine.get() != State.Playing && mStateMachine.get() != State.Paused) {
+			return;
+		}
+		int next = mPlayOrder.getRepeat() == PlayOrder.REPEAT_ONE ? -1 : peekNext();
+		if (mChainedId != -1 && (next == -1 || mItems.getId(next) != mChainedId)) {
+			unchainNextPlayer();
+		}
+		warmPlayers();
+	}
+
+	/**
+	 * Warms for the new order, and saves it, since the published state does
+	 * not carry it and would not trigger a save.
+	 */
+	private void onPlayOrderChanged() {
+		onUpcomingChanged();
+		if (mItems != null && !mItems.isEmpty() && mStateMachine.get() != State.Retrieving
+				&& mStateMachine.get() != State.Preparing) {
+			saveSession(buildPlayerState());
+		}
 	}
 
 	private void processTogglePlaybackRequest() {
-		if (mState == State.Paused || mState == State.Stopped) {
+		if (mStateMachine.get() == State.Retrieving) {
+			// Nothing plays while the library loads (at startup, or again after
+			// the idle governor dropped it), so the press toggles whether to
+			// start once it is here. Taking it as a pause would make the first
+			// headset press after a long pause do nothing.
+			mStartPlayingAfterRetrieve = !mStartPlayingAfterRetrieve;
+			return;
+		}
+		if (mStateMachine.get() == State.Paused || mStateMachine.get() == State.Stopped
+				|| (mStateMachine.get() == State.Preparing && mIsOnlyPrepare)) {
 			processPlayRequest();
 		} else {
 			processPauseRequest();
@@ -252,8 +886,8 @@ public class MusicPlayerService extends Service implements OnCompletionListener,
 	}
 
 	private void processPlayRequest() {
-		Log.d(TAG, "processPlayRequest:" + mState);
-		if (mState == State.Retrieving) {
+		Log.d(TAG, "processPlayRequest:" + mStateMachine.get());
+		if (mStateMachine.get() == State.Retrieving) {
 			// If we are still retrieving media, just set the flag to start
 			// playing when we're
 			// ready
@@ -262,29 +896,43 @@ public class MusicPlayerService extends Service implements OnCompletionListener,
 		}
 
 		tryToGetAudioFocus();
+		if (mPlayRequestTime == 0) {
+			mPlayRequestTime = SystemClock.elapsedRealtime();
+		}
 
 		// actually play the song
 
-		if (mState == State.Stopped) {
+		if (mStateMachine.get() == State.Stopped) {
 			// If we're stopped, just go ahead to the next song and start
 			// playing
-			playNextSong(false);
-		} else if (mState == State.Paused) {
+			playFromStopped();
+		} else if (mStateMachine.get() == State.Preparing) {
+			// a song only being prepared (after a skip while stopped) should
+			// play when ready; the state machine has nothing to move yet
+			mIsOnlyPrepare = false;
+		} else if (mStateMachine.moveTo(State.Paused, State.Playing, "play") == PlaybackStateMachine.MOVED) {
 			// If we're paused, just continue playback and restore the
-			// 'foreground service' state.
-			mState = State.Playing;
+			// 'foreground service' state. Playing already, there is nothing
+			// to do.
 			configAndStartMediaPlayer();
 		}
+	}
 
-		// Tell any remote controls that our playback state is 'playing'.
-		if (mRemoteControlClient != null) {
-			mRemoteControlClient.setPlaybackState(RemoteControlClient.PLAYSTATE_PLAYING);
+	/**
+	 * Starts playing while stopped: the stream the idle governor released,
+	 * if there is one, and otherwise the current song.
+	 */
+	private void playFromStopped() {
+		if (mResumeStreamUrl != null) {
+			processPlayStreamRequest(mResumeStreamUrl, mResumeStreamTitle, 0);
+		} else {
+			playNextSong(false);
 		}
 	}
 
 	private void processPauseRequest() {
-		Log.d(TAG, "processPauseRequest:" + mState);
-		if (mState == State.Retrieving) {
+		Log.d(TAG, "processPauseRequest:" + mStateMachine.get());
+		if (mStateMachine.get() == State.Retrieving) {
 			// If we are still retrieving media, clear the flag that indicates
 			// we should start
 			// playing when we're ready
@@ -292,38 +940,176 @@ public class MusicPlayerService extends Service implements OnCompletionListener,
 			return;
 		}
 
-		if (mState == State.Playing) {
+		if (mStateMachine.moveTo(State.Playing, State.Paused, "pause") == PlaybackStateMachine.MOVED) {
 			// Pause media player and cancel the 'foreground service' state.
-			mState = State.Paused;
-			mPlayer.pause();
+			pausePlayer();
 			relaxResources(false); // while paused, we always retain the MediaPlayer do not give up audio focus
-			updateNotification();
-			sendPlayerState();
-		}
-
-		// Tell any remote controls that our playback state is 'paused'.
-		if (mRemoteControlClient != null) {
-			mRemoteControlClient.setPlaybackState(RemoteControlClient.PLAYSTATE_PAUSED);
+			mStatePublisher.invalidate();
 		}
 	}
 
 	private void processRewindRequest() {
-		if (mState == State.Playing || mState == State.Paused) {
-			mPlayer.seekTo(0);
-			updateNotification();
-			sendPlayerState();
+		processSeekRequest(0);
+	}
+
+	private void processSeekRequest(int position) {
+		if (mStateMachine.get() == State.Playing || mStateMachine.get() == State.Paused) {
+			seekPlayer(position);
+			mStatePublisher.invalidate();
 		}
 	}
 
-	private void processSkipRequest() {
-		if (mState == State.Playing || mState == State.Paused) {
+	/**
+	 * Skips ahead by the given number of songs. Skips requested in quick
+	 * succession arrive here as one command, so only the final song is prepared.
+	 *
+	 * @param count the number of songs to skip
+	 * @param requestTime when the (first) skip was requested, for latency tracking
+	 */
+	private void processSkipRequest(int count, long requestTime) {
+		mMetrics.count(PlaybackMetrics.COUNT_SKIPS, count);
+		mMetrics.event(PlaybackMetrics.EVENT_SKIP, count);
+		if (mStateMachine.get() == State.Playing || mStateMachine.get() == State.Paused) {
+			mSkipRequestTime = requestTime;
 			tryToGetAudioFocus();
-			mIndex = (mIndex + 1) % mItems.size();
+			mIndex = advance(count);
 
 			playNextSong(false);
-		} else if (mState == State.Stopped) {
-			mIndex = (mIndex + 1) % mItems.size();
+		} else if (mStateMachine.get() == State.Stopped) {
+			mSkipRequestTime = requestTime;
+			mIndex = advance(count);
+			playNextSong(true);
+		}
+	}
+
+	/**
+	 * Plays the song with the given _ID from the start, whatever is playing
+	 * now. If it is the current song, it only makes sure it plays.
+	 *
+	 * @param trackId the _ID of the song
+	 * @param requestTime when the song was picked, for latency tracking
+	 */
+	private void processPlayTrackRequest(long trackId, long requestTime) {
+		if (mStateMachine.get() == State.Retrieving) {
+			// locate it and play once the library is here
+			mResumeId = trackId;
+			mResumePosition = 0;
+			mResumeIndex = -1;
+			mResumeStreamUrl = null;
+			mResumeStreamTitle = null;
+			mStartPlayingAfterRetrieve = true;
+			return;
+		}
+		int index = mItems.indexOf(trackId);
+		if (index < 0) {
+			Log.w(TAG, "no such track: " + trackId);
+			return;
+		}
+		if (index == mIndex && mStateMachine.get() != State.Stopped) {
+			// already loaded; a song only being prepared plays when ready
+			processPlayRequest();
+			return;
+		}
+		// in shuffle, a lap of the library starts from the picked song
+		mPlayOrder.startAt(index, mIndex);
+		mIndex = index;
+		mOrderIndex = -1;
+		mSkipRequestTime = requestTime;
+		tryToGetAudioFocus();
+		playNextSong(false);
+	}
+
+	/**
+	 * Plays a song from the network, whatever is playing now. The song is not
+	 * part of the library: when it completes, the library goes on after the
+	 * current song.
+	 *
+	 * @param url the http or https URL of the song
+	 * @param title the title to show, or null for the URL
+	 * @param requestTime when the song was picked, for latency tracking
+	 */
+	private void processPlayStreamRequest(String url, String title, long requestTime) {
+		if (url == null || !(url.startsWith("http://") || url.startsWith("https://"))) {
+			Log.w(TAG, "not a stream: " + url);
+			return;
+		}
+		if (mStateMachine.get() == State.Retrieving) {
+			// play it once the library is here, so retrieving does not stop it
+			mPendingStreamUrl = url;
+			mPendingStreamTitle = title;
+			return;
+		}
+		if (mStreamProxy == null) {
+			mStreamProxy = new StreamProxy(new SegmentCache(new File(getCacheDir(), "streams"), STREAM_CACHE_BYTES));
+		}
+		mSkipRequestTime = requestTime;
+		tryToGetAudioFocus();
+		mIsOnlyPrepare = false;
+		mStateMachine.moveTo(State.Stopped, "stream");
+		relaxResources(false);
+		releaseCrossfadePlayer();
+		unchainNextPlayer();
+		if (mPrepareStartTime != 0) {
+			mMetrics.count(PlaybackMetrics.COUNT_WASTED_PREPARES);
+			mPrepareStartTime = 0;
+		}
+		try {
+			String source = mStreamProxy.register(url);
+			createMediaPlayerIfNeeded();
+			mPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+			mPlayer.setDataSource(source);
+		} catch (IOException e) {
+			Log.e(TAG, "IOException playing stream: " + e.getMessage());
+			processStopRequest(true);
+			return;
+		}
+		mPlayerId = -1;
+		mStreamUrl = url;
+		mStreamTitle = title != null ? title : url;
+
+		mStateMachine.moveTo(State.Preparing, "prepare stream");
+		mStatePublisher.invalidate();
+		registerRemoteControl();
+
+		mMetrics.count(PlaybackMetrics.COUNT_PREPARES);
+		mPrepareStartTime = SystemClock.elapsedRealtime();
+		mPlayer.prepareAsync();
+	}
+
+	/**
+	 * Goes back by the given number of presses. The first press only rewinds
+	 * if the song has played past PREVIOUS_REWIND_THRESHOLD; every other
+	 * press goes back one song.
+	 *
+	 * @param count the number of presses
+	 * @param requestTime when the (first) press was requested, for latency tracking
+	 */
+	private void processPreviousRequest(int count, long requestTime) {
+		if ((mStateMachine.get() != State.Playing && mStateMachine.get() != State.Paused && mStateMachine.get() != State.Stopped) || mItems.isEmpty()) {
+			return;
+		}
+		if (mStateMachine.get() != State.Stopped && getPlayerPosition() > PREVIOUS_REWIND_THRESHOLD) {
+			count--;
+			if (count == 0) {
+				processRewindRequest();
+				return;
+			}
+		}
+		if (mOrderIndex >= 0) {
+			// the first press leaves the queued songs for the song the order was at
+			mIndex = mPlayOrder.skip(mOrderIndex, 1 - count);
+			mOrderIndex = -1;
+		} else {
+			mIndex = mPlayOrder.skip(mIndex, -count);
+		}
+		mMetrics.count(PlaybackMetrics.COUNT_SKIPS, count);
+		mMetrics.event(PlaybackMetrics.EVENT_SKIP, -count);
+		mSkipRequestTime = requestTime;
+		if (mStateMachine.get() == State.Stopped) {
 			playNextSong(true);
+		} else {
+			tryToGetAudioFocus();
+			playNextSong(false);
 		}
 	}
 
@@ -332,20 +1118,13 @@ public class MusicPlayerService extends Service implements OnCompletionListener,
 	}
 
 	private void processStopRequest(boolean force) {
-		if (mState == State.Playing || mState == State.Paused || force) {
-			mState = State.Stopped;
+		if (mStateMachine.get() == State.Playing || mStateMachine.get() == State.Paused || force) {
+			mStateMachine.moveTo(State.Stopped, force ? "forced stop" : "stop");
 
 			// let go of all resources...
 			relaxResources(true);
 			giveUpAudioFocus();
-
-			// Tell any remote controls that our playback state is 'paused'.
-			if (mRemoteControlClient != null) {
-				mRemoteControlClient.setPlaybackState(RemoteControlClient.PLAYSTATE_STOPPED);
-			}
-
-			updateNotification();
-			sendPlayerState();
+			mStatePublisher.invalidate();
 		}
 	}
 
@@ -361,12 +1140,105 @@ public class MusicPlayerService extends Service implements OnCompletionListener,
 		stopForeground(true);
 
 		// stop and release the Media Player, if it's available
+		if (releaseMediaPlayer) {
+			unchainNextPlayer();
+			mPlayerPool.clear();
+		}
 		if (releaseMediaPlayer && mPlayer != null) {
 			mPlayer.reset();
 			mPlayer.release();
 			mPlayer = null;
+			mPlayerId = -1;
+			mPlayerPrepared = false;
+			// a stream is gone with its player; the library song takes its place
+			mStreamUrl = null;
+			mStreamTitle = null;
+		}
+		if (releaseMediaPlayer) {
+			releaseCrossfadePlayer();
+		}
+	}
+
+	private void releaseCrossfadePlayer() {
+		if (mCrossfadePlayer != null) {
+			mCrossfadePlayer.release();
+			mCrossfadePlayer = null;
+			mPlayerId = -1;
+		}
+	}
+
+	/**
+	 * Tells the idle governor whether we are playing. It only counts time
+	 * while nothing is playing or being prepared.
+	 */
+	private void updateIdleState() {
+		if (mStateMachine.get() == State.Playing || mStateMachine.get() == State.Preparing
+				|| (mStateMachine.get() == State.Retrieving && mStartPlayingAfterRetrieve)) {
+			mIdleGovernor.onActive();
+		} else {
+			mIdleGovernor.onIdle();
+		}
+	}
+
+	@Override
+	public void onIdleTier(int tier) {
+		Log.d(TAG, "onIdleTier:" + tier + " state:" + mStateMachine.get());
+		switch (tier) {
+		case IdleGovernor.TIER_NOTIFICATION:
+			// the players hold their wake locks only while playing, so the
+			// notification is all that is left to give up here
+			stopForeground(true);
+			mStatePublisher.flush();
+			mNotificationManager.cancel(NOTIFICATION_ID);
+			mNotificationShown = false;
+			break;
+		case IdleGovernor.TIER_PLAYER:
+			if ((mPlayer != null || mCrossfadePlayer != null) && mStateMachine.get() == State.Paused) {
+				mResumeId = mPlayerId;
+				mResumePosition = getPlayerPosition();
+				mResumeStreamUrl = mStreamUrl;
+				mResumeStreamTitle = mStreamTitle;
+			}
+			if (mStateMachine.moveTo(State.Paused, State.Stopped, "idle") == PlaybackStateMachine.MOVED) {
+				mStatePublisher.invalidate();
+			}
+			relaxResources(true);
+			giveUpAudioFocus();
+			break;
+		case IdleGovernor.TIER_CACHES:
+			if (mItems != null && !mItems.isEmpty() && mResumeId == -1 && mResumeStreamUrl == null) {
+				mResumeId = mItems.getId(mIndex);
+				mResumePosition = 0;
+			}
+			if (mStateMachine.get() != State.Retrieving) {
+				mItems = null;
+				mMainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						mLibrary.release();
+					}
+				});
+			}
+			mDummyAlbumArt = null;
+			mAlbumArtLoader.clearMemory();
+			break;
+		case IdleGovernor.TIER_STOP:
+			stopSelf();
+			break;
 		}
-		mRelaxTime = System.currentTimeMillis();
+	}
+
+	/** Starts (re)loading the library; MusicLibrary must be used from the main thread. */
+	private void startRetrieving() {
+		mStateMachine.moveTo(State.Retrieving, "retrieve");
+		mStartPlayingAfterRetrieve = false;
+		mLibraryRequestTime = SystemClock.elapsedRealtime();
+		mMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				mLibrary.load(MusicPlayerService.this);
+			}
+		});
 	}
 
 	private void giveUpAudioFocus() {
@@ -388,30 +1260,105 @@ public class MusicPlayerService extends Service implements OnCompletionListener,
 	private void configAndStartMediaPlayer() {
 		if (mAudioFocus == AudioFocus.NoFocusNoDuck) {
 			// If we don't have audio focus and can't duck, we have to pause,
-			// even if mState
+			// even if the state
 			// is State.Playing. But we stay in the Playing state so that we
 			// know we have to resume
 			// playback once we get the focus back.
-			if (mPlayer.isPlaying()) {
-				mPlayer.pause();
-				mState = State.Paused;
-				updateNotification();
-				sendPlayerState();
+			if (isPlayerPlaying()) {
+				pausePlayer();
+				mStateMachine.moveTo(State.Playing, State.Paused, "focus lost");
+				mStatePublisher.invalidate();
 			}
 			return;
 		} else if (mAudioFocus == AudioFocus.NoFocusCanDuck) {
-			mPlayer.setVolume(DUCK_VOLUME, DUCK_VOLUME); // we'll be relatively quiet
+			setPlayerVolume(DUCK_VOLUME); // we'll be relatively quiet
 		} else {
-			mPlayer.setVolume(1.0f, 1.0f); // we can be loud
+			setPlayerVolume(1.0f); // we can be loud
 		}
 
-		if (!mPlayer.isPlaying()) {
+		if (!isPlayerPlaying()) {
+			startPlayer();
+			recordStart();
+			mStatePublisher.invalidate();
+		}
+	}
+
+	// The current song is in mCrossfadePlayer when it is set, and in mPlayer otherwise.
+	private boolean isPlayerPlaying() {
+		if (mCrossfadePlayer != null) {
+			return mCrossfadePlayer.isPlaying();
+		}
+		return mPlayer != null && mPlayer.isPlaying();
+	}
+
+	private void startPlayer() {
+		if (mCrossfadePlayer != null) {
+			mCrossfadePlayer.start();
+		} else {
 			mPlayer.start();
-			updateNotification();
-			sendPlayerState();
 		}
 	}
 
+	private void pausePlayer() {
+		if (mCrossfadePlayer != null) {
+			mCrossfadePlayer.pause();
+		} else {
+			mPlayer.pause();
+		}
+	}
+
+	private void seekPlayer(int position) {
+		if (mCrossfadePlayer != null) {
+			mCrossfadePlayer.seekTo(position);
+		} else {
+			mPlayer.seekTo(position);
+		}
+	}
+
+	private int getPlayerPosition() {
+		return mCrossfadePlayer != null ? mCrossfadePlayer.getCurrentPosition() : mPlayer.getCurrentPosition();
+	}
+
+	private void setPlayerVolume(float volume) {
+		if (mCrossfadePlayer != null) {
+			mCrossfadePlayer.setVolume(volume);
+		} else {
+			mPlayer.setVolume(volume, volume);
+		}
+	}
+
+	private void recordStart() {
+		mMetrics.count(PlaybackMetrics.COUNT_STARTS);
+		mMetrics.event(PlaybackMetrics.EVENT_START, mPlayerId);
+		mMetrics.recordSince(PlaybackMetrics.LATENCY_FIRST_AUDIO, mPlayRequestTime);
+		mMetrics.recordSince(PlaybackMetrics.LATENCY_SKIP, mSkipRequestTime);
+		mPlayRequestTime = 0;
+		mSkipRequestTime = 0;
+	}
+
+	/** Returns the average skip-to-audio latency in milliseconds. */
+	long getAverageSkipLatency() {
+		return mMetrics.getAverageLatency(PlaybackMetrics.LATENCY_SKIP);
+	}
+
+	/** Returns the latest skip-to-audio latency in milliseconds. */
+	long getLastSkipLatency() {
+		return mMetrics.getLastLatency(PlaybackMetrics.LATENCY_SKIP);
+	}
+
+	PlaybackMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	/**
+	 * The songs queued up to play next. It may be read from any thread; edit
+	 * it through the ACTION_*_QUEUED intents, so that the playback thread
+	 * sees every change.
+	 */
+	PlayQueue getPlayQueue() {
+		return mQueue;
+	}
+
 	private void tryToGetAudioFocus() {
 		if (mAudioFocus != AudioFocus.Focused && mAudioFocusHelper != null && mAudioFocusHelper.requestFocus()) {
 			mAudioFocus = AudioFocus.Focused;
@@ -419,64 +1366,87 @@ public class MusicPlayerService extends Service implements OnCompletionListener,
 	}
 
 	/**
-	 * Starts playing the next song. If manualUrl is null, the next song will be
-	 * randomly selected from our Media Retriever (that is, it will be a random
-	 * song in the user's device). If manualUrl is non-null, then it specifies
-	 * the URL or path to the song that will be played next.
+	 * Starts playing the song at mIndex. Callers pick the song beforehand,
+	 * through mPlayOrder when it follows the shuffle and repeat modes.
 	 */
 	private void playNextSong(boolean isOnlyPrepare) {
+		if (!isOnlyPrepare && mPlayRequestTime == 0 && mSkipRequestTime == 0) {
+			mPlayRequestTime = SystemClock.elapsedRealtime();
+		}
+		boolean wasPrepared = mStateMachine.get() == State.Playing || mStateMachine.get() == State.Paused;
 		mIsOnlyPrepare = isOnlyPrepare;
-		mState = State.Stopped;
+		mStateMachine.moveTo(State.Stopped, "next song");
+		mStreamUrl = null;
+		mStreamTitle = null;
+		// a library song was asked for, so a released stream is not coming back
+		mResumeStreamUrl = null;
+		mResumeStreamTitle = null;
 		relaxResources(false); // release everything except MediaPlayer
+		unchainNextPlayer(); // the following song may have changed
+		if (mPrepareStartTime != 0) {
+			// the previous song never got past preparing
+			mMetrics.count(PlaybackMetrics.COUNT_WASTED_PREPARES);
+			mPrepareStartTime = 0;
+		}
 
 		try {
-			Item playingItem = mItems.get(mIndex);
-			if (playingItem == null) {
-				Toast.makeText(this, "No available music to play. Place some music on your external storage device (e.g. your SD card) and try again.", Toast.LENGTH_LONG).show();
+			if (mItems.isEmpty()) {
+				showToast("No available music to play. Place some music on your external storage device (e.g. your SD card) and try again.", Toast.LENGTH_LONG);
 				processStopRequest(true); // stop everything!
 				return;
 			}
-
-			// set the source of the media player a a content URI
-			createMediaPlayerIfNeeded();
-			mPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-			mPlayer.setDataSource(getApplicationContext(), playingItem.getURI());
-
-			mState = State.Preparing;
-
-			// Use the media button APIs (if available) to register ourselves
-			// for media button events
-			mAudioManager.registerMediaButtonEventReceiver(mMediaButtonReceiverComponent);
-
-			// Use the remote control APIs (if available) to set the playback state
-
-			if (mRemoteControlClient == null) {
-				Intent intent = new Intent(Intent.ACTION_MEDIA_BUTTON);
-				intent.setComponent(mMediaButtonReceiverComponent);
-				mRemoteControlClient = new RemoteControlClient(PendingIntent.getBroadcast(this, 0 , intent, 0));
-				mAudioManager.registerRemoteControlClient(mRemoteControlClient);
+			Item playingItem = mItems.get(mIndex);
+			if (mCrossfade > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+				prepareCrossfadeSong(playingItem, wasPrepared);
+				return;
 			}
+			releaseCrossfadePlayer();
+
+			// A song prepared while stopped (by a skip, for instance) is still
+			// prepared; preparing it again would only waste the decoder setup.
+			boolean reuse = !wasPrepared && mPlayer != null && mPlayerPrepared && mPlayerId == playingItem.id;
+			MediaPlayer warm = reuse ? null : mPlayerPool.take(playingItem.id);
+			if (reuse) {
+				mStateMachine.recordNoop("re-prepare " + playingItem.id);
+				mMetrics.count(PlaybackMetrics.COUNT_REUSED);
+			} else if (warm != null) {
+				// The song is already prepared in the pool. Keep the current
+				// player warm for going back, and just swap.
+				if (mPlayer != null && wasPrepared && mPlayerId != -1) {
+					mPlayer.pause();
+					mPlayer.seekTo(0);
+					mPlayerPool.put(mPlayerId, mPlayer);
+				} else if (mPlayer != null) {
+					mPlayer.release();
+				}
+				mPlayer = warm;
+				adoptPlayer(mPlayer);
+				mMetrics.count(PlaybackMetrics.COUNT_WARM_STARTS);
+			} else {
+				// set the source of the media player a a content URI
+				createMediaPlayerIfNeeded();
+				mPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+				mPlayer.setDataSource(getApplicationContext(), playingItem.getURI());
+			}
+			mPlayerId = playingItem.id;
 
-			mRemoteControlClient.setPlaybackState(RemoteControlClient.PLAYSTATE_PLAYING);
+			mStateMachine.moveTo(State.Preparing, "prepare " + playingItem.id);
+			mStatePublisher.invalidate();
 
-			mRemoteControlClient.setTransportControlFlags(RemoteControlClient.FLAG_KEY_MEDIA_PLAY
-							| RemoteControlClient.FLAG_KEY_MEDIA_PAUSE
-							| RemoteControlClient.FLAG_KEY_MEDIA_NEXT
-							| RemoteControlClient.FLAG_KEY_MEDIA_STOP);
+			registerRemoteControl();
 
-			// Update the remote controls
-			mRemoteControlClient.editMetadata(true)
-					.putString(MediaMetadataRetriever.METADATA_KEY_ARTIST, playingItem.artist)
-					.putString(MediaMetadataRetriever.METADATA_KEY_ALBUM, playingItem.album)
-					.putString(MediaMetadataRetriever.METADATA_KEY_TITLE, playingItem.title)
-					.putLong(MediaMetadataRetriever.METADATA_KEY_DURATION, playingItem.duration)
-					// TODO: fetch real item artwork
-					.putBitmap(RemoteControlClient.MetadataEditor.BITMAP_KEY_ARTWORK, mDummyAlbumArt).apply();
+			if (warm != null || reuse) {
+				onPrepared(mPlayer);
+				return;
+			}
 
 			// starts preparing the media player in the background.
 			// When it's done, it will call our OnPreparedListener
 			// (that is, the onPrepared() method on this class, since we set the listener to 'this').
 			// Until the media player is prepared, we *cannot* call start() on it!
+			mMetrics.count(PlaybackMetrics.COUNT_PREPARES);
+			mMetrics.event(PlaybackMetrics.EVENT_PREPARE, playingItem.id);
+			mPrepareStartTime = SystemClock.elapsedRealtime();
 			mPlayer.prepareAsync();
 		} catch (IOException e) {
 			Log.e("MusicService", "IOException playing next song: " + e.getMessage());
@@ -484,51 +1454,370 @@ public class MusicPlayerService extends Service implements OnCompletionListener,
 		}
 	}
 
+	/**
+	 * Loads the song into mCrossfadePlayer. The decoder opens on the player's
+	 * own thread, and its onPrepared finishes preparing like MediaPlayer's.
+	 */
+	private void prepareCrossfadeSong(Item item, boolean wasPrepared) {
+		if (mPlayer != null) {
+			mPlayer.release();
+			mPlayer = null;
+			mPlayerPrepared = false;
+		}
+		mPlayerPool.clear();
+		boolean reuse = !wasPrepared && mCrossfadePlayer != null && mPlayerId == item.id;
+		if (mCrossfadePlayer == null) {
+			mCrossfadePlayer = new CrossfadePlayer(getApplicationContext(), mCrossfadeListener);
+		}
+		mCrossfadePlayer.setCrossfade(mCrossfade);
+		mPlayerId = item.id;
+
+		mStateMachine.moveTo(State.Preparing, "decode " + item.id);
+		mStatePublisher.invalidate();
+		registerRemoteControl();
+
+		if (reuse) {
+			mStateMachine.recordNoop("re-decode " + item.id);
+			mMetrics.count(PlaybackMetrics.COUNT_REUSED);
+			onSongPrepared();
+			return;
+		}
+		mMetrics.count(PlaybackMetrics.COUNT_PREPARES);
+		mMetrics.event(PlaybackMetrics.EVENT_PREPARE, item.id);
+		mPrepareStartTime = SystemClock.elapsedRealtime();
+		mCrossfadePlayer.setDataSource(item.id, item.getURI());
+	}
+
+	/**
+	 * Follows mCrossfadePlayer, which calls from its audio and opening
+	 * threads. Events about a song that is not the current one any more are
+	 * dropped.
+	 */
+	private final CrossfadePlayer.Listener mCrossfadeListener = new CrossfadePlayer.Listener() {
+		@Override
+		public void onPrepared(final long id) {
+			mPlaybackHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					if (mCrossfadePlayer != null && id == mPlayerId && mStateMachine.get() == State.Preparing) {
+						onSongPrepared();
+					}
+				}
+			});
+		}
+
+		@Override
+		public void onNextStarted(final long previousId, final long id) {
+			mPlaybackHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					if (mCrossfadePlayer != null && previousId == mPlayerId) {
+						onCrossfadeNextStarted(id);
+					}
+				}
+			});
+		}
+
+		@Override
+		public void onCompletion(final long id) {
+			mPlaybackHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					if (mCrossfadePlayer != null && id == mPlayerId) {
+						onCrossfadeCompletion();
+					}
+				}
+			});
+		}
+
+		@Override
+		public void onError(final long id, final String message) {
+			mPlaybackHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					if (mCrossfadePlayer != null && id == mPlayerId) {
+						Log.e(TAG, "crossfade playback failed: " + message);
+						MusicPlayerService.this.onError(null, MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
+					}
+				}
+			});
+		}
+	};
+
+	/**
+	 * The following song has started fading in. Like a chained completion,
+	 * only the metadata changes; the song after it is opened to fade into.
+	 */
+	private void onCrossfadeNextStarted(long id) {
+		// move the queue or the order on too; the song is the one they gave
+		takeNext();
+		mIndex = Math.max(mItems.indexOf(id), 0);
+		mPlayerId = id;
+		mStatePublisher.invalidate();
+		warmPlayers();
+	}
+
+	private void onCrossfadeCompletion() {
+		if (mPlayOrder.getRepeat() == PlayOrder.REPEAT_ONE) {
+			mCrossfadePlayer.seekTo(0);
+			configAndStartMediaPlayer();
+			mStatePublisher.invalidate();
+			return;
+		}
+		playFollowingSong();
+	}
+
+	/**
+	 * Registers for media button events and, through the remote control
+	 * APIs, for showing the playback state (which, with the metadata, follows
+	 * through mStatePublisher).
+	 */
+	private void registerRemoteControl() {
+		// Use the media button APIs (if available) to register ourselves
+		// for media button events
+		mAudioManager.registerMediaButtonEventReceiver(mMediaButtonReceiverComponent);
+
+		// Use the remote control APIs (if available) to set the playback state
+		if (mRemoteControlClient == null) {
+			Intent intent = new Intent(Intent.ACTION_MEDIA_BUTTON);
+			intent.setComponent(mMediaButtonReceiverComponent);
+			mRemoteControlClient = new RemoteControlClient(PendingIntent.getBroadcast(this, 0 , intent, 0));
+			mAudioManager.registerRemoteControlClient(mRemoteControlClient);
+			mRemoteControlClient.setTransportControlFlags(RemoteControlClient.FLAG_KEY_MEDIA_PLAY
+							| RemoteControlClient.FLAG_KEY_MEDIA_PAUSE
+							| RemoteControlClient.FLAG_KEY_MEDIA_NEXT
+							| RemoteControlClient.FLAG_KEY_MEDIA_PREVIOUS
+							| RemoteControlClient.FLAG_KEY_MEDIA_STOP);
+			mRemoteControlStale = true;
+		}
+	}
+
+	/**
+	 * Pushes the metadata of the given song to the remote controls. The
+	 * artwork is only taken if it is already in memory; otherwise the dummy
+	 * art goes out now and mAlbumArtListener replaces it once loaded.
+	 */
+	private void updateRemoteControlMetadata(PlayerState state) {
+		mRemoteControlClient.editMetadata(true)
+				.putString(MediaMetadataRetriever.METADATA_KEY_ARTIST, state.getArtist())
+				.putString(MediaMetadataRetriever.METADATA_KEY_ALBUM, state.getAlbum())
+				.putString(MediaMetadataRetriever.METADATA_KEY_TITLE, state.getTitle())
+				.putLong(MediaMetadataRetriever.METADATA_KEY_DURATION, state.getDuration())
+				.putBitmap(RemoteControlClient.MetadataEditor.BITMAP_KEY_ARTWORK, copyForRemoteControl(getAlbumArt(state.getAlbumId())))
+				.apply();
+	}
+
+	private Bitmap getAlbumArt(long albumId) {
+		Bitmap art = albumId < 0 ? null : mAlbumArtLoader.peek(albumId);
+		if (art != null) {
+			return art;
+		}
+		if (albumId >= 0 && !mAlbumArtLoader.isMissing(albumId)) {
+			mAlbumArtLoader.load(albumId);
+		}
+		if (mDummyAlbumArt == null) {
+			mDummyAlbumArt = BitmapFactory.decodeResource(getResources(), R.drawable.dummy_album_art);
+		}
+		return mDummyAlbumArt;
+	}
+
+	/**
+	 * The remote control client owns the artwork it is given: up to SDK level
+	 * 17, MetadataEditor.apply() recycles the previous one. The bitmaps of the
+	 * artwork cache and the dummy art are shared, so it only gets copies.
+	 */
+	private static Bitmap copyForRemoteControl(Bitmap bitmap) {
+		if (bitmap == null) {
+			return null;
+		}
+		Bitmap.Config config = bitmap.getConfig();
+		return bitmap.copy(config != null ? config : Bitmap.Config.ARGB_8888, false);
+	}
+
+	/** Swaps in the real artwork if it arrives for the song on the remote controls. */
+	private final AlbumArtLoader.Listener mAlbumArtListener = new AlbumArtLoader.Listener() {
+		@Override
+		public void onAlbumArtLoaded(final long albumId, final Bitmap bitmap) {
+			if (bitmap == null) {
+				return;
+			}
+			mPlaybackHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					PlayerState state = mStatePublisher.getPublished();
+					if (mRemoteControlClient != null && state != null && state.getAlbumId() == albumId) {
+						mRemoteControlClient.editMetadata(false)
+								.putBitmap(RemoteControlClient.MetadataEditor.BITMAP_KEY_ARTWORK, copyForRemoteControl(bitmap))
+								.apply();
+					}
+				}
+			});
+		}
+	};
+
+	/** Keeps the remote control client in step with the published state. */
+	private final PlayerState.Listener mRemoteControlUpdater = new PlayerState.Listener() {
+		@Override
+		public void onPlayerStateChanged(PlayerState state, int changes) {
+			if (mRemoteControlClient == null) {
+				return;
+			}
+			if (mRemoteControlStale) {
+				changes = PlayerState.CHANGED_ALL;
+				mRemoteControlStale = false;
+			}
+			if ((changes & PlayerState.CHANGED_STATE) != 0) {
+				mRemoteControlClient.setPlaybackState(toRemoteControlState(state.getState()));
+			}
+			if ((changes & PlayerState.CHANGED_TRACK) != 0 && (state.getTrackId() != -1 || state.getTitle() != null)) {
+				updateRemoteControlMetadata(state);
+			}
+		}
+	};
+
+	private static int toRemoteControlState(State state) {
+		switch (state) {
+		case Playing:
+			return RemoteControlClient.PLAYSTATE_PLAYING;
+		case Preparing:
+			return RemoteControlClient.PLAYSTATE_BUFFERING;
+		case Paused:
+			return RemoteControlClient.PLAYSTATE_PAUSED;
+		default:
+			return RemoteControlClient.PLAYSTATE_STOPPED;
+		}
+	}
+
 	/** Called when media player is done playing current song. */
 	public void onCompletion(MediaPlayer player) {
+		MediaPlayer next = player == mPlayer && mChainedId != -1 ? mPlayerPool.take(mChainedId) : null;
+		if (next != null) {
+			// The next player has already taken over without a gap. Swap roles
+			// and only refresh the metadata; there is nothing to prepare.
+			MediaPlayer finished = mPlayer;
+			long finishedId = mPlayerId;
+			mPlayer = next;
+			mPlayerId = mChainedId;
+			mPlayerPrepared = true;
+			// move the queue or the order on too; the chained song is the one they give
+			takeNext();
+			mIndex = Math.max(mItems.indexOf(mChainedId), 0);
+			mChainedId = -1;
+			adoptPlayer(mPlayer);
+
+			// the finished song stays prepared as the previous one
+			setNextPlayer(finished, null);
+			finished.seekTo(0);
+			mPlayerPool.put(finishedId, finished);
+
+			configAndStartMediaPlayer();
+			mStatePublisher.invalidate();
+			warmPlayers();
+			return;
+		}
+
+		if (player == mPlayer && mPlayOrder.getRepeat() == PlayOrder.REPEAT_ONE) {
+			// the player is still prepared; play it again from the start
+			mPlayer.seekTo(0);
+			configAndStartMediaPlayer();
+			mStatePublisher.invalidate();
+			return;
+		}
+
 		// The media player finished playing the current song, so we go ahead
 		// and start the next.
-		mIndex = (mIndex + 1) % mItems.size();
+		playFollowingSong();
+	}
+
+	/** Starts the song after the one that completed, or stops after the last one. */
+	private void playFollowingSong() {
+		int nextIndex = takeNext();
+		if (nextIndex == -1) {
+			// the last song without repeat: stop, ready to start over from the top
+			mIndex = mPlayOrder.skip(orderCursor(), 1);
+			mOrderIndex = -1;
+			processStopRequest();
+			return;
+		}
+		mIndex = nextIndex;
 		playNextSong(false);
 	}
 
 	/** Called when media player is done preparing. */
 	public void onPrepared(MediaPlayer player) {
+		onSongPrepared();
+	}
+
+	private void onSongPrepared() {
+		if (mPrepareStartTime != 0) {
+			mMetrics.recordSince(PlaybackMetrics.LATENCY_PREPARE, mPrepareStartTime);
+			mMetrics.event(PlaybackMetrics.EVENT_PREPARED, mPlayerId);
+			mPrepareStartTime = 0;
+		}
+		boolean resumed = mResumeStreamUrl != null ? mResumeStreamUrl.equals(mStreamUrl)
+				: mResumeId != -1 && mPlayerId == mResumeId;
+		if (mResumePosition > 0 && resumed) {
+			// pick up where we were before the idle governor released the player
+			seekPlayer(mResumePosition);
+		}
+		mResumeId = -1;
+		mResumePosition = 0;
+		mResumeStreamUrl = null;
+		mResumeStreamTitle = null;
+
+		mPlayerPrepared = true;
+
 		// The media player is done preparing. That means we can start playing!
-		if (mIsOnlyPrepare) {
-			mState = State.Stopped;
-		} else {
-			mState = State.Playing;
+		// (unless it was stopped in the meantime)
+		State next = mIsOnlyPrepare ? State.Stopped : State.Playing;
+		if (mStateMachine.moveTo(State.Preparing, next, "prepared") != PlaybackStateMachine.MOVED) {
+			return;
 		}
-		updateNotification();
-		sendPlayerState();
+		mStatePublisher.invalidate();
 		if (!mIsOnlyPrepare) {
 			configAndStartMediaPlayer();
 		}
+		warmPlayers();
+		updateIdleState();
 	}
 
-	/** Updates the notification. */
-	private void updateNotification() {
-		boolean playing = mState == State.Playing;
+	/**
+	 * Updates the notification with the published state. Only the views of
+	 * the changed fields are touched, and nothing is posted before there is
+	 * a song to show.
+	 */
+	private final PlayerState.Listener mNotificationUpdater = new PlayerState.Listener() {
+		@Override
+		public void onPlayerStateChanged(PlayerState state, int changes) {
+			if (!mNotificationShown) {
+				if ((state.getTrackId() == -1 && state.getTitle() == null) || state.getState() == State.Retrieving
+						|| state.getState() == State.Stopped) {
+					return;
+				}
+				changes = PlayerState.CHANGED_ALL;
+			}
+			boolean playing = state.isPlaying();
 
-		mNotification.icon = playing ? R.drawable.playing : R.drawable.pausing;
-		int playPauseRes = playing ? R.drawable.media_pause_s : R.drawable.media_play_s;
-		mNotification.contentView.setImageViewResource(R.id.playpause, playPauseRes);
+			if ((changes & PlayerState.CHANGED_STATE) != 0) {
+				mNotification.icon = playing ? R.drawable.playing : R.drawable.pausing;
+				int playPauseRes = playing ? R.drawable.media_pause_s : R.drawable.media_play_s;
+				mNotification.contentView.setImageViewResource(R.id.playpause, playPauseRes);
+			}
+			if ((changes & PlayerState.CHANGED_TRACK) != 0) {
+				mNotification.contentView.setTextViewText(R.id.artist, state.getArtist());
+				mNotification.contentView.setTextViewText(R.id.album, state.getAlbum());
+				mNotification.contentView.setTextViewText(R.id.title, state.getTitle());
+			}
+			if ((changes & (PlayerState.CHANGED_STATE | PlayerState.CHANGED_POSITION)) != 0) {
+				long now = SystemClock.elapsedRealtime();
+				mNotification.contentView.setChronometer(R.id.chronometer, now - state.getPositionAt(now), null, playing);
+			}
 
-		Item playingItem = mItems.get(mIndex);
-		mNotification.contentView.setTextViewText(R.id.artist, playingItem.artist);
-		mNotification.contentView.setTextViewText(R.id.album, playingItem.album);
-		mNotification.contentView.setTextViewText(R.id.title, playingItem.title);
-		long current;
-		if (mState == State.Stopped) {
-			current = 0;
-		} else {
-			current = mPlayer.getCurrentPosition();
+			mNotificationManager.notify(NOTIFICATION_ID, mNotification);
+			mNotificationShown = true;
+			mMetrics.count(PlaybackMetrics.COUNT_NOTIFICATION_UPDATES);
 		}
-		mNotification.contentView.setChronometer(R.id.chronometer, SystemClock.elapsedRealtime() - current, null, playing);
-
-		mNotificationManager.notify(NOTIFICATION_ID, mNotification);
-	}
+	};
 
 	/**
 	 * Called when there's an error playing media. When this happens, the media
@@ -536,76 +1825,450 @@ public class MusicPlayerService extends Service implements OnCompletionListener,
 	 * reset the media player.
 	 */
 	public boolean onError(MediaPlayer mp, int what, int extra) {
-		Toast.makeText(getApplicationContext(), "Media player error! Resetting.", Toast.LENGTH_SHORT).show();
+		showToast("Media player error! Resetting.", Toast.LENGTH_SHORT);
 		Log.e(TAG, "Error: what=" + String.valueOf(what) + ", extra=" + String.valueOf(extra));
+		mMetrics.count(PlaybackMetrics.COUNT_ERRORS);
+		mMetrics.event(PlaybackMetrics.EVENT_ERROR, what);
+		mPrepareStartTime = 0;
+		mPlayRequestTime = 0;
+		mSkipRequestTime = 0;
 
-		mState = State.Stopped;
+		mStateMachine.moveTo(State.Stopped, "error " + what + "/" + extra);
 		relaxResources(true);
 		giveUpAudioFocus();
+		mStatePublisher.invalidate();
+		updateIdleState();
 		return true; // true indicates we handled the error
 	}
 
 	public void onGainedAudioFocus() {
-		Toast.makeText(getApplicationContext(), "gained audio focus.", Toast.LENGTH_SHORT).show();
+		mPlaybackHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				handleGainedAudioFocus();
+			}
+		});
+	}
+
+	private void handleGainedAudioFocus() {
+		showToast("gained audio focus.", Toast.LENGTH_SHORT);
 		mAudioFocus = AudioFocus.Focused;
 
 		// restart media player with new focus settings
-		if (mState == State.Playing) {
+		if (mStateMachine.get() == State.Playing) {
 			configAndStartMediaPlayer();
 		}
 	}
 
-	public void onLostAudioFocus(boolean canDuck) {
-		Toast.makeText(getApplicationContext(), "lost audio focus." + (canDuck ? "can duck" : "no duck"), Toast.LENGTH_SHORT).show();
+	public void onLostAudioFocus(final boolean canDuck) {
+		mPlaybackHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				handleLostAudioFocus(canDuck);
+			}
+		});
+	}
+
+	private void handleLostAudioFocus(boolean canDuck) {
+		showToast("lost audio focus." + (canDuck ? "can duck" : "no duck"), Toast.LENGTH_SHORT);
 		mAudioFocus = canDuck ? AudioFocus.NoFocusCanDuck : AudioFocus.NoFocusNoDuck;
 
 		// start/restart/pause media player with new focus settings
-		if (mPlayer != null && mPlayer.isPlaying()) {
+		if (isPlayerPlaying()) {
 			configAndStartMediaPlayer();
 		}
+		updateIdleState();
 	}
 
-	private void sendPlayerState() {
-		if (mItems != null) {
-			Item playingItem = mItems.get(mIndex);
-			Intent intent = new Intent(ACTION_STATE_CHANGED);
-			intent.putExtra("artist", playingItem.artist);
-			intent.putExtra("album", playingItem.album);
-			intent.putExtra("title", playingItem.title);
-			intent.putExtra("state", mState.toString());
-			if (mPlayer != null) {
-				intent.putExtra("currentPosition", mPlayer.getCurrentPosition());
+	private PlayerState buildPlayerState() {
+		long position = 0;
+		if ((mPlayer != null || mCrossfadePlayer != null)
+				&& (mStateMachine.get() == State.Playing || mStateMachine.get() == State.Paused)) {
+			position = getPlayerPosition();
+		} else if (mResumeId != -1 && mItems != null && !mItems.isEmpty() && mItems.getId(mIndex) == mResumeId) {
+			// not loaded yet, but playback will pick up from here
+			position = mResumePosition;
+		}
+		long now = SystemClock.elapsedRealtime();
+		if (mStreamUrl != null) {
+			// not in the library: no _ID, and only the title we were given
+			long duration = mPlayerPrepared ? Math.max(mPlayer.getDuration(), 0) : 0;
+			return new PlayerState(-1, null, null, -1, mStreamTitle, duration, mStateMachine.get(), position, now);
+		}
+		if (mResumeStreamUrl != null) {
+			// released while paused; playing again reopens it
+			return new PlayerState(-1, null, null, -1, mResumeStreamTitle, 0, mStateMachine.get(), mResumePosition,
+					now);
+		}
+		if (mDetachedSong != null && mDetachedSong.getId(0) != mPlayerId) {
+			// the deleted song is over; the player has moved on or was released
+			mDetachedSong = null;
+		}
+		TrackStore items = mDetachedSong != null ? mDetachedSong : mItems;
+		int index = mDetachedSong != null ? 0 : mIndex;
+		if (items == null || items.isEmpty()) {
+			return new PlayerState(-1, null, null, -1, null, 0, mStateMachine.get(), position, now);
+		}
+		return new PlayerState(items.getId(index), items.getArtist(index), items.getAlbum(index),
+				items.getAlbumId(index), items.getTitle(index), items.getDuration(index), mStateMachine.get(), position, now);
+	}
+
+	/**
+	 * Registers a listener for state changes. It is called on the playback
+	 * thread, first with the current state and then with every change.
+	 */
+	public void registerPlayerStateListener(final PlayerState.Listener listener) {
+		mPlaybackHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				mStatePublisher.addListener(listener);
+			}
+		});
+	}
+
+	/**
+	 * Unregisters a listener. The removal is also posted behind any
+	 * registration still on its way to the playback thread, so that one
+	 * cannot add the listener back (and leak it) afterwards; it may still
+	 * get the first state from it.
+	 */
+	public void unregisterPlayerStateListener(final PlayerState.Listener listener) {
+		mStatePublisher.removeListener(listener);
+		mPlaybackHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				mStatePublisher.removeListener(listener);
 			}
-			sendBroadcast(intent);
+		});
+	}
+
+	/** Seeks the current song to the given position in milliseconds. Seeks in quick succession only run the last. */
+	public void seekTo(int position) {
+		PlaybackCommandQueue.Command command = new PlaybackCommandQueue.Command(PlaybackCommandQueue.SEEK,
+				SystemClock.elapsedRealtime());
+		command.arg = position;
+		if (mCommands.offer(command)) {
+			mPlaybackHandler.post(mDrainCommands);
 		}
 	}
 
+	/** Shows a toast from any thread. */
+	private void showToast(final String text, final int duration) {
+		mMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				Toast.makeText(getApplicationContext(), text, duration).show();
+			}
+		});
+	}
+
 	@Override
-	public void onMusicRetrieverPrepared(List<Item> items) {
+	public void onMusicRetrieverPrepared(final TrackStore items, final boolean complete) {
+		mPlaybackHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				handleMusicRetrieverPrepared(items, complete);
+			}
+		});
+	}
+
+	/**
+	 * Takes a new library. A partial one (the first page of a fresh scan) is
+	 * enough to start playing, but a song missing from it is not gone: the
+	 * queue is only pruned, and the playing song only treated as deleted,
+	 * once the complete library arrives.
+	 */
+	private void handleMusicRetrieverPrepared(TrackStore items, boolean complete) {
+		mMetrics.count(PlaybackMetrics.COUNT_LIBRARY_UPDATES);
+		mMetrics.event(PlaybackMetrics.EVENT_LIBRARY, items.size());
+		mMetrics.recordSince(PlaybackMetrics.LATENCY_LIBRARY, mLibraryRequestTime);
+		mLibraryRequestTime = 0;
+		if (mStateMachine.get() != State.Retrieving && mItems != null) {
+			// The library was refreshed after we already had one (the on-disk index
+			// was reconciled, or MediaStore reported changes while we run). Keep
+			// pointing at the same track; the player is left alone.
+			TrackStore old = mItems;
+			long currentId = old.isEmpty() ? -1 : old.getId(mIndex);
+			if (mResumePending && mResumeId != -1 && mStateMachine.get() == State.Stopped) {
+				// nothing has played since, so look for the resumed song again
+				currentId = mResumeId;
+			}
+			long orderId = mOrderIndex >= 0 ? old.getId(mOrderIndex) : -1;
+			mItems = items;
+			if (complete && currentId != -1 && items.indexOf(currentId) < 0 && mResumeIndex < 0
+					&& (mStateMachine.get() == State.Playing || mStateMachine.get() == State.Paused)) {
+				// The song being played was deleted. It keeps playing from the open
+				// file, and the song before it in the play order stands in as the
+				// current one, so that moving on continues from where it was.
+				// What is playing is still the deleted song, though.
+				if (currentId == mPlayerId) {
+					mDetachedSong = new TrackStore.Builder(1).add(old, mIndex).build();
+				}
+				mIndex = survivorBefore(old, items, mIndex);
+			} else {
+				mIndex = locate(items, currentId, complete);
+			}
+			mPlayOrder.setSize(items.size());
+			mOrderIndex = orderId == -1 ? -1 : items.indexOf(orderId);
+			if (complete) {
+				pruneQueue(items);
+			}
+			mStatePublisher.invalidate();
+			onUpcomingChanged();
+			return;
+		}
+
 		// Done retrieving!
-		mState = State.Stopped;
+		mStateMachine.moveTo(State.Stopped, "retrieved");
 		mItems = items;
-		sendPlayerState();
+		mPlayOrder.setSize(items.size());
+		mOrderIndex = -1;
+		if (complete) {
+			pruneQueue(items);
+		}
+		if (mResumeId != -1 && !items.isEmpty()) {
+			mIndex = locate(items, mResumeId, complete);
+		}
+		mStatePublisher.invalidate();
 
 		// If the flag indicates we should start playing after retrieving, let's
 		// do that now.
-		if (mStartPlayingAfterRetrieve) {
+		if (mPendingStreamUrl != null) {
+			String url = mPendingStreamUrl;
+			mPendingStreamUrl = null;
+			processPlayStreamRequest(url, mPendingStreamTitle, 0);
+			mPendingStreamTitle = null;
+		} else if (mStartPlayingAfterRetrieve) {
 			tryToGetAudioFocus();
-			playNextSong(false);
+			playFromStopped();
+		}
+		updateIdleState();
+	}
+
+	/** Drops the queued songs that are gone from a new library. */
+	private void pruneQueue(TrackStore items) {
+		int slot = mQueue.first();
+		while (slot != PlayQueue.NONE) {
+			int next = mQueue.next(slot);
+			if (items.indexOf(mQueue.getTrackId(slot)) < 0) {
+				mQueue.remove(slot);
+			}
+			slot = next;
+		}
+	}
+
+	/**
+	 * Finds the nearest song before the given one in the play order of the
+	 * old library that is still in the new one, or the first song if there
+	 * is none. mPlayOrder must still be sized for the old library.
+	 */
+	private int survivorBefore(TrackStore old, TrackStore items, int index) {
+		for (int count = 1; count < old.size(); count++) {
+			int found = items.indexOf(old.getId(mPlayOrder.peek(index, -count)));
+			if (found >= 0) {
+				return found;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Finds the song in a new library. A song that is gone from the complete
+	 * library is replaced by the one at the saved position of the last
+	 * session, if there is one. A partial library may just not hold it yet,
+	 * so the resumed song and the saved position are kept for a later page.
+	 */
+	private int locate(TrackStore items, long id, boolean complete) {
+		int index = items.indexOf(id);
+		mResumePending = index < 0 && !complete && id == mResumeId;
+		if (mResumePending) {
+			return 0;
+		}
+		if (index < 0 && id == mResumeId) {
+			// gone for good; the stand-in starts from its beginning
+			mResumeId = -1;
+			mResumePosition = 0;
+		}
+		if (index < 0 && mResumeIndex >= 0 && !items.isEmpty()) {
+			index = Math.min(mResumeIndex, items.size() - 1);
+		}
+		mResumeIndex = -1;
+		return Math.max(index, 0);
+	}
+
+	/**
+	 * Saves the session whenever the published state changes: on pause,
+	 * stop, track changes and seeks. While playing the position moves on its
+	 * own, which does not count as a change, so nothing is written per tick.
+	 */
+	private final PlayerState.Listener mSessionWriter = new PlayerState.Listener() {
+		@Override
+		public void onPlayerStateChanged(PlayerState state, int changes) {
+			if (state.getState() != State.Retrieving && state.getState() != State.Preparing) {
+				saveSession(state);
+			}
+		}
+	};
+
+	/**
+	 * Plans the prefetch of the next song whenever the published state
+	 * changes. A seek or a pause is a change too, so the plan always follows
+	 * the real position; a new song cancels the reads for the old plan.
+	 */
+	private final PlayerState.Listener mPrefetchScheduler = new PlayerState.Listener() {
+		@Override
+		public void onPlayerStateChanged(PlayerState state, int changes) {
+			if ((changes & PlayerState.CHANGED_TRACK) != 0) {
+				mPrefetcher.cancel();
+			}
+			schedulePrefetch(state);
+		}
+	};
+
+	private void schedulePrefetch(PlayerState state) {
+		mPlaybackHandler.removeCallbacks(mPrefetchNext);
+		if (mPrefetchLead <= 0 || state.getState() != State.Playing || state.getDuration() <= 0) {
+			return;
+		}
+		long remaining = state.getDuration() - state.getPositionAt(SystemClock.elapsedRealtime());
+		mPlaybackHandler.postDelayed(mPrefetchNext, Math.max(remaining - mPrefetchLead, 0));
+	}
+
+	private final Runnable mPrefetchNext = new Runnable() {
+		@Override
+		public void run() {
+			if (mStateMachine.get() != State.Playing || mItems == null
+					|| mPlayOrder.getRepeat() == PlayOrder.REPEAT_ONE) {
+				return;
+			}
+			int next = peekNext();
+			if (next == -1 || mPlayerPool.peek(mItems.getId(next)) != null) {
+				// a prepared player has read what it needs already
+				return;
+			}
+			mPrefetcher.prefetch(mItems.getId(next), mItems.getURI(next));
+		}
+	};
+
+	private void saveSession(PlayerState state) {
+		if (state.getTrackId() == -1) {
+			return;
 		}
+		mSessionSaver.save(SessionSnapshot.of(state, SystemClock.elapsedRealtime(), mIndex,
+				mItems == null ? 0 : mItems.size(), mPlayOrder));
 	}
 
 	@Override
 	public void onDestroy() {
 		Log.d(TAG, "onDestroy");
-		// Service is being killed, so make sure we release our resources
-		mState = State.Stopped;
-		relaxResources(true);
-		giveUpAudioFocus();
+		// Service is being killed, so make sure we release our resources.
+		// Pending commands are dropped; the release runs on the playback
+		// thread, which then quits.
+		mCommands.clear();
+		mLibrary.removeListener(this);
+		mPlaybackHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (mStateMachine.get() == State.Playing || mStateMachine.get() == State.Paused) {
+					// keep the position we got to
+					saveSession(buildPlayerState());
+				}
+				mStateMachine.moveTo(State.Stopped, "destroy");
+				mStatePublisher.cancel();
+				Log.d(TAG, "state updates: " + mStatePublisher.getPublishedCount() + " published, "
+						+ mStatePublisher.getSuppressedCount() + " suppressed of "
+						+ mStatePublisher.getRequestedCount());
+				mIdleGovernor.onActive();
+				relaxResources(true);
+				giveUpAudioFocus();
+				mQueue.close();
+				if (mStreamProxy != null) {
+					mStreamProxy.stop();
+				}
+				mPlaybackThread.quit();
+				mAlbumArtLoader.quit();
+				mPrefetcher.quit();
+				// writes the save above, if any, before it quits
+				mSessionSaver.quit();
+			}
+		});
+	}
+
+	/**
+	 * Prints the live numbers for
+	 * {@code adb shell dumpsys activity service MusicPlayerService}. Runs on
+	 * a binder thread: the playback thread's fields are read there, through
+	 * a request waited for at most DUMP_TIMEOUT ms, and the rest are
+	 * counters that are safe to read from anywhere.
+	 */
+	@Override
+	protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+		// the state line, the stream line (or null), the prefetch lead and the
+		// state updates line
+		final String[] playback = new String[4];
+		final CountDownLatch read = new CountDownLatch(1);
+		boolean posted = mPlaybackHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				playback[0] = "MusicPlayerService state=" + mStateMachine.get() + " player=" + mPlayerId
+						+ " gapless=" + mGapless + " chained=" + mChainedId + " shuffle=" + mPlayOrder.isShuffle()
+						+ " repeat=" + mPlayOrder.getRepeat() + " queued=" + mQueue.size() + " crossfade="
+						+ mCrossfade;
+				if (mStreamProxy != null) {
+					SegmentCache cache = mStreamProxy.getCache();
+					playback[1] = "stream=" + mStreamUrl + " cache: bytes=" + cache.size() + " hits="
+							+ cache.getHitCount() + " misses=" + cache.getMissCount();
+				}
+				playback[2] = String.valueOf(mPrefetchLead);
+				playback[3] = "state updates: requested=" + mStatePublisher.getRequestedCount()
+						+ " published=" + mStatePublisher.getPublishedCount()
+						+ " suppressed=" + mStatePublisher.getSuppressedCount();
+				read.countDown();
+			}
+		});
+		boolean done = false;
+		try {
+			done = posted && read.await(DUMP_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (!done) {
+			// the playback thread is busy or gone; leave its fields out
+			playback[0] = "MusicPlayerService state=" + mStateMachine.get() + " (playback thread did not answer)";
+			playback[1] = null;
+			playback[2] = "?";
+			playback[3] = "state updates: ?";
+		}
+		pw.println(playback[0]);
+		if (playback[1] != null) {
+			pw.println(playback[1]);
+		}
+		pw.println("prefetch: lead=" + playback[2] + " songs=" + mPrefetcher.getPrefetchedCount()
+				+ " cancelled=" + mPrefetcher.getCancelledCount() + " bytes=" + mPrefetcher.getByteCount());
+		pw.println("session saves: requested=" + mSessionSaver.getRequestedCount()
+				+ " written=" + mSessionSaver.getWrittenCount());
+		pw.println("metrics:");
+		mMetrics.dump(pw);
+		pw.println(playback[3]);
+		pw.println("commands: offered=" + mCommands.getOfferedCount()
+				+ " coalesced=" + mCommands.getCoalescedCount());
+		pw.println("transitions: moved=" + mStateMachine.getMovedCount()
+				+ " noop=" + mStateMachine.getNoopCount()
+				+ " rejected=" + mStateMachine.getRejectedCount());
+		for (String transition : mStateMachine.getLog()) {
+			pw.println("  " + transition);
+		}
 	}
 
 	@Override
 	public IBinder onBind(Intent intent) {
-		return null;
+		return mBinder;
+	}
+
+	/** Binder for clients in this process; it hands out the service itself. */
+	public class LocalBinder extends Binder {
+		public MusicPlayerService getService() {
+			return MusicPlayerService.this;
+		}
 	}
 }
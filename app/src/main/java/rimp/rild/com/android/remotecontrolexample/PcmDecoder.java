@@ -0,0 +1,257 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.os.Build;
+
+/**
+ * 曲のファイルを MediaExtractor と MediaCodec で 16 ビットの PCM にデコードするクラス（SDK レベル 16 以上）。
+ * {@link #read} は呼び出し側の配列に書き込むだけで、コーデックのバッファはそのまま読むので、読むたびにオブジェクトを作らない。
+ * 開いた時点で最初の出力までデコードしておくので、{@link #getSampleRate()} と {@link #getChannelCount()} は実際の出力の形式を返す。
+ * 1 つのスレッドから使うこと（順に使うのであれば、スレッドが替わってもよい）。
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class PcmDecoder {
+	private static final long TIMEOUT_US = 10000;
+	// 出力を待ってもデコーダが何も返さない回数の上限（TIMEOUT_US ごと）
+	private static final int MAX_IDLE = 200;
+
+	private final MediaExtractor mExtractor;
+	private final MediaCodec mCodec;
+	private final long mDurationUs;
+	private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+	private ByteBuffer[] mInputBuffers;
+	// コーデックの出力バッファを short として読むためのビュー。バッファが替わったときだけ作り直す
+	private ShortBuffer[] mOutputSamples;
+	private int mSampleRate;
+	private int mChannels;
+
+	// 読みかけの出力バッファ。無ければ -1
+	private int mOutputIndex = -1;
+	private boolean mInputDone = false;
+	private boolean mOutputDone = false;
+	// シークした位置。これより前のサンプルは捨てる。無ければ -1
+	private long mSkipUs = -1;
+
+	/**
+	 * 曲のファイルを開く。
+	 * @param context コンテキスト
+	 * @param uri 曲の URI
+	 * @throws IOException 開けない場合や、音声のトラックが無い場合、デコーダが無い場合
+	 */
+	public static PcmDecoder open(Context context, Uri uri) throws IOException {
+		MediaExtractor extractor = new MediaExtractor();
+		try {
+			extractor.setDataSource(context, uri, null);
+			for (int i = 0; i < extractor.getTrackCount(); i++) {
+				MediaFormat format = extractor.getTrackFormat(i);
+				String mime = format.getString(MediaFormat.KEY_MIME);
+				if (mime != null && mime.startsWith("audio/")) {
+					extractor.selectTrack(i);
+					return new PcmDecoder(extractor, format, mime);
+				}
+			}
+			throw new IOException("no audio track in " + uri);
+		} catch (IOException e) {
+			extractor.release();
+			throw e;
+		} catch (RuntimeException e) {
+			// MediaCodec reports a format it cannot decode this way
+			extractor.release();
+			throw new IOException("cannot decode " + uri + ": " + e);
+		}
+	}
+
+	private PcmDecoder(MediaExtractor extractor, MediaFormat format, String mime) throws IOException {
+		mExtractor = extractor;
+		mDurationUs = format.containsKey(MediaFormat.KEY_DURATION) ? format.getLong(MediaFormat.KEY_DURATION) : -1;
+		mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+		mChannels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+		mCodec = MediaCodec.createDecoderByType(mime);
+		try {
+			mCodec.configure(format, null, null, 0);
+			mCodec.start();
+			mInputBuffers = mCodec.getInputBuffers();
+			mapOutputBuffers();
+			// the output format is only certain once the decoder has produced something
+			for (int idle = 0; mOutputIndex < 0 && !mOutputDone; idle++) {
+				if (idle >= MAX_IDLE) {
+					throw new IOException("decoder produced nothing");
+				}
+				feedInput();
+				drainOutput();
+			}
+		} catch (IOException e) {
+			mCodec.release();
+			throw e;
+		} catch (RuntimeException e) {
+			mCodec.release();
+			throw e;
+		}
+	}
+
+	/** 出力のサンプリング周波数（Hz）。 */
+	public int getSampleRate() {
+		return mSampleRate;
+	}
+
+	/** 出力のチャンネル数。 */
+	public int getChannelCount() {
+		return mChannels;
+	}
+
+	/** 曲の長さ（マイクロ秒）。ファイルに書かれていなければ -1。 */
+	public long getDurationUs() {
+		return mDurationUs;
+	}
+
+	/**
+	 * PCM を読む。
+	 * @param dst 書き込み先。チャンネルごとに交互に並べる
+	 * @param frames 読むフレーム数
+	 * @return 読んだフレーム数。曲の終わりに達したときだけ frames より少なく、終わっていれば 0
+	 */
+	public int read(short[] dst, int frames) throws IOException {
+		int want = frames * mChannels;
+		int filled = 0;
+		int idle = 0;
+		try {
+			while (filled < want) {
+				if (mOutputIndex >= 0) {
+					ShortBuffer samples = mOutputSamples[mOutputIndex];
+					int n = Math.min(samples.remaining(), want - filled);
+					samples.get(dst, filled, n);
+					filled += n;
+					if (!samples.hasRemaining()) {
+						mCodec.releaseOutputBuffer(mOutputIndex, false);
+						mOutputIndex = -1;
+					}
+					idle = 0;
+					continue;
+				}
+				if (mOutputDone) {
+					break;
+				}
+				if (++idle > MAX_IDLE) {
+					throw new IOException("decoder stalled");
+				}
+				feedInput();
+				drainOutput();
+			}
+		} catch (IllegalStateException e) {
+			throw new IOException("decoder failed: " + e);
+		}
+		return filled / mChannels;
+	}
+
+	/**
+	 * 位置を移す。次の {@link #read} は、その位置のサンプルから返す。
+	 * @param us 曲の先頭からの位置（マイクロ秒）
+	 */
+	public void seekTo(long us) throws IOException {
+		try {
+			mExtractor.seekTo(us, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+			if (mOutputIndex >= 0) {
+				mCodec.releaseOutputBuffer(mOutputIndex, false);
+				mOutputIndex = -1;
+			}
+			mCodec.flush();
+		} catch (IllegalStateException e) {
+			throw new IOException("decoder failed: " + e);
+		}
+		mInputDone = false;
+		mOutputDone = false;
+		mSkipUs = us;
+	}
+
+	/** デコーダとファイルを閉じる。 */
+	public void release() {
+		try {
+			mCodec.stop();
+		} catch (IllegalStateException e) {
+			// already failed; release anyway
+		}
+		mCodec.release();
+		mExtractor.release();
+	}
+
+	private void feedInput() {
+		if (mInputDone) {
+			return;
+		}
+		int index = mCodec.dequeueInputBuffer(0);
+		if (index < 0) {
+			return;
+		}
+		ByteBuffer buffer = mInputBuffers[index];
+		buffer.clear();
+		int size = mExtractor.readSampleData(buffer, 0);
+		if (size < 0) {
+			mCodec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+			mInputDone = true;
+		} else {
+			mCodec.queueInputBuffer(index, 0, size, mExtractor.getSampleTime(), 0);
+			mExtractor.advance();
+		}
+	}
+
+	/** 出力を 1 つ待つ。PCM が出てきたら mOutputIndex に読む準備をする。 */
+	private void drainOutput() {
+		int index = mCodec.dequeueOutputBuffer(mInfo, TIMEOUT_US);
+		if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+			mapOutputBuffers();
+			return;
+		}
+		if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+			// HE-AAC, for one, turns out to have twice the rate of its track
+			MediaFormat format = mCodec.getOutputFormat();
+			mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+			mChannels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+			return;
+		}
+		if (index < 0) {
+			return;
+		}
+		if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+			mOutputDone = true;
+		}
+		ShortBuffer samples = mOutputSamples[index];
+		samples.clear();
+		samples.limit((mInfo.offset + mInfo.size) / 2);
+		samples.position(mInfo.offset / 2);
+		if (mSkipUs >= 0) {
+			// decoding restarts at the sync sample before the seek target
+			long skip = (mSkipUs - mInfo.presentationTimeUs) * mSampleRate / 1000000 * mChannels;
+			if (skip > 0) {
+				samples.position((int) Math.min(samples.position() + skip, samples.limit()));
+			}
+			if (samples.hasRemaining()) {
+				mSkipUs = -1;
+			}
+		}
+		if (!samples.hasRemaining()) {
+			mCodec.releaseOutputBuffer(index, false);
+			return;
+		}
+		mOutputIndex = index;
+	}
+
+	private void mapOutputBuffers() {
+		ByteBuffer[] buffers = mCodec.getOutputBuffers();
+		mOutputSamples = new ShortBuffer[buffers.length];
+		for (int i = 0; i < buffers.length; i++) {
+			ByteBuffer buffer = buffers[i].duplicate();
+			buffer.clear();
+			mOutputSamples[i] = buffer.order(ByteOrder.nativeOrder()).asShortBuffer();
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+/**
+ * 曲リストの再生順。シャッフルとリピート（しない・全曲・1 曲）を扱う。
+ * 再生順の位置と曲リストの添字を相互に変換し、次の曲・前の曲はどちらも O(1) で求まる。
+ *
+ * シャッフルでは、全曲を一巡する 1 周ごとに ShufflePermutation で並びを決める。
+ * 並びは seed と周回の番号だけで決まるので、シャッフルした曲リストの複製は持たず、
+ * seed・周回・位置を保存しておけば同じ並びの同じ位置から再開できる。
+ * 1 周の途中で同じ曲が繰り返されることはなく、周回が替わると並びも替わる。
+ * シャッフルを始めたときや曲を選んで再生したときは、その曲が 1 周の先頭になるよう並びをずらす。
+ * 曲を選んだときは、それまでの周回も選ぶ前の曲で終わるようにずらすので、選んだ曲から前に戻ると聞いてきた順にさかのぼれる。
+ *
+ * 再生スレッドから使うこと。
+ */
+public class PlayOrder {
+	/** 最後の曲で止まる。 */
+	public static final int REPEAT_OFF = 0;
+	/** 最後の曲の次は先頭に戻る。 */
+	public static final int REPEAT_ALL = 1;
+	/** 同じ曲を繰り返す（スキップでは次の曲に進む）。 */
+	public static final int REPEAT_ONE = 2;
+
+	private int mSize;
+	private boolean mShuffle = false;
+	private int mRepeat = REPEAT_ALL;
+	private long mSeed;
+	// the lap we are on, and the lap whose order is rotated by mOffset;
+	// the lap before that one is rotated by mPreviousOffset
+	private int mCycle;
+	private int mOffsetCycle;
+	private int mOffset;
+	private int mPreviousOffset;
+	// the last two laps we looked at; usually the current one and the next
+	private ShufflePermutation mPermutation;
+	private int mPermutationCycle;
+	private ShufflePermutation mSparePermutation;
+	private int mSpareCycle;
+
+	public PlayOrder(int size) {
+		mSize = size;
+	}
+
+	/**
+	 * 曲数を設定する。曲数が変わると並びも変わるが、seed・周回・ずらし幅は保たれるので、
+	 * 同じ曲数に戻せば同じ並びになる。
+	 */
+	public void setSize(int size) {
+		if (size != mSize) {
+			mSize = size;
+			clearPermutations();
+		}
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public boolean isShuffle() {
+		return mShuffle;
+	}
+
+	/**
+	 * シャッフルを切り替える。始めるときは新しい seed で並びを作り、current がその 1 周の先頭になる。
+	 * @param shuffle シャッフルするかどうか
+	 * @param current 再生中の曲の添字
+	 * @param seed 並びを決める種
+	 */
+	public void setShuffle(boolean shuffle, int current, long seed) {
+		if (shuffle == mShuffle) {
+			return;
+		}
+		mShuffle = shuffle;
+		if (shuffle) {
+			mSeed = seed;
+			mCycle = 0;
+			clearPermutations();
+			mOffsetCycle = 0;
+			mOffset = mSize <= 1 || current < 0 || current >= mSize ? 0 : permutation(mCycle).indexOf(current);
+			mPreviousOffset = 0;
+		}
+	}
+
+	public int getRepeat() {
+		return mRepeat;
+	}
+
+	public void setRepeat(int repeat) {
+		mRepeat = repeat;
+	}
+
+	/**
+	 * 曲を選んで再生するときに呼び出す。シャッフル中なら次の周回を始め、その曲を先頭にする。
+	 * こうしておくと、選んだ曲から数えて 1 周の間は同じ曲が繰り返されない。
+	 * それまでの周回は current で終わるようにずらすので、選んだ曲の前の曲は current になり、
+	 * さらに前に戻ると current の前に聞いていた曲をその順にたどる。
+	 * @param index 選んだ曲の添字
+	 * @param current 選ぶ前の曲の添字。無ければ -1
+	 */
+	public void startAt(int index, int current) {
+		if (!mShuffle || mSize <= 1) {
+			return;
+		}
+		if (current >= 0 && current < mSize) {
+			// turn the lap we leave so that it ends on the current song (on the one
+			// before it if the same song is picked again); turning keeps every
+			// song's neighbours, so going back walks what was played in that order
+			int end = permutation(mCycle).indexOf(current) - (current == index ? 1 : 0);
+			mPreviousOffset = floorMod((long) end - (mSize - 1), mSize);
+		} else {
+			mPreviousOffset = offset(mCycle);
+		}
+		mCycle++;
+		mOffsetCycle = mCycle;
+		mOffset = permutation(mCycle).indexOf(index);
+	}
+
+	/** 曲リストの添字 index が、再生順の何番目か（0 から size - 1）を返す。 */
+	public int positionOf(int index) {
+		if (!mShuffle) {
+			return index;
+		}
+		return floorMod(permutation(mCycle).indexOf(index) - offset(mCycle), mSize);
+	}
+
+	/**
+	 * index の曲から count 曲先（負なら前）の曲の添字を返す。状態は変えない。
+	 * リピートの設定にかかわらず、端を越えると隣の周回に入る。
+	 */
+	public int peek(int index, int count) {
+		if (mSize == 0) {
+			return index;
+		}
+		long position = (long) positionOf(index) + count;
+		int cycle = mCycle + (int) floorDiv(position, mSize);
+		return indexAt(cycle, floorMod(position, mSize));
+	}
+
+	/**
+	 * index の曲から count 曲先（負なら前）に進め、その曲の添字を返す。端を越えた場合は周回を進める（戻す）。
+	 * 曲が 1 曲以下なら周回は進めない（保存した再生順を、曲リストが揃うまでの 1 曲だけの間も保つため）。
+	 */
+	public int skip(int index, int count) {
+		if (mSize <= 1) {
+			return index;
+		}
+		long position = (long) positionOf(index) + count;
+		mCycle += (int) floorDiv(position, mSize);
+		return indexAt(mCycle, floorMod(position, mSize));
+	}
+
+	/**
+	 * 曲を最後まで再生した後の曲の添字を返す。状態は変えない。
+	 * @return 次の曲の添字。リピートしない設定で最後の曲だった場合は -1
+	 */
+	public int peekNext(int index) {
+		if (mRepeat == REPEAT_ONE) {
+			return index;
+		}
+		if (mRepeat == REPEAT_OFF && positionOf(index) == mSize - 1) {
+			return -1;
+		}
+		return peek(index, 1);
+	}
+
+	/**
+	 * 曲を最後まで再生した後の曲に進め、その添字を返す。
+	 * @return 次の曲の添字。リピートしない設定で最後の曲だった場合は -1
+	 */
+	public int next(int index) {
+		int next = peekNext(index);
+		if (next != -1 && mRepeat != REPEAT_ONE) {
+			skip(index, 1);
+		}
+		return next;
+	}
+
+	public long getSeed() {
+		return mSeed;
+	}
+
+	public int getCycle() {
+		return mCycle;
+	}
+
+	public int getOffsetCycle() {
+		return mOffsetCycle;
+	}
+
+	public int getOffset() {
+		return mOffset;
+	}
+
+	/** getOffsetCycle() の 1 つ前の周回のずらし幅。 */
+	public int getPreviousOffset() {
+		return mPreviousOffset;
+	}
+
+	/**
+	 * 保存しておいた状態に戻す。曲数が保存したときと同じなら、同じ並びの同じ位置から続けられる。
+	 */
+	public void restore(boolean shuffle, int repeat, long seed, int cycle, int offsetCycle, int offset,
+			int previousOffset) {
+		mShuffle = shuffle;
+		mRepeat = repeat;
+		mSeed = seed;
+		mCycle = cycle;
+		mOffsetCycle = offsetCycle;
+		mOffset = offset;
+		mPreviousOffset = previousOffset;
+		clearPermutations();
+	}
+
+	private int indexAt(int cycle, int position) {
+		if (!mShuffle) {
+			return position;
+		}
+		return permutation(cycle).get(floorMod(position + offset(cycle), mSize));
+	}
+
+	private int offset(int cycle) {
+		if (cycle == mOffsetCycle) {
+			return mOffset;
+		}
+		return cycle == mOffsetCycle - 1 ? mPreviousOffset : 0;
+	}
+
+	private ShufflePermutation permutation(int cycle) {
+		if (mPermutation != null && mPermutationCycle == cycle) {
+			return mPermutation;
+		}
+		if (mSparePermutation != null && mSpareCycle == cycle) {
+			swapPermutations();
+			return mPermutation;
+		}
+		// keep the one we are replacing; crossing back and forth over a lap boundary needs both
+		swapPermutations();
+		mPermutation = new ShufflePermutation(mSize, mSeed + cycle * 0x9E3779B97F4A7C15L);
+		mPermutationCycle = cycle;
+		return mPermutation;
+	}
+
+	private void swapPermutations() {
+		ShufflePermutation permutation = mPermutation;
+		int cycle = mPermutationCycle;
+		mPermutation = mSparePermutation;
+		mPermutationCycle = mSpareCycle;
+		mSparePermutation = permutation;
+		mSpareCycle = cycle;
+	}
+
+	private void clearPermutations() {
+		mPermutation = null;
+		mSparePermutation = null;
+	}
+
+	private static long floorDiv(long x, long y) {
+		long q = x / y;
+		return (x % y != 0 && ((x ^ y) < 0)) ? q - 1 : q;
+	}
+
+	private static int floorMod(long x, int y) {
+		return (int) (x - floorDiv(x, y) * y);
+	}
+}
@@ -0,0 +1,383 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * 次に再生する曲の待ち行列（再生キュー）。曲の _ID を双方向連結リストで持ち、
+ * 末尾への追加、先頭への割り込み、削除、移動をどれも O(1) で行う。
+ *
+ * リストはアプリ領域のファイルをメモリにマップしたもので、ファイルの中身がそのままリストになる。
+ * 各要素は固定長のスロット（_ID と前後のスロット番号）で、編集で書き換わるのは数スロットとヘッダだけなので、
+ * 何千曲のキューでも編集のたびに全体を書き直すことはない。書き込みはマップしたページに行われ、
+ * 書き出しは OS に任せる（プロセスが終了しても失われない）。
+ * 削除したスロットは空きリストに入れて使い回し、足りなくなったらファイルを倍に伸ばしてマップし直す。
+ *
+ * 要素はスロット番号で指す。スロット番号は要素が削除されるまで変わらない。
+ * どのスレッドから呼び出してもよい。
+ */
+public class PlayQueue {
+	private static final String TAG = "PlayQueue";
+	private static final String FILE_NAME = "playqueue.map";
+	private static final int MAGIC = 0x52435051; // "RCPQ"
+	private static final int VERSION = 1;
+
+	/** 要素が無いことを表すスロット番号。 */
+	public static final int NONE = -1;
+
+	private static final int INITIAL_CAPACITY = 256;
+	// the previous slot of a slot in the free list, so stale handles can be told apart
+	private static final int FREED = -2;
+
+	// header: magic, version, capacity, head, tail, free list, size, slots ever used
+	static final int HEADER_SIZE = 32;
+	static final int OFFSET_CAPACITY = 8;
+	private static final int OFFSET_HEAD = 12;
+	private static final int OFFSET_TAIL = 16;
+	static final int OFFSET_FREE = 20;
+	static final int OFFSET_SIZE = 24;
+	private static final int OFFSET_USED = 28;
+
+	// slot: _ID, previous slot, next slot (the free list is chained through next)
+	private static final int SLOT_SIZE = 16;
+	private static final int SLOT_PREV = 8;
+	private static final int SLOT_NEXT = 12;
+
+	private final FileChannel mChannel;
+	private ByteBuffer mBuffer;
+
+	private PlayQueue(FileChannel channel, ByteBuffer buffer) {
+		mChannel = channel;
+		mBuffer = buffer;
+	}
+
+	/**
+	 * アプリ領域の再生キューを開く。ファイルを開けない場合は、保存されないメモリ上のキューを返す。
+	 * @param context コンテキスト
+	 */
+	public static PlayQueue open(Context context) {
+		File file = new File(context.getFilesDir(), FILE_NAME);
+		try {
+			return open(file);
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to map " + file + ", the queue will not be saved: " + e.getMessage());
+			return inMemory();
+		}
+	}
+
+	/**
+	 * ファイルの再生キューを開く。ファイルが無い、または壊れている場合は空のキューにする。
+	 * @param file キューのファイル
+	 */
+	public static PlayQueue open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		FileChannel channel = raf.getChannel();
+		try {
+			long existing = channel.size();
+			int capacity = INITIAL_CAPACITY;
+			if (existing >= HEADER_SIZE) {
+				MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+				int stored = header.getInt(OFFSET_CAPACITY);
+				if (header.getInt(0) == MAGIC && header.getInt(4) == VERSION && stored > 0
+						&& existing >= bytesFor(stored)) {
+					capacity = stored;
+				}
+			}
+			PlayQueue queue = new PlayQueue(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, bytesFor(capacity)));
+			if (!queue.isValid()) {
+				if (existing > 0) {
+					Log.w(TAG, "Broken play queue, starting empty: " + file);
+				}
+				queue.format(capacity);
+			}
+			return queue;
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/** ファイルに保存しない再生キューを作る。 */
+	public static PlayQueue inMemory() {
+		PlayQueue queue = new PlayQueue(null, ByteBuffer.allocate(bytesFor(INITIAL_CAPACITY)));
+		queue.format(INITIAL_CAPACITY);
+		return queue;
+	}
+
+	private static int bytesFor(int capacity) {
+		return HEADER_SIZE + capacity * SLOT_SIZE;
+	}
+
+	private void format(int capacity) {
+		mBuffer.putInt(0, MAGIC);
+		mBuffer.putInt(4, VERSION);
+		mBuffer.putInt(OFFSET_CAPACITY, capacity);
+		mBuffer.putInt(OFFSET_HEAD, NONE);
+		mBuffer.putInt(OFFSET_TAIL, NONE);
+		mBuffer.putInt(OFFSET_FREE, NONE);
+		mBuffer.putInt(OFFSET_SIZE, 0);
+		mBuffer.putInt(OFFSET_USED, 0);
+	}
+
+	/**
+	 * ヘッダとリンクが矛盾していないか確かめる。編集の途中でプロセスが終了した場合に備え、
+	 * 開くときに一度だけリストと空きリストをたどる。
+	 * 使ったことのあるスロットは、リストか空きリストのどちらか一方にだけ入っていなければならない。
+	 * 空きリストが壊れていると、allocate がキューにあるスロットや範囲外のスロットを返してしまう。
+	 */
+	private boolean isValid() {
+		if (mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != VERSION) {
+			return false;
+		}
+		int capacity = mBuffer.getInt(OFFSET_CAPACITY);
+		int used = mBuffer.getInt(OFFSET_USED);
+		int size = mBuffer.getInt(OFFSET_SIZE);
+		if (capacity <= 0 || bytesFor(capacity) > mBuffer.capacity() || used < 0 || used > capacity
+				|| size < 0 || size > used) {
+			return false;
+		}
+		int count = 0;
+		int previous = NONE;
+		for (int slot = head(); slot != NONE; slot = next(slot)) {
+			if (slot < 0 || slot >= used || prev(slot) != previous || ++count > size) {
+				return false;
+			}
+			previous = slot;
+		}
+		if (count != size || previous != tail()) {
+			return false;
+		}
+		// the linked slots all have a real previous slot, so a slot marked FREED
+		// cannot be on both lists, and the count rules out loops
+		int free = 0;
+		for (int slot = mBuffer.getInt(OFFSET_FREE); slot != NONE; slot = next(slot)) {
+			if (slot < 0 || slot >= used || prev(slot) != FREED || ++free > used - size) {
+				return false;
+			}
+		}
+		return free == used - size;
+	}
+
+	/** 末尾に曲を加える。 */
+	public synchronized int enqueue(long trackId) {
+		return insertAfter(tail(), trackId);
+	}
+
+	/** 先頭（今の曲の次）に曲を割り込ませる。 */
+	public synchronized int playNext(long trackId) {
+		return insertAfter(NONE, trackId);
+	}
+
+	/**
+	 * 要素の後ろに曲を加える。
+	 * @param after この要素の後ろに加える。NONE なら先頭に加える
+	 * @param trackId 曲の _ID
+	 * @return 加えた要素のスロット番号
+	 */
+	public synchronized int insertAfter(int after, long trackId) {
+		int slot = allocate();
+		mBuffer.putLong(offset(slot), trackId);
+		link(slot, after);
+		setSize(size() + 1);
+		return slot;
+	}
+
+	/**
+	 * 要素を取り除く。
+	 * @return 取り除いたかどうか。取り除き済みの要素なら false
+	 */
+	public synchronized boolean remove(int slot) {
+		if (!contains(slot)) {
+			return false;
+		}
+		unlink(slot);
+		setNext(slot, mBuffer.getInt(OFFSET_FREE));
+		setPrev(slot, FREED);
+		mBuffer.putInt(OFFSET_FREE, slot);
+		setSize(size() - 1);
+		return true;
+	}
+
+	/**
+	 * 要素を移す。
+	 * @param slot 移す要素
+	 * @param after この要素の後ろに移す。NONE なら先頭に移す
+	 * @return 移したかどうか。どちらかが取り除き済みの要素なら false
+	 */
+	public synchronized boolean move(int slot, int after) {
+		if (!contains(slot) || (after != NONE && !contains(after))) {
+			return false;
+		}
+		if (slot != after && prev(slot) != after) {
+			unlink(slot);
+			link(slot, after);
+		}
+		return true;
+	}
+
+	/** スロット番号がキューにある要素を指しているかどうか。 */
+	public synchronized boolean contains(int slot) {
+		return slot >= 0 && slot < mBuffer.getInt(OFFSET_USED) && prev(slot) != FREED;
+	}
+
+	/**
+	 * 先頭の曲を取り出す。
+	 * @return 曲の _ID。空なら -1
+	 */
+	public synchronized long poll() {
+		int slot = head();
+		if (slot == NONE) {
+			return -1;
+		}
+		long trackId = getTrackId(slot);
+		remove(slot);
+		return trackId;
+	}
+
+	public synchronized void clear() {
+		format(mBuffer.getInt(OFFSET_CAPACITY));
+	}
+
+	public synchronized int size() {
+		return mBuffer.getInt(OFFSET_SIZE);
+	}
+
+	public synchronized boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/** 先頭の要素。空なら NONE。 */
+	public synchronized int first() {
+		return head();
+	}
+
+	/** 次の要素。末尾なら NONE。 */
+	public synchronized int next(int slot) {
+		return mBuffer.getInt(offset(slot) + SLOT_NEXT);
+	}
+
+	public synchronized long getTrackId(int slot) {
+		return mBuffer.getLong(offset(slot));
+	}
+
+	/** キューの曲の _ID を先頭から順に返す。 */
+	public synchronized long[] toArray() {
+		long[] ids = new long[size()];
+		int i = 0;
+		for (int slot = head(); slot != NONE; slot = next(slot)) {
+			ids[i++] = getTrackId(slot);
+		}
+		return ids;
+	}
+
+	/** ファイルを閉じる。書き込みは OS に任せたままにせず、ここで書き出す。 */
+	public synchronized void close() {
+		if (mChannel == null) {
+			return;
+		}
+		((MappedByteBuffer) mBuffer).force();
+		try {
+			mChannel.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private int allocate() {
+		int slot = mBuffer.getInt(OFFSET_FREE);
+		if (slot != NONE) {
+			mBuffer.putInt(OFFSET_FREE, next(slot));
+			return slot;
+		}
+		slot = mBuffer.getInt(OFFSET_USED);
+		if (slot == mBuffer.getInt(OFFSET_CAPACITY)) {
+			grow();
+		}
+		mBuffer.putInt(OFFSET_USED, slot + 1);
+		return slot;
+	}
+
+	private void grow() {
+		int capacity = mBuffer.getInt(OFFSET_CAPACITY) * 2;
+		ByteBuffer buffer;
+		if (mChannel != null) {
+			try {
+				// mapping past the end of a read-write file extends it
+				buffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, bytesFor(capacity));
+			} catch (IOException e) {
+				throw new IllegalStateException("cannot grow the play queue", e);
+			}
+		} else {
+			buffer = ByteBuffer.allocate(bytesFor(capacity));
+			mBuffer.clear();
+			buffer.put(mBuffer);
+		}
+		mBuffer = buffer;
+		mBuffer.putInt(OFFSET_CAPACITY, capacity);
+	}
+
+	private void link(int slot, int after) {
+		int before = after == NONE ? head() : next(after);
+		setPrev(slot, after);
+		setNext(slot, before);
+		if (after == NONE) {
+			mBuffer.putInt(OFFSET_HEAD, slot);
+		} else {
+			setNext(after, slot);
+		}
+		if (before == NONE) {
+			mBuffer.putInt(OFFSET_TAIL, slot);
+		} else {
+			setPrev(before, slot);
+		}
+	}
+
+	private void unlink(int slot) {
+		int previous = prev(slot);
+		int following = next(slot);
+		if (previous == NONE) {
+			mBuffer.putInt(OFFSET_HEAD, following);
+		} else {
+			setNext(previous, following);
+		}
+		if (following == NONE) {
+			mBuffer.putInt(OFFSET_TAIL, previous);
+		} else {
+			setPrev(following, previous);
+		}
+	}
+
+	private int head() {
+		return mBuffer.getInt(OFFSET_HEAD);
+	}
+
+	private int tail() {
+		return mBuffer.getInt(OFFSET_TAIL);
+	}
+
+	private int prev(int slot) {
+		return mBuffer.getInt(offset(slot) + SLOT_PREV);
+	}
+
+	private void setPrev(int slot, int prev) {
+		mBuffer.putInt(offset(slot) + SLOT_PREV, prev);
+	}
+
+	private void setNext(int slot, int next) {
+		mBuffer.putInt(offset(slot) + SLOT_NEXT, next);
+	}
+
+	private void setSize(int size) {
+		mBuffer.putInt(OFFSET_SIZE, size);
+	}
+
+	private static int offset(int slot) {
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+}
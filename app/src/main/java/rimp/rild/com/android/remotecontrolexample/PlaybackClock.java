@@ -0,0 +1,19 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import android.os.SystemClock;
+
+/**
+ * 経過時間（ミリ秒）を返す時計。
+ * 端末では {@link #SYSTEM}（SystemClock.elapsedRealtime()）を使い、JVM 上の負荷試験では仮想の時計に差し替える。
+ */
+public interface PlaybackClock {
+	/** SystemClock.elapsedRealtime() を返す時計。 */
+	PlaybackClock SYSTEM = new PlaybackClock() {
+		@Override
+		public long elapsedRealtime() {
+			return SystemClock.elapsedRealtime();
+		}
+	};
+
+	long elapsedRealtime();
+}
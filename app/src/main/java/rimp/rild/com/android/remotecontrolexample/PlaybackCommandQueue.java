@@ -0,0 +1,135 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.util.ArrayDeque;
+
+/**
+ * 再生スレッドに渡すコマンドのキュー。
+ * まだ処理されていないコマンドと打ち消し合う、または重複するコマンドはキューに積む時点でまとめる。
+ * たとえば連続した 5 回のスキップは「5 曲先へ」の 1 コマンドになり（前の曲へも同様）、再生の直後の一時停止は再生を取り除く。
+ * どのスレッドから積んでもよい。
+ */
+public class PlaybackCommandQueue {
+	public static final int PLAYPAUSE = 1;
+	public static final int PLAY = 2;
+	public static final int PAUSE = 3;
+	public static final int SKIP = 4;
+	public static final int REWIND = 5;
+	public static final int STOP = 6;
+	public static final int SET_GAPLESS = 7;
+	public static final int SET_PLAYER_POOL_SIZE = 8;
+	public static final int PREVIOUS = 9;
+	public static final int SEEK = 10;
+	public static final int PLAY_TRACK = 11;
+	public static final int SET_SHUFFLE = 12;
+	public static final int SET_REPEAT = 13;
+	public static final int ENQUEUE = 14;
+	public static final int PLAY_NEXT = 15;
+	public static final int REMOVE_QUEUED = 16;
+	public static final int MOVE_QUEUED = 17;
+	public static final int CLEAR_QUEUE = 18;
+	public static final int PLAY_STREAM = 19;
+	public static final int SET_PREFETCH_LEAD = 20;
+	public static final int SET_CROSSFADE = 21;
+
+	/** キューに積むコマンド。 */
+	public static class Command {
+		public final int type;
+		/** SKIP の場合は進める曲数、PREVIOUS の場合は戻る回数。 */
+		public int count = 1;
+		/** コマンドごとの整数の引数（SET_PLAYER_POOL_SIZE のサイズ、SEEK の位置、SET_REPEAT のモード、SET_PREFETCH_LEAD と SET_CROSSFADE の時間、再生キューの要素など）。 */
+		public int arg;
+		/** コマンドごとの真偽値の引数（STOP で Notification を消すか、SET_GAPLESS や SET_SHUFFLE の有効・無効など）。 */
+		public boolean flag;
+		/** PLAY_TRACK で再生する曲、ENQUEUE と PLAY_NEXT でキューに加える曲の _ID。 */
+		public long trackId = -1;
+		/** MOVE_QUEUED の移動先（この要素の後ろに移す。PlayQueue.NONE なら先頭）。 */
+		public int target = PlayQueue.NONE;
+		/** PLAY_STREAM で再生する曲の URL と曲名。 */
+		public String url;
+		public String title;
+		/** コマンドが要求された時刻。まとめられた場合は最初の要求の時刻が残る。 */
+		public long when;
+
+		public Command(int type, long when) {
+			this.type = type;
+			this.when = when;
+		}
+	}
+
+	private final ArrayDeque<Command> mQueue = new ArrayDeque<Command>();
+	private long mOffered;
+	private long mCoalesced;
+
+	/**
+	 * コマンドを積む。
+	 * @param command 積むコマンド
+	 * @return 積む前のキューが空だった場合は true。呼び出し側はこのときだけ処理を予約すればよい
+	 */
+	public synchronized boolean offer(Command command) {
+		boolean wasEmpty = mQueue.isEmpty();
+		mOffered++;
+		Command tail = mQueue.peekLast();
+		if (tail != null && command.type == PAUSE && tail.type == PLAY) {
+			// 再生してすぐ一時停止するなら、再生は実行しなくてよい。
+			// 一時停止は残す：すでに再生中なら再生は何もせず、一時停止だけが効くため
+			mQueue.pollLast();
+			mCoalesced++;
+			tail = mQueue.peekLast();
+		}
+		if (tail != null) {
+			if ((command.type == SKIP || command.type == PREVIOUS) && tail.type == command.type) {
+				tail.count += command.count;
+				mCoalesced++;
+				return false;
+			}
+			if (command.type == SEEK && tail.type == SEEK) {
+				// 連続したシークは最後の位置だけでよい
+				tail.arg = command.arg;
+				mCoalesced++;
+				return false;
+			}
+			if (command.type == PLAY_TRACK && tail.type == PLAY_TRACK) {
+				// 続けて選ばれた曲は最後の曲だけ再生すればよい
+				tail.trackId = command.trackId;
+				mCoalesced++;
+				return false;
+			}
+			if (command.type == tail.type && command.flag == tail.flag && isIdempotent(command.type)) {
+				mCoalesced++;
+				return false;
+			}
+		}
+		mQueue.addLast(command);
+		return wasEmpty;
+	}
+
+	/**
+	 * 先頭のコマンドを取り出す。
+	 * @return 先頭のコマンド。キューが空なら null
+	 */
+	public synchronized Command poll() {
+		return mQueue.pollFirst();
+	}
+
+	public synchronized int size() {
+		return mQueue.size();
+	}
+
+	public synchronized void clear() {
+		mQueue.clear();
+	}
+
+	/** これまでに積まれたコマンドの数。 */
+	public synchronized long getOfferedCount() {
+		return mOffered;
+	}
+
+	/** まとめられて実行されなかったコマンドの数。 */
+	public synchronized long getCoalescedCount() {
+		return mCoalesced;
+	}
+
+	private static boolean isIdempotent(int type) {
+		return type == PLAY || type == PAUSE || type == REWIND || type == STOP;
+	}
+}
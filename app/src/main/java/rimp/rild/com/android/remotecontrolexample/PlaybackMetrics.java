@@ -0,0 +1,184 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.io.PrintWriter;
+
+/**
+ * 再生の遅延やリソースの使用状況を集計するクラス。
+ * カウンタ、遅延のヒストグラム（2 のべき乗のバケット）、直近のイベントのリングバッファを持つ。
+ * 記録時にはオブジェクトを生成しないので、再生スレッドのどこからでも気軽に呼び出せる。
+ * 集計結果は {@link #dump(PrintWriter)} で出力する（MusicPlayerService.dump から dumpsys に出る）。
+ * どのスレッドから呼び出してもよい。
+ */
+public class PlaybackMetrics {
+	// カウンタ
+	public static final int COUNT_PREPARES = 0;
+	public static final int COUNT_WARM_STARTS = 1;
+	public static final int COUNT_REUSED = 2;
+	public static final int COUNT_STARTS = 3;
+	public static final int COUNT_SKIPS = 4;
+	public static final int COUNT_ERRORS = 5;
+	public static final int COUNT_NOTIFICATION_UPDATES = 6;
+	public static final int COUNT_LIBRARY_UPDATES = 7;
+	public static final int COUNT_WASTED_PREPARES = 8;
+	private static final String[] COUNTER_NAMES = {
+			"prepares", "warm starts", "reused prepared", "starts", "skips", "errors",
+			"notification updates", "library updates", "wasted prepares",
+	};
+
+	// 遅延（ミリ秒）
+	public static final int LATENCY_FIRST_AUDIO = 0;
+	public static final int LATENCY_PREPARE = 1;
+	public static final int LATENCY_SKIP = 2;
+	public static final int LATENCY_LIBRARY = 3;
+	public static final int LATENCY_COMMAND = 4;
+	private static final String[] LATENCY_NAMES = {
+			"time to first audio", "prepareAsync", "skip to audio", "library load", "command queue",
+	};
+
+	// イベント
+	public static final int EVENT_PREPARE = 0;
+	public static final int EVENT_PREPARED = 1;
+	public static final int EVENT_START = 2;
+	public static final int EVENT_SKIP = 3;
+	public static final int EVENT_ERROR = 4;
+	public static final int EVENT_LIBRARY = 5;
+	private static final String[] EVENT_NAMES = {
+			"prepare", "prepared", "start", "skip", "error", "library",
+	};
+
+	/** リングバッファに残すイベントの数。 */
+	public static final int EVENT_CAPACITY = 128;
+	// バケット i には [2^(i-1), 2^i) ミリ秒の値が入る（バケット 0 は 0 ミリ秒）
+	private static final int BUCKETS = 32;
+
+	private final long[] mCounters = new long[COUNTER_NAMES.length];
+
+	private final long[][] mHistograms = new long[LATENCY_NAMES.length][BUCKETS];
+	private final long[] mLatencyCount = new long[LATENCY_NAMES.length];
+	private final long[] mLatencySum = new long[LATENCY_NAMES.length];
+	private final long[] mLatencyMax = new long[LATENCY_NAMES.length];
+	private final long[] mLatencyLast = new long[LATENCY_NAMES.length];
+
+	private final long[] mEventTimes = new long[EVENT_CAPACITY];
+	private final int[] mEventTypes = new int[EVENT_CAPACITY];
+	private final long[] mEventValues = new long[EVENT_CAPACITY];
+	private int mEventNext = 0;
+	private int mEventCount = 0;
+
+	private final PlaybackClock mClock;
+	private final long mCreatedAt;
+
+	public PlaybackMetrics() {
+		this(PlaybackClock.SYSTEM);
+	}
+
+	public PlaybackMetrics(PlaybackClock clock) {
+		mClock = clock;
+		mCreatedAt = clock.elapsedRealtime();
+	}
+
+	/** カウンタを 1 増やす。 */
+	public void count(int counter) {
+		count(counter, 1);
+	}
+
+	public synchronized void count(int counter, long delta) {
+		mCounters[counter] += delta;
+	}
+
+	public synchronized long getCount(int counter) {
+		return mCounters[counter];
+	}
+
+	/**
+	 * 遅延を記録する。
+	 * @param latency LATENCY_* のいずれか
+	 * @param millis 遅延（ミリ秒）
+	 */
+	public synchronized void recordLatency(int latency, long millis) {
+		if (millis < 0) {
+			return;
+		}
+		mHistograms[latency][bucketOf(millis)]++;
+		mLatencyCount[latency]++;
+		mLatencySum[latency] += millis;
+		mLatencyMax[latency] = Math.max(mLatencyMax[latency], millis);
+		mLatencyLast[latency] = millis;
+	}
+
+	/** 開始時刻（PlaybackClock.elapsedRealtime()）から今までを遅延として記録する。開始時刻が 0 なら何もしない。 */
+	public void recordSince(int latency, long startTime) {
+		if (startTime != 0) {
+			recordLatency(latency, mClock.elapsedRealtime() - startTime);
+		}
+	}
+
+	public synchronized long getLatencyCount(int latency) {
+		return mLatencyCount[latency];
+	}
+
+	public synchronized long getAverageLatency(int latency) {
+		return mLatencyCount[latency] == 0 ? 0 : mLatencySum[latency] / mLatencyCount[latency];
+	}
+
+	public synchronized long getLastLatency(int latency) {
+		return mLatencyLast[latency];
+	}
+
+	/**
+	 * イベントを記録する。
+	 * @param event EVENT_* のいずれか
+	 * @param value イベントごとの値（曲の _ID など）
+	 */
+	public synchronized void event(int event, long value) {
+		mEventTimes[mEventNext] = mClock.elapsedRealtime();
+		mEventTypes[mEventNext] = event;
+		mEventValues[mEventNext] = value;
+		mEventNext = (mEventNext + 1) % EVENT_CAPACITY;
+		mEventCount = Math.min(mEventCount + 1, EVENT_CAPACITY);
+	}
+
+	/** 集計結果を出力する。 */
+	public synchronized void dump(PrintWriter pw) {
+		long now = mClock.elapsedRealtime();
+		pw.println("  uptime: " + (now - mCreatedAt) + "ms");
+		pw.println("  counters:");
+		for (int i = 0; i < mCounters.length; i++) {
+			pw.println("    " + COUNTER_NAMES[i] + ": " + mCounters[i]);
+		}
+		pw.println("  latencies (ms):");
+		for (int i = 0; i < mHistograms.length; i++) {
+			long count = mLatencyCount[i];
+			pw.print("    " + LATENCY_NAMES[i] + ": n=" + count);
+			if (count > 0) {
+				pw.print(" avg=" + mLatencySum[i] / count + " last=" + mLatencyLast[i] + " max=" + mLatencyMax[i]
+						+ " p50<" + percentile(i, 50) + " p90<" + percentile(i, 90) + " p99<" + percentile(i, 99));
+			}
+			pw.println();
+		}
+		pw.println("  recent events:");
+		int start = (mEventNext - mEventCount + EVENT_CAPACITY) % EVENT_CAPACITY;
+		for (int i = 0; i < mEventCount; i++) {
+			int e = (start + i) % EVENT_CAPACITY;
+			pw.println("    -" + (now - mEventTimes[e]) + "ms " + EVENT_NAMES[mEventTypes[e]] + " " + mEventValues[e]);
+		}
+	}
+
+	/** percent % の値が入るバケットの上限を返す。 */
+	private long percentile(int latency, int percent) {
+		long target = (mLatencyCount[latency] * percent + 99) / 100;
+		long seen = 0;
+		long[] histogram = mHistograms[latency];
+		for (int b = 0; b < BUCKETS; b++) {
+			seen += histogram[b];
+			if (seen >= target) {
+				return 1L << b;
+			}
+		}
+		return mLatencyMax[latency];
+	}
+
+	private static int bucketOf(long millis) {
+		return Math.min(64 - Long.numberOfLeadingZeros(millis), BUCKETS - 1);
+	}
+}
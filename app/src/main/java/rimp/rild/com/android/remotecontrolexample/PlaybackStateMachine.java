@@ -0,0 +1,225 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.util.Log;
+
+import rimp.rild.com.android.remotecontrolexample.MusicPlayerService.State;
+
+/**
+ * MusicPlayerService の再生状態を、遷移表に従って変えるクラス。
+ * 状態は AtomicReference で持つので、どのスレッドからでも読める。
+ * 表に無い遷移は拒否し、同じ状態への遷移は何もしない（no-op）として扱う。
+ * 拒否や no-op も含めた直近の遷移は、上限付きの履歴に残る。
+ */
+public class PlaybackStateMachine {
+	private static final String TAG = "PlaybackStateMachine";
+
+	/** 遷移した。 */
+	public static final int MOVED = 0;
+	/** すでにその状態だったので何もしなかった。 */
+	public static final int NOOP = 1;
+	/** 表に無い遷移なので拒否した。 */
+	public static final int REJECTED = 2;
+
+	/** 履歴に残す遷移の数。 */
+	public static final int LOG_SIZE = 64;
+
+	// 遷移表。TRANSITIONS[from][to] が true なら遷移できる
+	private static final boolean[][] TRANSITIONS;
+	static {
+		int n = State.values().length;
+		TRANSITIONS = new boolean[n][n];
+		allow(State.Retrieving, State.Stopped);
+		allow(State.Stopped, State.Retrieving, State.Preparing);
+		allow(State.Preparing, State.Playing, State.Stopped);
+		allow(State.Playing, State.Paused, State.Stopped);
+		allow(State.Paused, State.Playing, State.Stopped);
+	}
+
+	private static void allow(State from, State... to) {
+		for (State s : to) {
+			TRANSITIONS[from.ordinal()][s.ordinal()] = true;
+		}
+	}
+
+	/** 履歴の 1 件。 */
+	public static class Transition {
+		public State from;
+		public State to;
+		/** MOVED、NOOP、REJECTED のいずれか。 */
+		public int result;
+		public String reason;
+		/** PlaybackClock.elapsedRealtime() の値。 */
+		public long time;
+
+		@Override
+		public String toString() {
+			return time + " " + from + " -> " + to + " " + resultName(result) + " (" + reason + ")";
+		}
+	}
+
+	private final AtomicReference<State> mState;
+	private final PlaybackClock mClock;
+	private final boolean mLogRejections;
+
+	// 履歴はリングバッファ。要素は使い回す
+	private final Transition[] mLog = new Transition[LOG_SIZE];
+	private int mLogNext = 0;
+	private int mLogCount = 0;
+	private long mMovedCount;
+	private long mNoopCount;
+	private long mRejectedCount;
+
+	public PlaybackStateMachine(State initial) {
+		this(initial, PlaybackClock.SYSTEM, true);
+	}
+
+	/**
+	 * 端末の外（JVM 上の負荷試験など）で使う場合のコンストラクタ。拒否した遷移は Log に出さず、履歴にだけ残す。
+	 * @param initial 最初の状態
+	 * @param clock 履歴の時刻に使う時計
+	 */
+	public PlaybackStateMachine(State initial, PlaybackClock clock) {
+		this(initial, clock, false);
+	}
+
+	private PlaybackStateMachine(State initial, PlaybackClock clock, boolean logRejections) {
+		mState = new AtomicReference<State>(initial);
+		mClock = clock;
+		mLogRejections = logRejections;
+		for (int i = 0; i < LOG_SIZE; i++) {
+			mLog[i] = new Transition();
+		}
+	}
+
+	/** 表に従って from から to へ遷移できるかどうかを返す。 */
+	public static boolean isAllowed(State from, State to) {
+		return TRANSITIONS[from.ordinal()][to.ordinal()];
+	}
+
+	public State get() {
+		return mState.get();
+	}
+
+	/**
+	 * 現在の状態から to へ遷移する。
+	 * @param to 遷移先
+	 * @param reason 履歴に残す理由
+	 * @return MOVED、NOOP、REJECTED のいずれか
+	 */
+	public int moveTo(State to, String reason) {
+		while (true) {
+			State from = mState.get();
+			if (from == to) {
+				record(from, to, NOOP, reason);
+				return NOOP;
+			}
+			if (!isAllowed(from, to)) {
+				record(from, to, REJECTED, reason);
+				return REJECTED;
+			}
+			if (mState.compareAndSet(from, to)) {
+				record(from, to, MOVED, reason);
+				return MOVED;
+			}
+		}
+	}
+
+	/**
+	 * 現在の状態が from の場合に限って to へ遷移する。
+	 * @param from 遷移できる元の状態
+	 * @param to 遷移先
+	 * @param reason 履歴に残す理由
+	 * @return MOVED、NOOP（すでに to だった）、REJECTED（from でも to でもなかった）のいずれか
+	 */
+	public int moveTo(State from, State to, String reason) {
+		if (mState.compareAndSet(from, to)) {
+			record(from, to, MOVED, reason);
+			return MOVED;
+		}
+		State current = mState.get();
+		int result = current == to ? NOOP : REJECTED;
+		record(current, to, result, reason);
+		return result;
+	}
+
+	/**
+	 * 状態は変えずに、無駄な処理を避けたことを履歴に残す（準備済みの曲の準備し直しなど）。
+	 * @param reason 履歴に残す理由
+	 */
+	public void recordNoop(String reason) {
+		State current = mState.get();
+		record(current, current, NOOP, reason);
+	}
+
+	/** 履歴を古い順に返す。 */
+	public List<String> getLog() {
+		synchronized (mLog) {
+			List<String> log = new ArrayList<String>(mLogCount);
+			int start = (mLogNext - mLogCount + LOG_SIZE) % LOG_SIZE;
+			for (int i = 0; i < mLogCount; i++) {
+				log.add(mLog[(start + i) % LOG_SIZE].toString());
+			}
+			return log;
+		}
+	}
+
+	public long getMovedCount() {
+		synchronized (mLog) {
+			return mMovedCount;
+		}
+	}
+
+	public long getNoopCount() {
+		synchronized (mLog) {
+			return mNoopCount;
+		}
+	}
+
+	public long getRejectedCount() {
+		synchronized (mLog) {
+			return mRejectedCount;
+		}
+	}
+
+	private void record(State from, State to, int result, String reason) {
+		if (result == REJECTED && mLogRejections) {
+			Log.w(TAG, "rejected " + from + " -> " + to + " (" + reason + ")");
+		}
+		synchronized (mLog) {
+			Transition t = mLog[mLogNext];
+			t.from = from;
+			t.to = to;
+			t.result = result;
+			t.reason = reason;
+			t.time = mClock.elapsedRealtime();
+			mLogNext = (mLogNext + 1) % LOG_SIZE;
+			mLogCount = Math.min(mLogCount + 1, LOG_SIZE);
+			switch (result) {
+			case MOVED:
+				mMovedCount++;
+				break;
+			case NOOP:
+				mNoopCount++;
+				break;
+			default:
+				mRejectedCount++;
+				break;
+			}
+		}
+	}
+
+	private static String resultName(int result) {
+		switch (result) {
+		case MOVED:
+			return "moved";
+		case NOOP:
+			return "no-op";
+		default:
+			return "rejected";
+		}
+	}
+}
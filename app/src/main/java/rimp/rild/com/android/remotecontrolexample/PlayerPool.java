@@ -0,0 +1,218 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.os.PowerManager;
+import android.util.Log;
+
+/**
+ * 前後の曲をあらかじめ prepare しておく MediaPlayer のプール。
+ * スキップ時はここから準備済みの MediaPlayer を取り出すだけで再生を始められる。
+ * 同時に保持する MediaPlayer の数（＝デコーダなどのハンドル数）は capacity で制限する。
+ */
+public class PlayerPool implements MediaPlayer.OnPreparedListener, MediaPlayer.OnErrorListener {
+	private static final String TAG = "PlayerPool";
+
+	/** プール内の MediaPlayer の準備ができたことを受け取るリスナー。 */
+	public interface Listener {
+		/**
+		 * プール内の MediaPlayer の準備ができたときに呼び出される。
+		 * @param id 準備ができた曲の _ID
+		 */
+		public void onPlayerWarmed(long id);
+	}
+
+	private static class Entry {
+		final long id;
+		final MediaPlayer player;
+		boolean prepared;
+
+		Entry(long id, MediaPlayer player, boolean prepared) {
+			this.id = id;
+			this.player = player;
+			this.prepared = prepared;
+		}
+	}
+
+	private final Context mContext;
+	private final Listener mListener;
+	private final List<Entry> mEntries = new ArrayList<Entry>();
+	private int mCapacity;
+
+	public PlayerPool(Context context, int capacity, Listener listener) {
+		mContext = context;
+		mCapacity = Math.max(capacity, 0);
+		mListener = listener;
+	}
+
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	/**
+	 * 保持する MediaPlayer の上限を変える。上限を超えた分は古いものから解放する。
+	 * @param capacity 同時に保持する MediaPlayer の数
+	 */
+	public void setCapacity(int capacity) {
+		mCapacity = Math.max(capacity, 0);
+		while (mEntries.size() > mCapacity) {
+			release(mEntries.remove(0));
+		}
+	}
+
+	public int size() {
+		return mEntries.size();
+	}
+
+	/**
+	 * 指定した曲の MediaPlayer を用意する。並びは優先順で、上限に収まらない曲や
+	 * 指定されなかった曲の MediaPlayer は解放する。
+	 * @param items 曲リスト
+	 * @param indices 用意する曲の位置（優先順）
+	 * @param count indices のうち有効な数
+	 */
+	public void warm(TrackStore items, int[] indices, int count) {
+		int wanted = Math.min(count, mCapacity);
+
+		// 不要になったものを先に解放して、ハンドルを空ける
+		for (Iterator<Entry> it = mEntries.iterator(); it.hasNext();) {
+			Entry entry = it.next();
+			if (!contains(items, indices, wanted, entry.id)) {
+				it.remove();
+				release(entry);
+			}
+		}
+
+		for (int i = 0; i < wanted && mEntries.size() < mCapacity; i++) {
+			long id = items.getId(indices[i]);
+			if (find(id) != null) {
+				continue;
+			}
+			MediaPlayer player = newPlayer();
+			try {
+				player.setDataSource(mContext, items.getURI(indices[i]));
+				player.prepareAsync();
+				mEntries.add(new Entry(id, player, false));
+			} catch (IOException e) {
+				Log.e(TAG, "IOException warming " + id + ": " + e.getMessage());
+				player.release();
+			}
+		}
+	}
+
+	/**
+	 * 準備済みの MediaPlayer を返す。プールからは取り除かない。
+	 * @param id 曲の _ID
+	 * @return 準備済みの MediaPlayer。無い、またはまだ準備中なら null
+	 */
+	public MediaPlayer peek(long id) {
+		Entry entry = find(id);
+		return entry != null && entry.prepared ? entry.player : null;
+	}
+
+	/**
+	 * 準備済みの MediaPlayer をプールから取り出す。以降のリスナーの設定と解放は呼び出し側が行う。
+	 * まだ準備中の場合は取り出さずに null を返す。
+	 * @param id 曲の _ID
+	 * @return 準備済みの MediaPlayer、または null
+	 */
+	public MediaPlayer take(long id) {
+		Entry entry = find(id);
+		if (entry == null || !entry.prepared) {
+			return null;
+		}
+		mEntries.remove(entry);
+		return entry.player;
+	}
+
+	/**
+	 * 再生し終えた（または止めた）準備済みの MediaPlayer をプールに戻す。
+	 * 空きが無い場合はそのまま解放する。
+	 * @param id 曲の _ID
+	 * @param player 準備済みの MediaPlayer
+	 */
+	public void put(long id, MediaPlayer player) {
+		Entry existing = find(id);
+		if (existing != null || mEntries.size() >= mCapacity) {
+			player.release();
+			return;
+		}
+		listen(player);
+		mEntries.add(new Entry(id, player, true));
+	}
+
+	/** 保持しているすべての MediaPlayer を解放する。 */
+	public void clear() {
+		for (Entry entry : mEntries) {
+			release(entry);
+		}
+		mEntries.clear();
+	}
+
+	@Override
+	public void onPrepared(MediaPlayer player) {
+		for (Entry entry : mEntries) {
+			if (entry.player == player) {
+				entry.prepared = true;
+				mListener.onPlayerWarmed(entry.id);
+				return;
+			}
+		}
+	}
+
+	@Override
+	public boolean onError(MediaPlayer player, int what, int extra) {
+		Log.e(TAG, "Error warming player: what=" + what + ", extra=" + extra);
+		for (Iterator<Entry> it = mEntries.iterator(); it.hasNext();) {
+			Entry entry = it.next();
+			if (entry.player == player) {
+				it.remove();
+				release(entry);
+				break;
+			}
+		}
+		return true;
+	}
+
+	private MediaPlayer newPlayer() {
+		MediaPlayer player = new MediaPlayer();
+		player.setWakeMode(mContext, PowerManager.PARTIAL_WAKE_LOCK);
+		player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+		listen(player);
+		return player;
+	}
+
+	private void listen(MediaPlayer player) {
+		player.setOnPreparedListener(this);
+		player.setOnErrorListener(this);
+		player.setOnCompletionListener(null);
+	}
+
+	private Entry find(long id) {
+		for (Entry entry : mEntries) {
+			if (entry.id == id) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	private static boolean contains(TrackStore items, int[] indices, int count, long id) {
+		for (int i = 0; i < count; i++) {
+			if (items.getId(indices[i]) == id) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void release(Entry entry) {
+		entry.player.release();
+	}
+}
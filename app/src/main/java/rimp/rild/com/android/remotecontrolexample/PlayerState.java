@@ -0,0 +1,179 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * MusicPlayerService の状態のスナップショット。
+ * 再生位置は「ある時刻（anchorTime）での位置」として持つので、再生中に位置が進むだけでは変化にならない。
+ * 受け取った側は {@link #getPositionAt(long)} で現在の位置を求める。
+ */
+public class PlayerState implements Parcelable {
+	/** 曲（_ID、アーティスト、アルバム、曲名、長さ）が変わった。 */
+	public static final int CHANGED_TRACK = 1;
+	/** 再生状態が変わった。 */
+	public static final int CHANGED_STATE = 1 << 1;
+	/** 再生位置の基準が変わった（シーク、一時停止、再開など）。 */
+	public static final int CHANGED_POSITION = 1 << 2;
+	public static final int CHANGED_ALL = CHANGED_TRACK | CHANGED_STATE | CHANGED_POSITION;
+
+	// 進み具合から予想した位置とのずれがこれ以下なら、位置は変わっていないとみなす
+	private static final long POSITION_TOLERANCE = 250;
+
+	private final long mTrackId;
+	private final String mArtist;
+	private final String mAlbum;
+	private final long mAlbumId;
+	private final String mTitle;
+	private final long mDuration;
+	private final MusicPlayerService.State mState;
+	private final long mPosition;
+	private final long mAnchorTime;
+
+	/**
+	 * @param trackId 曲の _ID。曲が無ければ -1
+	 * @param artist アーティスト
+	 * @param album アルバム
+	 * @param albumId アルバムの _ID。アルバムアートの取得に使う
+	 * @param title 曲名
+	 * @param duration 曲の長さ（ミリ秒）
+	 * @param state 再生状態
+	 * @param position anchorTime の時点での再生位置（ミリ秒）
+	 * @param anchorTime position を取得した時刻（SystemClock.elapsedRealtime()）
+	 */
+	public PlayerState(long trackId, String artist, String album, long albumId, String title, long duration,
+			MusicPlayerService.State state, long position, long anchorTime) {
+		mTrackId = trackId;
+		mArtist = artist;
+		mAlbum = album;
+		mAlbumId = albumId;
+		mTitle = title;
+		mDuration = duration;
+		mState = state;
+		mPosition = position;
+		mAnchorTime = anchorTime;
+	}
+
+	public long getTrackId() {
+		return mTrackId;
+	}
+
+	public String getArtist() {
+		return mArtist;
+	}
+
+	public String getAlbum() {
+		return mAlbum;
+	}
+
+	public long getAlbumId() {
+		return mAlbumId;
+	}
+
+	public String getTitle() {
+		return mTitle;
+	}
+
+	public long getDuration() {
+		return mDuration;
+	}
+
+	public MusicPlayerService.State getState() {
+		return mState;
+	}
+
+	public boolean isPlaying() {
+		return mState == MusicPlayerService.State.Playing;
+	}
+
+	public long getPosition() {
+		return mPosition;
+	}
+
+	public long getAnchorTime() {
+		return mAnchorTime;
+	}
+
+	/**
+	 * 指定した時刻での再生位置を返す。再生中なら基準の時刻からの経過分だけ進める。
+	 * @param now SystemClock.elapsedRealtime() の値
+	 * @return 再生位置（ミリ秒）
+	 */
+	public long getPositionAt(long now) {
+		return isPlaying() ? mPosition + (now - mAnchorTime) : mPosition;
+	}
+
+	/**
+	 * 以前のスナップショットと比べて、変わった項目を返す。
+	 * @param previous 以前のスナップショット。null ならすべて変わったものとする
+	 * @return CHANGED_* の組み合わせ。変わっていなければ 0
+	 */
+	public int diff(PlayerState previous) {
+		if (previous == null) {
+			return CHANGED_ALL;
+		}
+		int changes = 0;
+		if (mTrackId != previous.mTrackId || mDuration != previous.mDuration || mAlbumId != previous.mAlbumId
+				|| !equals(mArtist, previous.mArtist) || !equals(mAlbum, previous.mAlbum)
+				|| !equals(mTitle, previous.mTitle)) {
+			changes |= CHANGED_TRACK;
+		}
+		if (mState != previous.mState) {
+			changes |= CHANGED_STATE;
+		}
+		if (isPlaying() != previous.isPlaying()
+				|| Math.abs(mPosition - previous.getPositionAt(mAnchorTime)) > POSITION_TOLERANCE) {
+			changes |= CHANGED_POSITION;
+		}
+		return changes;
+	}
+
+	private static boolean equals(String a, String b) {
+		// 文字列は TrackStore の文字列表を共有しているので、たいていは参照の比較で済む
+		return a == b || (a != null && a.equals(b));
+	}
+
+	@Override
+	public int describeContents() {
+		return 0;
+	}
+
+	@Override
+	public void writeToParcel(Parcel dest, int flags) {
+		dest.writeLong(mTrackId);
+		dest.writeString(mArtist);
+		dest.writeString(mAlbum);
+		dest.writeLong(mAlbumId);
+		dest.writeString(mTitle);
+		dest.writeLong(mDuration);
+		dest.writeInt(mState.ordinal());
+		dest.writeLong(mPosition);
+		dest.writeLong(mAnchorTime);
+	}
+
+	public static final Parcelable.Creator<PlayerState> CREATOR = new Parcelable.Creator<PlayerState>() {
+		@Override
+		public PlayerState createFromParcel(Parcel source) {
+			return new PlayerState(source.readLong(), source.readString(), source.readString(),
+					source.readLong(), source.readString(), source.readLong(),
+					MusicPlayerService.State.values()[source.readInt()],
+					source.readLong(), source.readLong());
+		}
+
+		@Override
+		public PlayerState[] newArray(int size) {
+			return new PlayerState[size];
+		}
+	};
+
+	/** MusicPlayerService の状態の変化を受け取るリスナー。 */
+	public interface Listener {
+		/**
+		 * 状態が変わったときに、MusicPlayerService の再生スレッドから呼び出される。
+		 * 登録した直後にも、その時点の状態が CHANGED_ALL で一度呼び出される。
+		 * @param state 新しい状態
+		 * @param changes 変わった項目（CHANGED_* の組み合わせ）
+		 */
+		public void onPlayerStateChanged(PlayerState state, int changes);
+	}
+}
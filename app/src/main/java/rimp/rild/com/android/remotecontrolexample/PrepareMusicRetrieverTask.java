@@ -1,31 +1,74 @@
 package rimp.rild.com.android.remotecontrolexample;
 
-import java.util.List;
-
 import android.content.Context;
 import android.os.AsyncTask;
 
 /**
  * 外部ストレージから音楽ファイルを探すための非同期タスク。
+ * 保存済みのインデックスがあれば先にそれを通知し、MediaStore との差分があれば反映後のリストを改めて通知する。
+ * インデックスが無い場合は最初のページを先に通知し、全件を読み終えてからソート済みのリストを改めて通知する。
+ * 最初のページは曲リストの一部でしかないので、complete を false にして通知する。
  */
-public class PrepareMusicRetrieverTask extends AsyncTask<Context, Void, List<Item>> {
+public class PrepareMusicRetrieverTask extends AsyncTask<Context, TrackStore, TrackStore> {
 	private MusicRetrieverPreparedListener mListener;
+	// 先に通知した最初のページ。曲リストの一部でしかない
+	private TrackStore mFirstPage;
 
 	public PrepareMusicRetrieverTask(MusicRetrieverPreparedListener listener) {
 		mListener = listener;
 	}
 
 	@Override
-	protected List<Item> doInBackground(Context... arg) {
-		return Item.getItems(arg[0]);
+	protected TrackStore doInBackground(Context... arg) {
+		Context context = arg[0];
+		TrackStore indexed = LibraryIndex.load(context);
+		if (indexed != null) {
+			publishProgress(indexed);
+			TrackStore updated = LibraryIndex.reconcile(context, indexed);
+			if (updated != null) {
+				LibraryIndex.save(context, updated);
+			}
+			return updated;
+		}
+
+		// インデックスが無い場合は MediaStore をページ単位で読み、
+		// 最初のページが揃った時点で先に通知して再生を始められるようにする
+		TrackStore.Builder builder = new TrackStore.Builder();
+		int read = Item.queryPage(context, -1, Item.PAGE_SIZE, builder);
+		if (read > 0) {
+			mFirstPage = builder.build();
+			publishProgress(mFirstPage);
+		}
+		while (read == Item.PAGE_SIZE && !isCancelled()) {
+			read = Item.queryPage(context, builder.lastId(), Item.PAGE_SIZE, builder);
+		}
+
+		// 見つかる順番はソートされていないため、アルバム単位でソートする
+		TrackStore items = builder.build();
+		LibraryIndex.save(context, items);
+		return items;
+	}
+
+	@Override
+	protected void onProgressUpdate(TrackStore... values) {
+		mListener.onMusicRetrieverPrepared(values[0], values[0] != mFirstPage);
 	}
 
 	@Override
-	protected void onPostExecute(List<Item> result) {
-		mListener.onMusicRetrieverPrepared(result);
+	protected void onPostExecute(TrackStore result) {
+		if (result != null) {
+			mListener.onMusicRetrieverPrepared(result, true);
+		}
 	}
 
 	public interface MusicRetrieverPreparedListener {
-		public void onMusicRetrieverPrepared(List<Item> items);
+		/**
+		 * 曲リストが用意できたときに呼び出される。
+		 * インデックスや最初のページだけを先に通知した場合は、全体が揃ったときにもう一度呼び出される。
+		 * @param items ソート済みの曲リスト
+		 * @param complete 曲リストが全体かどうか。最初のページだけなら false で、
+		 *                 そこに無い曲が MediaStore から消えたとは限らない
+		 */
+		public void onMusicRetrieverPrepared(TrackStore items, boolean complete);
 	}
 }
@@ -0,0 +1,132 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.View;
+import android.widget.AdapterView;
+import android.widget.AdapterView.OnItemClickListener;
+import android.widget.AdapterView.OnItemLongClickListener;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.ListView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+/**
+ * アーティスト名、アルバム名、曲名で曲を探す画面。
+ * 1 文字入力するたびに SearchIndex を引き直し、選んだ曲はサービスで直接再生する。
+ * 長押しした曲は再生キューの末尾に加える。
+ */
+public class SearchActivity extends Activity implements TextWatcher, OnItemClickListener, OnItemLongClickListener,
+		PrepareMusicRetrieverTask.MusicRetrieverPreparedListener, MusicLibrary.SearchIndexListener {
+	private EditText mQuery;
+	private TextView mStatus;
+	private ArrayAdapter<String> mAdapter;
+	private MusicLibrary mLibrary;
+	private TrackStore mItems;
+	private long[] mHits = new long[0];
+
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		setContentView(R.layout.search);
+
+		mQuery = (EditText) findViewById(R.id.query);
+		mStatus = (TextView) findViewById(R.id.search_status);
+		mAdapter = new ArrayAdapter<String>(this, android.R.layout.simple_list_item_1);
+		ListView results = (ListView) findViewById(R.id.results);
+		results.setAdapter(mAdapter);
+		results.setOnItemClickListener(this);
+		results.setOnItemLongClickListener(this);
+		mQuery.addTextChangedListener(this);
+
+		mLibrary = MusicLibrary.getInstance(this);
+	}
+
+	@Override
+	protected void onResume() {
+		super.onResume();
+		mLibrary.addListener(this);
+		mLibrary.addSearchIndexListener(this);
+		mItems = mLibrary.getItems();
+		// if the library is released, loading it again also rebuilds the index
+		mLibrary.load(this);
+		search();
+	}
+
+	@Override
+	protected void onPause() {
+		super.onPause();
+		mLibrary.removeListener(this);
+		mLibrary.removeSearchIndexListener(this);
+	}
+
+	@Override
+	public void onMusicRetrieverPrepared(TrackStore items, boolean complete) {
+		mItems = items;
+	}
+
+	@Override
+	public void onSearchIndexUpdated(SearchIndex index) {
+		search();
+	}
+
+	@Override
+	public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+	}
+
+	@Override
+	public void onTextChanged(CharSequence s, int start, int before, int count) {
+	}
+
+	@Override
+	public void afterTextChanged(Editable s) {
+		search();
+	}
+
+	@Override
+	public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+		Intent intent = new Intent(MusicPlayerService.ACTION_PLAY_TRACK);
+		intent.putExtra(MusicPlayerService.EXTRA_TRACK_ID, mHits[position]);
+		startService(intent);
+	}
+
+	@Override
+	public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
+		Intent intent = new Intent(MusicPlayerService.ACTION_ENQUEUE);
+		intent.putExtra(MusicPlayerService.EXTRA_TRACK_ID, mHits[position]);
+		startService(intent);
+		Toast.makeText(this, getString(R.string.search_queued, mAdapter.getItem(position)), Toast.LENGTH_SHORT).show();
+		return true;
+	}
+
+	private void search() {
+		SearchIndex index = mLibrary.getSearchIndex();
+		if (index.size() == 0) {
+			mStatus.setText(R.string.search_indexing);
+			return;
+		}
+		long start = System.nanoTime();
+		long[] hits = index.search(mQuery.getText().toString(), SearchIndex.DEFAULT_LIMIT);
+		long micros = (System.nanoTime() - start) / 1000;
+
+		// the index can run a little ahead of the library we were handed; skip what we cannot show
+		int count = 0;
+		mAdapter.setNotifyOnChange(false);
+		mAdapter.clear();
+		for (long hit : hits) {
+			int i = mItems == null ? -1 : mItems.indexOf(hit);
+			if (i < 0) {
+				continue;
+			}
+			hits[count++] = hit;
+			mAdapter.add(mItems.getTitle(i) + " - " + mItems.getArtist(i) + " / " + mItems.getAlbum(i));
+		}
+		mAdapter.notifyDataSetChanged();
+		mHits = hits;
+		mStatus.setText(getString(R.string.search_status, count, index.size(), micros));
+	}
+}
@@ -0,0 +1,507 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * アーティスト名、アルバム名、曲名から曲を探す索引。
+ * 各欄を正規化（互換分解して結合文字を除き、小文字にし、カタカナをひらがなにそろえる）して語に分け、
+ * 語から曲の _ID への表を TreeMap で持つ。検索語は語の前方一致で探すので、入力途中の文字列でも見つかる。
+ * 漢字や仮名を含む語は区切りが無いことが多いので、その語のすべての接尾辞も登録し、語の途中からでも見つかるようにする。
+ * 曲リストが変わった場合は {@link #update(TrackStore)} で差分だけを反映する。
+ *
+ * 検索は、更新が終わるたびに作り直す読み取り専用の索引（{@link Snapshot}）を volatile な参照から読むだけで、ロックを取らない。
+ * そのため、バックグラウンドで大きな曲リストを反映している間でも、UI スレッドからの検索は待たされない
+ * （反映が終わるまでは前の索引で探す）。
+ * 作り直すときは、変わった語の _ID と、変わった曲を含むバケツだけをコピーし、残りは前の索引と共有する。
+ * どのスレッドから呼び出してもよい。更新どうしは順に行う。
+ */
+public class SearchIndex {
+	/** 検索結果の既定の上限。 */
+	public static final int DEFAULT_LIMIT = 100;
+
+	private static final long[] EMPTY = new long[0];
+	// 接尾辞を登録する語の長さの上限。これより長い部分は前方一致でしか見つからない
+	private static final int MAX_SUFFIX_TOKEN = 24;
+	// 曲の語の表を分けるバケツの数（2 の累乗）。作り直すときは、変わった曲を含むバケツだけをコピーする
+	private static final int DOC_BUCKETS = 256;
+
+	/**
+	 * 語を含む曲の _ID の集合。順序は保たない。
+	 * 「song」のようにほとんどの曲に現れる語では削除のたびに全体を探すことになるので、
+	 * 大きくなった集合だけは _ID から位置への表も持つ。
+	 */
+	private static class Postings {
+		private static final int INDEXED_SIZE = 64;
+
+		long[] ids = new long[2];
+		int size;
+		private HashMap<Long, Integer> positions;
+
+		void add(long id) {
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			ids[size++] = id;
+			if (positions != null) {
+				positions.put(id, size - 1);
+			} else if (size > INDEXED_SIZE) {
+				positions = new HashMap<Long, Integer>(size * 2);
+				for (int i = 0; i < size; i++) {
+					positions.put(ids[i], i);
+				}
+			}
+		}
+
+		void remove(long id) {
+			int i;
+			if (positions != null) {
+				Integer position = positions.remove(id);
+				if (position == null) {
+					return;
+				}
+				i = position;
+			} else {
+				for (i = 0; i < size && ids[i] != id; i++) {
+				}
+				if (i == size) {
+					return;
+				}
+			}
+			long last = ids[--size];
+			if (i != size) {
+				ids[i] = last;
+				if (positions != null) {
+					positions.put(last, i);
+				}
+			}
+		}
+	}
+
+	/** 登録した曲。変更の検出用に、正規化する前の各欄も持つ。 */
+	private static class Doc {
+		final String artist;
+		final String album;
+		final String title;
+		final String[] tokens;
+		int generation;
+
+		Doc(String artist, String album, String title, String[] tokens) {
+			this.artist = artist;
+			this.album = album;
+			this.title = title;
+			this.tokens = tokens;
+		}
+
+		boolean sameAs(String artist, String album, String title) {
+			return equals(this.artist, artist) && equals(this.album, album) && equals(this.title, title);
+		}
+
+		private static boolean equals(String a, String b) {
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+
+	/**
+	 * 検索に使う読み取り専用の索引。語は昇順に並べ、前方一致の範囲は二分探索で求める。
+	 * 作った後は変更しないので、どのスレッドからでもロック無しで読める。
+	 */
+	private static class Snapshot {
+		static final Snapshot EMPTY = new Snapshot(new String[0], new long[0][], emptyBuckets(), 0);
+
+		final String[] keys;
+		final long[][] ids;
+		// 曲の _ID から語への表。bucket(id) 番目のバケツに入れる
+		final HashMap<Long, String[]>[] docs;
+		final int size;
+
+		Snapshot(String[] keys, long[][] ids, HashMap<Long, String[]>[] docs, int size) {
+			this.keys = keys;
+			this.ids = ids;
+			this.docs = docs;
+			this.size = size;
+		}
+
+		String[] tokens(long id) {
+			return docs[bucket(id)].get(id);
+		}
+
+		/** 語の位置。無ければ -1。 */
+		int indexOf(String key) {
+			int k = lowerBound(key);
+			return k < keys.length && keys[k].equals(key) ? k : -1;
+		}
+
+		/** prefix 以上の最初の語の位置。 */
+		int lowerBound(String prefix) {
+			int low = 0;
+			int high = keys.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (keys[mid].compareTo(prefix) < 0) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+	}
+
+	// 以下は更新用で、this のロックを持っている間だけ触る
+	private final TreeMap<String, Postings> mTokens = new TreeMap<String, Postings>();
+	private final HashMap<Long, Doc> mDocs = new HashMap<Long, Doc>();
+	private int mGeneration;
+	// 前に作った索引から、_ID が変わった語（増えた語と無くなった語を含む）
+	private final HashSet<String> mDirtyKeys = new HashSet<String>();
+	// 前に作った索引から変わったバケツの、変更後の中身。変わっていなければ null
+	private final HashMap<Long, String[]>[] mDirtyDocs = newBuckets();
+
+	// 検索に使う索引。更新が終わるたびに差し替える
+	private volatile Snapshot mSnapshot = Snapshot.EMPTY;
+
+	/**
+	 * 曲リストとの差分を反映する。無くなった曲を除き、増えた曲と欄が変わった曲を登録し直す。
+	 * @return 登録または削除した曲の数
+	 */
+	public synchronized int update(TrackStore store) {
+		int generation = ++mGeneration;
+		int changed = 0;
+		for (int i = 0, n = store.size(); i < n; i++) {
+			long id = store.getId(i);
+			String artist = store.getArtist(i);
+			String album = store.getAlbum(i);
+			String title = store.getTitle(i);
+			Doc doc = mDocs.get(id);
+			if (doc != null && doc.sameAs(artist, album, title)) {
+				doc.generation = generation;
+				continue;
+			}
+			if (doc != null) {
+				unindex(id, doc);
+			}
+			add(id, artist, album, title, generation);
+			changed++;
+		}
+		for (Iterator<Map.Entry<Long, Doc>> it = mDocs.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Long, Doc> entry = it.next();
+			if (entry.getValue().generation != generation) {
+				unindex(entry.getKey(), entry.getValue());
+				it.remove();
+				changed++;
+			}
+		}
+		if (changed > 0) {
+			publish();
+		}
+		return changed;
+	}
+
+	/** 曲を登録する。同じ _ID の曲があれば置き換える。検索用の索引を作り直すので、まとめて登録する場合は update を使うこと。 */
+	public synchronized void add(long id, String artist, String album, String title) {
+		Doc doc = mDocs.remove(id);
+		if (doc != null) {
+			unindex(id, doc);
+		}
+		add(id, artist, album, title, mGeneration);
+		publish();
+	}
+
+	/** 曲を削除する。 */
+	public synchronized void remove(long id) {
+		Doc doc = mDocs.remove(id);
+		if (doc != null) {
+			unindex(id, doc);
+			publish();
+		}
+	}
+
+	public synchronized void clear() {
+		mTokens.clear();
+		mDocs.clear();
+		mDirtyKeys.clear();
+		Arrays.fill(mDirtyDocs, null);
+		mSnapshot = Snapshot.EMPTY;
+	}
+
+	/** 登録されている曲の数。 */
+	public int size() {
+		return mSnapshot.size;
+	}
+
+	/** 登録されている語（接尾辞を含む）の数。 */
+	public int getTokenCount() {
+		return mSnapshot.keys.length;
+	}
+
+	/**
+	 * 曲を探す。検索語を正規化して語に分け、すべての語をいずれかの欄の語の先頭（漢字や仮名を含む語では途中も）に含む曲を返す。
+	 * 候補のいちばん少ない検索語の候補から順に調べ、上限に達したらそこで止める。
+	 * @param query 入力された文字列
+	 * @param limit 返す曲の数の上限
+	 * @return 見つかった曲の _ID
+	 */
+	public long[] search(String query, int limit) {
+		String[] terms = tokenize(query);
+		if (terms.length == 0 || limit <= 0) {
+			return EMPTY;
+		}
+		// read the snapshot once so that the whole query sees the same index
+		Snapshot snapshot = mSnapshot;
+		// walk the candidates of the rarest term and check them against the rest
+		String driver = terms[0];
+		int fewest = Integer.MAX_VALUE;
+		for (String term : terms) {
+			int count = countUpTo(snapshot, term, fewest);
+			if (count < fewest) {
+				fewest = count;
+				driver = term;
+			}
+		}
+		long[] hits = new long[Math.min(limit, snapshot.size)];
+		int count = 0;
+		HashSet<Long> seen = new HashSet<Long>();
+		for (int k = snapshot.lowerBound(driver), end = snapshot.lowerBound(driver + Character.MAX_VALUE); k < end; k++) {
+			long[] ids = snapshot.ids[k];
+			for (long id : ids) {
+				if (!seen.add(id) || (terms.length > 1 && !matchesAll(snapshot.tokens(id), terms))) {
+					continue;
+				}
+				hits[count++] = id;
+				if (count == hits.length) {
+					return hits;
+				}
+			}
+		}
+		return count == hits.length ? hits : Arrays.copyOf(hits, count);
+	}
+
+	/** prefix で始まる語を含む曲の延べ数を、cap を上限に数える。 */
+	private static int countUpTo(Snapshot snapshot, String prefix, int cap) {
+		int count = 0;
+		for (int k = snapshot.lowerBound(prefix), end = snapshot.lowerBound(prefix + Character.MAX_VALUE); k < end; k++) {
+			count += snapshot.ids[k].length;
+			if (count >= cap) {
+				return cap;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * 前の索引に、変わった語とバケツだけを反映して新しい索引を作り、差し替える。
+	 * 語が増えも減りもしていなければ語の配列はそのまま共有し、そうでなければ前の語の並びと変わった語を併合する。
+	 */
+	private void publish() {
+		Snapshot old = mSnapshot;
+		boolean keysChanged = false;
+		for (String key : mDirtyKeys) {
+			if ((old.indexOf(key) >= 0) != mTokens.containsKey(key)) {
+				keysChanged = true;
+				break;
+			}
+		}
+		String[] keys;
+		long[][] ids;
+		if (!keysChanged) {
+			keys = old.keys;
+			ids = old.ids.clone();
+			for (String key : mDirtyKeys) {
+				int k = old.indexOf(key);
+				// a key both added and removed since is in neither
+				if (k >= 0) {
+					ids[k] = copy(mTokens.get(key));
+				}
+			}
+		} else {
+			String[] dirty = mDirtyKeys.toArray(new String[mDirtyKeys.size()]);
+			Arrays.sort(dirty);
+			keys = new String[mTokens.size()];
+			ids = new long[keys.length][];
+			int i = 0;
+			int j = 0;
+			int k = 0;
+			while (i < old.keys.length || j < dirty.length) {
+				int order = i == old.keys.length ? 1 : (j == dirty.length ? -1 : old.keys[i].compareTo(dirty[j]));
+				if (order < 0) {
+					keys[k] = old.keys[i];
+					ids[k++] = old.ids[i++];
+					continue;
+				}
+				if (order == 0) {
+					i++;
+				}
+				String key = dirty[j++];
+				Postings postings = mTokens.get(key);
+				if (postings != null) {
+					keys[k] = key;
+					ids[k++] = copy(postings);
+				}
+			}
+		}
+		HashMap<Long, String[]>[] docs = old.docs.clone();
+		for (int b = 0; b < DOC_BUCKETS; b++) {
+			if (mDirtyDocs[b] != null) {
+				docs[b] = mDirtyDocs[b];
+				mDirtyDocs[b] = null;
+			}
+		}
+		mDirtyKeys.clear();
+		mSnapshot = new Snapshot(keys, ids, docs, mDocs.size());
+	}
+
+	private static long[] copy(Postings postings) {
+		return Arrays.copyOf(postings.ids, postings.size);
+	}
+
+	private static int bucket(long id) {
+		return (int) (id ^ (id >>> 32)) & (DOC_BUCKETS - 1);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static HashMap<Long, String[]>[] newBuckets() {
+		return new HashMap[DOC_BUCKETS];
+	}
+
+	private static HashMap<Long, String[]>[] emptyBuckets() {
+		HashMap<Long, String[]>[] buckets = newBuckets();
+		for (int b = 0; b < DOC_BUCKETS; b++) {
+			buckets[b] = new HashMap<Long, String[]>();
+		}
+		return buckets;
+	}
+
+	/** 曲の入るバケツの、次の索引で使う中身。まだ変えていなければ、前の索引のものをコピーする。 */
+	private HashMap<Long, String[]> dirtyDocs(long id) {
+		int b = bucket(id);
+		if (mDirtyDocs[b] == null) {
+			mDirtyDocs[b] = new HashMap<Long, String[]>(mSnapshot.docs[b]);
+		}
+		return mDirtyDocs[b];
+	}
+
+	private void add(long id, String artist, String album, String title, int generation) {
+		List<String> tokens = new ArrayList<String>();
+		tokenize(artist, tokens);
+		tokenize(album, tokens);
+		tokenize(title, tokens);
+		Doc doc = new Doc(artist, album, title, tokens.toArray(new String[tokens.size()]));
+		doc.generation = generation;
+		mDocs.put(id, doc);
+		dirtyDocs(id).put(id, doc.tokens);
+		for (String token : doc.tokens) {
+			int suffixes = hasWideChars(token) ? Math.min(token.length(), MAX_SUFFIX_TOKEN) : 1;
+			for (int i = 0; i < suffixes; i++) {
+				String key = token.substring(i);
+				Postings postings = mTokens.get(key);
+				if (postings == null) {
+					postings = new Postings();
+					mTokens.put(key, postings);
+				}
+				if (postings.size == 0 || postings.ids[postings.size - 1] != id) {
+					postings.add(id);
+					mDirtyKeys.add(key);
+				}
+			}
+		}
+	}
+
+	private void unindex(long id, Doc doc) {
+		dirtyDocs(id).remove(id);
+		for (String token : doc.tokens) {
+			int suffixes = hasWideChars(token) ? Math.min(token.length(), MAX_SUFFIX_TOKEN) : 1;
+			for (int i = 0; i < suffixes; i++) {
+				String key = token.substring(i);
+				Postings postings = mTokens.get(key);
+				if (postings == null) {
+					continue;
+				}
+				postings.remove(id);
+				mDirtyKeys.add(key);
+				if (postings.size == 0) {
+					mTokens.remove(key);
+				}
+			}
+		}
+	}
+
+	private static boolean matchesAll(String[] tokens, String[] terms) {
+		for (String term : terms) {
+			boolean found = false;
+			for (String token : tokens) {
+				if (token.startsWith(term) || (hasWideChars(token) && token.contains(term))) {
+					found = true;
+					break;
+				}
+			}
+			if (!found) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isAscii(String text) {
+		for (int i = 0, n = text.length(); i < n; i++) {
+			if (text.charAt(i) >= 0x80) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** 漢字や仮名など、語を空白で区切らない文字を含むかどうか。 */
+	private static boolean hasWideChars(String token) {
+		for (int i = 0; i < token.length(); i++) {
+			if (token.charAt(i) >= '\u2E80') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** 文字列を正規化して語に分ける。 */
+	public static String[] tokenize(String text) {
+		List<String> tokens = new ArrayList<String>();
+		tokenize(text, tokens);
+		return tokens.toArray(new String[tokens.size()]);
+	}
+
+	private static void tokenize(String text, List<String> out) {
+		if (text == null || text.length() == 0) {
+			return;
+		}
+		String decomposed = isAscii(text) ? text : Normalizer.normalize(text, Normalizer.Form.NFKD);
+		StringBuilder token = new StringBuilder();
+		for (int i = 0, n = decomposed.length(); i < n; i++) {
+			char c = decomposed.charAt(i);
+			int type = Character.getType(c);
+			if (type == Character.NON_SPACING_MARK || type == Character.COMBINING_SPACING_MARK
+					|| type == Character.ENCLOSING_MARK) {
+				continue;
+			}
+			if (!Character.isLetterOrDigit(c) && c != '\u30FC') {
+				if (token.length() > 0) {
+					out.add(token.toString());
+					token.setLength(0);
+				}
+				continue;
+			}
+			if (c >= '\u30A1' && c <= '\u30F6') {
+				// katakana -> hiragana
+				c -= 0x60;
+			}
+			token.append(Character.toLowerCase(c));
+		}
+		if (token.length() > 0) {
+			out.add(token.toString());
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * ストリーミングで取得したデータを固定長のセグメントごとにファイルとして保存する、容量に上限のあるディスクキャッシュ。
+ * セグメントは「ストリームのキーとセグメント番号」で指し、1 セグメントが 1 ファイルになる。
+ * 合計が上限を超えたら、最後に使ってから最も時間のたったセグメントから捨てる。
+ * 使った順はメモリ上に持ち、起動時はファイルの更新時刻から組み立て直す。
+ * 書き込みは一時ファイルに書いてから置き換えるので、途中で落ちても壊れたセグメントは残らない。
+ * どのスレッドから呼び出してもよい。
+ */
+public class SegmentCache {
+	private static final String TAG = "SegmentCache";
+	private static final String TMP_SUFFIX = ".tmp";
+
+	/** ストリームの情報（長さや Content-Type）を保存するときのセグメント番号。 */
+	public static final int INFO = -1;
+
+	private final File mDir;
+	private final long mMaxBytes;
+	// file name -> size, least recently used first
+	private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private long mBytes = 0;
+	private long mHits = 0;
+	private long mMisses = 0;
+
+	/**
+	 * @param dir キャッシュのディレクトリ。無ければ作る
+	 * @param maxBytes 合計の上限（バイト）
+	 */
+	public SegmentCache(File dir, long maxBytes) {
+		mDir = dir;
+		mMaxBytes = maxBytes;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			Log.w(TAG, "Cannot create " + dir);
+		}
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long x = a.lastModified();
+				long y = b.lastModified();
+				return x < y ? -1 : (x == y ? 0 : 1);
+			}
+		});
+		for (File file : files) {
+			if (file.getName().endsWith(TMP_SUFFIX)) {
+				file.delete();
+			} else {
+				mEntries.put(file.getName(), file.length());
+				mBytes += file.length();
+			}
+		}
+		trim();
+	}
+
+	/**
+	 * セグメントを読む。
+	 * @param key ストリームのキー（ファイル名に使える文字だけ）
+	 * @param index セグメント番号
+	 * @return セグメントのデータ。無ければ null
+	 */
+	public byte[] get(String key, int index) {
+		String name = name(key, index);
+		synchronized (this) {
+			if (mEntries.get(name) == null) {
+				mMisses++;
+				return null;
+			}
+			mHits++;
+		}
+		File file = new File(mDir, name);
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			byte[] data = new byte[(int) file.length()];
+			int read = 0;
+			while (read < data.length) {
+				int n = in.read(data, read, data.length - read);
+				if (n < 0) {
+					throw new IOException("truncated " + name);
+				}
+				read += n;
+			}
+			return data;
+		} catch (IOException e) {
+			// evicted (or removed) meanwhile
+			forget(name);
+			return null;
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	/**
+	 * セグメントを保存する。上限を超えたら古いセグメントを捨てる。
+	 * @param key ストリームのキー
+	 * @param index セグメント番号
+	 * @param data データ
+	 * @param length data の先頭から保存する長さ
+	 */
+	public void put(String key, int index, byte[] data, int length) {
+		if (length > mMaxBytes) {
+			return;
+		}
+		String name = name(key, index);
+		File file = new File(mDir, name);
+		File tmp = new File(mDir, name + "." + Thread.currentThread().getId() + TMP_SUFFIX);
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(tmp);
+			out.write(data, 0, length);
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				return;
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to write " + name + ": " + e.getMessage());
+			closeQuietly(out);
+			tmp.delete();
+			return;
+		}
+		synchronized (this) {
+			Long old = mEntries.put(name, (long) length);
+			mBytes += length - (old == null ? 0 : old);
+			trim();
+		}
+	}
+
+	/** セグメントを捨てる。途中で切れたファイルなど、使えないとわかったときに呼び出す。 */
+	public void remove(String key, int index) {
+		String name = name(key, index);
+		forget(name);
+		new File(mDir, name).delete();
+	}
+
+	/** セグメントがあるかどうか。使った順は変えない。 */
+	public synchronized boolean contains(String key, int index) {
+		return mEntries.containsKey(name(key, index));
+	}
+
+	/** 保存しているセグメントの合計（バイト）。 */
+	public synchronized long size() {
+		return mBytes;
+	}
+
+	public synchronized long getHitCount() {
+		return mHits;
+	}
+
+	public synchronized long getMissCount() {
+		return mMisses;
+	}
+
+	/** すべてのセグメントを捨てる。 */
+	public void clear() {
+		List<String> names;
+		synchronized (this) {
+			names = new ArrayList<String>(mEntries.keySet());
+			mEntries.clear();
+			mBytes = 0;
+		}
+		for (String name : names) {
+			new File(mDir, name).delete();
+		}
+	}
+
+	private void trim() {
+		Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+		while (mBytes > mMaxBytes && it.hasNext()) {
+			Map.Entry<String, Long> eldest = it.next();
+			it.remove();
+			mBytes -= eldest.getValue();
+			new File(mDir, eldest.getKey()).delete();
+		}
+	}
+
+	private synchronized void forget(String name) {
+		Long size = mEntries.remove(name);
+		if (size != null) {
+			mBytes -= size;
+		}
+	}
+
+	private static String name(String key, int index) {
+		return index == INFO ? key + ".info" : key + "-" + index;
+	}
+
+	private static void closeQuietly(Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+/**
+ * {@link SessionSnapshot} を優先度の低い専用のスレッドで保存するクラス。
+ * 保存は fsync を含むので、再生スレッドでは行わない。
+ * 保存の要求は delay の間まとめ、その間の最後のスナップショットだけを書く。
+ * {@link #save} はどのスレッドから呼び出してもよい。
+ */
+public class SessionSaver {
+	private static final String TAG = "SessionSaver";
+
+	/** 保存の要求をまとめる時間の既定値（ミリ秒）。 */
+	public static final long DEFAULT_DELAY = 1000;
+
+	private final Context mContext;
+	private final long mDelay;
+	private final HandlerThread mThread;
+	private final Handler mHandler;
+
+	// まだ書いていない最新のスナップショット。無ければ null
+	private SessionSnapshot mPending = null;
+	private long mRequested = 0;
+	private long mWritten = 0;
+
+	private final Runnable mWrite = new Runnable() {
+		@Override
+		public void run() {
+			write();
+		}
+	};
+
+	/**
+	 * 既定の時間で要求をまとめる SessionSaver を作る。
+	 * @param context コンテキスト
+	 */
+	public SessionSaver(Context context) {
+		this(context, DEFAULT_DELAY);
+	}
+
+	/**
+	 * @param context コンテキスト
+	 * @param delay 保存の要求をまとめる時間（ミリ秒）
+	 */
+	public SessionSaver(Context context, long delay) {
+		mContext = context;
+		mDelay = Math.max(delay, 0);
+		mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+		mThread.start();
+		mHandler = new Handler(mThread.getLooper());
+	}
+
+	/**
+	 * スナップショットの保存を要求する。delay 後に、それまでに要求された最後のものを書く。
+	 * @param snapshot 保存するスナップショット
+	 */
+	public void save(SessionSnapshot snapshot) {
+		boolean schedule;
+		synchronized (this) {
+			schedule = mPending == null;
+			mPending = snapshot;
+			mRequested++;
+		}
+		if (schedule) {
+			mHandler.postDelayed(mWrite, mDelay);
+		}
+	}
+
+	/** まだ書いていないスナップショットを待たずに書いてから、スレッドを終える。 */
+	public void quit() {
+		mHandler.removeCallbacks(mWrite);
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				write();
+				mThread.quit();
+			}
+		});
+	}
+
+	/** 保存を要求された回数。 */
+	public synchronized long getRequestedCount() {
+		return mRequested;
+	}
+
+	/** 実際に書いた回数。 */
+	public synchronized long getWrittenCount() {
+		return mWritten;
+	}
+
+	private void write() {
+		SessionSnapshot snapshot;
+		synchronized (this) {
+			snapshot = mPending;
+			mPending = null;
+		}
+		if (snapshot != null && snapshot.save(mContext)) {
+			synchronized (this) {
+				mWritten++;
+			}
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * 再生中の曲と位置をアプリ領域に保存しておくための小さなスナップショット。
+ * プロセスが終了した後にサービスが起動し直したときは、曲リストの読み込みを待たずにこれを読み込み、
+ * 同じ曲の同じ位置から再生を再開できるようにする。
+ * シャッフルとリピートの設定、シャッフルの並びを決める seed と周回も保存するので、同じ並びの続きから再生できる。
+ * 書き込みは一時停止・停止・曲の切り替えなど状態が変わったときだけ、{@link SessionSaver} を通じてバックグラウンドで行う。
+ */
+public class SessionSnapshot {
+	private static final String TAG = "SessionSnapshot";
+	private static final String FILE_NAME = "session.snap";
+	private static final int MAGIC = 0x52435353; // "RCSS"
+	private static final int VERSION = 3;
+	// 再生順の設定が無かった版と、前の周回のずらし幅が無かった版。読み込みだけ対応する
+	private static final int VERSION_WITHOUT_ORDER = 1;
+	private static final int VERSION_WITHOUT_PREVIOUS_OFFSET = 2;
+
+	/** 曲の _ID。 */
+	public final long trackId;
+	/** 曲リスト（再生順）の中での位置。曲が見つからない場合の代わりに使う。 */
+	public final int queueIndex;
+	/** 保存したときの曲リストの曲数。 */
+	public final int queueSize;
+	/** 再生位置（ミリ秒）。 */
+	public final long position;
+	/** 保存したときの再生状態。 */
+	public final MusicPlayerService.State state;
+	public final String artist;
+	public final String album;
+	public final long albumId;
+	public final String title;
+	public final long duration;
+	/** シャッフルしていたかどうか。 */
+	public final boolean shuffle;
+	/** リピートの設定（PlayOrder.REPEAT_*）。 */
+	public final int repeat;
+	/** シャッフルの並びを決める種、周回、並びのずらし幅、その前の周回のずらし幅（PlayOrder の getter の値）。 */
+	public final long shuffleSeed;
+	public final int shuffleCycle;
+	public final int shuffleOffsetCycle;
+	public final int shuffleOffset;
+	public final int shufflePreviousOffset;
+
+	public SessionSnapshot(long trackId, int queueIndex, int queueSize, long position, MusicPlayerService.State state,
+			String artist, String album, long albumId, String title, long duration, boolean shuffle, int repeat,
+			long shuffleSeed, int shuffleCycle, int shuffleOffsetCycle, int shuffleOffset, int shufflePreviousOffset) {
+		this.trackId = trackId;
+		this.queueIndex = queueIndex;
+		this.queueSize = queueSize;
+		this.position = position;
+		this.state = state;
+		this.artist = artist;
+		this.album = album;
+		this.albumId = albumId;
+		this.title = title;
+		this.duration = duration;
+		this.shuffle = shuffle;
+		this.repeat = repeat;
+		this.shuffleSeed = shuffleSeed;
+		this.shuffleCycle = shuffleCycle;
+		this.shuffleOffsetCycle = shuffleOffsetCycle;
+		this.shuffleOffset = shuffleOffset;
+		this.shufflePreviousOffset = shufflePreviousOffset;
+	}
+
+	/**
+	 * サービスの状態からスナップショットを作る。
+	 * @param state 現在の状態
+	 * @param now state の再生位置を求める時刻（SystemClock.elapsedRealtime()）
+	 * @param queueIndex 曲リストの中での位置
+	 * @param queueSize 曲リストの曲数
+	 * @param order 再生順
+	 */
+	public static SessionSnapshot of(PlayerState state, long now, int queueIndex, int queueSize, PlayOrder order) {
+		return new SessionSnapshot(state.getTrackId(), queueIndex, queueSize, state.getPositionAt(now),
+				state.getState(), state.getArtist(), state.getAlbum(), state.getAlbumId(), state.getTitle(),
+				state.getDuration(), order.isShuffle(), order.getRepeat(), order.getSeed(), order.getCycle(),
+				order.getOffsetCycle(), order.getOffset(), order.getPreviousOffset());
+	}
+
+	/** 保存した再生順の設定を order に戻す。曲数は呼び出し側で合わせること。 */
+	public void restoreOrder(PlayOrder order) {
+		order.restore(shuffle, repeat, shuffleSeed, shuffleCycle, shuffleOffsetCycle, shuffleOffset,
+				shufflePreviousOffset);
+	}
+
+	/**
+	 * 保存した曲だけを含む曲リストを作る。本当の曲リストが読み込まれるまでの間に使う。
+	 */
+	public TrackStore toTrackStore() {
+		return new TrackStore.Builder(1).addTrack(trackId, artist, null, title, album, albumId, 0, duration, 0).build();
+	}
+
+	private static File getFile(Context context) {
+		return new File(context.getFilesDir(), FILE_NAME);
+	}
+
+	/**
+	 * 保存済みのスナップショットを読み込む。
+	 * @param context コンテキスト
+	 * @return スナップショット。無い、または壊れている場合は null
+	 */
+	public static SessionSnapshot load(Context context) {
+		File file = getFile(context);
+		if (!file.exists()) {
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			int version = in.readInt() == MAGIC ? in.readInt() : -1;
+			if (version != VERSION && version != VERSION_WITHOUT_ORDER && version != VERSION_WITHOUT_PREVIOUS_OFFSET) {
+				Log.w(TAG, "Unknown snapshot format, ignoring " + file);
+				return null;
+			}
+			long trackId = in.readLong();
+			int queueIndex = in.readInt();
+			int queueSize = in.readInt();
+			long position = in.readLong();
+			int state = in.readInt();
+			String artist = readString(in);
+			String album = readString(in);
+			long albumId = in.readLong();
+			String title = readString(in);
+			long duration = in.readLong();
+			boolean shuffle = false;
+			int repeat = PlayOrder.REPEAT_ALL;
+			long shuffleSeed = 0;
+			int shuffleCycle = 0;
+			int shuffleOffsetCycle = 0;
+			int shuffleOffset = 0;
+			int shufflePreviousOffset = 0;
+			if (version != VERSION_WITHOUT_ORDER) {
+				shuffle = in.readBoolean();
+				repeat = in.readInt();
+				shuffleSeed = in.readLong();
+				shuffleCycle = in.readInt();
+				shuffleOffsetCycle = in.readInt();
+				shuffleOffset = in.readInt();
+			}
+			if (version == VERSION) {
+				shufflePreviousOffset = in.readInt();
+			}
+			MusicPlayerService.State[] states = MusicPlayerService.State.values();
+			if (state < 0 || state >= states.length) {
+				return null;
+			}
+			return new SessionSnapshot(trackId, queueIndex, queueSize, position, states[state],
+					artist, album, albumId, title, duration, shuffle, repeat, shuffleSeed, shuffleCycle,
+					shuffleOffsetCycle, shuffleOffset, shufflePreviousOffset);
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to read session snapshot: " + e.getMessage());
+			return null;
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	/**
+	 * スナップショットを保存する。一時ファイルに書いてから置き換えるので、
+	 * 書き込み途中で落ちても前回のスナップショットは壊れない。
+	 * @param context コンテキスト
+	 * @return 保存できたかどうか
+	 */
+	public boolean save(Context context) {
+		File file = getFile(context);
+		File tmp = new File(file.getPath() + ".tmp");
+
+		DataOutputStream out = null;
+		try {
+			FileOutputStream fos = new FileOutputStream(tmp);
+			out = new DataOutputStream(new BufferedOutputStream(fos));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(trackId);
+			out.writeInt(queueIndex);
+			out.writeInt(queueSize);
+			out.writeLong(position);
+			out.writeInt(state.ordinal());
+			writeString(out, artist);
+			writeString(out, album);
+			out.writeLong(albumId);
+			writeString(out, title);
+			out.writeLong(duration);
+			out.writeBoolean(shuffle);
+			out.writeInt(repeat);
+			out.writeLong(shuffleSeed);
+			out.writeInt(shuffleCycle);
+			out.writeInt(shuffleOffsetCycle);
+			out.writeInt(shuffleOffset);
+			out.writeInt(shufflePreviousOffset);
+			out.flush();
+			fos.getFD().sync();
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file)) {
+				Log.w(TAG, "Failed to replace " + file);
+				tmp.delete();
+				return false;
+			}
+			return true;
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to write session snapshot: " + e.getMessage());
+			closeQuietly(out);
+			tmp.delete();
+			return false;
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null) {
+			out.writeUTF(s);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void closeQuietly(Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
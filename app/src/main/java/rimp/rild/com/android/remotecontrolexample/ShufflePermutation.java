@@ -0,0 +1,99 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+/**
+ * 0 から size - 1 までの整数を並べ替える、seed で決まる置換。
+ * 並べ替えた結果を配列に持たず、Feistel 構造のブロック暗号（4 ラウンド）で位置から値を計算する。
+ * 2 のべき乗の範囲で暗号化し、size 以上の値になったら size 未満になるまで暗号化を繰り返す（cycle walking）。
+ * 範囲は size の 4 倍未満なので、繰り返しは平均 4 回未満で済み、位置から値、値から位置のどちらも O(1) で求まる。
+ */
+public class ShufflePermutation {
+	private static final int ROUNDS = 4;
+
+	private final int mSize;
+	private final int mHalfBits;
+	private final long mHalfMask;
+	private final int[] mKeys = new int[ROUNDS];
+
+	/**
+	 * @param size 並べ替える整数の数
+	 * @param seed 並びを決める種。同じ size と seed からは同じ並びができる
+	 */
+	public ShufflePermutation(int size, long seed) {
+		mSize = size;
+		int bits = 2;
+		while (bits < 32 && (1L << bits) < size) {
+			bits += 2;
+		}
+		mHalfBits = bits / 2;
+		mHalfMask = (1L << mHalfBits) - 1;
+		long state = seed;
+		for (int i = 0; i < ROUNDS; i++) {
+			state += 0x9E3779B97F4A7C15L;
+			mKeys[i] = (int) (mix64(state) >>> 32);
+		}
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	/** position 番目の値を返す。 */
+	public int get(int position) {
+		if (mSize <= 1) {
+			return position;
+		}
+		long x = position;
+		do {
+			x = encrypt(x);
+		} while (x >= mSize);
+		return (int) x;
+	}
+
+	/** value が何番目にあるかを返す（{@link #get} の逆）。 */
+	public int indexOf(int value) {
+		if (mSize <= 1) {
+			return value;
+		}
+		long x = value;
+		do {
+			x = decrypt(x);
+		} while (x >= mSize);
+		return (int) x;
+	}
+
+	private long encrypt(long x) {
+		long left = x >>> mHalfBits;
+		long right = x & mHalfMask;
+		for (int i = 0; i < ROUNDS; i++) {
+			long next = left ^ (round(right, mKeys[i]) & mHalfMask);
+			left = right;
+			right = next;
+		}
+		return (left << mHalfBits) | right;
+	}
+
+	private long decrypt(long x) {
+		long left = x >>> mHalfBits;
+		long right = x & mHalfMask;
+		for (int i = ROUNDS - 1; i >= 0; i--) {
+			long previous = right ^ (round(left, mKeys[i]) & mHalfMask);
+			right = left;
+			left = previous;
+		}
+		return (left << mHalfBits) | right;
+	}
+
+	private static long round(long half, int key) {
+		int h = (int) half * 0x9E3779B1 ^ key;
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		return h & 0xffffffffL;
+	}
+
+	private static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
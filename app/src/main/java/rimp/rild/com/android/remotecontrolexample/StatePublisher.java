@@ -0,0 +1,139 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * MusicPlayerService の状態を Notification、RemoteControlClient、バインドしたクライアントへ届けるクラス。
+ * 状態が変わったことは {@link #invalidate()} で知らせるだけで、短い時間枠の中の変化はまとめて 1 回で届ける。
+ * 届ける前に最後に届けた状態と比べ、変わった項目が無ければ何も届けない。
+ * すべてのメソッドは Handler のスレッドから呼び出すこと（{@link #removeListener} を除く）。
+ */
+public class StatePublisher {
+	/** 変化をまとめる時間枠（ミリ秒）。画面の数フレーム分。 */
+	public static final long DEFAULT_WINDOW = 50;
+
+	/** 届ける状態を作るもの。 */
+	public interface Source {
+		/**
+		 * 現在の状態を返す。
+		 * @return 現在の状態のスナップショット
+		 */
+		public PlayerState snapshot();
+	}
+
+	private final Handler mHandler;
+	private final Source mSource;
+	private final long mWindow;
+	private final CopyOnWriteArrayList<PlayerState.Listener> mListeners = new CopyOnWriteArrayList<PlayerState.Listener>();
+
+	// 最後に届けた状態。まだ届けていなければ null
+	private PlayerState mPublished;
+	private boolean mPending = false;
+
+	private long mRequestedCount;
+	private long mPublishedCount;
+	private long mSuppressedCount;
+
+	private final Runnable mPublish = new Runnable() {
+		@Override
+		public void run() {
+			mPending = false;
+			publish();
+		}
+	};
+
+	public StatePublisher(Handler handler, Source source) {
+		this(handler, source, DEFAULT_WINDOW);
+	}
+
+	public StatePublisher(Handler handler, Source source, long window) {
+		mHandler = handler;
+		mSource = source;
+		mWindow = window;
+	}
+
+	/** 状態が変わったかもしれないことを知らせる。時間枠の終わりにまとめて届ける。 */
+	public void invalidate() {
+		mRequestedCount++;
+		if (mPending) {
+			mSuppressedCount++;
+			return;
+		}
+		mPending = true;
+		mHandler.postAtTime(mPublish, SystemClock.uptimeMillis() + mWindow);
+	}
+
+	/** 時間枠の終わりを待たずに、保留している変化をすぐに届ける。 */
+	public void flush() {
+		if (!mPending) {
+			return;
+		}
+		mHandler.removeCallbacks(mPublish);
+		mPending = false;
+		publish();
+	}
+
+	/** 保留している変化を届けずに取り消す。 */
+	public void cancel() {
+		mHandler.removeCallbacks(mPublish);
+		mPending = false;
+	}
+
+	/**
+	 * リスナーを登録する。登録した直後に、その時点の状態を CHANGED_ALL で一度届ける。
+	 * @param listener 登録するリスナー
+	 */
+	public void addListener(PlayerState.Listener listener) {
+		flush();
+		if (!mListeners.addIfAbsent(listener)) {
+			return;
+		}
+		if (mPublished == null) {
+			publish();
+		} else {
+			listener.onPlayerStateChanged(mPublished, PlayerState.CHANGED_ALL);
+		}
+	}
+
+	/** リスナーの登録を解除する。どのスレッドから呼び出してもよい。 */
+	public void removeListener(PlayerState.Listener listener) {
+		mListeners.remove(listener);
+	}
+
+	/** 最後に届けた状態を返す。まだ届けていなければ null。 */
+	public PlayerState getPublished() {
+		return mPublished;
+	}
+
+	/** {@link #invalidate()} が呼び出された回数。 */
+	public long getRequestedCount() {
+		return mRequestedCount;
+	}
+
+	/** 実際に状態を届けた回数。 */
+	public long getPublishedCount() {
+		return mPublishedCount;
+	}
+
+	/** 時間枠でまとめられた、または変化が無かったために届けなかった回数。 */
+	public long getSuppressedCount() {
+		return mSuppressedCount;
+	}
+
+	private void publish() {
+		PlayerState state = mSource.snapshot();
+		int changes = state.diff(mPublished);
+		if (changes == 0) {
+			mSuppressedCount++;
+			return;
+		}
+		mPublished = state;
+		mPublishedCount++;
+		for (PlayerState.Listener listener : mListeners) {
+			listener.onPlayerStateChanged(state, changes);
+		}
+	}
+}
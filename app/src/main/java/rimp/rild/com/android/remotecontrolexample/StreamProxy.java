@@ -0,0 +1,330 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import android.util.Log;
+
+/**
+ * ネットワーク上の曲を MediaPlayer に渡すための、ループバックアドレスだけで待ち受ける HTTP サーバ。
+ * MediaPlayer にはこのサーバの URL を渡し、MediaPlayer からの（Range 付きの）リクエストには
+ * HttpStream を通して、キャッシュ済みのセグメントか、配信元から取得したセグメントで応答する。
+ * そのため、一度取得した範囲の再生し直しやシークでは配信元に問い合わせない。
+ * 応答するのは {@link #register} で登録した URL だけで、任意の URL を中継することはない。
+ */
+public class StreamProxy {
+	private static final String TAG = "StreamProxy";
+	// リクエストヘッダの 1 行の最大長
+	private static final int MAX_LINE = 8192;
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	private final SegmentCache mCache;
+	private final ConcurrentHashMap<String, HttpStream> mStreams = new ConcurrentHashMap<String, HttpStream>();
+	private final Set<Socket> mClients = Collections.synchronizedSet(new HashSet<Socket>());
+	private ExecutorService mConnectionExecutor;
+	private ExecutorService mReadAheadExecutor;
+	private ServerSocket mServer;
+	private Thread mAcceptThread;
+
+	/**
+	 * @param cache 取得したセグメントの保存先
+	 */
+	public StreamProxy(SegmentCache cache) {
+		mCache = cache;
+	}
+
+	/** 待ち受けを始める。ポートは空いているものが選ばれる。 */
+	public synchronized void start() throws IOException {
+		if (mServer != null) {
+			return;
+		}
+		mServer = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+		mConnectionExecutor = Executors.newCachedThreadPool(threads("StreamProxy-connection"));
+		mReadAheadExecutor = Executors.newFixedThreadPool(2, threads("StreamProxy-read-ahead"));
+		final ServerSocket server = mServer;
+		mAcceptThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept(server);
+			}
+		}, "StreamProxy");
+		mAcceptThread.start();
+	}
+
+	/** 待ち受けをやめ、応答中の接続も閉じる。 */
+	public synchronized void stop() {
+		if (mServer == null) {
+			return;
+		}
+		closeQuietly(mServer);
+		mServer = null;
+		synchronized (mClients) {
+			for (Socket client : mClients) {
+				closeQuietly(client);
+			}
+		}
+		mConnectionExecutor.shutdownNow();
+		mReadAheadExecutor.shutdownNow();
+		mStreams.clear();
+	}
+
+	public synchronized boolean isRunning() {
+		return mServer != null;
+	}
+
+	/**
+	 * 配信元の URL を登録し、MediaPlayer に渡す URL を返す。同じ URL は同じ HttpStream を使う。
+	 * @param url 配信元の URL（http または https）
+	 * @return このサーバ上の URL
+	 */
+	public synchronized String register(String url) throws IOException {
+		start();
+		String key = HttpStream.keyFor(url);
+		if (!mStreams.containsKey(key)) {
+			mStreams.put(key, new HttpStream(url, mCache, mReadAheadExecutor));
+		}
+		return "http://127.0.0.1:" + mServer.getLocalPort() + "/" + key;
+	}
+
+	/** 待ち受けているポート。止まっていれば -1。 */
+	public synchronized int getPort() {
+		return mServer == null ? -1 : mServer.getLocalPort();
+	}
+
+	public SegmentCache getCache() {
+		return mCache;
+	}
+
+	private void accept(ServerSocket server) {
+		while (!server.isClosed()) {
+			final Socket client;
+			try {
+				client = server.accept();
+			} catch (IOException e) {
+				// closed by stop()
+				break;
+			}
+			mClients.add(client);
+			try {
+				mConnectionExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							serve(client);
+						} catch (IOException e) {
+							// MediaPlayer closes the connection when it seeks or stops
+							Log.d(TAG, "connection ended: " + e.getMessage());
+						} finally {
+							mClients.remove(client);
+							closeQuietly(client);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				mClients.remove(client);
+				closeQuietly(client);
+			}
+		}
+	}
+
+	/** 1 つの接続で 1 つのリクエストに応答する。 */
+	private void serve(Socket client) throws IOException {
+		InputStream in = new BufferedInputStream(client.getInputStream(), MAX_LINE);
+		String requestLine = readLine(in);
+		if (requestLine == null) {
+			return;
+		}
+		String range = null;
+		String line;
+		while ((line = readLine(in)) != null && line.length() > 0) {
+			int colon = line.indexOf(':');
+			if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Range")) {
+				range = line.substring(colon + 1).trim();
+			}
+		}
+
+		OutputStream out = new BufferedOutputStream(client.getOutputStream(), HttpStream.SEGMENT_SIZE / 4);
+		String[] parts = requestLine.split(" ");
+		boolean head = parts.length > 0 && parts[0].equals("HEAD");
+		if (parts.length < 2 || !(head || parts[0].equals("GET"))) {
+			writeStatus(out, 405, "Method Not Allowed", 0);
+			out.write(CRLF);
+			out.flush();
+			return;
+		}
+		HttpStream stream = mStreams.get(parts[1].startsWith("/") ? parts[1].substring(1) : parts[1]);
+		if (stream == null) {
+			writeStatus(out, 404, "Not Found", 0);
+			out.write(CRLF);
+			out.flush();
+			return;
+		}
+		long length;
+		String contentType;
+		try {
+			length = stream.length();
+			contentType = stream.getContentType();
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot reach " + stream.getUrl() + ": " + e.getMessage());
+			writeStatus(out, 502, "Bad Gateway", 0);
+			out.write(CRLF);
+			out.flush();
+			return;
+		}
+
+		long[] bounds = parseRange(range, length);
+		if (bounds == null) {
+			writeStatus(out, 416, "Range Not Satisfiable", 0);
+			writeHeader(out, "Content-Range", "bytes */" + length);
+			out.write(CRLF);
+			out.flush();
+			return;
+		}
+		long start = bounds[0];
+		long end = bounds[1];
+		if (range != null) {
+			writeStatus(out, 206, "Partial Content", end - start + 1);
+			writeHeader(out, "Content-Range", "bytes " + start + "-" + end + "/" + length);
+		} else {
+			writeStatus(out, 200, "OK", end - start + 1);
+		}
+		writeHeader(out, "Content-Type", contentType != null ? contentType : "application/octet-stream");
+		writeHeader(out, "Accept-Ranges", "bytes");
+		out.write(CRLF);
+		if (!head && end >= start) {
+			for (int index = (int) (start / HttpStream.SEGMENT_SIZE); index <= end / HttpStream.SEGMENT_SIZE; index++) {
+				byte[] data = stream.read(index);
+				long segmentStart = (long) index * HttpStream.SEGMENT_SIZE;
+				int from = (int) Math.max(start - segmentStart, 0);
+				int to = (int) Math.min(end - segmentStart + 1, HttpStream.SEGMENT_SIZE);
+				if (data.length < to) {
+					// the length is already sent, so all we can do is end the response early
+					throw new IOException("segment " + index + " has " + data.length + " of " + to + " bytes");
+				}
+				out.write(data, from, to - from);
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * Range ヘッダ（bytes=first-last、bytes=first-、bytes=-suffix）を解釈する。
+	 * 複数の範囲の指定には対応せず、最初の範囲だけを使う。
+	 * @param range Range ヘッダの値。null ならファイル全体
+	 * @param length ファイルの長さ
+	 * @return 最初と最後のバイトの位置。応答できない範囲なら null
+	 */
+	static long[] parseRange(String range, long length) {
+		if (range == null) {
+			return new long[] { 0, length - 1 };
+		}
+		if (!range.startsWith("bytes=")) {
+			return null;
+		}
+		String spec = range.substring("bytes=".length());
+		int comma = spec.indexOf(',');
+		if (comma >= 0) {
+			spec = spec.substring(0, comma);
+		}
+		int dash = spec.indexOf('-');
+		if (dash < 0) {
+			return null;
+		}
+		try {
+			String first = spec.substring(0, dash).trim();
+			String last = spec.substring(dash + 1).trim();
+			long start;
+			long end;
+			if (first.length() == 0) {
+				long suffix = Long.parseLong(last);
+				if (suffix <= 0) {
+					return null;
+				}
+				start = Math.max(length - suffix, 0);
+				end = length - 1;
+			} else {
+				start = Long.parseLong(first);
+				end = last.length() == 0 ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+			}
+			if (start < 0 || start >= length || end < start) {
+				return null;
+			}
+			return new long[] { start, end };
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static void writeStatus(OutputStream out, int code, String reason, long contentLength)
+			throws IOException {
+		out.write(("HTTP/1.1 " + code + " " + reason + "\r\n").getBytes("US-ASCII"));
+		writeHeader(out, "Content-Length", String.valueOf(contentLength));
+		writeHeader(out, "Connection", "close");
+	}
+
+	private static void writeHeader(OutputStream out, String name, String value) throws IOException {
+		out.write((name + ": " + value + "\r\n").getBytes("US-ASCII"));
+	}
+
+	/** CRLF（または LF）で終わる 1 行を読む。行の前に接続が閉じられたら null。 */
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.read()) >= 0) {
+			if (c == '\n') {
+				int length = sb.length();
+				if (length > 0 && sb.charAt(length - 1) == '\r') {
+					sb.setLength(length - 1);
+				}
+				return sb.toString();
+			}
+			if (sb.length() >= MAX_LINE) {
+				throw new IOException("request line too long");
+			}
+			sb.append((char) c);
+		}
+		return sb.length() > 0 ? sb.toString() : null;
+	}
+
+	private static ThreadFactory threads(final String name) {
+		return new ThreadFactory() {
+			private int mCount = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + "-" + (++mCount));
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	// Socket and ServerSocket are only Closeable from API 19
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private static void closeQuietly(ServerSocket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+	}
+}
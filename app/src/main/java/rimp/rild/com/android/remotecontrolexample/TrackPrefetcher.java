@@ -0,0 +1,219 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * 次に再生する曲のファイルの先頭（と末尾）を読んでおき、OS のページキャッシュに載せておくクラス。
+ * 遅いストレージでは、prepareAsync や再生開始直後にメディアサーバが読む部分がキャッシュに無いと待たされるので、
+ * 曲が始まる前に読んでおく。末尾も読むのは、MP4 の moov や ID3v1・APE タグのように、索引やタグがファイルの後ろにある形式があるため。
+ *
+ * 読み込みは優先度の低い専用のスレッドで行い、読む速さを bytesPerSecond までに抑えるので、再生中の曲の読み込みを妨げない。
+ * 読み込み用のバッファは使い回す。
+ * 新しい曲を頼まれたら、読み込み中の曲は途中でやめる。
+ */
+public class TrackPrefetcher {
+	private static final String TAG = "TrackPrefetcher";
+
+	/** 先頭から読む長さの既定値（バイト）。 */
+	public static final int DEFAULT_HEAD_BYTES = 1024 * 1024;
+	/** 末尾から読む長さの既定値（バイト）。 */
+	public static final int DEFAULT_TAIL_BYTES = 128 * 1024;
+	/** 読む速さの上限の既定値（バイト/秒）。 */
+	public static final int DEFAULT_BYTES_PER_SECOND = 2 * 1024 * 1024;
+	// 一度に読む長さ。速さの上限はこの単位で守る
+	private static final int CHUNK = 64 * 1024;
+
+	private final ContentResolver mResolver;
+	private final int mHeadBytes;
+	private final int mTailBytes;
+	private final int mBytesPerSecond;
+	private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(CHUNK);
+
+	private final HandlerThread mThread;
+	private final Handler mHandler;
+	// 頼まれるたび、やめるたびに増やす。読み込み中の曲は、これが変わったら途中でやめる
+	private volatile int mGeneration = 0;
+	// 最後に読み終えた曲。同じ曲を続けて頼まれても読み直さない
+	private long mLastId = -1;
+
+	private long mPrefetched = 0;
+	private long mCancelled = 0;
+	private long mBytes = 0;
+
+	/**
+	 * 既定の長さと速さで読む TrackPrefetcher を作る。
+	 * @param context コンテキスト
+	 */
+	public TrackPrefetcher(Context context) {
+		this(context, DEFAULT_HEAD_BYTES, DEFAULT_TAIL_BYTES, DEFAULT_BYTES_PER_SECOND);
+	}
+
+	/**
+	 * @param context コンテキスト
+	 * @param headBytes 先頭から読む長さ（バイト）
+	 * @param tailBytes 末尾から読む長さ（バイト）。0 なら末尾は読まない
+	 * @param bytesPerSecond 読む速さの上限（バイト/秒）
+	 */
+	public TrackPrefetcher(Context context, int headBytes, int tailBytes, int bytesPerSecond) {
+		mResolver = context.getContentResolver();
+		mHeadBytes = Math.max(headBytes, 0);
+		mTailBytes = Math.max(tailBytes, 0);
+		mBytesPerSecond = Math.max(bytesPerSecond, CHUNK);
+		mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+		mThread.start();
+		mHandler = new Handler(mThread.getLooper());
+	}
+
+	/**
+	 * 曲のファイルを読んでおく。読み込み中の別の曲があればやめる。
+	 * @param id 曲の _ID
+	 * @param uri 曲の URI
+	 */
+	public void prefetch(final long id, final Uri uri) {
+		final int generation = ++mGeneration;
+		mHandler.removeCallbacksAndMessages(null);
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (id != mLastId) {
+					read(id, uri, generation);
+				}
+			}
+		});
+	}
+
+	/** 読み込み中の曲があればやめる。 */
+	public void cancel() {
+		mGeneration++;
+		mHandler.removeCallbacksAndMessages(null);
+	}
+
+	/** 読み込み用のスレッドを止める。 */
+	public void quit() {
+		cancel();
+		mThread.quit();
+	}
+
+	/** 読み終えた曲の数。 */
+	public synchronized long getPrefetchedCount() {
+		return mPrefetched;
+	}
+
+	/** 途中でやめた曲の数。 */
+	public synchronized long getCancelledCount() {
+		return mCancelled;
+	}
+
+	/** 読んだバイト数の合計。 */
+	public synchronized long getByteCount() {
+		return mBytes;
+	}
+
+	private void read(long id, Uri uri, int generation) {
+		ParcelFileDescriptor pfd = null;
+		FileInputStream in = null;
+		long start = SystemClock.elapsedRealtime();
+		long read = 0;
+		try {
+			pfd = mResolver.openFileDescriptor(uri, "r");
+			if (pfd == null) {
+				return;
+			}
+			in = new FileInputStream(pfd.getFileDescriptor());
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			long head = Math.min(mHeadBytes, size);
+			long tail = Math.max(head, size - mTailBytes);
+
+			read = readRange(channel, 0, head, generation, start, 0);
+			if (read >= 0 && tail < size) {
+				read = readRange(channel, tail, size, generation, start, read);
+			}
+			synchronized (this) {
+				if (read >= 0) {
+					mPrefetched++;
+				} else {
+					mCancelled++;
+				}
+			}
+			if (read >= 0) {
+				mLastId = id;
+				Log.d(TAG, "prefetched " + id + ": " + read + " bytes in "
+						+ (SystemClock.elapsedRealtime() - start) + "ms");
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to prefetch " + id + ": " + e.getMessage());
+		} finally {
+			closeQuietly(in);
+			closeQuietly(pfd);
+		}
+	}
+
+	/**
+	 * [from, to) を CHUNK ずつ読む。読んだ量が速さの上限を超えそうなら、そのぶん待つ。
+	 * @param done これまでに読んだバイト数（start からの合計）
+	 * @return 読み終えた時点の合計のバイト数。途中でやめた場合は -1
+	 */
+	private long readRange(FileChannel channel, long from, long to, int generation, long start, long done)
+			throws IOException {
+		long position = from;
+		while (position < to) {
+			if (generation != mGeneration) {
+				return -1;
+			}
+			// 今の量を読み終えてよい時刻まで待つ
+			long wait = start + done * 1000 / mBytesPerSecond - SystemClock.elapsedRealtime();
+			if (wait > 0) {
+				SystemClock.sleep(wait);
+				if (generation != mGeneration) {
+					return -1;
+				}
+			}
+			mBuffer.clear();
+			mBuffer.limit((int) Math.min(CHUNK, to - position));
+			int n = channel.read(mBuffer, position);
+			if (n <= 0) {
+				break;
+			}
+			position += n;
+			done += n;
+			synchronized (this) {
+				mBytes += n;
+			}
+		}
+		return done;
+	}
+
+	private static void closeQuietly(Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	// ParcelFileDescriptor is only Closeable from API 16
+	private static void closeQuietly(ParcelFileDescriptor pfd) {
+		if (pfd != null) {
+			try {
+				pfd.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
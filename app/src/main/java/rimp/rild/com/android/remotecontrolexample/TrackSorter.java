@@ -0,0 +1,221 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+/**
+ * long のソートキーで曲を並べる、安定な自然マージソート。
+ * 入力のうちすでに昇順（または狭義の降順）になっている区間をそのまま 1 つの run として使うので、
+ * インデックスから読んだソート済みの曲に差分の曲を足しただけの入力なら、ほぼ線形の時間で終わる。
+ * 曲数が多い場合は入力を CPU の数に分け、それぞれを別のスレッドでソートしてから、組にしてマージする。
+ * キーが同じ曲は入力の順に並ぶ。
+ */
+final class TrackSorter {
+	// これより短い run は挿入ソートで伸ばす
+	private static final int MIN_RUN = 32;
+	// これより少ない曲はスレッドに分けない
+	static final int PARALLEL_THRESHOLD = 1 << 14;
+	private static final int MAX_THREADS = 4;
+
+	private TrackSorter() {
+	}
+
+	/**
+	 * @param keys 曲ごとのソートキー
+	 * @param n 曲数
+	 * @return ソートした順に並べた曲の添字
+	 */
+	static int[] sort(long[] keys, int n) {
+		int threads = n < PARALLEL_THRESHOLD ? 1
+				: Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors());
+		return sort(keys, n, threads);
+	}
+
+	/** スレッドの数を指定してソートする。 */
+	static int[] sort(final long[] keys, int n, int threads) {
+		final int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		final int[] work = new int[n];
+		if (threads <= 1 || n < 2 * MIN_RUN * threads) {
+			sortRange(keys, order, work, 0, n);
+			return order;
+		}
+
+		// sort the parts side by side...
+		final int[] bounds = new int[threads + 1];
+		for (int p = 0; p <= threads; p++) {
+			bounds[p] = (int) ((long) n * p / threads);
+		}
+		Runnable[] tasks = new Runnable[threads];
+		for (int p = 0; p < threads; p++) {
+			final int lo = bounds[p];
+			final int hi = bounds[p + 1];
+			tasks[p] = new Runnable() {
+				@Override
+				public void run() {
+					sortRange(keys, order, work, lo, hi);
+				}
+			};
+		}
+		runAll(tasks);
+
+		// ...then merge neighbours, again side by side, until one run is left
+		int[] src = order;
+		int[] dst = work;
+		int count = threads;
+		while (count > 1) {
+			final int[] from = src;
+			final int[] to = dst;
+			int pairs = (count + 1) / 2;
+			tasks = new Runnable[pairs];
+			for (int r = 0, t = 0; r < count; r += 2, t++) {
+				final int lo = bounds[r];
+				final int mid = bounds[r + 1];
+				final int hi = r + 2 <= count ? bounds[r + 2] : mid;
+				tasks[t] = new Runnable() {
+					@Override
+					public void run() {
+						merge(keys, from, to, lo, mid, hi);
+					}
+				};
+			}
+			runAll(tasks);
+			count = compact(bounds, count);
+			src = to;
+			dst = from;
+		}
+		if (src != order) {
+			System.arraycopy(src, 0, order, 0, n);
+		}
+		return order;
+	}
+
+	/** a の [lo, hi) をソートする。work は同じ範囲を作業用に使う。 */
+	static void sortRange(long[] keys, int[] a, int[] work, int lo, int hi) {
+		int[] bounds = findRuns(keys, a, lo, hi);
+		int count = bounds.length - 1;
+		int[] src = a;
+		int[] dst = work;
+		while (count > 1) {
+			for (int r = 0; r < count; r += 2) {
+				int mid = bounds[r + 1];
+				merge(keys, src, dst, bounds[r], mid, r + 2 <= count ? bounds[r + 2] : mid);
+			}
+			count = compact(bounds, count);
+			int[] t = src;
+			src = dst;
+			dst = t;
+		}
+		if (src != a) {
+			System.arraycopy(src, lo, a, lo, hi - lo);
+		}
+	}
+
+	/** 隣り合う run を組にした後の境界に詰め直し、run の数を返す。 */
+	private static int compact(int[] bounds, int count) {
+		int out = 0;
+		for (int r = 0; r < count; r += 2) {
+			bounds[out++] = bounds[r];
+		}
+		bounds[out] = bounds[count];
+		return out;
+	}
+
+	/**
+	 * [lo, hi) を run に分ける。狭義の降順の区間は反転し、短い run は挿入ソートで MIN_RUN まで伸ばす。
+	 * @return run の境界。最初が lo、最後が hi
+	 */
+	private static int[] findRuns(long[] keys, int[] a, int lo, int hi) {
+		// every run but the last is at least MIN_RUN long
+		int[] bounds = new int[(hi - lo) / MIN_RUN + 2];
+		int count = 0;
+		bounds[count++] = lo;
+		int i = lo;
+		while (i < hi) {
+			int j = i + 1;
+			if (j < hi && keys[a[j]] < keys[a[i]]) {
+				while (j < hi && keys[a[j]] < keys[a[j - 1]]) {
+					j++;
+				}
+				reverse(a, i, j);
+			} else {
+				while (j < hi && keys[a[j]] >= keys[a[j - 1]]) {
+					j++;
+				}
+			}
+			int end = Math.min(hi, i + MIN_RUN);
+			if (j < end) {
+				insertionSort(keys, a, i, j, end);
+				j = end;
+			}
+			bounds[count++] = j;
+			i = j;
+		}
+		int[] result = new int[count];
+		System.arraycopy(bounds, 0, result, 0, count);
+		return result;
+	}
+
+	/** [lo, sorted) がソート済みのとき、[sorted, hi) を 1 つずつ差し込む。 */
+	private static void insertionSort(long[] keys, int[] a, int lo, int sorted, int hi) {
+		for (int i = sorted; i < hi; i++) {
+			int value = a[i];
+			long key = keys[value];
+			int j = i - 1;
+			while (j >= lo && keys[a[j]] > key) {
+				a[j + 1] = a[j];
+				j--;
+			}
+			a[j + 1] = value;
+		}
+	}
+
+	private static void reverse(int[] a, int lo, int hi) {
+		for (hi--; lo < hi; lo++, hi--) {
+			int t = a[lo];
+			a[lo] = a[hi];
+			a[hi] = t;
+		}
+	}
+
+	/** src の [lo, mid) と [mid, hi) をマージして dst の [lo, hi) に書く。同じキーなら左が先。 */
+	private static void merge(long[] keys, int[] src, int[] dst, int lo, int mid, int hi) {
+		if (mid == hi || keys[src[mid - 1]] <= keys[src[mid]]) {
+			// already in order, as for songs that came from the index in order
+			System.arraycopy(src, lo, dst, lo, hi - lo);
+			return;
+		}
+		int i = lo;
+		int j = mid;
+		int k = lo;
+		while (i < mid && j < hi) {
+			dst[k++] = keys[src[j]] < keys[src[i]] ? src[j++] : src[i++];
+		}
+		System.arraycopy(src, i, dst, k, mid - i);
+		System.arraycopy(src, j, dst, k + mid - i, hi - j);
+	}
+
+	/** 最初のタスクはこのスレッドで、残りは別のスレッドで実行し、すべて終わるまで待つ。 */
+	private static void runAll(Runnable[] tasks) {
+		Thread[] threads = new Thread[tasks.length];
+		for (int t = 1; t < tasks.length; t++) {
+			threads[t] = new Thread(tasks[t], "TrackSorter-" + t);
+			threads[t].start();
+		}
+		tasks[0].run();
+		boolean interrupted = false;
+		for (int t = 1; t < tasks.length; t++) {
+			while (true) {
+				try {
+					threads[t].join();
+					break;
+				} catch (InterruptedException e) {
+					// the parts must be finished before anyone reads them
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,442 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import android.content.ContentUris;
+import android.net.Uri;
+import android.provider.MediaStore;
+
+/**
+ * 曲リストを並列のプリミティブ配列で保持するクラス。
+ * アーティスト名・アルバム名・曲名はそれぞれ文字列表にまとめ、各曲は表の添字だけを持つ（アルバムアーティストはアーティストの表を使う）。
+ * 添字によるアクセスはどれも O(1)。
+ */
+public class TrackStore {
+	private static final int NONE = -1;
+
+	private final int mSize;
+	private final long[] mIds;
+	private final long[] mDurations;
+	private final long[] mDateModified;
+	private final long[] mAlbumIds;
+	private final int[] mTracks;
+	private final int[] mArtists;
+	private final int[] mAlbumArtists;
+	private final int[] mAlbums;
+	private final int[] mTitles;
+	private final String[] mArtistTable;
+	private final String[] mAlbumTable;
+	private final String[] mTitleTable;
+
+	// _ID から位置を引くための索引。必要になった時点で作る
+	private volatile IdIndex mIdIndex;
+
+	private static class IdIndex {
+		final long[] ids;
+		final int[] positions;
+
+		IdIndex(long[] ids, int[] positions) {
+			this.ids = ids;
+			this.positions = positions;
+		}
+	}
+
+	TrackStore(int size, long[] ids, long[] durations, long[] dateModified, long[] albumIds, int[] tracks,
+			int[] artists, int[] albumArtists, int[] albums, int[] titles,
+			String[] artistTable, String[] albumTable, String[] titleTable) {
+		mSize = size;
+		mIds = ids;
+		mDurations = durations;
+		mDateModified = dateModified;
+		mAlbumIds = albumIds;
+		mTracks = tracks;
+		mArtists = artists;
+		mAlbumArtists = albumArtists;
+		mAlbums = albums;
+		mTitles = titles;
+		mArtistTable = artistTable;
+		mAlbumTable = albumTable;
+		mTitleTable = titleTable;
+	}
+
+	/** 空の曲リストを返す。 */
+	public static TrackStore empty() {
+		return new Builder(0).build();
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public boolean isEmpty() {
+		return mSize == 0;
+	}
+
+	public long getId(int index) {
+		return mIds[index];
+	}
+
+	public String getArtist(int index) {
+		return lookup(mArtistTable, mArtists[index]);
+	}
+
+	/** アルバムアーティスト。タグに無ければ null。 */
+	public String getAlbumArtist(int index) {
+		return lookup(mArtistTable, mAlbumArtists[index]);
+	}
+
+	public String getAlbum(int index) {
+		return lookup(mAlbumTable, mAlbums[index]);
+	}
+
+	public String getTitle(int index) {
+		return lookup(mTitleTable, mTitles[index]);
+	}
+
+	/** MediaStore の TRACK の値（ディスク番号 * 1000 + トラック番号）。 */
+	public int getTrack(int index) {
+		return mTracks[index];
+	}
+
+	/** ディスク番号。タグに無ければ 0。 */
+	public int getDisc(int index) {
+		return Math.max(mTracks[index], 0) / 1000;
+	}
+
+	/** ディスクの中でのトラック番号。 */
+	public int getTrackNumber(int index) {
+		return Math.max(mTracks[index], 0) % 1000;
+	}
+
+	public long getDuration(int index) {
+		return mDurations[index];
+	}
+
+	public long getDateModified(int index) {
+		return mDateModified[index];
+	}
+
+	/** MediaStore のアルバムの _ID を返す。アルバムアートの取得に使う。 */
+	public long getAlbumId(int index) {
+		return mAlbumIds[index];
+	}
+
+	public Uri getURI(int index) {
+		return ContentUris.withAppendedId(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, mIds[index]);
+	}
+
+	/**
+	 * 指定した位置の曲を Item として返す。呼び出すたびに Item を生成するので、
+	 * 頻繁に呼ばれる箇所では個別の getter を使うこと。
+	 */
+	public Item get(int index) {
+		return new Item(mIds[index], getArtist(index), getTitle(index), getAlbum(index), mAlbumIds[index],
+				mTracks[index], mDurations[index], mDateModified[index]);
+	}
+
+	/**
+	 * _ID から曲の位置を探す。
+	 * @param id MediaStore の _ID
+	 * @return 曲の位置。見つからなければ -1
+	 */
+	public int indexOf(long id) {
+		IdIndex index = mIdIndex;
+		if (index == null) {
+			index = buildIdIndex();
+			mIdIndex = index;
+		}
+		int found = Arrays.binarySearch(index.ids, id);
+		return found < 0 ? -1 : index.positions[found];
+	}
+
+	private IdIndex buildIdIndex() {
+		long[] ids = Arrays.copyOf(mIds, mSize);
+		int[] positions = new int[mSize];
+		boolean sorted = true;
+		for (int i = 0; i < mSize; i++) {
+			positions[i] = i;
+			if (i > 0 && ids[i - 1] > ids[i]) {
+				sorted = false;
+			}
+		}
+		if (sorted) {
+			return new IdIndex(ids, positions);
+		}
+
+		Integer[] order = new Integer[mSize];
+		for (int i = 0; i < mSize; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				long x = mIds[a];
+				long y = mIds[b];
+				return x < y ? -1 : (x == y ? 0 : 1);
+			}
+		});
+		for (int i = 0; i < mSize; i++) {
+			positions[i] = order[i];
+			ids[i] = mIds[order[i]];
+		}
+		return new IdIndex(ids, positions);
+	}
+
+	String[] artistTable() {
+		return mArtistTable;
+	}
+
+	String[] albumTable() {
+		return mAlbumTable;
+	}
+
+	String[] titleTable() {
+		return mTitleTable;
+	}
+
+	int artistRef(int index) {
+		return mArtists[index];
+	}
+
+	int albumArtistRef(int index) {
+		return mAlbumArtists[index];
+	}
+
+	int albumRef(int index) {
+		return mAlbums[index];
+	}
+
+	int titleRef(int index) {
+		return mTitles[index];
+	}
+
+	private static String lookup(String[] table, int ref) {
+		return ref == NONE ? null : table[ref];
+	}
+
+	/**
+	 * TrackStore を組み立てるクラス。
+	 * 同じ文字列は文字列表の同じ添字にまとめられる。
+	 */
+	public static class Builder {
+		// ソートキーの各欄（アルバムアーティストの順位・アルバムの順位・ディスク番号・トラック番号）のビット幅
+		private static final int RANK_BITS = 20;
+		private static final int DISC_BITS = 4;
+		private static final int TRACK_BITS = 10;
+
+		private int mSize;
+		private long[] mIds;
+		private long[] mDurations;
+		private long[] mDateModified;
+		private long[] mAlbumIds;
+		private int[] mTracks;
+		private int[] mArtists;
+		private int[] mAlbumArtists;
+		private int[] mAlbums;
+		private int[] mTitles;
+		private final StringTable mArtistTable = new StringTable();
+		private final StringTable mAlbumTable = new StringTable();
+		private final StringTable mTitleTable = new StringTable();
+
+		public Builder() {
+			this(256);
+		}
+
+		public Builder(int capacity) {
+			capacity = Math.max(capacity, 16);
+			mIds = new long[capacity];
+			mDurations = new long[capacity];
+			mDateModified = new long[capacity];
+			mAlbumIds = new long[capacity];
+			mTracks = new int[capacity];
+			mArtists = new int[capacity];
+			mAlbumArtists = new int[capacity];
+			mAlbums = new int[capacity];
+			mTitles = new int[capacity];
+		}
+
+		public int size() {
+			return mSize;
+		}
+
+		/** 最後に追加した曲の _ID を返す。まだ何も追加していなければ -1。 */
+		public long lastId() {
+			return mSize == 0 ? -1 : mIds[mSize - 1];
+		}
+
+		/**
+		 * 曲を追加する。文字列の欄は MediaStore の列と同じ順に並べる。
+		 * 欄の数だけが違う多重定義は引数が 1 つずれても気づけないので、アルバムアーティストが無い場合も null を渡す。
+		 * @param albumArtist アルバムアーティスト。タグに無ければ null（ソートではアーティストを使う）
+		 * @param track MediaStore の TRACK の値（ディスク番号 * 1000 + トラック番号）
+		 */
+		public Builder addTrack(long id, String artist, String albumArtist, String title, String album, long albumId,
+				int track, long duration, long dateModified) {
+			ensureCapacity(mSize + 1);
+			int i = mSize++;
+			mIds[i] = id;
+			mDurations[i] = duration;
+			mDateModified[i] = dateModified;
+			mAlbumIds[i] = albumId;
+			mTracks[i] = track;
+			mArtists[i] = mArtistTable.intern(artist);
+			mAlbumArtists[i] = mArtistTable.intern(albumArtist);
+			mAlbums[i] = mAlbumTable.intern(album);
+			mTitles[i] = mTitleTable.intern(title);
+			return this;
+		}
+
+		/** 別の TrackStore の曲をそのまま追加する。 */
+		public Builder add(TrackStore store, int index) {
+			return addTrack(store.mIds[index], store.getArtist(index), store.getAlbumArtist(index), store.getTitle(index),
+					store.getAlbum(index), store.mAlbumIds[index], store.mTracks[index], store.mDurations[index],
+					store.mDateModified[index]);
+		}
+
+		/**
+		 * アルバムアーティスト（無ければアーティスト）、アルバム名、ディスク番号、トラック番号の順にソートした TrackStore を作る。
+		 * 名前は端末の言語の照合順序で比べ、大文字・小文字やアクセント、先頭の冠詞（The など）は区別しない。
+		 */
+		public TrackStore build() {
+			// 名前は曲数よりずっと少ないので、先に照合キーで名前の順位を求めておき、
+			// 各曲は「アルバムアーティストの順位・アルバムの順位・ディスク番号・トラック番号」を 1 つの long に詰める。
+			// 同じキーの曲は追加した順に並ぶ（TrackSorter は安定なソート）
+			int[] artistRank = mArtistTable.ranks();
+			int[] albumRank = mAlbumTable.ranks();
+			long[] keys = new long[mSize];
+			for (int i = 0; i < mSize; i++) {
+				int artist = mAlbumArtists[i] != NONE ? mAlbumArtists[i] : mArtists[i];
+				int track = Math.max(mTracks[i], 0);
+				keys[i] = ((long) rank(artistRank, artist) << (RANK_BITS + DISC_BITS + TRACK_BITS))
+						| ((long) rank(albumRank, mAlbums[i]) << (DISC_BITS + TRACK_BITS))
+						| ((long) clamp(track / 1000, DISC_BITS) << TRACK_BITS)
+						| clamp(track % 1000, TRACK_BITS);
+			}
+			return build(TrackSorter.sort(keys, mSize));
+		}
+
+		/** 名前の順位。名前の無い曲が先に来る。 */
+		private static int rank(int[] ranks, int ref) {
+			return ref == NONE ? 0 : clamp(ranks[ref] + 1, RANK_BITS);
+		}
+
+		private static int clamp(int value, int bits) {
+			return Math.min(value, (1 << bits) - 1);
+		}
+
+		private TrackStore build(int[] order) {
+			int n = mSize;
+			long[] ids = new long[n];
+			long[] durations = new long[n];
+			long[] dateModified = new long[n];
+			long[] albumIds = new long[n];
+			int[] tracks = new int[n];
+			int[] artists = new int[n];
+			int[] albumArtists = new int[n];
+			int[] albums = new int[n];
+			int[] titles = new int[n];
+			for (int i = 0; i < n; i++) {
+				int from = order[i];
+				ids[i] = mIds[from];
+				durations[i] = mDurations[from];
+				dateModified[i] = mDateModified[from];
+				albumIds[i] = mAlbumIds[from];
+				tracks[i] = mTracks[from];
+				artists[i] = mArtists[from];
+				albumArtists[i] = mAlbumArtists[from];
+				albums[i] = mAlbums[from];
+				titles[i] = mTitles[from];
+			}
+			return new TrackStore(n, ids, durations, dateModified, albumIds, tracks, artists, albumArtists, albums,
+					titles, mArtistTable.toArray(), mAlbumTable.toArray(), mTitleTable.toArray());
+		}
+
+		private void ensureCapacity(int capacity) {
+			if (capacity <= mIds.length) {
+				return;
+			}
+			int newCapacity = Math.max(capacity, mIds.length * 2);
+			mIds = Arrays.copyOf(mIds, newCapacity);
+			mDurations = Arrays.copyOf(mDurations, newCapacity);
+			mDateModified = Arrays.copyOf(mDateModified, newCapacity);
+			mAlbumIds = Arrays.copyOf(mAlbumIds, newCapacity);
+			mTracks = Arrays.copyOf(mTracks, newCapacity);
+			mArtists = Arrays.copyOf(mArtists, newCapacity);
+			mAlbumArtists = Arrays.copyOf(mAlbumArtists, newCapacity);
+			mAlbums = Arrays.copyOf(mAlbums, newCapacity);
+			mTitles = Arrays.copyOf(mTitles, newCapacity);
+		}
+	}
+
+	/** 文字列を添字に置き換えるための表。null は NONE になる。 */
+	private static class StringTable {
+		private final Map<String, Integer> mRefs = new HashMap<String, Integer>();
+		private final List<String> mStrings = new ArrayList<String>();
+
+		int intern(String s) {
+			if (s == null) {
+				return NONE;
+			}
+			Integer ref = mRefs.get(s);
+			if (ref == null) {
+				ref = mStrings.size();
+				mRefs.put(s, ref);
+				mStrings.add(s);
+			}
+			return ref;
+		}
+
+		String[] toArray() {
+			return mStrings.toArray(new String[mStrings.size()]);
+		}
+
+		/**
+		 * 各文字列の照合順序での順位を返す。照合キーは文字列ごとに一度だけ作る。
+		 * 照合順序で同じになる文字列（大文字・小文字の違いなど）は、文字列そのものの順で並べる。
+		 */
+		int[] ranks() {
+			final String[] strings = toArray();
+			Collator collator = Collator.getInstance();
+			collator.setStrength(Collator.PRIMARY);
+			final CollationKey[] keys = new CollationKey[strings.length];
+			Integer[] order = new Integer[strings.length];
+			for (int i = 0; i < strings.length; i++) {
+				keys[i] = collator.getCollationKey(sortName(strings[i]));
+				order[i] = i;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					int result = keys[a].compareTo(keys[b]);
+					return result != 0 ? result : strings[a].compareTo(strings[b]);
+				}
+			});
+			int[] ranks = new int[strings.length];
+			for (int i = 0; i < order.length; i++) {
+				ranks[order[i]] = i;
+			}
+			return ranks;
+		}
+
+		/** 並べるときの名前。MediaStore の ARTIST_KEY などと同じく、先頭の冠詞を除く。 */
+		private static String sortName(String name) {
+			String lower = name.toLowerCase(Locale.ENGLISH);
+			for (String article : ARTICLES) {
+				if (lower.startsWith(article) && lower.length() > article.length()) {
+					return name.substring(article.length());
+				}
+			}
+			return name;
+		}
+
+		private static final String[] ARTICLES = { "the ", "an ", "a " };
+	}
+}
@@ -0,0 +1,227 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * CrossfadeMixer の混ぜ方と曲線を試す。
+ */
+public class CrossfadeMixerTest {
+	private static final int CHANNELS = 2;
+
+	@Test
+	public void startsWithFromAndEndsWithTo() {
+		short[] from = random(1, 100);
+		short[] to = random(2, 100);
+		short[] out = new short[100 * CHANNELS];
+		CrossfadeMixer mixer = new CrossfadeMixer(CHANNELS, CrossfadeMixer.CURVE_EQUAL_POWER);
+		mixer.start(50);
+		mixer.mix(out, from, 100, to, 100, 100);
+		// the first frame is all from, and after the fade only to is left
+		assertEquals(from[0], out[0]);
+		assertEquals(from[1], out[1]);
+		assertArrayEquals(Arrays.copyOfRange(to, 50 * CHANNELS, 100 * CHANNELS),
+				Arrays.copyOfRange(out, 50 * CHANNELS, 100 * CHANNELS));
+		assertFalse(mixer.isFading());
+		assertEquals(50, mixer.getPosition());
+	}
+
+	@Test
+	public void linearKeepsTheSumOfTheSameSignal() {
+		short[] signal = random(3, 64);
+		short[] out = new short[64 * CHANNELS];
+		CrossfadeMixer mixer = new CrossfadeMixer(CHANNELS, CrossfadeMixer.CURVE_LINEAR);
+		mixer.start(64);
+		mixer.mix(out, signal, 64, signal, 64, 64);
+		for (int i = 0; i < out.length; i++) {
+			assertEquals(signal[i], out[i], 1);
+		}
+	}
+
+	@Test
+	public void curvesKeepTheirSums() {
+		CrossfadeMixer linear = new CrossfadeMixer(1, CrossfadeMixer.CURVE_LINEAR);
+		CrossfadeMixer power = new CrossfadeMixer(1, CrossfadeMixer.CURVE_EQUAL_POWER);
+		short[] silence = new short[1];
+		linear.start(1000);
+		power.start(1000);
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(1f, linear.fadeInGain() + linear.fadeOutGain(), 1e-5f);
+			float in = power.fadeInGain();
+			float out = power.fadeOutGain();
+			assertEquals(1f, in * in + out * out, 1e-3f);
+			if (i > 0) {
+				assertTrue(in > 0f && out < 1f);
+			}
+			linear.mix(silence, silence, 1, silence, 1, 1);
+			power.mix(silence, silence, 1, silence, 1, 1);
+		}
+		assertEquals(1f, power.fadeInGain(), 0f);
+		assertEquals(0f, power.fadeOutGain(), 0f);
+	}
+
+	@Test
+	public void halfwayThroughEqualPowerIsAboutThreeDecibelsDown() {
+		CrossfadeMixer mixer = new CrossfadeMixer(1, CrossfadeMixer.CURVE_EQUAL_POWER);
+		short[] buffer = new short[500];
+		mixer.start(1000);
+		mixer.mix(buffer, buffer, 500, buffer, 500, 500);
+		assertEquals(Math.sqrt(0.5), mixer.fadeInGain(), 1e-3);
+		assertEquals(Math.sqrt(0.5), mixer.fadeOutGain(), 1e-3);
+	}
+
+	@Test
+	public void clampsInsteadOfWrappingAround() {
+		short[] loud = new short[10 * CHANNELS];
+		short[] quiet = new short[10 * CHANNELS];
+		Arrays.fill(loud, Short.MAX_VALUE);
+		Arrays.fill(quiet, Short.MIN_VALUE);
+		short[] out = new short[10 * CHANNELS];
+		// both at about 0.7 halfway: their sum is over full scale
+		CrossfadeMixer mixer = new CrossfadeMixer(CHANNELS, CrossfadeMixer.CURVE_EQUAL_POWER);
+		mixer.start(10);
+		mixer.mix(out, loud, 10, loud, 10, 10);
+		assertEquals(Short.MAX_VALUE, out[5 * CHANNELS]);
+		mixer.start(10);
+		mixer.mix(out, quiet, 10, quiet, 10, 10);
+		assertEquals(Short.MIN_VALUE, out[5 * CHANNELS]);
+	}
+
+	@Test
+	public void chunksGiveTheSameResultAsOneCall() {
+		short[] from = random(4, 1000);
+		short[] to = random(5, 1000);
+		short[] whole = new short[1000 * CHANNELS];
+		CrossfadeMixer mixer = new CrossfadeMixer(CHANNELS, CrossfadeMixer.CURVE_EQUAL_POWER);
+		mixer.start(777);
+		mixer.mix(whole, from, 1000, to, 1000, 1000);
+
+		short[] chunked = new short[1000 * CHANNELS];
+		short[] a = new short[128 * CHANNELS];
+		short[] b = new short[128 * CHANNELS];
+		short[] out = new short[128 * CHANNELS];
+		mixer.start(777);
+		for (int frame = 0; frame < 1000; frame += 128) {
+			int frames = Math.min(128, 1000 - frame);
+			System.arraycopy(from, frame * CHANNELS, a, 0, frames * CHANNELS);
+			System.arraycopy(to, frame * CHANNELS, b, 0, frames * CHANNELS);
+			mixer.mix(out, a, frames, b, frames, frames);
+			System.arraycopy(out, 0, chunked, frame * CHANNELS, frames * CHANNELS);
+		}
+		assertArrayEquals(whole, chunked);
+	}
+
+	@Test
+	public void missingFramesAreSilence() {
+		short[] from = random(6, 100);
+		short[] to = random(7, 100);
+		short[] out = new short[100 * CHANNELS];
+		CrossfadeMixer mixer = new CrossfadeMixer(CHANNELS, CrossfadeMixer.CURVE_LINEAR);
+		mixer.start(100);
+		// the outgoing song ends after 10 frames, the incoming one has only 60
+		mixer.mix(out, from, 10, to, 60, 100);
+		float in = 20f / 100;
+		assertEquals(Math.round(to[20 * CHANNELS] * in), out[20 * CHANNELS], 1);
+		for (int i = 60 * CHANNELS; i < out.length; i++) {
+			assertEquals(0, out[i]);
+		}
+	}
+
+	@Test
+	public void mixesInPlace() {
+		short[] from = random(8, 300);
+		short[] to = random(9, 300);
+		short[] expected = new short[300 * CHANNELS];
+		CrossfadeMixer mixer = new CrossfadeMixer(CHANNELS, CrossfadeMixer.CURVE_EQUAL_POWER);
+		mixer.start(200);
+		mixer.mix(expected, from, 300, to, 300, 300);
+		mixer.start(200);
+		mixer.mix(to, from, 300, to, 300, 300);
+		assertArrayEquals(expected, to);
+	}
+
+	@Test
+	public void notFadingPassesToThrough() {
+		short[] from = random(10, 50);
+		short[] to = random(11, 50);
+		short[] out = new short[50 * CHANNELS];
+		CrossfadeMixer mixer = new CrossfadeMixer(CHANNELS, CrossfadeMixer.CURVE_LINEAR);
+		mixer.mix(out, from, 50, to, 50, 50);
+		assertArrayEquals(to, out);
+
+		mixer.start(1000);
+		mixer.cancel();
+		assertFalse(mixer.isFading());
+		mixer.mix(out, from, 50, to, 50, 50);
+		assertArrayEquals(to, out);
+	}
+
+	@Test
+	public void floatMatchesShort() {
+		short[] from = random(12, 400);
+		short[] to = random(13, 400);
+		short[] out = new short[400 * CHANNELS];
+		float[] fromF = new float[from.length];
+		float[] toF = new float[to.length];
+		float[] outF = new float[out.length];
+		for (int i = 0; i < from.length; i++) {
+			fromF[i] = from[i] / 32768f;
+			toF[i] = to[i] / 32768f;
+		}
+		CrossfadeMixer mixer = new CrossfadeMixer(CHANNELS, CrossfadeMixer.CURVE_EQUAL_POWER);
+		mixer.start(300);
+		mixer.mix(out, from, 400, to, 400, 400);
+		mixer.start(300);
+		mixer.mix(outF, fromF, 400, toF, 400, 400);
+		for (int i = 0; i < out.length; i++) {
+			float expected = Math.max(-1f, Math.min(outF[i], 32767f / 32768f));
+			assertEquals(expected, out[i] / 32768f, 2f / 32768f);
+		}
+	}
+
+	@Test
+	public void mixingDoesNotAllocate() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threads;
+		assumeTrue(bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled());
+
+		short[] from = random(14, 1024);
+		short[] to = random(15, 1024);
+		short[] out = new short[1024 * CHANNELS];
+		float[] outF = new float[out.length];
+		float[] fromF = new float[out.length];
+		float[] toF = new float[out.length];
+		CrossfadeMixer mixer = new CrossfadeMixer(CHANNELS, CrossfadeMixer.CURVE_EQUAL_POWER);
+		long id = Thread.currentThread().getId();
+		// once to load and warm everything up, then measured
+		for (int round = 0; round < 2; round++) {
+			long before = bean.getThreadAllocatedBytes(id);
+			for (int i = 0; i < 200; i++) {
+				mixer.start(100000);
+				mixer.mix(out, from, 1024, to, 1024, 1024);
+				mixer.mix(outF, fromF, 1024, toF, 1024, 1024);
+			}
+			long allocated = bean.getThreadAllocatedBytes(id) - before;
+			if (round == 1) {
+				assertEquals(0, allocated);
+			}
+		}
+	}
+
+	private static short[] random(long seed, int frames) {
+		Random random = new Random(seed);
+		short[] samples = new short[frames * CHANNELS];
+		for (int i = 0; i < samples.length; i++) {
+			samples[i] = (short) (random.nextInt(65536) - 32768);
+		}
+		return samples;
+	}
+}
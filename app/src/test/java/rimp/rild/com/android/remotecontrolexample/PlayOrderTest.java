@@ -0,0 +1,150 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * PlayOrder の次の曲・前の曲、シャッフルの周回、曲を選んだ後の戻り方、保存と復元を試す。
+ */
+public class PlayOrderTest {
+	private static final int SIZE = 20;
+
+	@Test
+	public void inOrderWithoutShuffle() {
+		PlayOrder order = new PlayOrder(SIZE);
+		assertEquals(1, order.skip(0, 1));
+		assertEquals(SIZE - 1, order.skip(0, -1));
+		assertEquals(0, order.peekNext(SIZE - 1));
+
+		order.setRepeat(PlayOrder.REPEAT_OFF);
+		assertEquals(-1, order.next(SIZE - 1));
+		assertEquals(5, order.next(4));
+
+		order.setRepeat(PlayOrder.REPEAT_ONE);
+		assertEquals(4, order.next(4));
+		assertEquals(5, order.skip(4, 1));
+	}
+
+	@Test
+	public void aShuffledLapPlaysEverySongOnceStartingFromTheCurrentOne() {
+		PlayOrder order = new PlayOrder(SIZE);
+		order.setShuffle(true, 7, 1234);
+		assertEquals(0, order.positionOf(7));
+		boolean[] seen = new boolean[SIZE];
+		int index = 7;
+		for (int i = 0; i < SIZE; i++) {
+			assertFalse(seen[index]);
+			seen[index] = true;
+			index = order.next(index);
+		}
+		assertEquals(1, order.getCycle());
+	}
+
+	@Test
+	public void skippingBackAndForthReturnsTheSameSongs() {
+		PlayOrder order = new PlayOrder(SIZE);
+		order.setShuffle(true, 0, 99);
+		List<Integer> forward = new ArrayList<Integer>();
+		int index = 0;
+		for (int i = 0; i < 2 * SIZE + 3; i++) {
+			forward.add(index);
+			index = order.skip(index, 1);
+		}
+		for (int i = forward.size() - 1; i >= 0; i--) {
+			index = order.skip(index, -1);
+			assertEquals(forward.get(i).intValue(), index);
+		}
+	}
+
+	@Test
+	public void previousAfterPickingASongGoesBackThroughWhatWasPlayed() {
+		PlayOrder order = new PlayOrder(SIZE);
+		order.setShuffle(true, 0, 5);
+		List<Integer> played = new ArrayList<Integer>();
+		int index = 0;
+		for (int i = 0; i < 6; i++) {
+			played.add(index);
+			index = order.skip(index, 1);
+		}
+		played.add(index);
+		int picked = firstNotIn(played);
+		order.startAt(picked, index);
+		assertEquals(0, order.positionOf(picked));
+
+		int back = picked;
+		for (int i = played.size() - 1; i >= 0; i--) {
+			back = order.skip(back, -1);
+			assertEquals(played.get(i).intValue(), back);
+		}
+		// and forward again to the picked song, then a fresh lap from it
+		for (int i = 1; i < played.size(); i++) {
+			back = order.skip(back, 1);
+			assertEquals(played.get(i).intValue(), back);
+		}
+		assertEquals(picked, order.skip(back, 1));
+	}
+
+	@Test
+	public void pickingTheSameSongAgainGoesBackToTheSongBeforeIt() {
+		PlayOrder order = new PlayOrder(SIZE);
+		order.setShuffle(true, 0, 5);
+		int before = order.skip(0, 1);
+		int current = order.skip(before, 1);
+		order.startAt(current, current);
+		assertEquals(before, order.skip(current, -1));
+	}
+
+	@Test
+	public void aOneSongLibraryDoesNotMoveTheLap() {
+		PlayOrder order = new PlayOrder(SIZE);
+		order.setShuffle(true, 3, 77);
+		int index = order.skip(3, 4);
+		int cycle = order.getCycle();
+		int offset = order.getOffset();
+
+		// the restored session plays a single song until the library is back
+		order.setSize(1);
+		assertEquals(0, order.skip(0, 1));
+		assertEquals(0, order.next(0));
+		assertEquals(0, order.skip(0, -1));
+		order.startAt(0, 0);
+		assertEquals(cycle, order.getCycle());
+		assertEquals(offset, order.getOffset());
+
+		order.setSize(SIZE);
+		assertEquals(4, order.positionOf(index));
+	}
+
+	@Test
+	public void restoreContinuesTheSameOrder() {
+		PlayOrder order = new PlayOrder(SIZE);
+		order.setShuffle(true, 2, 31);
+		int index = 2;
+		for (int i = 0; i < 5; i++) {
+			index = order.skip(index, 1);
+		}
+		int picked = order.peek(index, 3);
+		order.startAt(picked, index);
+		index = order.skip(picked, 2);
+
+		PlayOrder restored = new PlayOrder(SIZE);
+		restored.restore(order.isShuffle(), order.getRepeat(), order.getSeed(), order.getCycle(),
+				order.getOffsetCycle(), order.getOffset(), order.getPreviousOffset());
+		for (int count = -SIZE - 4; count <= SIZE + 4; count++) {
+			assertEquals(order.peek(index, count), restored.peek(index, count));
+		}
+	}
+
+	private static int firstNotIn(List<Integer> indices) {
+		for (int i = 0; i < SIZE; i++) {
+			if (!indices.contains(i)) {
+				return i;
+			}
+		}
+		throw new AssertionError();
+	}
+}
@@ -0,0 +1,197 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * ファイルにマップした PlayQueue の編集、開き直し、壊れたファイルの扱いを試す。
+ */
+public class PlayQueueTest {
+	private File mFile;
+	private PlayQueue mQueue;
+
+	@Before
+	public void setUp() throws IOException {
+		mFile = File.createTempFile("playqueue", ".map");
+		mFile.delete();
+		mQueue = PlayQueue.open(mFile);
+	}
+
+	@After
+	public void tearDown() {
+		mQueue.close();
+		mFile.delete();
+	}
+
+	@Test
+	public void enqueueAndPlayNext() {
+		mQueue.enqueue(1);
+		mQueue.enqueue(2);
+		mQueue.playNext(3);
+		assertArrayEquals(new long[] {3, 1, 2}, mQueue.toArray());
+		assertEquals(3, mQueue.size());
+		assertEquals(3, mQueue.poll());
+		assertArrayEquals(new long[] {1, 2}, mQueue.toArray());
+	}
+
+	@Test
+	public void insertAfterAndMove() {
+		int a = mQueue.enqueue(1);
+		int b = mQueue.enqueue(2);
+		int c = mQueue.enqueue(3);
+		mQueue.insertAfter(a, 4);
+		assertArrayEquals(new long[] {1, 4, 2, 3}, mQueue.toArray());
+
+		assertTrue(mQueue.move(c, PlayQueue.NONE));
+		assertArrayEquals(new long[] {3, 1, 4, 2}, mQueue.toArray());
+		assertTrue(mQueue.move(a, b));
+		assertArrayEquals(new long[] {3, 4, 2, 1}, mQueue.toArray());
+		assertTrue(mQueue.move(b, b));
+		assertArrayEquals(new long[] {3, 4, 2, 1}, mQueue.toArray());
+	}
+
+	@Test
+	public void removedSlotsAreReusedAndStaleHandlesRefused() {
+		int a = mQueue.enqueue(1);
+		int b = mQueue.enqueue(2);
+		assertTrue(mQueue.remove(a));
+		assertFalse(mQueue.remove(a));
+		assertFalse(mQueue.contains(a));
+		assertFalse(mQueue.move(a, PlayQueue.NONE));
+		assertFalse(mQueue.move(b, a));
+
+		int reused = mQueue.enqueue(3);
+		assertEquals(a, reused);
+		assertArrayEquals(new long[] {2, 3}, mQueue.toArray());
+	}
+
+	@Test
+	public void growsPastTheInitialCapacity() throws IOException {
+		for (int i = 0; i < 1000; i++) {
+			mQueue.enqueue(i);
+		}
+		assertEquals(1000, mQueue.size());
+		reopen();
+		long[] ids = mQueue.toArray();
+		assertEquals(1000, ids.length);
+		for (int i = 0; i < ids.length; i++) {
+			assertEquals(i, ids[i]);
+		}
+	}
+
+	@Test
+	public void reopenKeepsTheQueueAndTheFreeList() throws IOException {
+		int a = mQueue.enqueue(1);
+		int b = mQueue.enqueue(2);
+		int c = mQueue.enqueue(3);
+		mQueue.move(c, PlayQueue.NONE);
+		mQueue.remove(b);
+		reopen();
+		assertArrayEquals(new long[] {3, 1}, mQueue.toArray());
+		assertTrue(mQueue.contains(a));
+		assertFalse(mQueue.contains(b));
+		assertEquals(b, mQueue.enqueue(4));
+		assertArrayEquals(new long[] {3, 1, 4}, mQueue.toArray());
+	}
+
+	@Test
+	public void aBrokenLinkStartsEmpty() throws IOException {
+		mQueue.enqueue(1);
+		mQueue.enqueue(2);
+		mQueue.close();
+		writeInt(PlayQueue.OFFSET_SIZE, 5);
+		reopenAfterClose();
+		assertEquals(0, mQueue.size());
+		assertEquals(PlayQueue.NONE, mQueue.first());
+	}
+
+	@Test
+	public void aFreeListPointingAtAQueuedSlotStartsEmpty() throws IOException {
+		int a = mQueue.enqueue(1);
+		int b = mQueue.enqueue(2);
+		mQueue.remove(b);
+		mQueue.close();
+		// a torn remove: the free list names a slot that is still queued
+		writeInt(PlayQueue.OFFSET_FREE, a);
+		reopenAfterClose();
+		assertEquals(0, mQueue.size());
+		int slot = mQueue.enqueue(3);
+		assertArrayEquals(new long[] {3}, mQueue.toArray());
+		assertTrue(mQueue.contains(slot));
+	}
+
+	@Test
+	public void aFreeListOutOfRangeStartsEmpty() throws IOException {
+		mQueue.enqueue(1);
+		int b = mQueue.enqueue(2);
+		mQueue.remove(b);
+		mQueue.close();
+		writeInt(PlayQueue.OFFSET_FREE, 100);
+		reopenAfterClose();
+		assertEquals(0, mQueue.size());
+	}
+
+	@Test
+	public void aLostFreeSlotStartsEmpty() throws IOException {
+		mQueue.enqueue(1);
+		int b = mQueue.enqueue(2);
+		mQueue.remove(b);
+		mQueue.close();
+		writeInt(PlayQueue.OFFSET_FREE, PlayQueue.NONE);
+		reopenAfterClose();
+		assertEquals(0, mQueue.size());
+	}
+
+	@Test
+	public void aCapacityLargerThanTheFileStartsEmpty() throws IOException {
+		mQueue.enqueue(1);
+		mQueue.close();
+		writeInt(PlayQueue.OFFSET_CAPACITY, 1 << 20);
+		reopenAfterClose();
+		assertEquals(0, mQueue.size());
+		mQueue.enqueue(2);
+		assertArrayEquals(new long[] {2}, mQueue.toArray());
+	}
+
+	@Test
+	public void garbageStartsEmpty() throws IOException {
+		mQueue.close();
+		RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+		try {
+			raf.setLength(0);
+			raf.write(new byte[] {1, 2, 3, 4, 5, 6, 7});
+		} finally {
+			raf.close();
+		}
+		reopenAfterClose();
+		assertEquals(0, mQueue.size());
+		mQueue.enqueue(1);
+		assertArrayEquals(new long[] {1}, mQueue.toArray());
+	}
+
+	private void reopen() throws IOException {
+		mQueue.close();
+		reopenAfterClose();
+	}
+
+	private void reopenAfterClose() throws IOException {
+		mQueue = PlayQueue.open(mFile);
+	}
+
+	private void writeInt(int offset, int value) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+		try {
+			raf.seek(offset);
+			raf.writeInt(value);
+		} finally {
+			raf.close();
+		}
+	}
+}
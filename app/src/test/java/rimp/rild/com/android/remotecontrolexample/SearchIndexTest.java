@@ -0,0 +1,137 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * SearchIndex の検索、差分の反映、更新中の検索を試す。
+ */
+public class SearchIndexTest {
+	@Test
+	public void findsByPrefixOfAnyField() {
+		SearchIndex index = new SearchIndex();
+		index.add(1, "The Beatles", "Abbey Road", "Something");
+		index.add(2, "Queen", "A Night at the Opera", "Bohemian Rhapsody");
+		assertEquals(2, index.size());
+		assertIds(index.search("beat", 10), 1);
+		assertIds(index.search("rhap", 10), 2);
+		assertIds(index.search("the", 10), 1, 2);
+		assertIds(index.search("the opera", 10), 2);
+		assertIds(index.search("zzz", 10));
+		assertEquals(1, index.search("the", 1).length);
+	}
+
+	@Test
+	public void findsInsideWideTokensAndFoldsKana() {
+		SearchIndex index = new SearchIndex();
+		index.add(1, "宇多田ヒカル", "初恋", "初恋");
+		assertIds(index.search("ひかる", 10), 1);
+		assertIds(index.search("田", 10), 1);
+	}
+
+	@Test
+	public void updateAppliesOnlyTheDifference() {
+		SearchIndex index = new SearchIndex();
+		TrackStore first = new TrackStore.Builder(2)
+				.addTrack(1, "Artist", null, "Alpha", "Album", 10, 1, 1000, 0)
+				.addTrack(2, "Artist", null, "Beta", "Album", 10, 2, 1000, 0)
+				.build();
+		assertEquals(2, index.update(first));
+		assertEquals(0, index.update(first));
+
+		TrackStore second = new TrackStore.Builder(2)
+				.addTrack(1, "Artist", null, "Alpha", "Album", 10, 1, 1000, 0)
+				.addTrack(3, "Artist", null, "Gamma", "Album", 10, 3, 1000, 0)
+				.build();
+		assertEquals(2, index.update(second));
+		assertIds(index.search("beta", 10));
+		assertIds(index.search("gamma", 10), 3);
+		assertEquals(2, index.size());
+
+		index.clear();
+		assertEquals(0, index.size());
+		assertIds(index.search("alpha", 10));
+	}
+
+	@Test
+	public void searchDoesNotWaitForAnUpdate() throws InterruptedException {
+		final SearchIndex index = new SearchIndex();
+		index.add(1, "Artist", "Album", "Song");
+		final long[][] result = new long[1][];
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				result[0] = index.search("song", 10);
+			}
+		});
+		// an update holds the index's lock for as long as it runs
+		synchronized (index) {
+			reader.start();
+			reader.join(5000);
+			assertFalse(reader.isAlive());
+		}
+		assertIds(result[0], 1);
+	}
+
+	@Test
+	public void smallChangesGiveTheSameIndexAsARebuild() {
+		String[] words = {"alpha", "beta", "gamma", "delta", "夜明け", "夜空", "空"};
+		Random random = new Random(4);
+		SearchIndex index = new SearchIndex();
+		long[] ids = new long[40];
+		String[][] fields = new String[ids.length][];
+		for (int round = 0; round < 30; round++) {
+			// change a few songs, drop a few, and add one or two
+			for (int i = 0; i < ids.length; i++) {
+				if (fields[i] == null ? random.nextInt(4) == 0 : random.nextInt(10) == 0) {
+					ids[i] = i + 1;
+					fields[i] = new String[] {words[random.nextInt(words.length)],
+							words[random.nextInt(words.length)] + " " + round, words[random.nextInt(words.length)]};
+				} else if (fields[i] != null && random.nextInt(15) == 0) {
+					fields[i] = null;
+				}
+			}
+			if (round % 3 == 0) {
+				index.update(store(ids, fields));
+			} else {
+				for (int i = 0; i < ids.length; i++) {
+					if (fields[i] == null) {
+						index.remove(i + 1);
+					} else {
+						index.add(ids[i], fields[i][0], fields[i][1], fields[i][2]);
+					}
+				}
+			}
+
+			SearchIndex rebuilt = new SearchIndex();
+			rebuilt.update(store(ids, fields));
+			assertEquals(rebuilt.size(), index.size());
+			assertEquals(rebuilt.getTokenCount(), index.getTokenCount());
+			for (String query : new String[] {"a", "alpha", "del", "空", "夜", "gamma " + round, "beta 1"}) {
+				long[] expected = rebuilt.search(query, 100);
+				Arrays.sort(expected);
+				assertIds(index.search(query, 100), expected);
+			}
+		}
+	}
+
+	private static TrackStore store(long[] ids, String[][] fields) {
+		TrackStore.Builder builder = new TrackStore.Builder(ids.length);
+		for (int i = 0; i < ids.length; i++) {
+			if (fields[i] != null) {
+				builder.addTrack(ids[i], fields[i][0], null, fields[i][2], fields[i][1], 1, 1, 1000, 0);
+			}
+		}
+		return builder.build();
+	}
+
+	private static void assertIds(long[] actual, long... expected) {
+		long[] sorted = actual.clone();
+		Arrays.sort(sorted);
+		assertArrayEquals(expected, sorted);
+	}
+}
@@ -0,0 +1,60 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * ShufflePermutation が 0 から size - 1 の並べ替えになっていること、get と indexOf が逆になっていることを試す。
+ */
+public class ShufflePermutationTest {
+	private static final int[] SIZES = {0, 1, 2, 3, 4, 5, 7, 16, 17, 100, 1000, 4097};
+
+	@Test
+	public void isABijection() {
+		for (int size : SIZES) {
+			for (long seed = 0; seed < 5; seed++) {
+				ShufflePermutation permutation = new ShufflePermutation(size, seed);
+				boolean[] seen = new boolean[size];
+				for (int i = 0; i < size; i++) {
+					int value = permutation.get(i);
+					assertTrue("size " + size + " value " + value, value >= 0 && value < size);
+					assertFalse("size " + size + " twice " + value, seen[value]);
+					seen[value] = true;
+				}
+			}
+		}
+	}
+
+	@Test
+	public void indexOfIsTheInverseOfGet() {
+		for (int size : SIZES) {
+			ShufflePermutation permutation = new ShufflePermutation(size, 42);
+			for (int i = 0; i < size; i++) {
+				assertEquals(i, permutation.indexOf(permutation.get(i)));
+				assertEquals(i, permutation.get(permutation.indexOf(i)));
+			}
+		}
+	}
+
+	@Test
+	public void theSeedDecidesTheOrder() {
+		ShufflePermutation a = new ShufflePermutation(1000, 1);
+		ShufflePermutation b = new ShufflePermutation(1000, 1);
+		ShufflePermutation c = new ShufflePermutation(1000, 2);
+		int differences = 0;
+		int fixed = 0;
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(a.get(i), b.get(i));
+			if (a.get(i) != c.get(i)) {
+				differences++;
+			}
+			if (a.get(i) == i) {
+				fixed++;
+			}
+		}
+		assertTrue(differences > 900);
+		// a shuffle, not the identity
+		assertTrue(fixed < 20);
+	}
+}
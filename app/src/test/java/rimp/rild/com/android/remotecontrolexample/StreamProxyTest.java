@@ -0,0 +1,273 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import static org.junit.Assert.*;
+
+/**
+ * StreamProxy を、ループバックで待ち受ける配信元の HTTP サーバに対して試す。
+ */
+public class StreamProxyTest {
+	// 3 つと少しのセグメント
+	private static final int FILE_SIZE = 3 * HttpStream.SEGMENT_SIZE + 12345;
+
+	private byte[] mFile;
+	private HttpServer mOrigin;
+	private final AtomicInteger mOriginRequests = new AtomicInteger();
+	private volatile boolean mOriginIgnoresRange = false;
+	private File mCacheDir;
+	private StreamProxy mProxy;
+
+	@Before
+	public void setUp() throws IOException {
+		mFile = new byte[FILE_SIZE];
+		new Random(1).nextBytes(mFile);
+		mOrigin = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		mOrigin.createContext("/song.mp3", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				serveOrigin(exchange);
+			}
+		});
+		mOrigin.start();
+
+		mCacheDir = File.createTempFile("segments", "");
+		mCacheDir.delete();
+		mProxy = new StreamProxy(new SegmentCache(mCacheDir, 16L * HttpStream.SEGMENT_SIZE));
+	}
+
+	@After
+	public void tearDown() {
+		mProxy.stop();
+		mOrigin.stop(0);
+		File[] files = mCacheDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		mCacheDir.delete();
+	}
+
+	@Test
+	public void servesWholeFile() throws IOException {
+		HttpURLConnection connection = open(mProxy.register(originUrl()), null);
+		assertEquals(200, connection.getResponseCode());
+		assertEquals(FILE_SIZE, connection.getContentLength());
+		assertEquals("audio/mpeg", connection.getContentType());
+		assertArrayEquals(mFile, readAll(connection));
+	}
+
+	@Test
+	public void servesRangeAcrossSegments() throws IOException {
+		int start = HttpStream.SEGMENT_SIZE - 100;
+		int end = 2 * HttpStream.SEGMENT_SIZE + 99;
+		HttpURLConnection connection = open(mProxy.register(originUrl()), "bytes=" + start + "-" + end);
+		assertEquals(206, connection.getResponseCode());
+		assertEquals("bytes " + start + "-" + end + "/" + FILE_SIZE, connection.getHeaderField("Content-Range"));
+		assertArrayEquals(slice(start, end), readAll(connection));
+	}
+
+	@Test
+	public void servesOpenAndSuffixRanges() throws IOException {
+		String url = mProxy.register(originUrl());
+		HttpURLConnection connection = open(url, "bytes=" + (FILE_SIZE - 10) + "-");
+		assertEquals(206, connection.getResponseCode());
+		assertArrayEquals(slice(FILE_SIZE - 10, FILE_SIZE - 1), readAll(connection));
+
+		connection = open(url, "bytes=-500");
+		assertEquals(206, connection.getResponseCode());
+		assertArrayEquals(slice(FILE_SIZE - 500, FILE_SIZE - 1), readAll(connection));
+	}
+
+	@Test
+	public void rejectsRangePastTheEnd() throws IOException {
+		HttpURLConnection connection = open(mProxy.register(originUrl()), "bytes=" + FILE_SIZE + "-");
+		assertEquals(416, connection.getResponseCode());
+		assertEquals("bytes */" + FILE_SIZE, connection.getHeaderField("Content-Range"));
+	}
+
+	@Test
+	public void replayAndSeekStayOffTheNetwork() throws IOException {
+		String url = mProxy.register(originUrl());
+		assertArrayEquals(mFile, readAll(open(url, null)));
+		int fetched = mOriginRequests.get();
+		assertTrue(fetched > 0);
+
+		// play again, and seek into the middle
+		assertArrayEquals(mFile, readAll(open(url, null)));
+		int start = 2 * HttpStream.SEGMENT_SIZE + 7;
+		assertArrayEquals(slice(start, FILE_SIZE - 1), readAll(open(url, "bytes=" + start + "-")));
+		assertEquals(fetched, mOriginRequests.get());
+	}
+
+	@Test
+	public void cacheSurvivesRestart() throws IOException {
+		readAll(open(mProxy.register(originUrl()), null));
+		int fetched = mOriginRequests.get();
+		mProxy.stop();
+
+		mProxy = new StreamProxy(new SegmentCache(mCacheDir, 16L * HttpStream.SEGMENT_SIZE));
+		assertArrayEquals(mFile, readAll(open(mProxy.register(originUrl()), null)));
+		assertEquals(fetched, mOriginRequests.get());
+	}
+
+	@Test
+	public void refetchesATruncatedSegment() throws IOException {
+		String url = mProxy.register(originUrl());
+		readAll(open(url, null));
+		int fetched = mOriginRequests.get();
+		File[] files = mCacheDir.listFiles();
+		File segment = null;
+		for (File file : files) {
+			if (file.getName().endsWith("-1")) {
+				segment = file;
+			}
+		}
+		assertNotNull(segment);
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		try {
+			raf.setLength(100);
+		} finally {
+			raf.close();
+		}
+
+		assertArrayEquals(mFile, readAll(open(url, null)));
+		assertEquals(fetched + 1, mOriginRequests.get());
+	}
+
+	@Test
+	public void worksWhenOriginIgnoresRanges() throws IOException {
+		mOriginIgnoresRange = true;
+		int start = HttpStream.SEGMENT_SIZE + 1;
+		HttpURLConnection connection = open(mProxy.register(originUrl()), "bytes=" + start + "-");
+		assertEquals(206, connection.getResponseCode());
+		assertArrayEquals(slice(start, FILE_SIZE - 1), readAll(connection));
+	}
+
+	@Test
+	public void refusesUnregisteredStreams() throws IOException {
+		mProxy.register(originUrl());
+		HttpURLConnection connection = open("http://127.0.0.1:" + mProxy.getPort() + "/unknown", null);
+		assertEquals(404, connection.getResponseCode());
+		assertEquals(0, mOriginRequests.get());
+	}
+
+	@Test
+	public void reportsUnreachableOrigin() throws IOException {
+		String url = mProxy.register("http://127.0.0.1:" + mOrigin.getAddress().getPort() + "/missing.mp3");
+		assertEquals(502, open(url, null).getResponseCode());
+	}
+
+	@Test
+	public void segmentCacheEvictsLeastRecentlyUsed() {
+		File dir = new File(mCacheDir, "lru");
+		SegmentCache cache = new SegmentCache(dir, 300);
+		byte[] data = new byte[100];
+		cache.put("a", 0, data, 100);
+		cache.put("a", 1, data, 100);
+		cache.put("a", 2, data, 100);
+		assertNotNull(cache.get("a", 0));
+		cache.put("a", 3, data, 100);
+		assertEquals(300, cache.size());
+		assertNotNull(cache.get("a", 0));
+		assertNull(cache.get("a", 1));
+		assertNotNull(cache.get("a", 3));
+		cache.clear();
+		assertEquals(0, cache.size());
+		dir.delete();
+	}
+
+	@Test
+	public void parsesRanges() {
+		assertArrayEquals(new long[] { 0, 99 }, StreamProxy.parseRange(null, 100));
+		assertArrayEquals(new long[] { 10, 19 }, StreamProxy.parseRange("bytes=10-19", 100));
+		assertArrayEquals(new long[] { 10, 99 }, StreamProxy.parseRange("bytes=10-", 100));
+		assertArrayEquals(new long[] { 10, 99 }, StreamProxy.parseRange("bytes=10-500", 100));
+		assertArrayEquals(new long[] { 90, 99 }, StreamProxy.parseRange("bytes=-10", 100));
+		assertArrayEquals(new long[] { 0, 99 }, StreamProxy.parseRange("bytes=-500", 100));
+		assertArrayEquals(new long[] { 0, 0 }, StreamProxy.parseRange("bytes=0-0,5-9", 100));
+		assertNull(StreamProxy.parseRange("bytes=100-", 100));
+		assertNull(StreamProxy.parseRange("bytes=20-10", 100));
+		assertNull(StreamProxy.parseRange("bytes=-0", 100));
+		assertNull(StreamProxy.parseRange("items=0-1", 100));
+		assertNull(StreamProxy.parseRange("bytes=x-1", 100));
+		assertEquals(4096, HttpStream.parseTotal("bytes 0-1023/4096"));
+		assertEquals(-1, HttpStream.parseTotal("bytes 0-1023/*"));
+	}
+
+	private String originUrl() {
+		return "http://127.0.0.1:" + mOrigin.getAddress().getPort() + "/song.mp3";
+	}
+
+	/** 配信元。Range に（mOriginIgnoresRange でなければ）応答し、リクエストを数える。 */
+	private void serveOrigin(HttpExchange exchange) throws IOException {
+		mOriginRequests.incrementAndGet();
+		if (!exchange.getRequestURI().getPath().equals("/song.mp3")) {
+			exchange.sendResponseHeaders(404, -1);
+			exchange.close();
+			return;
+		}
+		exchange.getResponseHeaders().set("Content-Type", "audio/mpeg");
+		String range = exchange.getRequestHeaders().getFirst("Range");
+		long[] bounds = mOriginIgnoresRange ? null : StreamProxy.parseRange(range, FILE_SIZE);
+		OutputStream out;
+		if (range == null || bounds == null) {
+			exchange.sendResponseHeaders(200, FILE_SIZE);
+			out = exchange.getResponseBody();
+			out.write(mFile);
+		} else {
+			int start = (int) bounds[0];
+			int end = (int) bounds[1];
+			exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + FILE_SIZE);
+			exchange.sendResponseHeaders(206, end - start + 1);
+			out = exchange.getResponseBody();
+			out.write(mFile, start, end - start + 1);
+		}
+		out.close();
+	}
+
+	private static HttpURLConnection open(String url, String range) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		if (range != null) {
+			connection.setRequestProperty("Range", range);
+		}
+		return connection;
+	}
+
+	private static byte[] readAll(HttpURLConnection connection) throws IOException {
+		InputStream in = connection.getInputStream();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, n);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	private byte[] slice(int start, int end) {
+		byte[] bytes = new byte[end - start + 1];
+		System.arraycopy(mFile, start, bytes, 0, bytes.length);
+		return bytes;
+	}
+}
@@ -0,0 +1,142 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * TrackSorter の結果を、安定なソート（Collections.sort）で求めた順と比べる。
+ * run の見つけ方が効く入力（昇順・降順・ソート済みに少し足したもの）と、スレッドに分けたマージも試す。
+ */
+public class TrackSorterTest {
+	private static final int[] SIZES = {0, 1, 2, 31, 32, 33, 100, 1000, 5000};
+
+	@Test
+	public void sortsRandomKeysStably() {
+		Random random = new Random(1);
+		for (int n : SIZES) {
+			// few distinct keys, so that many songs share one
+			long[] keys = new long[n];
+			for (int i = 0; i < n; i++) {
+				keys[i] = random.nextInt(10);
+			}
+			assertStableOrder(keys, TrackSorter.sort(keys, n, 1));
+		}
+	}
+
+	@Test
+	public void keepsAnAscendingInputAsItIs() {
+		long[] keys = new long[1000];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = i / 3;
+		}
+		int[] order = TrackSorter.sort(keys, keys.length, 1);
+		for (int i = 0; i < order.length; i++) {
+			assertEquals(i, order[i]);
+		}
+	}
+
+	@Test
+	public void reversesAStrictlyDescendingInput() {
+		long[] keys = new long[1000];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = keys.length - i;
+		}
+		int[] order = TrackSorter.sort(keys, keys.length, 1);
+		for (int i = 0; i < order.length; i++) {
+			assertEquals(keys.length - 1 - i, order[i]);
+		}
+	}
+
+	@Test
+	public void doesNotReverseEqualKeysInADescendingInput() {
+		// descending, but in pairs of equal keys: reversing a whole run would swap each pair
+		long[] keys = new long[200];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = (keys.length - i) / 2;
+		}
+		assertStableOrder(keys, TrackSorter.sort(keys, keys.length, 1));
+	}
+
+	@Test
+	public void sortsAnIndexWithAFewSongsAdded() {
+		Random random = new Random(2);
+		int n = 3000;
+		long[] keys = new long[n];
+		for (int i = 0; i < n - 50; i++) {
+			keys[i] = i * 10;
+		}
+		for (int i = n - 50; i < n; i++) {
+			keys[i] = random.nextInt(n * 10);
+		}
+		assertStableOrder(keys, TrackSorter.sort(keys, n, 1));
+	}
+
+	@Test
+	public void theParallelMergeGivesTheSameOrder() {
+		Random random = new Random(3);
+		int n = 20000;
+		long[] keys = new long[n];
+		for (int i = 0; i < n; i++) {
+			keys[i] = random.nextInt(500);
+		}
+		int[] expected = TrackSorter.sort(keys, n, 1);
+		assertStableOrder(keys, expected);
+		// three parts leave one without a partner in the first round of merging
+		for (int threads = 2; threads <= 5; threads++) {
+			assertArrayEquals(expected, TrackSorter.sort(keys, n, threads));
+		}
+		assertArrayEquals(expected, TrackSorter.sort(keys, n));
+	}
+
+	@Test
+	public void theParallelMergeHandlesSortedParts() {
+		int n = TrackSorter.PARALLEL_THRESHOLD * 2;
+		long[] keys = new long[n];
+		for (int i = 0; i < n; i++) {
+			keys[i] = i / 7;
+		}
+		int[] order = TrackSorter.sort(keys, n, 4);
+		for (int i = 0; i < n; i++) {
+			assertEquals(i, order[i]);
+		}
+		// and parts that must all be interleaved
+		for (int i = 0; i < n; i++) {
+			keys[i] = i % 4 * n + i / 4;
+		}
+		assertStableOrder(keys, TrackSorter.sort(keys, n, 4));
+	}
+
+	@Test
+	public void sortsOnlyTheFirstNKeys() {
+		long[] keys = {5, 4, 3, 2, 1, 0};
+		int[] order = TrackSorter.sort(keys, 3, 1);
+		assertArrayEquals(new int[] {2, 1, 0}, order);
+	}
+
+	/** order が、キーの昇順で、同じキーなら添字の順になっていること。 */
+	private static void assertStableOrder(final long[] keys, int[] order) {
+		List<Integer> expected = new ArrayList<Integer>();
+		for (int i = 0; i < order.length; i++) {
+			expected.add(i);
+		}
+		Collections.sort(expected, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				long x = keys[a];
+				long y = keys[b];
+				return x < y ? -1 : (x == y ? 0 : 1);
+			}
+		});
+		assertEquals(expected.size(), order.length);
+		for (int i = 0; i < order.length; i++) {
+			assertEquals("position " + i, expected.get(i).intValue(), order[i]);
+		}
+	}
+}
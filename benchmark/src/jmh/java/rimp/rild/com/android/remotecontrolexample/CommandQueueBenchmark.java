@@ -0,0 +1,65 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * 再生スレッドに渡すコマンドのキューのベンチマーク。
+ * 結果は 1 コマンドあたりの時間。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CommandQueueBenchmark {
+	private static final int BURST = 64;
+
+	private final PlaybackCommandQueue mQueue = new PlaybackCommandQueue();
+
+	/** スキップの連打。すべて 1 つのコマンドにまとめられる。 */
+	@Benchmark
+	@OperationsPerInvocation(BURST)
+	public void skipBurst(Blackhole bh) {
+		for (int i = 0; i < BURST; i++) {
+			mQueue.offer(new PlaybackCommandQueue.Command(PlaybackCommandQueue.SKIP, i));
+		}
+		drain(bh);
+	}
+
+	/** 再生と一時停止の繰り返し。一時停止が直前の再生を取り除き、一時停止 1 つだけが残る。 */
+	@Benchmark
+	@OperationsPerInvocation(BURST)
+	public void playPauseBurst(Blackhole bh) {
+		for (int i = 0; i < BURST; i++) {
+			int type = (i & 1) == 0 ? PlaybackCommandQueue.PLAY : PlaybackCommandQueue.PAUSE;
+			mQueue.offer(new PlaybackCommandQueue.Command(type, i));
+		}
+		drain(bh);
+	}
+
+	/** まとめられないコマンドの列。 */
+	@Benchmark
+	@OperationsPerInvocation(BURST)
+	public void mixed(Blackhole bh) {
+		for (int i = 0; i < BURST; i++) {
+			int type = (i % 3) == 0 ? PlaybackCommandQueue.SKIP
+					: (i % 3) == 1 ? PlaybackCommandQueue.PLAYPAUSE : PlaybackCommandQueue.PREVIOUS;
+			mQueue.offer(new PlaybackCommandQueue.Command(type, i));
+		}
+		drain(bh);
+	}
+
+	private void drain(Blackhole bh) {
+		PlaybackCommandQueue.Command command;
+		while ((command = mQueue.poll()) != null) {
+			bh.consume(command);
+		}
+	}
+}
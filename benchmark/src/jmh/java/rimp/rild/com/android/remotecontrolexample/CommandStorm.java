@@ -0,0 +1,87 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.util.Random;
+
+/**
+ * PlaybackEngine に流し込むコマンドの列。
+ * スキップ、前の曲、再生・一時停止、シークなどを混ぜ、ときどきスキップの連打とオーディオフォーカスの一時的な喪失を挟む。
+ * 同じ種からは同じ列ができる。
+ */
+public class CommandStorm {
+	/** フォーカスを失った（ダッキング可）ことを表す種類。キューには積まず、エンジンに直接伝える。 */
+	public static final int FOCUS_LOST = -1;
+	/** フォーカスを取り戻したことを表す種類。 */
+	public static final int FOCUS_GAINED = -2;
+
+	// 連打の間隔と、それ以外のコマンドの平均の間隔（ミリ秒）
+	private static final int BURST_GAP = 40;
+	private static final int MEAN_GAP = 400;
+
+	public final int size;
+	public final int[] types;
+	public final int[] args;
+	/** 到着時刻（最初のコマンドからのミリ秒）。 */
+	public final long[] arrivals;
+
+	private CommandStorm(int size) {
+		this.size = size;
+		types = new int[size];
+		args = new int[size];
+		arrivals = new long[size];
+	}
+
+	public static CommandStorm generate(int size, long seed) {
+		CommandStorm storm = new CommandStorm(size);
+		Random random = new Random(seed);
+		long time = 0;
+		int burst = 0;
+		for (int i = 0; i < size; i++) {
+			int type;
+			int arg = 0;
+			if (burst > 0) {
+				burst--;
+				type = PlaybackCommandQueue.SKIP;
+				time += 1 + random.nextInt(BURST_GAP);
+			} else {
+				time += (long) (-Math.log(1.0 - random.nextDouble()) * MEAN_GAP);
+				int roll = random.nextInt(100);
+				if (roll < 30) {
+					type = PlaybackCommandQueue.SKIP;
+				} else if (roll < 38) {
+					type = PlaybackCommandQueue.SKIP;
+					burst = 2 + random.nextInt(8);
+				} else if (roll < 48) {
+					type = PlaybackCommandQueue.PREVIOUS;
+				} else if (roll < 63) {
+					type = PlaybackCommandQueue.PLAYPAUSE;
+				} else if (roll < 70) {
+					type = PlaybackCommandQueue.PLAY;
+				} else if (roll < 75) {
+					type = PlaybackCommandQueue.PAUSE;
+				} else if (roll < 92) {
+					type = PlaybackCommandQueue.SEEK;
+					arg = random.nextInt(240000);
+				} else if (roll < 94) {
+					type = PlaybackCommandQueue.REWIND;
+				} else if (roll < 95) {
+					type = PlaybackCommandQueue.STOP;
+				} else if (roll < 98) {
+					type = FOCUS_LOST;
+				} else {
+					type = FOCUS_GAINED;
+				}
+			}
+			storm.types[i] = type;
+			storm.args[i] = arg;
+			storm.arrivals[i] = time;
+		}
+		return storm;
+	}
+
+	/** i 番目のコマンドを、要求時刻 when で作る。 */
+	public PlaybackCommandQueue.Command newCommand(int i, long when) {
+		PlaybackCommandQueue.Command command = new PlaybackCommandQueue.Command(types[i], when);
+		command.arg = args[i];
+		return command;
+	}
+}
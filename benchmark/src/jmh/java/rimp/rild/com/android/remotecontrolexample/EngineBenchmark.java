@@ -0,0 +1,39 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * PlaybackEngine にコマンドの嵐を流し込むベンチマーク（EngineLoadHarness と同じ処理）。
+ * 結果は 1 コマンドあたりの時間で、仮想の時計やシミュレーションのプレーヤーの分も含む。
+ * サービスはこのエンジンを使っていないので、サービスの性能の数字として読まないこと。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EngineBenchmark {
+	private static final int COMMANDS = 100000;
+
+	private CommandStorm mStorm;
+	private EngineLoadHarness.Config mConfig;
+
+	@Setup
+	public void setUp() {
+		mConfig = new EngineLoadHarness.Config();
+		mStorm = CommandStorm.generate(COMMANDS, mConfig.seed);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(COMMANDS)
+	public EngineLoadHarness.Result storm() {
+		return EngineLoadHarness.run(mStorm, mConfig);
+	}
+}
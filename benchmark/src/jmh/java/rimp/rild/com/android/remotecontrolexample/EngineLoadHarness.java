@@ -0,0 +1,143 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * PlaybackEngine にコマンドの嵐を流し込む負荷試験。
+ * 時間は VirtualClock で進めるので、準備の遅延を含めても実時間では一瞬で終わる。
+ * 再生スレッドは Config.tick ミリ秒ごとに溜まったコマンドをまとめて処理するものとし、
+ * コマンドの遅延（仮想時間）、1 コマンドあたりの処理時間（実時間）、無駄になった準備の数を出力する。
+ * 数字は PlaybackEngine というモデルのもので、MusicPlayerService の遅延や負荷をあらわすものではない。
+ *
+ * 実行: ./gradlew :benchmark:engineLoad [-Pcommands=200000]
+ */
+public class EngineLoadHarness {
+	/** 試験の設定。 */
+	public static class Config {
+		public int librarySize = 10000;
+		public long seed = SyntheticLibrary.DEFAULT_SEED;
+		/** 再生スレッドがキューを処理する間隔（ミリ秒）。 */
+		public int tick = 16;
+		public int prepareLatency = 120;
+		public int prepareJitter = 180;
+		public double failureRate = 0.005;
+		public int trackDuration = 240000;
+	}
+
+	/** 試験の結果。 */
+	public static class Result {
+		public PlaybackEngine engine;
+		public SimulatedPlayer player;
+		public int generated;
+		public long processed;
+		public long drains;
+		/** キューの処理にかかった実時間の合計（ナノ秒）。 */
+		public long processNanos;
+		/** キューを 1 回処理するのにかかった実時間（ナノ秒）。処理したコマンドがあった回だけ。 */
+		public long[] drainNanos;
+	}
+
+	public static Result run(CommandStorm storm, Config config) {
+		VirtualClock clock = new VirtualClock();
+		SimulatedPlayer player = new SimulatedPlayer(clock, config.seed, config.prepareLatency,
+				config.prepareJitter, config.failureRate, config.trackDuration);
+		PlaybackEngine engine = new PlaybackEngine(player, new PlaybackEngine.Focus() {
+			@Override
+			public boolean requestFocus() {
+				return true;
+			}
+
+			@Override
+			public boolean abandonFocus() {
+				return true;
+			}
+		}, clock);
+		engine.setLibrary(PlaybackEngine.of(SyntheticLibrary.generate(config.librarySize, config.seed).toTrackStore()));
+
+		Result result = new Result();
+		result.engine = engine;
+		result.player = player;
+		result.generated = storm.size;
+		long[] drainNanos = new long[storm.size];
+		int drains = 0;
+		long start = clock.elapsedRealtime();
+		long nextTick = start + config.tick;
+		int i = 0;
+		while (i < storm.size) {
+			// everything that arrives before the next tick waits in the queue
+			while (i < storm.size && start + storm.arrivals[i] < nextTick) {
+				clock.advanceTo(start + storm.arrivals[i]);
+				int type = storm.types[i];
+				if (type == CommandStorm.FOCUS_LOST) {
+					engine.onLostAudioFocus(true);
+				} else if (type == CommandStorm.FOCUS_GAINED) {
+					engine.onGainedAudioFocus();
+				} else {
+					engine.offer(storm.newCommand(i, clock.elapsedRealtime()));
+				}
+				i++;
+			}
+			clock.advanceTo(nextTick);
+			long t0 = System.nanoTime();
+			int processed = engine.processPending();
+			long elapsed = System.nanoTime() - t0;
+			if (processed > 0) {
+				result.processed += processed;
+				result.processNanos += elapsed;
+				drainNanos[drains++] = elapsed;
+			}
+			// skip the idle ticks up to the next arrival
+			long next = i < storm.size ? storm.arrivals[i] : 0;
+			nextTick = Math.max(nextTick + config.tick, start + (next / config.tick + 1) * config.tick);
+		}
+		// let the last prepares finish
+		clock.runUntilIdle(clock.elapsedRealtime() + config.prepareLatency + config.prepareJitter);
+		result.drains = drains;
+		result.drainNanos = Arrays.copyOf(drainNanos, drains);
+		return result;
+	}
+
+	public static void main(String[] args) {
+		int commands = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		Config config = new Config();
+		if (args.length > 1) {
+			config.seed = Long.parseLong(args[1]);
+		}
+		CommandStorm storm = CommandStorm.generate(commands, config.seed);
+
+		// a first pass to warm up the JIT, then the measured one
+		run(storm, config);
+		Result result = run(storm, config);
+
+		PrintWriter pw = new PrintWriter(System.out);
+		print(pw, result);
+		pw.flush();
+	}
+
+	static void print(PrintWriter pw, Result result) {
+		PlaybackEngine engine = result.engine;
+		PlaybackCommandQueue commands = engine.getCommands();
+		PlaybackMetrics metrics = engine.getMetrics();
+		PlaybackStateMachine stateMachine = engine.getStateMachine();
+		long[] drainNanos = result.drainNanos;
+		Arrays.sort(drainNanos);
+
+		pw.println("commands: generated=" + result.generated + " offered=" + commands.getOfferedCount()
+				+ " coalesced=" + commands.getCoalescedCount() + " executed=" + result.processed);
+		if (result.processed > 0) {
+			pw.println("engine time: " + result.processNanos / result.processed + "ns/command, drain p50="
+					+ drainNanos[drainNanos.length / 2] + "ns p99=" + drainNanos[(int) (drainNanos.length * 0.99)]
+					+ "ns max=" + drainNanos[drainNanos.length - 1] + "ns over " + result.drains + " drains");
+		}
+		long prepares = metrics.getCount(PlaybackMetrics.COUNT_PREPARES);
+		long wasted = metrics.getCount(PlaybackMetrics.COUNT_WASTED_PREPARES);
+		pw.println("prepares: " + prepares + " started, " + wasted + " wasted ("
+				+ (prepares == 0 ? 0 : wasted * 100 / prepares) + "%), " + result.player.getCancelledCount()
+				+ " cancelled in flight, " + result.player.getFailureCount() + " failed");
+		pw.println("transitions: moved=" + stateMachine.getMovedCount() + " noop=" + stateMachine.getNoopCount()
+				+ " rejected=" + stateMachine.getRejectedCount());
+		pw.println("metrics (virtual time):");
+		metrics.dump(pw);
+	}
+}
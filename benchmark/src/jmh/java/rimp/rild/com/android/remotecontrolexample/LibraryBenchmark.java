@@ -0,0 +1,110 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * 曲リストを作る処理のベンチマーク。
+ * カーソルの行から曲を作る処理（Item を並べる場合と TrackStore に詰める場合）と、アルバム順のソートを比べる。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LibraryBenchmark {
+	@Param({"1000", "10000", "100000"})
+	public int size;
+
+	private SyntheticLibrary mLibrary;
+	private List<Item> mItems;
+	private TrackStore mSorted;
+	private long[] mKeys;
+
+	@Setup
+	public void setUp() {
+		mLibrary = SyntheticLibrary.generate(size);
+		mItems = mLibrary.toItems();
+		mSorted = mLibrary.addTo(new TrackStore.Builder(size)).build();
+		mKeys = new long[size];
+		Random random = new java.util.Random(SyntheticLibrary.DEFAULT_SEED);
+		for (int i = 0; i < size; i++) {
+			mKeys[i] = random.nextLong() >>> 1;
+		}
+	}
+
+	/**
+	 * カーソルの各行を Item にする。Cursor.getString は呼び出すたびに新しい文字列を返すので、文字列は複製する。
+	 */
+	@Benchmark
+	public List<Item> materializeItems() {
+		SyntheticLibrary lib = mLibrary;
+		List<Item> items = new ArrayList<Item>();
+		for (int i = 0; i < lib.size; i++) {
+			items.add(new Item(lib.ids[i], new String(lib.artists[i]), new String(lib.titles[i]),
+					new String(lib.albums[i]), lib.albumIds[i], lib.tracks[i], lib.durations[i], lib.dateModified[i]));
+		}
+		return items;
+	}
+
+	/** カーソルの各行を TrackStore.Builder に詰める（文字列表への登録を含む）。 */
+	@Benchmark
+	public TrackStore.Builder materializeTrackStore() {
+		SyntheticLibrary lib = mLibrary;
+		TrackStore.Builder builder = new TrackStore.Builder();
+		for (int i = 0; i < lib.size; i++) {
+			builder.addTrack(lib.ids[i], new String(lib.artists[i]), null, new String(lib.titles[i]),
+					new String(lib.albums[i]), lib.albumIds[i], lib.tracks[i], lib.durations[i], lib.dateModified[i]);
+		}
+		return builder;
+	}
+
+	/** Item.compareTo による従来のソート。 */
+	@Benchmark
+	public List<Item> sortItems() {
+		List<Item> items = new ArrayList<Item>(mItems);
+		Collections.sort(items);
+		return items;
+	}
+
+	/** TrackStore.Builder.build によるソート（詰め込み込み）。 */
+	@Benchmark
+	public TrackStore buildTrackStore() {
+		return mLibrary.addTo(new TrackStore.Builder(size)).build();
+	}
+
+	/**
+	 * ソート済みの TrackStore から組み立て直す。インデックスを読んだ後に差分を反映する場合で、
+	 * 入力が 1 つの run になるので、ソートはほぼ線形で終わる。
+	 */
+	@Benchmark
+	public TrackStore rebuildSortedTrackStore() {
+		TrackStore.Builder builder = new TrackStore.Builder(size);
+		for (int i = 0; i < mSorted.size(); i++) {
+			builder.add(mSorted, i);
+		}
+		return builder.build();
+	}
+
+	/** ランダムなキーの TrackSorter（1 スレッド）。 */
+	@Benchmark
+	public int[] sortKeysSerial() {
+		return TrackSorter.sort(mKeys, size, 1);
+	}
+
+	/** ランダムなキーの TrackSorter（スレッドに分ける）。 */
+	@Benchmark
+	public int[] sortKeysParallel() {
+		return TrackSorter.sort(mKeys, size, Runtime.getRuntime().availableProcessors());
+	}
+}
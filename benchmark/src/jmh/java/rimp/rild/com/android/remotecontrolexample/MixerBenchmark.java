@@ -0,0 +1,88 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * CrossfadeMixer で 1 回の書き込み分（frames フレーム、ステレオ）を混ぜる時間。
+ * オーディオスレッドで使うので、gc.alloc.rate.norm は 0 になるはず。
+ * フェードはどの回も途中にあるよう、長いものを毎回始め直す。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MixerBenchmark {
+	private static final int CHANNELS = 2;
+	// 44.1kHz で 6 秒
+	private static final int FADE_FRAMES = 6 * 44100;
+
+	@Param({"256", "1024", "4096"})
+	public int frames;
+
+	private CrossfadeMixer mLinear;
+	private CrossfadeMixer mEqualPower;
+	private short[] mFrom;
+	private short[] mTo;
+	private short[] mOut;
+	private float[] mFromFloat;
+	private float[] mToFloat;
+	private float[] mOutFloat;
+
+	@Setup
+	public void setUp() {
+		mLinear = new CrossfadeMixer(CHANNELS, CrossfadeMixer.CURVE_LINEAR);
+		mEqualPower = new CrossfadeMixer(CHANNELS, CrossfadeMixer.CURVE_EQUAL_POWER);
+		Random random = new Random(SyntheticLibrary.DEFAULT_SEED);
+		int samples = frames * CHANNELS;
+		mFrom = new short[samples];
+		mTo = new short[samples];
+		mOut = new short[samples];
+		mFromFloat = new float[samples];
+		mToFloat = new float[samples];
+		mOutFloat = new float[samples];
+		for (int i = 0; i < samples; i++) {
+			mFrom[i] = (short) random.nextInt();
+			mTo[i] = (short) random.nextInt();
+			mFromFloat[i] = mFrom[i] / 32768f;
+			mToFloat[i] = mTo[i] / 32768f;
+		}
+	}
+
+	@Benchmark
+	public short[] linear() {
+		mLinear.start(FADE_FRAMES);
+		mLinear.mix(mOut, mFrom, frames, mTo, frames, frames);
+		return mOut;
+	}
+
+	@Benchmark
+	public short[] equalPower() {
+		mEqualPower.start(FADE_FRAMES);
+		mEqualPower.mix(mOut, mFrom, frames, mTo, frames, frames);
+		return mOut;
+	}
+
+	@Benchmark
+	public float[] equalPowerFloat() {
+		mEqualPower.start(FADE_FRAMES);
+		mEqualPower.mix(mOutFloat, mFromFloat, frames, mToFloat, frames, frames);
+		return mOutFloat;
+	}
+
+	/** フェードが終わった後：次の曲をそのまま写すだけ。 */
+	@Benchmark
+	public short[] afterTheFade() {
+		mEqualPower.cancel();
+		mEqualPower.mix(mOut, mFrom, frames, mTo, frames, frames);
+		return mOut;
+	}
+}
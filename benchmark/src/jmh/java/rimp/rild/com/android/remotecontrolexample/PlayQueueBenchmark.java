@@ -0,0 +1,73 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * ファイルにマップした PlayQueue の編集 1 回分の時間。キューの長さによらずほぼ一定になるはず。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PlayQueueBenchmark {
+	@Param({"100", "10000"})
+	public int size;
+
+	private File mFile;
+	private PlayQueue mQueue;
+	private int mMiddle;
+	private int mLast;
+	private long mNextId;
+
+	@Setup
+	public void setUp() throws IOException {
+		mFile = File.createTempFile("playqueue", ".map");
+		mFile.delete();
+		mQueue = PlayQueue.open(mFile);
+		for (int i = 0; i < size; i++) {
+			int slot = mQueue.enqueue(i);
+			if (i == size / 2) {
+				mMiddle = slot;
+			}
+			mLast = slot;
+		}
+		mNextId = size;
+	}
+
+	@TearDown
+	public void tearDown() {
+		mQueue.close();
+		mFile.delete();
+	}
+
+	/** 末尾に加えて先頭を取り出す。再生しながら曲を足していく場合。 */
+	@Benchmark
+	public long enqueueAndPoll() {
+		mQueue.enqueue(mNextId++);
+		return mQueue.poll();
+	}
+
+	/** 真ん中の曲を先頭に移し、また末尾に移す。 */
+	@Benchmark
+	public boolean moveToHeadAndBack() {
+		mQueue.move(mMiddle, PlayQueue.NONE);
+		return mQueue.move(mMiddle, mLast);
+	}
+
+	/** 割り込ませてすぐ取り消す。 */
+	@Benchmark
+	public boolean playNextAndRemove() {
+		return mQueue.remove(mQueue.playNext(mNextId++));
+	}
+}
@@ -0,0 +1,62 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * 状態のスナップショットを作って前回と比べる処理（StatePublisher が時間枠ごとに行う処理）のベンチマーク。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PlayerStateBenchmark {
+	private TrackStore mStore;
+	private PlayerState mPublished;
+	private int mIndex;
+	private long mNow;
+
+	@Setup
+	public void setUp() {
+		mStore = SyntheticLibrary.generate(10000).toTrackStore();
+		mIndex = 1234;
+		mNow = 1000000;
+		mPublished = snapshot(mIndex, MusicPlayerService.State.Playing, 30000, mNow);
+	}
+
+	private PlayerState snapshot(int index, MusicPlayerService.State state, long position, long now) {
+		TrackStore store = mStore;
+		return new PlayerState(store.getId(index), store.getArtist(index), store.getAlbum(index),
+				store.getAlbumId(index), store.getTitle(index), store.getDuration(index), state, position, now);
+	}
+
+	/** スナップショットを作るだけ。 */
+	@Benchmark
+	public PlayerState build() {
+		return snapshot(mIndex, MusicPlayerService.State.Playing, 31000, mNow + 1000);
+	}
+
+	/** 再生が進んだだけの状態と比べる。変化なし（0）になる。 */
+	@Benchmark
+	public int diffUnchanged() {
+		return snapshot(mIndex, MusicPlayerService.State.Playing, 31000, mNow + 1000).diff(mPublished);
+	}
+
+	/** 一時停止した状態と比べる。 */
+	@Benchmark
+	public int diffPaused() {
+		return snapshot(mIndex, MusicPlayerService.State.Paused, 31000, mNow + 1000).diff(mPublished);
+	}
+
+	/** 次の曲に移った状態と比べる。 */
+	@Benchmark
+	public int diffTrackChanged() {
+		return snapshot(mIndex + 1, MusicPlayerService.State.Preparing, 0, mNow + 1000).diff(mPublished);
+	}
+}
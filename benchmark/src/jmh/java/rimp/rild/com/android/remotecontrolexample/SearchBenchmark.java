@@ -0,0 +1,80 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * SearchIndex の検索と差分の反映のベンチマーク。
+ * 検索は 1 文字ずつ入力した場合の 1 回分の時間。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SearchBenchmark {
+	@Param({"10000", "50000"})
+	public int size;
+
+	private SearchIndex mIndex;
+	private TrackStore mStore;
+	private TrackStore mChanged;
+
+	@Setup
+	public void setUp() {
+		SyntheticLibrary lib = SyntheticLibrary.generate(size);
+		mStore = lib.toTrackStore();
+		// 1% of the songs renamed and 1% removed, as after a rescan
+		for (int i = 0; i < lib.size; i += 100) {
+			lib.titles[i] = lib.titles[i] + " (remastered)";
+		}
+		TrackStore.Builder builder = new TrackStore.Builder(size);
+		for (int i = 0; i < lib.size; i++) {
+			if (i % 100 != 50) {
+				builder.addTrack(lib.ids[i], lib.artists[i], null, lib.titles[i], lib.albums[i], lib.albumIds[i],
+						lib.tracks[i], lib.durations[i], lib.dateModified[i]);
+			}
+		}
+		mChanged = builder.build();
+		mIndex = new SearchIndex();
+		mIndex.update(mStore);
+	}
+
+	/** 1 文字目。候補がいちばん多い。 */
+	@Benchmark
+	public long[] oneLetter() {
+		return mIndex.search("s", SearchIndex.DEFAULT_LIMIT);
+	}
+
+	/** ほぼ全曲に当たる語と絞り込む語。 */
+	@Benchmark
+	public long[] twoTerms() {
+		return mIndex.search("album 12", SearchIndex.DEFAULT_LIMIT);
+	}
+
+	/** 3 つの語。 */
+	@Benchmark
+	public long[] threeTerms() {
+		return mIndex.search("artist 3 song", SearchIndex.DEFAULT_LIMIT);
+	}
+
+	/** どの曲にも当たらない。 */
+	@Benchmark
+	public long[] miss() {
+		return mIndex.search("song zzzzzz", SearchIndex.DEFAULT_LIMIT);
+	}
+
+	/** 2% の曲が変わった曲リストを反映し、元に戻す。 */
+	@Benchmark
+	@OperationsPerInvocation(2)
+	public int updateIncremental() {
+		return mIndex.update(mChanged) + mIndex.update(mStore);
+	}
+}
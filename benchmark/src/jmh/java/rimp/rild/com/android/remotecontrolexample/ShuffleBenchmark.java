@@ -0,0 +1,51 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * シャッフルした PlayOrder で次の曲・前の曲を求める時間。曲数によらずほぼ一定になるはず。
+ * 周回をまたぐと並びを作り直すので、その分も含まれる。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ShuffleBenchmark {
+	@Param({"100", "10000", "1000000"})
+	public int size;
+
+	private PlayOrder mOrder;
+	private int mIndex;
+
+	@Setup
+	public void setUp() {
+		mOrder = new PlayOrder(size);
+		mOrder.setShuffle(true, 0, SyntheticLibrary.DEFAULT_SEED);
+	}
+
+	@Benchmark
+	public int next() {
+		mIndex = mOrder.skip(mIndex, 1);
+		return mIndex;
+	}
+
+	@Benchmark
+	public int previous() {
+		mIndex = mOrder.skip(mIndex, -1);
+		return mIndex;
+	}
+
+	/** 先読みする曲を選ぶときのように、状態を変えずに先を見る。 */
+	@Benchmark
+	public int peekAhead() {
+		return mOrder.peek(mIndex, 2);
+	}
+}
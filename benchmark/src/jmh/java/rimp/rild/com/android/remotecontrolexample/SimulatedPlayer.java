@@ -0,0 +1,171 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.util.Random;
+
+/**
+ * MediaPlayer の代わりに PlaybackEngine で使う、音を出さないプレーヤー。
+ * 準備にかかる時間（一定の時間にばらつきを足したもの）と準備の失敗率を設定でき、
+ * 再生を始めると曲の長さの後に完了を通知する。コールバックは VirtualClock の予約として実行される。
+ */
+public class SimulatedPlayer implements PlaybackEngine.Player {
+	/** MediaPlayer.MEDIA_ERROR_UNKNOWN に相当する。 */
+	public static final int ERROR_UNKNOWN = 1;
+	/** MediaPlayer.MEDIA_ERROR_IO に相当する。 */
+	public static final int ERROR_IO = -1004;
+
+	private final VirtualClock mClock;
+	private final Random mRandom;
+	private final int mPrepareLatency;
+	private final int mPrepareJitter;
+	private final double mFailureRate;
+	private final int mTrackDuration;
+
+	private PlaybackEngine.PlayerListener mListener;
+	// 取り消した準備や再生の予約を無視するための世代
+	private int mPrepareGeneration;
+	private int mPlayGeneration;
+	private boolean mPreparing;
+	private boolean mPlaying;
+	private int mPosition;
+	private long mStartedAt;
+
+	private long mPrepareCount;
+	private long mCancelledCount;
+	private long mFailureCount;
+
+	/**
+	 * @param clock コールバックを予約する時計
+	 * @param seed 準備時間のばらつきと失敗に使う乱数の種
+	 * @param prepareLatency 準備にかかる時間（ミリ秒）
+	 * @param prepareJitter 準備時間に足すばらつきの最大値（ミリ秒）
+	 * @param failureRate 準備が失敗する確率
+	 * @param trackDuration 曲の長さ（ミリ秒）
+	 */
+	public SimulatedPlayer(VirtualClock clock, long seed, int prepareLatency, int prepareJitter,
+			double failureRate, int trackDuration) {
+		mClock = clock;
+		mRandom = new Random(seed);
+		mPrepareLatency = prepareLatency;
+		mPrepareJitter = prepareJitter;
+		mFailureRate = failureRate;
+		mTrackDuration = trackDuration;
+	}
+
+	@Override
+	public void setListener(PlaybackEngine.PlayerListener listener) {
+		mListener = listener;
+	}
+
+	@Override
+	public void prepare(long trackId) {
+		reset();
+		mPrepareCount++;
+		mPreparing = true;
+		final int generation = ++mPrepareGeneration;
+		final boolean fail = mRandom.nextDouble() < mFailureRate;
+		int latency = mPrepareLatency + (mPrepareJitter > 0 ? mRandom.nextInt(mPrepareJitter + 1) : 0);
+		mClock.schedule(latency, new Runnable() {
+			@Override
+			public void run() {
+				if (generation != mPrepareGeneration || !mPreparing) {
+					return;
+				}
+				mPreparing = false;
+				if (fail) {
+					mFailureCount++;
+					mListener.onError(SimulatedPlayer.this, ERROR_UNKNOWN, ERROR_IO);
+				} else {
+					mListener.onPrepared(SimulatedPlayer.this);
+				}
+			}
+		});
+	}
+
+	@Override
+	public void start() {
+		if (mPlaying) {
+			return;
+		}
+		mPlaying = true;
+		mStartedAt = mClock.elapsedRealtime();
+		scheduleCompletion();
+	}
+
+	@Override
+	public void pause() {
+		if (!mPlaying) {
+			return;
+		}
+		mPosition = getCurrentPosition();
+		mPlaying = false;
+		mPlayGeneration++;
+	}
+
+	@Override
+	public void seekTo(int position) {
+		mPosition = Math.max(0, Math.min(position, mTrackDuration));
+		if (mPlaying) {
+			mStartedAt = mClock.elapsedRealtime();
+			scheduleCompletion();
+		}
+	}
+
+	@Override
+	public int getCurrentPosition() {
+		if (!mPlaying) {
+			return mPosition;
+		}
+		return (int) Math.min(mPosition + mClock.elapsedRealtime() - mStartedAt, mTrackDuration);
+	}
+
+	@Override
+	public void setVolume(float volume) {
+	}
+
+	@Override
+	public void reset() {
+		if (mPreparing) {
+			mCancelledCount++;
+		}
+		mPreparing = false;
+		mPlaying = false;
+		mPosition = 0;
+		mPrepareGeneration++;
+		mPlayGeneration++;
+	}
+
+	@Override
+	public void release() {
+		reset();
+	}
+
+	private void scheduleCompletion() {
+		final int generation = ++mPlayGeneration;
+		mClock.schedule(mTrackDuration - mPosition, new Runnable() {
+			@Override
+			public void run() {
+				if (generation != mPlayGeneration || !mPlaying) {
+					return;
+				}
+				mPlaying = false;
+				mPosition = mTrackDuration;
+				mListener.onCompletion(SimulatedPlayer.this);
+			}
+		});
+	}
+
+	/** これまでに始めた準備の数。 */
+	public long getPrepareCount() {
+		return mPrepareCount;
+	}
+
+	/** 終わる前に取り消された準備の数。 */
+	public long getCancelledCount() {
+		return mCancelledCount;
+	}
+
+	/** 失敗させた準備の数。 */
+	public long getFailureCount() {
+		return mFailureCount;
+	}
+}
@@ -0,0 +1,87 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * ベンチマーク用の架空の音楽ライブラリ。
+ * MediaStore から読んだ場合と同じく _ID の昇順に並び、アルバムは平均 12 曲、アーティストは平均 4 アルバムを持つ。
+ * 同じ曲数と seed からは常に同じライブラリができる。
+ */
+final class SyntheticLibrary {
+	static final long DEFAULT_SEED = 0x5EEDL;
+
+	final int size;
+	final long[] ids;
+	final String[] artists;
+	final String[] titles;
+	final String[] albums;
+	final long[] albumIds;
+	final int[] tracks;
+	final long[] durations;
+	final long[] dateModified;
+
+	private SyntheticLibrary(int size) {
+		this.size = size;
+		ids = new long[size];
+		artists = new String[size];
+		titles = new String[size];
+		albums = new String[size];
+		albumIds = new long[size];
+		tracks = new int[size];
+		durations = new long[size];
+		dateModified = new long[size];
+	}
+
+	static SyntheticLibrary generate(int size) {
+		return generate(size, DEFAULT_SEED);
+	}
+
+	static SyntheticLibrary generate(int size, long seed) {
+		Random random = new Random(seed);
+		SyntheticLibrary lib = new SyntheticLibrary(size);
+		int albumCount = Math.max(size / 12, 1);
+		int artistCount = Math.max(albumCount / 4, 1);
+		int[] nextTrack = new int[albumCount];
+		long id = 0;
+		for (int i = 0; i < size; i++) {
+			// 削除された曲の分だけ _ID が飛ぶ
+			id += 1 + (random.nextInt(8) == 0 ? random.nextInt(5) : 0);
+			// 曲はアルバムごとにまとめて追加されるとは限らない
+			int album = random.nextInt(albumCount);
+			lib.ids[i] = id;
+			lib.albums[i] = "Album " + album;
+			lib.albumIds[i] = album + 1;
+			lib.artists[i] = "Artist " + (album % artistCount);
+			lib.titles[i] = "Song " + Long.toString(random.nextLong() & 0xffffffffL, 36);
+			lib.tracks[i] = ++nextTrack[album];
+			lib.durations[i] = 120000 + random.nextInt(300000);
+			lib.dateModified[i] = 1400000000L + random.nextInt(100000000);
+		}
+		return lib;
+	}
+
+	/** 全曲を Builder に追加する。 */
+	TrackStore.Builder addTo(TrackStore.Builder builder) {
+		for (int i = 0; i < size; i++) {
+			builder.addTrack(ids[i], artists[i], null, titles[i], albums[i], albumIds[i], tracks[i], durations[i],
+					dateModified[i]);
+		}
+		return builder;
+	}
+
+	TrackStore toTrackStore() {
+		return addTo(new TrackStore.Builder(size)).build();
+	}
+
+	/** 全曲を（ソートしていない）Item のリストにする。 */
+	List<Item> toItems() {
+		List<Item> items = new ArrayList<Item>(size);
+		for (int i = 0; i < size; i++) {
+			items.add(new Item(ids[i], artists[i], titles[i], albums[i], albumIds[i], tracks[i], durations[i],
+					dateModified[i]));
+		}
+		return items;
+	}
+}
@@ -0,0 +1,92 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * 曲リストへの添字アクセスと _ID による検索のベンチマーク。
+ * 結果は 1 曲あたりの時間。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TrackStoreBenchmark {
+	// 最小のライブラリの曲数以下にしておく
+	private static final int LOOKUPS = 1000;
+
+	@Param({"1000", "10000", "100000"})
+	public int size;
+
+	private TrackStore mStore;
+	private int[] mRandomIndices;
+	private long[] mRandomIds;
+
+	@Setup
+	public void setUp() {
+		mStore = SyntheticLibrary.generate(size).toTrackStore();
+		Random random = new Random(SyntheticLibrary.DEFAULT_SEED);
+		mRandomIndices = new int[LOOKUPS];
+		mRandomIds = new long[LOOKUPS];
+		for (int i = 0; i < LOOKUPS; i++) {
+			mRandomIndices[i] = random.nextInt(size);
+			mRandomIds[i] = mStore.getId(random.nextInt(size));
+		}
+		// 索引は最初の検索で作られるので、計測の外で作っておく
+		mStore.indexOf(mRandomIds[0]);
+	}
+
+	/** 画面の一覧表示のように、先頭から順に各欄を読む。 */
+	@Benchmark
+	@OperationsPerInvocation(LOOKUPS)
+	public void sequentialAccess(Blackhole bh) {
+		TrackStore store = mStore;
+		for (int i = 0; i < LOOKUPS; i++) {
+			bh.consume(store.getTitle(i));
+			bh.consume(store.getArtist(i));
+			bh.consume(store.getDuration(i));
+		}
+	}
+
+	/** シャッフル再生のように、飛び飛びの位置の各欄を読む。 */
+	@Benchmark
+	@OperationsPerInvocation(LOOKUPS)
+	public void randomAccess(Blackhole bh) {
+		TrackStore store = mStore;
+		for (int index : mRandomIndices) {
+			bh.consume(store.getTitle(index));
+			bh.consume(store.getArtist(index));
+			bh.consume(store.getDuration(index));
+		}
+	}
+
+	/** 添字から Item を作る（呼び出すたびに生成される）。 */
+	@Benchmark
+	@OperationsPerInvocation(LOOKUPS)
+	public void materializeItem(Blackhole bh) {
+		TrackStore store = mStore;
+		for (int index : mRandomIndices) {
+			bh.consume(store.get(index));
+		}
+	}
+
+	/** _ID から位置を探す。 */
+	@Benchmark
+	@OperationsPerInvocation(LOOKUPS)
+	public void indexOf(Blackhole bh) {
+		TrackStore store = mStore;
+		for (long id : mRandomIds) {
+			bh.consume(store.indexOf(id));
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import java.util.PriorityQueue;
+
+/**
+ * 負荷試験用の仮想の時計。時刻は {@link #advanceTo(long)} で進めた分だけ進み、
+ * 予約された処理はその時刻になった時点で順に実行される（Handler.postDelayed の代わり）。
+ */
+public class VirtualClock implements PlaybackClock {
+	private static class Task implements Comparable<Task> {
+		final long time;
+		final long seq;
+		final Runnable runnable;
+
+		Task(long time, long seq, Runnable runnable) {
+			this.time = time;
+			this.seq = seq;
+			this.runnable = runnable;
+		}
+
+		@Override
+		public int compareTo(Task other) {
+			if (time != other.time) {
+				return time < other.time ? -1 : 1;
+			}
+			return seq < other.seq ? -1 : seq == other.seq ? 0 : 1;
+		}
+	}
+
+	private final PriorityQueue<Task> mTasks = new PriorityQueue<Task>();
+	private long mSeq;
+	// 0 は「計測していない」の意味で使われるので、1 から始める
+	private long mNow = 1;
+
+	@Override
+	public long elapsedRealtime() {
+		return mNow;
+	}
+
+	/** delay ミリ秒後に runnable を実行するよう予約する。 */
+	public void schedule(long delay, Runnable runnable) {
+		mTasks.add(new Task(mNow + Math.max(delay, 0), mSeq++, runnable));
+	}
+
+	/** time まで時刻を進め、その間に予約された処理を実行する。 */
+	public void advanceTo(long time) {
+		Task task;
+		while ((task = mTasks.peek()) != null && task.time <= time) {
+			mTasks.poll();
+			mNow = Math.max(mNow, task.time);
+			task.runnable.run();
+		}
+		mNow = Math.max(mNow, time);
+	}
+
+	/** 予約された処理が無くなるか、limit に達するまで時刻を進める。 */
+	public void runUntilIdle(long limit) {
+		Task task;
+		while ((task = mTasks.peek()) != null && task.time <= limit) {
+			advanceTo(task.time);
+		}
+	}
+
+	public int getPendingCount() {
+		return mTasks.size();
+	}
+}
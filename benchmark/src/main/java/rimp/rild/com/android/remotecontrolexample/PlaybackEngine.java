@@ -0,0 +1,535 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import rimp.rild.com.android.remotecontrolexample.MusicPlayerService.AudioFocus;
+import rimp.rild.com.android.remotecontrolexample.MusicPlayerService.State;
+
+/**
+ * MusicPlayerService の再生スレッドの規則（曲の位置、再生状態、オーディオフォーカス、コマンドの扱い）を手で写したモデル。
+ * MediaPlayer、AudioManager、ContentResolver には依存せず、プレーヤー、フォーカス、ライブラリは小さなインターフェイス越しに使うので、
+ * JVM 上の負荷試験（EngineLoadHarness）やベンチマーク、単体テストで動かせる。
+ * サービスはこのクラスを使っておらず、これはアプリには含めない。再生キュー、ギャップレス、プレーヤーのプール、クロスフェード、
+ * ストリーム、セッションの再開は扱わないので、ここで測った遅延や処理時間はこのモデルのもので、サービスのものではない。
+ * サービスの規則を変えたときは、ここも合わせること。
+ * 1 つのスレッドから使うこと（プレーヤーのコールバックも同じスレッドで呼び出すこと）。
+ */
+public class PlaybackEngine implements MusicFocusable {
+	/** 1 曲ずつ再生するプレーヤー。MediaPlayer に相当する。 */
+	public interface Player {
+		void setListener(PlayerListener listener);
+
+		/**
+		 * 曲の準備を始める。準備中や再生中の曲は取り消す。
+		 * 終わったら、後から PlayerListener.onPrepared か onError を呼び出す。
+		 */
+		void prepare(long trackId);
+
+		void start();
+
+		void pause();
+
+		void seekTo(int position);
+
+		int getCurrentPosition();
+
+		void setVolume(float volume);
+
+		/** 準備中や再生中の曲を取り消し、準備前の状態に戻す。 */
+		void reset();
+
+		void release();
+	}
+
+	/** プレーヤーからのコールバック。MediaPlayer の各リスナーに相当する。 */
+	public interface PlayerListener {
+		void onPrepared(Player player);
+
+		void onCompletion(Player player);
+
+		void onError(Player player, int what, int extra);
+	}
+
+	/** オーディオフォーカスの要求と放棄。AudioFocusHelper に相当する。 */
+	public interface Focus {
+		/** @return フォーカスを得られたら true */
+		boolean requestFocus();
+
+		/** @return 放棄できたら true */
+		boolean abandonFocus();
+	}
+
+	/** 再生する曲の並び。TrackStore は {@link #of(TrackStore)} で渡す。 */
+	public interface Library {
+		int size();
+
+		long getId(int index);
+	}
+
+	/** TrackStore を Library として使う。 */
+	public static Library of(final TrackStore items) {
+		return new Library() {
+			@Override
+			public int size() {
+				return items.size();
+			}
+
+			@Override
+			public long getId(int index) {
+				return items.getId(index);
+			}
+		};
+	}
+
+	private final Player mPlayer;
+	private final Focus mFocus;
+	private final PlaybackClock mClock;
+	private final PlaybackStateMachine mStateMachine;
+	private final PlaybackMetrics mMetrics;
+	private final PlaybackCommandQueue mCommands = new PlaybackCommandQueue();
+
+	private Library mLibrary;
+	private int mIndex;
+	private final PlayOrder mPlayOrder = new PlayOrder(0);
+	private AudioFocus mAudioFocus = AudioFocus.NoFocusNoDuck;
+	private boolean mStartPlayingAfterRetrieve = false;
+	// the song picked while retrieving, to play once the library is here, or -1
+	private long mPendingTrackId = -1;
+
+	// the _ID of the song loaded in mPlayer, or -1, and how far it got
+	private long mPlayerId = -1;
+	private boolean mPlayerPreparing = false;
+	private boolean mPlayerPrepared = false;
+	private boolean mPlayerPlaying = false;
+	private boolean mPlayerStarted = false;	// started since it was prepared
+	private boolean mIsOnlyPrepare = false;
+
+	// SystemClock-style start times of what is being measured, or 0
+	private long mPlayRequestTime = 0;
+	private long mSkipRequestTime = 0;
+	private long mPrepareStartTime = 0;
+
+	/**
+	 * @param player 再生に使うプレーヤー。リスナーにはこのエンジンが設定される
+	 * @param focus オーディオフォーカス
+	 * @param clock 遅延の計測に使う時計
+	 */
+	public PlaybackEngine(Player player, Focus focus, PlaybackClock clock) {
+		mPlayer = player;
+		mFocus = focus;
+		mClock = clock;
+		mStateMachine = new PlaybackStateMachine(State.Retrieving, clock);
+		mMetrics = new PlaybackMetrics(clock);
+		mPlayer.setListener(mPlayerListener);
+	}
+
+	/**
+	 * 再生する曲の並びを設定する。最初の設定で Retrieving から Stopped になる。
+	 * 並びが替わった場合は、同じ曲を指し続ける。
+	 */
+	public void setLibrary(Library library) {
+		Library previous = mLibrary;
+		mLibrary = library;
+		mPlayOrder.setSize(library.size());
+		if (mStateMachine.get() != State.Retrieving && previous != null) {
+			long currentId = previous.size() == 0 ? -1 : previous.getId(mIndex);
+			mIndex = Math.max(indexOf(library, currentId), 0);
+			return;
+		}
+		mStateMachine.moveTo(State.Stopped, "retrieved");
+		if (mPendingTrackId != -1 && library.size() > 0) {
+			mIndex = Math.max(indexOf(library, mPendingTrackId), 0);
+		}
+		mPendingTrackId = -1;
+		if (mStartPlayingAfterRetrieve) {
+			tryToGetAudioFocus();
+			playNextSong(false);
+		}
+	}
+
+	/**
+	 * コマンドを積む。実行は {@link #processPending()} で行う。
+	 * @return 積む前のキューが空だった場合は true
+	 */
+	public boolean offer(PlaybackCommandQueue.Command command) {
+		return mCommands.offer(command);
+	}
+
+	/**
+	 * 積まれたコマンドをすべて実行する。
+	 * @return 実行したコマンドの数
+	 */
+	public int processPending() {
+		int count = 0;
+		PlaybackCommandQueue.Command command;
+		while ((command = mCommands.poll()) != null) {
+			execute(command);
+			count++;
+		}
+		return count;
+	}
+
+	/** コマンドを 1 つ、キューを通さずに実行する。 */
+	public void execute(PlaybackCommandQueue.Command command) {
+		mMetrics.recordSince(PlaybackMetrics.LATENCY_COMMAND, command.when);
+		switch (command.type) {
+		case PlaybackCommandQueue.PLAYPAUSE:
+			if (mStateMachine.get() == State.Retrieving) {
+				// nothing plays while retrieving: toggle whether to start once retrieved
+				mStartPlayingAfterRetrieve = !mStartPlayingAfterRetrieve;
+			} else if (mStateMachine.get() == State.Paused || mStateMachine.get() == State.Stopped
+					|| (mStateMachine.get() == State.Preparing && mIsOnlyPrepare)) {
+				processPlayRequest(command.when);
+			} else {
+				processPauseRequest();
+			}
+			break;
+		case PlaybackCommandQueue.PLAY:
+			processPlayRequest(command.when);
+			break;
+		case PlaybackCommandQueue.PAUSE:
+			processPauseRequest();
+			break;
+		case PlaybackCommandQueue.SKIP:
+			processSkipRequest(command.count, command.when);
+			break;
+		case PlaybackCommandQueue.PREVIOUS:
+			processPreviousRequest(command.count, command.when);
+			break;
+		case PlaybackCommandQueue.REWIND:
+			processSeekRequest(0);
+			break;
+		case PlaybackCommandQueue.SEEK:
+			processSeekRequest(command.arg);
+			break;
+		case PlaybackCommandQueue.STOP:
+			processStopRequest();
+			break;
+		case PlaybackCommandQueue.PLAY_TRACK:
+			processPlayTrackRequest(command.trackId, command.when);
+			break;
+		case PlaybackCommandQueue.SET_SHUFFLE:
+			// the seed comes with the command, so that a run can be repeated exactly
+			mPlayOrder.setShuffle(command.flag, mIndex, command.arg);
+			break;
+		case PlaybackCommandQueue.SET_REPEAT:
+			mPlayOrder.setRepeat(command.arg);
+			break;
+		default:
+			// gapless, the player pool and the play queue belong to the service
+			break;
+		}
+	}
+
+	private void processPlayRequest(long requestTime) {
+		if (mStateMachine.get() == State.Retrieving) {
+			mStartPlayingAfterRetrieve = true;
+			return;
+		}
+		tryToGetAudioFocus();
+		if (mPlayRequestTime == 0) {
+			mPlayRequestTime = requestTime;
+		}
+		if (mStateMachine.get() == State.Stopped) {
+			playNextSong(false);
+		} else if (mStateMachine.get() == State.Preparing) {
+			// a song only being prepared (after a skip while stopped) should play when ready
+			mIsOnlyPrepare = false;
+		} else if (mStateMachine.moveTo(State.Paused, State.Playing, "play") == PlaybackStateMachine.MOVED) {
+			configAndStartPlayer();
+		}
+	}
+
+	private void processPauseRequest() {
+		if (mStateMachine.get() == State.Retrieving) {
+			mStartPlayingAfterRetrieve = false;
+			return;
+		}
+		if (mStateMachine.moveTo(State.Playing, State.Paused, "pause") == PlaybackStateMachine.MOVED) {
+			mPlayer.pause();
+			mPlayerPlaying = false;
+		}
+	}
+
+	private void processSkipRequest(int count, long requestTime) {
+		State state = mStateMachine.get();
+		if ((state != State.Playing && state != State.Paused && state != State.Stopped) || mLibrary.size() == 0) {
+			return;
+		}
+		mMetrics.count(PlaybackMetrics.COUNT_SKIPS, count);
+		mSkipRequestTime = requestTime;
+		mIndex = mPlayOrder.skip(mIndex, count);
+		if (state == State.Stopped) {
+			playNextSong(true);
+		} else {
+			tryToGetAudioFocus();
+			playNextSong(false);
+		}
+	}
+
+	private void processPreviousRequest(int count, long requestTime) {
+		State state = mStateMachine.get();
+		if ((state != State.Playing && state != State.Paused && state != State.Stopped) || mLibrary.size() == 0) {
+			return;
+		}
+		if (state != State.Stopped && mPlayer.getCurrentPosition() > MusicPlayerService.PREVIOUS_REWIND_THRESHOLD) {
+			count--;
+			if (count == 0) {
+				processSeekRequest(0);
+				return;
+			}
+		}
+		mMetrics.count(PlaybackMetrics.COUNT_SKIPS, count);
+		mIndex = mPlayOrder.skip(mIndex, -count);
+		mSkipRequestTime = requestTime;
+		if (state == State.Stopped) {
+			playNextSong(true);
+		} else {
+			tryToGetAudioFocus();
+			playNextSong(false);
+		}
+	}
+
+	private void processPlayTrackRequest(long trackId, long requestTime) {
+		if (mStateMachine.get() == State.Retrieving) {
+			// locate it and play once the library is here
+			mPendingTrackId = trackId;
+			mStartPlayingAfterRetrieve = true;
+			return;
+		}
+		int index = indexOf(mLibrary, trackId);
+		if (index < 0) {
+			return;
+		}
+		if (index == mIndex && mStateMachine.get() != State.Stopped) {
+			// already loaded; a song only being prepared plays when ready
+			processPlayRequest(requestTime);
+			return;
+		}
+		mPlayOrder.startAt(index, mIndex);
+		mIndex = index;
+		mSkipRequestTime = requestTime;
+		tryToGetAudioFocus();
+		playNextSong(false);
+	}
+
+	private void processSeekRequest(int position) {
+		if (mStateMachine.get() == State.Playing || mStateMachine.get() == State.Paused) {
+			mPlayer.seekTo(position);
+		}
+	}
+
+	private void processStopRequest() {
+		if (mStateMachine.get() != State.Playing && mStateMachine.get() != State.Paused
+				&& mStateMachine.get() != State.Preparing) {
+			return;
+		}
+		mStateMachine.moveTo(State.Stopped, "stop");
+		resetPlayer();
+		giveUpAudioFocus();
+	}
+
+	private void playNextSong(boolean isOnlyPrepare) {
+		boolean wasPrepared = mStateMachine.get() == State.Playing || mStateMachine.get() == State.Paused;
+		mIsOnlyPrepare = isOnlyPrepare;
+		mStateMachine.moveTo(State.Stopped, "next song");
+		if (mLibrary.size() == 0) {
+			resetPlayer();
+			giveUpAudioFocus();
+			return;
+		}
+		long id = mLibrary.getId(mIndex);
+
+		// A song prepared while stopped is still prepared; preparing it again
+		// would only waste the decoder setup.
+		if (!wasPrepared && mPlayerPrepared && mPlayerId == id) {
+			mStateMachine.recordNoop("re-prepare " + id);
+			mMetrics.count(PlaybackMetrics.COUNT_REUSED);
+			mStateMachine.moveTo(State.Preparing, "prepare " + id);
+			onPlayerPrepared();
+			return;
+		}
+
+		resetPlayer();
+		mPlayerId = id;
+		mPlayerPreparing = true;
+		mStateMachine.moveTo(State.Preparing, "prepare " + id);
+		mMetrics.count(PlaybackMetrics.COUNT_PREPARES);
+		mMetrics.event(PlaybackMetrics.EVENT_PREPARE, id);
+		mPrepareStartTime = mClock.elapsedRealtime();
+		mPlayer.prepare(id);
+	}
+
+	/** Drops whatever the player holds; a prepare that never played counts as wasted. */
+	private void resetPlayer() {
+		if ((mPlayerPreparing || mPlayerPrepared) && !mPlayerStarted) {
+			mMetrics.count(PlaybackMetrics.COUNT_WASTED_PREPARES);
+		}
+		if (mPlayerId != -1) {
+			mPlayer.reset();
+		}
+		mPlayerId = -1;
+		mPlayerPreparing = false;
+		mPlayerPrepared = false;
+		mPlayerPlaying = false;
+		mPlayerStarted = false;
+		mPrepareStartTime = 0;
+	}
+
+	private void onPlayerPrepared() {
+		mPlayerPreparing = false;
+		mPlayerPrepared = true;
+		State next = mIsOnlyPrepare ? State.Stopped : State.Playing;
+		if (mStateMachine.moveTo(State.Preparing, next, "prepared") != PlaybackStateMachine.MOVED) {
+			return;
+		}
+		if (!mIsOnlyPrepare) {
+			configAndStartPlayer();
+		}
+	}
+
+	private void configAndStartPlayer() {
+		if (mAudioFocus == AudioFocus.NoFocusNoDuck) {
+			if (mPlayerPlaying) {
+				mPlayer.pause();
+				mPlayerPlaying = false;
+				mStateMachine.moveTo(State.Playing, State.Paused, "focus lost");
+			}
+			return;
+		} else if (mAudioFocus == AudioFocus.NoFocusCanDuck) {
+			mPlayer.setVolume(MusicPlayerService.DUCK_VOLUME);
+		} else {
+			mPlayer.setVolume(1.0f);
+		}
+		if (!mPlayerPlaying) {
+			mPlayer.start();
+			mPlayerPlaying = true;
+			mPlayerStarted = true;
+			mMetrics.count(PlaybackMetrics.COUNT_STARTS);
+			mMetrics.event(PlaybackMetrics.EVENT_START, mPlayerId);
+			mMetrics.recordSince(PlaybackMetrics.LATENCY_FIRST_AUDIO, mPlayRequestTime);
+			mMetrics.recordSince(PlaybackMetrics.LATENCY_SKIP, mSkipRequestTime);
+			mPlayRequestTime = 0;
+			mSkipRequestTime = 0;
+		}
+	}
+
+	private void tryToGetAudioFocus() {
+		if (mAudioFocus != AudioFocus.Focused && mFocus.requestFocus()) {
+			mAudioFocus = AudioFocus.Focused;
+		}
+	}
+
+	private void giveUpAudioFocus() {
+		if (mAudioFocus == AudioFocus.Focused && mFocus.abandonFocus()) {
+			mAudioFocus = AudioFocus.NoFocusNoDuck;
+		}
+	}
+
+	@Override
+	public void onGainedAudioFocus() {
+		mAudioFocus = AudioFocus.Focused;
+		if (mStateMachine.get() == State.Playing) {
+			configAndStartPlayer();
+		}
+	}
+
+	@Override
+	public void onLostAudioFocus(boolean canDuck) {
+		mAudioFocus = canDuck ? AudioFocus.NoFocusCanDuck : AudioFocus.NoFocusNoDuck;
+		if (mPlayerPlaying) {
+			configAndStartPlayer();
+		}
+	}
+
+	private final PlayerListener mPlayerListener = new PlayerListener() {
+		@Override
+		public void onPrepared(Player player) {
+			if (!mPlayerPreparing) {
+				// a prepare we already cancelled
+				return;
+			}
+			mMetrics.recordSince(PlaybackMetrics.LATENCY_PREPARE, mPrepareStartTime);
+			mMetrics.event(PlaybackMetrics.EVENT_PREPARED, mPlayerId);
+			mPrepareStartTime = 0;
+			onPlayerPrepared();
+		}
+
+		@Override
+		public void onCompletion(Player player) {
+			if (!mPlayerPlaying) {
+				return;
+			}
+			mPlayerPlaying = false;
+			if (mPlayOrder.getRepeat() == PlayOrder.REPEAT_ONE) {
+				mPlayer.seekTo(0);
+				configAndStartPlayer();
+				return;
+			}
+			int next = mPlayOrder.next(mIndex);
+			if (next == -1) {
+				mIndex = mPlayOrder.skip(mIndex, 1);
+				processStopRequest();
+				return;
+			}
+			mIndex = next;
+			playNextSong(false);
+		}
+
+		@Override
+		public void onError(Player player, int what, int extra) {
+			mMetrics.count(PlaybackMetrics.COUNT_ERRORS);
+			mMetrics.event(PlaybackMetrics.EVENT_ERROR, what);
+			mStateMachine.moveTo(State.Stopped, "error " + what + "/" + extra);
+			resetPlayer();
+			giveUpAudioFocus();
+			mPlayRequestTime = 0;
+			mSkipRequestTime = 0;
+		}
+	};
+
+	private static int indexOf(Library library, long id) {
+		for (int i = 0, n = library.size(); i < n; i++) {
+			if (library.getId(i) == id) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public State getState() {
+		return mStateMachine.get();
+	}
+
+	public int getIndex() {
+		return mIndex;
+	}
+
+	/** 読み込まれている曲の _ID。無ければ -1。 */
+	public long getPlayerId() {
+		return mPlayerId;
+	}
+
+	public PlaybackStateMachine getStateMachine() {
+		return mStateMachine;
+	}
+
+	public PlaybackMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	public PlayOrder getPlayOrder() {
+		return mPlayOrder;
+	}
+
+	public PlaybackCommandQueue getCommands() {
+		return mCommands;
+	}
+
+	/** プレーヤーを解放する。以後は使えない。 */
+	public void release() {
+		mCommands.clear();
+		mStateMachine.moveTo(State.Stopped, "release");
+		resetPlayer();
+		giveUpAudioFocus();
+		mPlayer.release();
+	}
+}
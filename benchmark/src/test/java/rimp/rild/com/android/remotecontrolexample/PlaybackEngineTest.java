@@ -0,0 +1,331 @@
+package rimp.rild.com.android.remotecontrolexample;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import rimp.rild.com.android.remotecontrolexample.MusicPlayerService.State;
+
+import static org.junit.Assert.*;
+
+/**
+ * PlaybackEngine のコマンドの扱いと状態の移り方を試す。
+ * プレーヤーはコールバックを試験から呼び出すもので、準備の完了や曲の終わりは試験が決める。
+ */
+public class PlaybackEngineTest {
+	private static final int SONGS = 5;
+
+	private ScriptedPlayer mPlayer;
+	private ScriptedFocus mFocus;
+	private long mNow = 1000;
+	private PlaybackEngine mEngine;
+
+	@Before
+	public void setUp() {
+		mPlayer = new ScriptedPlayer();
+		mFocus = new ScriptedFocus();
+		mEngine = new PlaybackEngine(mPlayer, mFocus, new PlaybackClock() {
+			@Override
+			public long elapsedRealtime() {
+				return mNow;
+			}
+		});
+	}
+
+	@Test
+	public void playWhileRetrievingStartsOnceRetrieved() {
+		run(PlaybackCommandQueue.PLAY);
+		assertEquals(State.Retrieving, mEngine.getState());
+		mEngine.setLibrary(library(SONGS));
+		assertEquals(State.Preparing, mEngine.getState());
+		mPlayer.finishPrepare();
+		assertEquals(State.Playing, mEngine.getState());
+		assertTrue(mPlayer.playing);
+		assertTrue(mFocus.focused);
+	}
+
+	@Test
+	public void playTrackWhileRetrievingPlaysThatTrack() {
+		PlaybackCommandQueue.Command command = command(PlaybackCommandQueue.PLAY_TRACK);
+		command.trackId = id(3);
+		mEngine.execute(command);
+		mEngine.setLibrary(library(SONGS));
+		assertEquals(3, mEngine.getIndex());
+		assertEquals(id(3), mPlayer.preparing);
+	}
+
+	@Test
+	public void playPauseWhileRetrievingToggles() {
+		run(PlaybackCommandQueue.PLAYPAUSE);
+		run(PlaybackCommandQueue.PLAYPAUSE);
+		mEngine.setLibrary(library(SONGS));
+		assertEquals(State.Stopped, mEngine.getState());
+
+		setUp();
+		run(PlaybackCommandQueue.PLAYPAUSE);
+		mEngine.setLibrary(library(SONGS));
+		assertEquals(State.Preparing, mEngine.getState());
+	}
+
+	@Test
+	public void pauseAfterAQueuedPlayPausesWhenPlaying() {
+		startPlaying();
+		mEngine.offer(command(PlaybackCommandQueue.PLAY));
+		mEngine.offer(command(PlaybackCommandQueue.PAUSE));
+		assertEquals(1, mEngine.processPending());
+		assertEquals(State.Paused, mEngine.getState());
+		assertFalse(mPlayer.playing);
+	}
+
+	@Test
+	public void skipsInABurstPrepareOnlyTheLastSong() {
+		startPlaying();
+		for (int i = 0; i < 3; i++) {
+			mEngine.offer(command(PlaybackCommandQueue.SKIP));
+		}
+		assertEquals(1, mEngine.processPending());
+		assertEquals(3, mEngine.getIndex());
+		assertEquals(id(3), mPlayer.preparing);
+		assertEquals(2, mPlayer.prepareCount);
+	}
+
+	@Test
+	public void pickingAnotherSongWhilePreparingWastesThePrepare() {
+		startPlaying();
+		run(PlaybackCommandQueue.SKIP);
+		PlaybackCommandQueue.Command command = command(PlaybackCommandQueue.PLAY_TRACK);
+		command.trackId = id(4);
+		mEngine.execute(command);
+		mPlayer.finishPrepare();
+		assertEquals(State.Playing, mEngine.getState());
+		assertEquals(4, mEngine.getIndex());
+		assertEquals(1, mEngine.getMetrics().getCount(PlaybackMetrics.COUNT_WASTED_PREPARES));
+	}
+
+	@Test
+	public void previousRewindsAfterTheThreshold() {
+		startPlaying();
+		run(PlaybackCommandQueue.SKIP);
+		mPlayer.finishPrepare();
+		mPlayer.position = MusicPlayerService.PREVIOUS_REWIND_THRESHOLD + 1;
+		run(PlaybackCommandQueue.PREVIOUS);
+		assertEquals(1, mEngine.getIndex());
+		assertEquals(0, mPlayer.position);
+
+		run(PlaybackCommandQueue.PREVIOUS);
+		assertEquals(0, mEngine.getIndex());
+		assertEquals(State.Preparing, mEngine.getState());
+	}
+
+	@Test
+	public void completionMovesOnAndStopsAfterTheLastSongWithoutRepeat() {
+		PlaybackCommandQueue.Command repeat = command(PlaybackCommandQueue.SET_REPEAT);
+		repeat.arg = PlayOrder.REPEAT_OFF;
+		mEngine.execute(repeat);
+		startPlaying();
+		for (int i = 1; i < SONGS; i++) {
+			mPlayer.complete();
+			assertEquals(i, mEngine.getIndex());
+			mPlayer.finishPrepare();
+		}
+		mPlayer.complete();
+		assertEquals(State.Stopped, mEngine.getState());
+		assertEquals(0, mEngine.getIndex());
+		assertFalse(mFocus.focused);
+	}
+
+	@Test
+	public void repeatOnePlaysTheSongAgain() {
+		PlaybackCommandQueue.Command repeat = command(PlaybackCommandQueue.SET_REPEAT);
+		repeat.arg = PlayOrder.REPEAT_ONE;
+		mEngine.execute(repeat);
+		startPlaying();
+		mPlayer.position = 5000;
+		mPlayer.playing = false;
+		mPlayer.complete();
+		assertEquals(0, mEngine.getIndex());
+		assertEquals(0, mPlayer.position);
+		assertTrue(mPlayer.playing);
+		assertEquals(1, mPlayer.prepareCount);
+	}
+
+	@Test
+	public void focusLossPausesAndDuckingLowersTheVolume() {
+		startPlaying();
+		mEngine.onLostAudioFocus(true);
+		assertEquals(State.Playing, mEngine.getState());
+		assertEquals(MusicPlayerService.DUCK_VOLUME, mPlayer.volume, 0f);
+
+		mEngine.onLostAudioFocus(false);
+		assertEquals(State.Paused, mEngine.getState());
+		assertFalse(mPlayer.playing);
+
+		run(PlaybackCommandQueue.PLAY);
+		mEngine.onGainedAudioFocus();
+		assertEquals(State.Playing, mEngine.getState());
+		assertTrue(mPlayer.playing);
+		assertEquals(1f, mPlayer.volume, 0f);
+	}
+
+	@Test
+	public void errorStops() {
+		startPlaying();
+		run(PlaybackCommandQueue.SKIP);
+		mPlayer.fail();
+		assertEquals(State.Stopped, mEngine.getState());
+		assertEquals(-1, mEngine.getPlayerId());
+		assertEquals(1, mEngine.getMetrics().getCount(PlaybackMetrics.COUNT_ERRORS));
+	}
+
+	@Test
+	public void skipWhileStoppedOnlyPreparesAndPlayReusesIt() {
+		mEngine.setLibrary(library(SONGS));
+		run(PlaybackCommandQueue.SKIP);
+		mPlayer.finishPrepare();
+		assertEquals(State.Stopped, mEngine.getState());
+		assertFalse(mPlayer.playing);
+
+		run(PlaybackCommandQueue.PLAY);
+		assertEquals(State.Playing, mEngine.getState());
+		assertEquals(1, mPlayer.prepareCount);
+		assertEquals(1, mEngine.getMetrics().getCount(PlaybackMetrics.COUNT_REUSED));
+	}
+
+	@Test
+	public void playOrToggleWhileOnlyPreparingPlaysWhenReady() {
+		mEngine.setLibrary(library(SONGS));
+		run(PlaybackCommandQueue.SKIP);
+		run(PlaybackCommandQueue.PLAY);
+		mPlayer.finishPrepare();
+		assertEquals(State.Playing, mEngine.getState());
+		assertTrue(mPlayer.playing);
+
+		setUp();
+		mEngine.setLibrary(library(SONGS));
+		run(PlaybackCommandQueue.SKIP);
+		run(PlaybackCommandQueue.PLAYPAUSE);
+		mPlayer.finishPrepare();
+		assertEquals(State.Playing, mEngine.getState());
+	}
+
+	private void startPlaying() {
+		mEngine.setLibrary(library(SONGS));
+		run(PlaybackCommandQueue.PLAY);
+		mPlayer.finishPrepare();
+		assertEquals(State.Playing, mEngine.getState());
+	}
+
+	private void run(int type) {
+		mEngine.offer(command(type));
+		mEngine.processPending();
+	}
+
+	private PlaybackCommandQueue.Command command(int type) {
+		return new PlaybackCommandQueue.Command(type, mNow);
+	}
+
+	private static long id(int index) {
+		return 100 + index;
+	}
+
+	private static PlaybackEngine.Library library(final int size) {
+		return new PlaybackEngine.Library() {
+			@Override
+			public int size() {
+				return size;
+			}
+
+			@Override
+			public long getId(int index) {
+				return id(index);
+			}
+		};
+	}
+
+	/** 準備の完了、曲の終わり、エラーを試験から起こすプレーヤー。 */
+	private static class ScriptedPlayer implements PlaybackEngine.Player {
+		PlaybackEngine.PlayerListener listener;
+		long preparing = -1;
+		int prepareCount;
+		boolean playing;
+		int position;
+		float volume = 1f;
+
+		@Override
+		public void setListener(PlaybackEngine.PlayerListener listener) {
+			this.listener = listener;
+		}
+
+		@Override
+		public void prepare(long trackId) {
+			preparing = trackId;
+			prepareCount++;
+			playing = false;
+			position = 0;
+		}
+
+		@Override
+		public void start() {
+			playing = true;
+		}
+
+		@Override
+		public void pause() {
+			playing = false;
+		}
+
+		@Override
+		public void seekTo(int position) {
+			this.position = position;
+		}
+
+		@Override
+		public int getCurrentPosition() {
+			return position;
+		}
+
+		@Override
+		public void setVolume(float volume) {
+			this.volume = volume;
+		}
+
+		@Override
+		public void reset() {
+			preparing = -1;
+			playing = false;
+			position = 0;
+		}
+
+		@Override
+		public void release() {
+		}
+
+		void finishPrepare() {
+			listener.onPrepared(this);
+		}
+
+		void complete() {
+			playing = false;
+			listener.onCompletion(this);
+		}
+
+		void fail() {
+			listener.onError(this, 1, 0);
+		}
+	}
+
+	private static class ScriptedFocus implements PlaybackEngine.Focus {
+		boolean focused;
+
+		@Override
+		public boolean requestFocus() {
+			focused = true;
+			return true;
+		}
+
+		@Override
+		public boolean abandonFocus() {
+			focused = false;
+			return true;
+		}
+	}
+}